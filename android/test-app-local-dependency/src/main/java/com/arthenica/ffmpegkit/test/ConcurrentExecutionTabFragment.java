@@ -30,20 +30,23 @@ import androidx.annotation.Nullable;
 import androidx.fragment.app.Fragment;
 
 import com.arthenica.ffmpegkit.ExecuteCallback;
-import com.arthenica.ffmpegkit.FFmpegKit;
-import com.arthenica.ffmpegkit.FFmpegKitConfig;
-import com.arthenica.ffmpegkit.FFmpegSession;
 import com.arthenica.ffmpegkit.LogCallback;
 import com.arthenica.ffmpegkit.ReturnCode;
 import com.arthenica.ffmpegkit.Session;
 import com.arthenica.ffmpegkit.SessionState;
+import com.arthenica.ffmpegkit.util.AdaptiveConcurrencyController;
+import com.arthenica.ffmpegkit.util.CallbackExecutor;
+import com.arthenica.ffmpegkit.util.JobQueue;
 import com.arthenica.ffmpegkit.util.ResourcesUtil;
+import com.arthenica.ffmpegkit.util.ResultCache;
 import com.arthenica.smartexception.java.Exceptions;
 
 import java.io.File;
 import java.io.IOException;
 import java.util.Locale;
 import java.util.concurrent.Callable;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 
 import static com.arthenica.ffmpegkit.test.MainActivity.TAG;
 import static com.arthenica.ffmpegkit.test.MainActivity.notNull;
@@ -153,8 +156,8 @@ public class ConcurrentExecutionTabFragment extends Fragment {
         return new ConcurrentExecutionTabFragment();
     }
 
-    public void enableLogCallback() {
-        FFmpegKitConfig.enableLogCallback(new LogCallback() {
+    public LogCallback createLogCallback() {
+        return MainActivity.getCallbackExecutor().wrap("concurrent log", new LogCallback() {
 
             @Override
             public void apply(final com.arthenica.ffmpegkit.Log log) {
@@ -167,7 +170,7 @@ public class ConcurrentExecutionTabFragment extends Fragment {
                     }
                 });
             }
-        });
+        }, CallbackExecutor.Policy.forLogs());
     }
 
     public void encodeVideo(final int buttonNumber) {
@@ -188,47 +191,89 @@ public class ConcurrentExecutionTabFragment extends Fragment {
 
             Log.d(TAG, String.format("FFmpeg process starting for button %d with arguments\n'%s'.", buttonNumber, ffmpegCommand));
 
-            final FFmpegSession session = FFmpegKit.executeAsync(ffmpegCommand, new ExecuteCallback() {
+            // THE CACHE IS CHECKED ON ITS OWN THREAD, THE JOB IS SUBMITTED BACK ON THE MAIN THREAD
+            MainActivity.getResultCache().lookupAsync(ffmpegCommand, videoFile.getAbsolutePath()).thenAcceptAsync(new Consumer<Boolean>() {
 
                 @Override
-                public void apply(final Session session) {
-                    final SessionState state = session.getState();
-                    final ReturnCode returnCode = session.getReturnCode();
-
-                    if (ReturnCode.isCancel(returnCode)) {
-                        Log.d(TAG, String.format("FFmpeg process ended with cancel for button %d with sessionId %d.", buttonNumber, session.getSessionId()));
+                public void accept(final Boolean restored) {
+                    if (restored) {
+                        Log.d(TAG, String.format("FFmpeg process skipped for button %d, output restored from cache.", buttonNumber));
+                        setSessionId(buttonNumber, 0);
+                        MainActivity.listFFmpegSessions();
                     } else {
-                        Log.d(TAG, String.format("FFmpeg process ended with state %s and rc %s for button %d with sessionId %d.%s", state, returnCode, buttonNumber, session.getSessionId(), notNull(session.getFailStackTrace(), "\n")));
+                        submitEncode(buttonNumber, ffmpegCommand, videoFile);
                     }
                 }
-            });
+            }, MainActivity.getUIExecutor());
 
-            final long sessionId = session.getSessionId();
+        } catch (IOException e) {
+            Log.e(TAG, String.format("Encode video failed %s.", Exceptions.getStackTraceString(e)));
+            Popup.show(requireContext(), "Encode video failed");
+        }
+    }
 
-            Log.d(TAG, String.format("Async FFmpeg process started for button %d with sessionId %d.", buttonNumber, sessionId));
+    protected void submitEncode(final int buttonNumber, final String ffmpegCommand, final File videoFile) {
+        final ResultCache resultCache = MainActivity.getResultCache();
+        final JobQueue jobQueue = MainActivity.getJobQueue();
 
-            switch (buttonNumber) {
-                case 1: {
-                    sessionId1 = sessionId;
-                }
-                break;
-                case 2: {
-                    sessionId2 = sessionId;
+        jobQueue.submit(ffmpegCommand, videoFile.getAbsolutePath(), new ExecuteCallback() {
+
+            @Override
+            public void apply(final Session session) {
+                final SessionState state = session.getState();
+                final ReturnCode returnCode = session.getReturnCode();
+
+                if (ReturnCode.isSuccess(returnCode)) {
+                    resultCache.put(ffmpegCommand, videoFile.getAbsolutePath());
                 }
-                break;
-                default: {
-                    sessionId3 = sessionId;
+
+                if (AdaptiveConcurrencyController.isCancelledInQueue(session)) {
+                    Log.d(TAG, String.format("FFmpeg process cancelled before it started for button %d with sessionId %d.", buttonNumber, session.getSessionId()));
+                } else if (ReturnCode.isCancel(returnCode)) {
+                    Log.d(TAG, String.format("FFmpeg process ended with cancel for button %d with sessionId %d.", buttonNumber, session.getSessionId()));
+                } else {
+                    Log.d(TAG, String.format("FFmpeg process ended with state %s and rc %s for button %d with sessionId %d.%s", state, returnCode, buttonNumber, session.getSessionId(), notNull(session.getFailStackTrace(), "\n")));
                 }
             }
+        }, createLogCallback()).whenCompleteAsync(new BiConsumer<JobQueue.Job, Throwable>() {
 
-        } catch (IOException e) {
-            Log.e(TAG, String.format("Encode video failed %s.", Exceptions.getStackTraceString(e)));
-            Popup.show(requireContext(), "Encode video failed");
-        }
+            @Override
+            public void accept(final JobQueue.Job job, final Throwable throwable) {
+                if (throwable != null) {
+                    Log.e(TAG, String.format("Submitting job failed for button %d.%s", buttonNumber, Exceptions.getStackTraceString(throwable)));
+                    if (isAdded()) {
+                        Popup.show(requireContext(), "Encode video failed");
+                    }
+                    return;
+                }
+
+                final long sessionId = job.getSessionId();
+
+                Log.d(TAG, String.format("Async FFmpeg process submitted as job %d for button %d with sessionId %d under concurrency limit %d.", job.getJobId(), buttonNumber, sessionId, jobQueue.getController().getLimit()));
+
+                setSessionId(buttonNumber, sessionId);
+            }
+        }, MainActivity.getUIExecutor());
 
         MainActivity.listFFmpegSessions();
     }
 
+    protected void setSessionId(final int buttonNumber, final long sessionId) {
+        switch (buttonNumber) {
+            case 1: {
+                sessionId1 = sessionId;
+            }
+            break;
+            case 2: {
+                sessionId2 = sessionId;
+            }
+            break;
+            default: {
+                sessionId3 = sessionId;
+            }
+        }
+    }
+
     public void cancel(final int buttonNumber) {
         long sessionId = 0;
 
@@ -249,15 +294,14 @@ public class ConcurrentExecutionTabFragment extends Fragment {
         Log.d(TAG, String.format("Cancelling FFmpeg process for button %d with sessionId %d.", buttonNumber, sessionId));
 
         if (sessionId == 0) {
-            FFmpegKit.cancel();
+            MainActivity.getJobQueue().cancelAll();
         } else {
-            FFmpegKit.cancel(sessionId);
+            MainActivity.getJobQueue().cancel(sessionId);
         }
     }
 
     public void setActive() {
         Log.i(MainActivity.TAG, "Concurrent Execution Tab Activated");
-        enableLogCallback();
         Popup.show(requireContext(), getString(R.string.concurrent_execution_test_tooltip_text));
     }
 
@@ -31,17 +31,37 @@ import androidx.annotation.Nullable;
 import androidx.fragment.app.Fragment;
 
 import com.arthenica.ffmpegkit.ExecuteCallback;
-import com.arthenica.ffmpegkit.FFmpegKitConfig;
 import com.arthenica.ffmpegkit.FFprobeKit;
 import com.arthenica.ffmpegkit.MediaInformation;
 import com.arthenica.ffmpegkit.MediaInformationSession;
 import com.arthenica.ffmpegkit.Session;
 import com.arthenica.ffmpegkit.StreamInformation;
+import com.arthenica.ffmpegkit.util.FFmpegKitFutures;
+import com.arthenica.ffmpegkit.util.LocalMediaServer;
+import com.arthenica.ffmpegkit.util.MediaInformationCache;
+import com.arthenica.ffmpegkit.util.ProjectedMediaInformation;
+import com.arthenica.ffmpegkit.util.ResilientInput;
+import com.arthenica.smartexception.java.Exceptions;
 
 import org.json.JSONObject;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
 import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 
 import static com.arthenica.ffmpegkit.test.MainActivity.notNull;
 
@@ -57,8 +77,56 @@ public class HttpsTabFragment extends Fragment {
 
     public static final String HTTPS_TEST_RANDOM_URL_3 = "https://file-examples-com.github.io/uploads/2020/03/file_example_WEBP_50kB.webp";
 
+    /**
+     * Whether the buttons probe fixtures served by a local media server instead of the remote test
+     * URLs above. The remote URLs are also used when the local server can not be started.
+     */
+    public static final boolean HTTPS_TEST_USE_LOCAL_SERVER = true;
+
+    public static final String HTTPS_TEST_LOCAL_DEFAULT_FIXTURE = "fixture.mkv";
+
+    /**
+     * Not created by {@link LocalMediaServer#createFixtures(File)}, so the server answers 404.
+     */
+    public static final String HTTPS_TEST_LOCAL_FAIL_FIXTURE = "missing.mkv";
+
+    /**
+     * Fields printed by this tab, remote media is probed only for these.
+     */
+    public static final ProjectedMediaInformation.Projection HTTPS_TEST_PROJECTION = new ProjectedMediaInformation.Projection(
+            new String[]{"filename", "format_name", "format_long_name", "duration", "start_time", "size", "bit_rate"},
+            new String[]{"index", "codec_type", "codec_name", "codec_long_name", "pix_fmt", "width", "height", "bit_rate", "sample_rate", "sample_fmt", "channel_layout",
+                    "sample_aspect_ratio", "display_aspect_ratio", "avg_frame_rate", "r_frame_rate", "time_base"});
+
+    /**
+     * Probes fired at once by the concurrent probe test, against the local media server.
+     */
+    public static final int HTTPS_TEST_CONCURRENT_PROBES = 32;
+
+    public static final long HTTPS_TEST_CONCURRENT_PROBE_TIMEOUT = 60;
+
+    public static final long HTTPS_TEST_LOCAL_SERVER_LATENCY = 50;
+
+    public static final long HTTPS_TEST_ATTEMPT_TIMEOUT = 5000;
+
     private static final Random testUrlRandom = new Random();
-    private static final Object outputLock = new Object();
+    private static final AtomicLong totalUITime = new AtomicLong();
+
+    /**
+     * Runs fixture encoding and probe tests, which block for seconds, off the common pool.
+     */
+    private static final ExecutorService testExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            final Thread thread = new Thread(runnable, "https-test");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    private static ResilientInput resilientInput;
+    private static LocalMediaServer localMediaServer;
+    private static List<String> localFixtures;
 
     private EditText urlText;
     private TextView outputText;
@@ -109,8 +177,21 @@ public class HttpsTabFragment extends Fragment {
             }
         });
 
+        View probeConcurrentlyButton = view.findViewById(R.id.probeConcurrentlyButton);
+        probeConcurrentlyButton.setOnClickListener(new View.OnClickListener() {
+
+            @Override
+            public void onClick(View v) {
+                runConcurrentProbeTest();
+            }
+        });
+
         outputText = view.findViewById(R.id.outputText);
         outputText.setMovementMethod(new ScrollingMovementMethod());
+
+        if (resilientInput == null) {
+            resilientInput = new ResilientInput(new ResilientInput.Policy().setAttemptTimeout(HTTPS_TEST_ATTEMPT_TIMEOUT));
+        }
     }
 
     @Override
@@ -123,51 +204,255 @@ public class HttpsTabFragment extends Fragment {
         return new HttpsTabFragment();
     }
 
-    public void enableLogCallback() {
-        FFmpegKitConfig.enableLogCallback(null);
-        FFmpegKitConfig.enableStatisticsCallback(null);
+    public void runGetMediaInformation(final int buttonNumber) {
+        final String enteredUrl = urlText.getText().toString();
+        final File fixtureDirectory = new File(requireContext().getCacheDir(), "fixtures");
+
+        if (buttonNumber == 4) {
+
+            // ONLY THIS BUTTON CLEARS THE TEXT VIEW
+            clearOutput();
+        }
+
+        // STARTING THE LOCAL SERVER MAY ENCODE ITS FIXTURES, SO THE URL IS SELECTED OFF THE UI THREAD
+        CompletableFuture.supplyAsync(new Supplier<String>() {
+
+            @Override
+            public String get() {
+                return selectTestUrl(buttonNumber, enteredUrl, fixtureDirectory);
+            }
+        }, testExecutor).thenAcceptAsync(new Consumer<String>() {
+
+            @Override
+            public void accept(final String testUrl) {
+                if (isAdded() && (buttonNumber == 4 || (buttonNumber == 1 && enteredUrl.isEmpty()))) {
+                    urlText.setText(testUrl);
+                }
+
+                android.util.Log.d(MainActivity.TAG, String.format("Testing HTTPS with for button %d using url %s.", buttonNumber, testUrl));
+
+                if (buttonNumber == 4) {
+
+                    // THE FAILING URL IS RETRIED AND THEN SERVED FROM ITS MIRROR
+                    runResilientGetMediaInformation(testUrl, getMirrorUrl(testUrl));
+                } else {
+
+                    // EXECUTE, UNCHANGED MEDIA IS NOT PROBED AGAIN
+                    MainActivity.getMediaInformationCache().getMediaInformationAsync(testUrl, createNewCallback());
+                }
+            }
+        }, MainActivity.getUIExecutor());
+    }
+
+    protected void runResilientGetMediaInformation(final String url, final String mirrorUrl) {
+        resilientInput.getMediaInformationAsync(url, mirrorUrl).whenComplete(new BiConsumer<MediaInformationSession, Throwable>() {
+
+            @Override
+            public void accept(final MediaInformationSession session, final Throwable throwable) {
+                android.util.Log.d(MainActivity.TAG, String.format("Resilient probe of %s with mirror %s completed, %s.", url, mirrorUrl, resilientInput.getStats()));
+
+                if (throwable == null) {
+                    appendOutput(formatMediaInformation(session.getMediaInformation(), session));
+                    return;
+                }
+
+                final Throwable cause = FFmpegKitFutures.unwrap(throwable);
+                if (cause instanceof FFmpegKitFutures.SessionFailedException) {
+                    appendOutput(formatMediaInformation(null, (MediaInformationSession) ((FFmpegKitFutures.SessionFailedException) cause).getSession()));
+                } else {
+                    appendOutput(String.format("Get media information failed\n%s\n", cause.getMessage()));
+                }
+            }
+        });
     }
 
-    public void runGetMediaInformation(final int buttonNumber) {
+    /**
+     * @return the url that serves the media the given failing test url stands for
+     */
+    protected static synchronized String getMirrorUrl(final String failUrl) {
+        if (HTTPS_TEST_FAIL_URL.equals(failUrl) || localMediaServer == null) {
+            return HTTPS_TEST_DEFAULT_URL;
+        }
+        return localMediaServer.getUrl(HTTPS_TEST_LOCAL_DEFAULT_FIXTURE);
+    }
+
+    protected static String selectTestUrl(final int buttonNumber, final String enteredUrl, final File fixtureDirectory) {
+        if (buttonNumber == 1 && !enteredUrl.isEmpty()) {
+            return enteredUrl;
+        }
+
+        final LocalMediaServer server = HTTPS_TEST_USE_LOCAL_SERVER ? getLocalMediaServer(fixtureDirectory) : null;
 
-        // SELECT TEST URL
-        String testUrl;
         switch (buttonNumber) {
             case 1: {
-                testUrl = urlText.getText().toString();
-                if (testUrl.isEmpty()) {
-                    testUrl = HTTPS_TEST_DEFAULT_URL;
-                    urlText.setText(testUrl);
-                }
+                return (server == null) ? HTTPS_TEST_DEFAULT_URL : server.getUrl(HTTPS_TEST_LOCAL_DEFAULT_FIXTURE);
             }
-            break;
             case 2:
             case 3: {
-                testUrl = getRandomTestUrl();
+                return (server == null) ? getRandomTestUrl() : server.getUrl(localFixtures.get(testUrlRandom.nextInt(localFixtures.size())));
             }
-            break;
             case 4:
             default: {
-                testUrl = HTTPS_TEST_FAIL_URL;
-                urlText.setText(testUrl);
+                return (server == null) ? HTTPS_TEST_FAIL_URL : server.getUrl(HTTPS_TEST_LOCAL_FAIL_FIXTURE);
             }
         }
+    }
 
-        android.util.Log.d(MainActivity.TAG, String.format("Testing HTTPS with for button %d using url %s.", buttonNumber, testUrl));
+    /**
+     * <p>Starts the local media server shared by the buttons on first use. It stays up for the
+     * lifetime of the process.
+     *
+     * @return the server, null if it could not be started
+     */
+    protected static synchronized LocalMediaServer getLocalMediaServer(final File fixtureDirectory) {
+        if (localMediaServer != null) {
+            return localMediaServer;
+        }
 
-        if (buttonNumber == 4) {
+        final List<String> fixtures = LocalMediaServer.createFixtures(fixtureDirectory);
+        if (fixtures.isEmpty() || !fixtures.contains(HTTPS_TEST_LOCAL_DEFAULT_FIXTURE)) {
+            android.util.Log.w(MainActivity.TAG, "Creating local media server fixtures failed, using remote test urls.");
+            return null;
+        }
 
-            // ONLY THIS BUTTON CLEARS THE TEXT VIEW
-            clearOutput();
+        final LocalMediaServer server = new LocalMediaServer(fixtureDirectory, new LocalMediaServer.Configuration().setLatency(HTTPS_TEST_LOCAL_SERVER_LATENCY));
+        try {
+            server.start();
+        } catch (final IOException e) {
+            android.util.Log.w(MainActivity.TAG, String.format("Starting local media server failed, using remote test urls.%s", Exceptions.getStackTraceString(e)));
+            return null;
+        }
+
+        localFixtures = fixtures;
+        localMediaServer = server;
+
+        return localMediaServer;
+    }
+
+    /**
+     * <p>Fires {@link #HTTPS_TEST_CONCURRENT_PROBES} probes at once against fixtures served by a
+     * local media server, renders every result and checks its format, stream count and duration.
+     * The report gives the number of probes that passed and the time spent on the UI thread.
+     */
+    public void runConcurrentProbeTest() {
+        clearOutput();
+
+        android.util.Log.d(MainActivity.TAG, String.format(Locale.ENGLISH, "Testing %d concurrent probes against the local media server.", HTTPS_TEST_CONCURRENT_PROBES));
+
+        final File fixtureDirectory = new File(requireContext().getCacheDir(), "fixtures");
+        final long uiTimeBefore = totalUITime.get();
+
+        CompletableFuture.supplyAsync(new Supplier<String>() {
+
+            @Override
+            public String get() {
+                final List<String> fixtures = LocalMediaServer.createFixtures(fixtureDirectory);
+                if (fixtures.isEmpty()) {
+                    return "Creating fixtures failed.\n";
+                }
+
+                final LocalMediaServer server = new LocalMediaServer(fixtureDirectory, new LocalMediaServer.Configuration().setLatency(HTTPS_TEST_LOCAL_SERVER_LATENCY));
+                try {
+                    server.start();
+                    return probeConcurrently(server, fixtures);
+                } catch (final IOException e) {
+                    android.util.Log.e(MainActivity.TAG, String.format("Starting local media server failed.%s", Exceptions.getStackTraceString(e)));
+                    return "Starting local media server failed.\n";
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return "Concurrent probe test interrupted.\n";
+                } finally {
+                    server.stop();
+                }
+            }
+        }, testExecutor).thenAccept(new Consumer<String>() {
+
+            @Override
+            public void accept(final String report) {
+
+                // POSTED AFTER EVERY RESULT, SO ALL OF THEIR APPENDS HAVE RUN WHEN THIS ONE RUNS
+                MainActivity.handler.post(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        final String uiTime = String.format(Locale.ENGLISH, "UI thread time: %.3f ms.\n", (totalUITime.get() - uiTimeBefore) / 1000000.0);
+                        android.util.Log.d(MainActivity.TAG, report + uiTime);
+                        appendOutput(report + uiTime);
+                    }
+                });
+            }
+        });
+    }
+
+    protected String probeConcurrently(final LocalMediaServer server, final List<String> fixtures) throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(HTTPS_TEST_CONCURRENT_PROBES);
+        final AtomicInteger passed = new AtomicInteger();
+        final AtomicInteger failed = new AtomicInteger();
+        final long startTime = System.currentTimeMillis();
+
+        for (int i = 0; i < HTTPS_TEST_CONCURRENT_PROBES; i++) {
+            final String fixture = fixtures.get(i % fixtures.size());
+
+            // PROBED DIRECTLY, THE CACHE WOULD ANSWER EVERY REPEATED URL WITHOUT A PROBE
+            FFprobeKit.getMediaInformationAsync(server.getUrl(fixture), new ExecuteCallback() {
+
+                @Override
+                public void apply(final Session session) {
+                    final MediaInformationSession mediaInformationSession = (MediaInformationSession) session;
+                    final MediaInformation information = mediaInformationSession.getMediaInformation();
+                    final String failure = checkFixtureInformation(fixture, information);
+
+                    if (failure == null) {
+                        passed.incrementAndGet();
+                    } else {
+                        failed.incrementAndGet();
+                        android.util.Log.w(MainActivity.TAG, String.format("Concurrent probe of %s failed the check: %s.", fixture, failure));
+                    }
+
+                    appendOutput(formatMediaInformation(information, mediaInformationSession));
+                    latch.countDown();
+                }
+            });
         }
 
-        // EXECUTE
-        FFprobeKit.getMediaInformationAsync(testUrl, createNewExecuteCallback());
+        final boolean completed = latch.await(HTTPS_TEST_CONCURRENT_PROBE_TIMEOUT, TimeUnit.SECONDS);
+
+        return String.format(Locale.ENGLISH, "\nConcurrent probes: %d passed, %d failed, %d not completed in %d ms.\nLocal media server: %s.\n",
+                passed.get(), failed.get(), completed ? 0 : latch.getCount(), System.currentTimeMillis() - startTime, server.getStats());
+    }
+
+    /**
+     * @return the reason the media information does not describe the given fixture, null if it does
+     */
+    protected static String checkFixtureInformation(final String fixture, final MediaInformation information) {
+        if (information == null) {
+            return "no media information";
+        }
+
+        final int expectedStreams = fixture.endsWith(".wav") ? 1 : 2;
+        final int streams = (information.getStreams() == null) ? 0 : information.getStreams().size();
+        if (streams != expectedStreams) {
+            return String.format(Locale.ENGLISH, "%d streams instead of %d", streams, expectedStreams);
+        }
+
+        // EVERY FIXTURE IS 30 SECONDS LONG
+        if (information.getDuration() == null) {
+            return "no duration";
+        }
+        try {
+            final double duration = Double.parseDouble(information.getDuration());
+            if (Math.abs(duration - 30) > 1) {
+                return String.format(Locale.ENGLISH, "duration %.3f instead of 30", duration);
+            }
+        } catch (final NumberFormatException e) {
+            return String.format("invalid duration %s", information.getDuration());
+        }
+
+        return null;
     }
 
     public void setActive() {
         Log.i(MainActivity.TAG, "Https Tab Activated");
-        enableLogCallback();
         Popup.show(requireContext(), getString(R.string.https_test_tooltip_text));
     }
 
@@ -176,7 +461,12 @@ public class HttpsTabFragment extends Fragment {
 
             @Override
             public void run() {
+                final long startTime = System.nanoTime();
+
                 outputText.append(logMessage);
+
+                final long uiTime = System.nanoTime() - startTime;
+                android.util.Log.d(MainActivity.TAG, String.format(Locale.ENGLISH, "Appended %d characters in %.3f ms on the UI thread, %.3f ms in total.", logMessage.length(), uiTime / 1000000.0, totalUITime.addAndGet(uiTime) / 1000000.0));
             }
         });
     }
@@ -185,7 +475,7 @@ public class HttpsTabFragment extends Fragment {
         outputText.setText("");
     }
 
-    private String getRandomTestUrl() {
+    private static String getRandomTestUrl() {
         switch (testUrlRandom.nextInt(3)) {
             case 0:
                 return HTTPS_TEST_RANDOM_URL_1;
@@ -196,120 +486,126 @@ public class HttpsTabFragment extends Fragment {
         }
     }
 
-    private ExecuteCallback createNewExecuteCallback() {
-        return new ExecuteCallback() {
+    private MediaInformationCache.Callback createNewCallback() {
+        return new MediaInformationCache.Callback() {
 
             @Override
-            public void apply(Session session) {
-
-                // SYNC THE OUTPUT SO WE CAN IDENTIFY THE FILES
-                synchronized (outputLock) {
-                    final MediaInformation information = ((MediaInformationSession) session).getMediaInformation();
-                    if (information == null) {
-                        appendOutput("Get media information failed\n");
-                        appendOutput(String.format("State: %s\n", session.getState()));
-                        appendOutput(String.format("Duration: %s\n", session.getDuration()));
-                        appendOutput(String.format("Return Code: %s\n", session.getReturnCode()));
-                        appendOutput(String.format("Fail stack trace: %s\n", notNull(session.getFailStackTrace(), "\n")));
-                        appendOutput(String.format("Output: %s\n", session.getOutput()));
-                    } else {
-                        appendOutput("Media information for " + information.getFilename() + "\n");
+            public void apply(final MediaInformation information, final MediaInformationSession session) {
+                android.util.Log.d(MainActivity.TAG, String.format("Media information cache %s.", MainActivity.getMediaInformationCache().getMetrics()));
 
-                        if (information.getFormat() != null) {
-                            appendOutput("Format: " + information.getFormat() + "\n");
-                        }
-                        if (information.getBitrate() != null) {
-                            appendOutput("Bitrate: " + information.getBitrate() + "\n");
-                        }
-                        if (information.getDuration() != null) {
-                            appendOutput("Duration: " + information.getDuration() + "\n");
-                        }
-                        if (information.getStartTime() != null) {
-                            appendOutput("Start time: " + information.getStartTime() + "\n");
-                        }
-                        if (information.getTags() != null) {
-                            JSONObject tags = information.getTags();
-                            if (tags != null) {
-                                Iterator<String> keys = tags.keys();
-                                while (keys.hasNext()) {
-                                    String next = keys.next();
-                                    appendOutput("Tag: " + next + ":" + tags.optString(next) + "\n");
-                                }
-                            }
-                        }
-                        if (information.getStreams() != null) {
-                            for (StreamInformation stream : information.getStreams()) {
-                                if (stream.getIndex() != null) {
-                                    appendOutput("Stream index: " + stream.getIndex() + "\n");
-                                }
-                                if (stream.getType() != null) {
-                                    appendOutput("Stream type: " + stream.getType() + "\n");
-                                }
-                                if (stream.getCodec() != null) {
-                                    appendOutput("Stream codec: " + stream.getCodec() + "\n");
-                                }
-                                if (stream.getFullCodec() != null) {
-                                    appendOutput("Stream full codec: " + stream.getFullCodec() + "\n");
-                                }
-                                if (stream.getFormat() != null) {
-                                    appendOutput("Stream format: " + stream.getFormat() + "\n");
-                                }
-
-                                if (stream.getWidth() != null) {
-                                    appendOutput("Stream width: " + stream.getWidth() + "\n");
-                                }
-                                if (stream.getHeight() != null) {
-                                    appendOutput("Stream height: " + stream.getHeight() + "\n");
-                                }
-
-                                if (stream.getBitrate() != null) {
-                                    appendOutput("Stream bitrate: " + stream.getBitrate() + "\n");
-                                }
-                                if (stream.getSampleRate() != null) {
-                                    appendOutput("Stream sample rate: " + stream.getSampleRate() + "\n");
-                                }
-                                if (stream.getSampleFormat() != null) {
-                                    appendOutput("Stream sample format: " + stream.getSampleFormat() + "\n");
-                                }
-                                if (stream.getChannelLayout() != null) {
-                                    appendOutput("Stream channel layout: " + stream.getChannelLayout() + "\n");
-                                }
-
-                                if (stream.getSampleAspectRatio() != null) {
-                                    appendOutput("Stream sample aspect ratio: " + stream.getSampleAspectRatio() + "\n");
-                                }
-                                if (stream.getDisplayAspectRatio() != null) {
-                                    appendOutput("Stream display ascpect ratio: " + stream.getDisplayAspectRatio() + "\n");
-                                }
-                                if (stream.getAverageFrameRate() != null) {
-                                    appendOutput("Stream average frame rate: " + stream.getAverageFrameRate() + "\n");
-                                }
-                                if (stream.getRealFrameRate() != null) {
-                                    appendOutput("Stream real frame rate: " + stream.getRealFrameRate() + "\n");
-                                }
-                                if (stream.getTimeBase() != null) {
-                                    appendOutput("Stream time base: " + stream.getTimeBase() + "\n");
-                                }
-                                if (stream.getCodecTimeBase() != null) {
-                                    appendOutput("Stream codec time base: " + stream.getCodecTimeBase() + "\n");
-                                }
-
-                                if (stream.getTags() != null) {
-                                    JSONObject tags = stream.getTags();
-                                    if (tags != null) {
-                                        Iterator<String> keys = tags.keys();
-                                        while (keys.hasNext()) {
-                                            String next = keys.next();
-                                            appendOutput(String.format("Stream tag: %s:%s\n", next, tags.optString(next)));
-                                        }
-                                    }
-                                }
+                // FORMAT OFF THE UI THREAD AND APPEND ONCE, SO CONCURRENT RESULTS DO NOT INTERLEAVE
+                appendOutput(formatMediaInformation(information, session));
+            }
+        };
+    }
+
+    protected static String formatMediaInformation(final MediaInformation information, final MediaInformationSession session) {
+        final StringBuilder output = new StringBuilder();
+
+        if (information == null) {
+            output.append("Get media information failed\n");
+            output.append(String.format("State: %s\n", session.getState()));
+            output.append(String.format("Duration: %s\n", session.getDuration()));
+            output.append(String.format("Return Code: %s\n", session.getReturnCode()));
+            output.append(String.format("Fail stack trace: %s\n", notNull(session.getFailStackTrace(), "\n")));
+            output.append(String.format("Output: %s\n", session.getOutput()));
+        } else {
+            output.append("Media information for ").append(information.getFilename()).append((session == null) ? " (cached)" : "").append("\n");
+
+            if (information.getFormat() != null) {
+                output.append("Format: ").append(information.getFormat()).append("\n");
+            }
+            if (information.getBitrate() != null) {
+                output.append("Bitrate: ").append(information.getBitrate()).append("\n");
+            }
+            if (information.getDuration() != null) {
+                output.append("Duration: ").append(information.getDuration()).append("\n");
+            }
+            if (information.getStartTime() != null) {
+                output.append("Start time: ").append(information.getStartTime()).append("\n");
+            }
+            if (information.getTags() != null) {
+                JSONObject tags = information.getTags();
+                if (tags != null) {
+                    Iterator<String> keys = tags.keys();
+                    while (keys.hasNext()) {
+                        String next = keys.next();
+                        output.append("Tag: ").append(next).append(":").append(tags.optString(next)).append("\n");
+                    }
+                }
+            }
+            if (information.getStreams() != null) {
+                for (StreamInformation stream : information.getStreams()) {
+                    if (stream.getIndex() != null) {
+                        output.append("Stream index: ").append(stream.getIndex()).append("\n");
+                    }
+                    if (stream.getType() != null) {
+                        output.append("Stream type: ").append(stream.getType()).append("\n");
+                    }
+                    if (stream.getCodec() != null) {
+                        output.append("Stream codec: ").append(stream.getCodec()).append("\n");
+                    }
+                    if (stream.getFullCodec() != null) {
+                        output.append("Stream full codec: ").append(stream.getFullCodec()).append("\n");
+                    }
+                    if (stream.getFormat() != null) {
+                        output.append("Stream format: ").append(stream.getFormat()).append("\n");
+                    }
+
+                    if (stream.getWidth() != null) {
+                        output.append("Stream width: ").append(stream.getWidth()).append("\n");
+                    }
+                    if (stream.getHeight() != null) {
+                        output.append("Stream height: ").append(stream.getHeight()).append("\n");
+                    }
+
+                    if (stream.getBitrate() != null) {
+                        output.append("Stream bitrate: ").append(stream.getBitrate()).append("\n");
+                    }
+                    if (stream.getSampleRate() != null) {
+                        output.append("Stream sample rate: ").append(stream.getSampleRate()).append("\n");
+                    }
+                    if (stream.getSampleFormat() != null) {
+                        output.append("Stream sample format: ").append(stream.getSampleFormat()).append("\n");
+                    }
+                    if (stream.getChannelLayout() != null) {
+                        output.append("Stream channel layout: ").append(stream.getChannelLayout()).append("\n");
+                    }
+
+                    if (stream.getSampleAspectRatio() != null) {
+                        output.append("Stream sample aspect ratio: ").append(stream.getSampleAspectRatio()).append("\n");
+                    }
+                    if (stream.getDisplayAspectRatio() != null) {
+                        output.append("Stream display ascpect ratio: ").append(stream.getDisplayAspectRatio()).append("\n");
+                    }
+                    if (stream.getAverageFrameRate() != null) {
+                        output.append("Stream average frame rate: ").append(stream.getAverageFrameRate()).append("\n");
+                    }
+                    if (stream.getRealFrameRate() != null) {
+                        output.append("Stream real frame rate: ").append(stream.getRealFrameRate()).append("\n");
+                    }
+                    if (stream.getTimeBase() != null) {
+                        output.append("Stream time base: ").append(stream.getTimeBase()).append("\n");
+                    }
+                    if (stream.getCodecTimeBase() != null) {
+                        output.append("Stream codec time base: ").append(stream.getCodecTimeBase()).append("\n");
+                    }
+
+                    if (stream.getTags() != null) {
+                        JSONObject tags = stream.getTags();
+                        if (tags != null) {
+                            Iterator<String> keys = tags.keys();
+                            while (keys.hasNext()) {
+                                String next = keys.next();
+                                output.append(String.format("Stream tag: %s:%s\n", next, tags.optString(next)));
                             }
                         }
                     }
                 }
             }
-        };
+        }
+
+        return output.toString();
     }
 
 }
@@ -19,6 +19,7 @@
 
 package com.arthenica.ffmpegkit.test;
 
+import android.content.Context;
 import android.os.Bundle;
 import android.text.method.ScrollingMovementMethod;
 import android.util.Log;
@@ -35,15 +36,40 @@ import androidx.fragment.app.Fragment;
 
 import com.arthenica.ffmpegkit.ExecuteCallback;
 import com.arthenica.ffmpegkit.FFmpegKit;
+import com.arthenica.ffmpegkit.FFmpegKitConfig;
+import com.arthenica.ffmpegkit.FFmpegSession;
+import com.arthenica.ffmpegkit.FFprobeKit;
 import com.arthenica.ffmpegkit.LogCallback;
+import com.arthenica.ffmpegkit.MediaInformation;
 import com.arthenica.ffmpegkit.ReturnCode;
 import com.arthenica.ffmpegkit.Session;
+import com.arthenica.ffmpegkit.util.BatchProber;
+import com.arthenica.ffmpegkit.util.FFmpegKitFutures;
+import com.arthenica.ffmpegkit.util.LocalMediaServer;
+import com.arthenica.ffmpegkit.util.LogLineParserBenchmark;
+import com.arthenica.ffmpegkit.util.MediaInformationParserBenchmark;
+import com.arthenica.ffmpegkit.util.NetworkBenchmark;
+import com.arthenica.ffmpegkit.util.Pipeline;
+import com.arthenica.ffmpegkit.util.RangePrefetcher;
+import com.arthenica.ffmpegkit.util.ResilientInput;
 import com.arthenica.ffmpegkit.util.ResourcesUtil;
 import com.arthenica.smartexception.java.Exceptions;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 import static com.arthenica.ffmpegkit.test.MainActivity.TAG;
 import static com.arthenica.ffmpegkit.test.MainActivity.notNull;
@@ -52,6 +78,43 @@ public class OtherTabFragment extends Fragment implements AdapterView.OnItemSele
 
     public static final String DAV1D_TEST_DEFAULT_URL = "http://download.opencontent.netflix.com.s3.amazonaws.com/AV1/Sparks/Sparks-5994fps-AV1-10bit-960x540-film-grain-synthesis-854kbps.obu";
 
+    /**
+     * Seconds after which the dav1d test is cancelled.
+     */
+    public static final long DAV1D_TEST_TIMEOUT = 120;
+
+    public static final int JSON_PARSER_TEST_ITERATIONS = 20;
+
+    public static final int BATCH_PROBE_PARALLELISM = 4;
+
+    public static final int LOG_PARSER_TEST_ITERATIONS = 50;
+
+    public static final int LOCAL_SERVER_TEST_ITERATIONS = 5;
+
+    /**
+     * Latency and bandwidth of the local server, close to a mobile connection.
+     */
+    public static final long LOCAL_SERVER_TEST_LATENCY = 50;
+    public static final long LOCAL_SERVER_TEST_BANDWIDTH = 2 * 1024 * 1024;
+
+    public static final int RESILIENT_PROBE_TEST_ITERATIONS = 20;
+
+    private static BatchProber batchProber;
+    private static ResilientInput resilientInput;
+
+    /**
+     * Runs network benchmarks one at a time, off the common pool, so they do not skew each other.
+     */
+    private static final ExecutorService benchmarkExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            final Thread thread = new Thread(runnable, "network-benchmark");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
     private TextView outputText;
     private String selectedTest;
 
@@ -117,6 +180,21 @@ public class OtherTabFragment extends Fragment implements AdapterView.OnItemSele
             case "webp":
                 testWebp();
                 break;
+            case "json parser":
+                testJsonParser();
+                break;
+            case "batch probe":
+                testBatchProbe();
+                break;
+            case "local server":
+                testLocalServer();
+                break;
+            case "resilient probe":
+                testResilientProbe();
+                break;
+            case "log parser":
+                testLogParser();
+                break;
         }
     }
 
@@ -128,84 +206,114 @@ public class OtherTabFragment extends Fragment implements AdapterView.OnItemSele
             audioSampleFile.delete();
         }
 
-        String ffmpegCommand = String.format("-hide_banner -y -f lavfi -i sine=frequency=1000:duration=5 -c:a pcm_s16le %s", audioSampleFile.getAbsolutePath());
+        final String ffmpegCommand = String.format("-hide_banner -y -f lavfi -i sine=frequency=1000:duration=5 -c:a pcm_s16le %s", audioSampleFile.getAbsolutePath());
+        final String chromaprintCommand = String.format("-hide_banner -y -i %s -f chromaprint -fp_format 2 %s", audioSampleFile, getChromaprintOutputFile().getAbsolutePath());
 
         android.util.Log.d(TAG, String.format("Creating audio sample with '%s'.", ffmpegCommand));
 
-        FFmpegKit.executeAsync(ffmpegCommand, new ExecuteCallback() {
-
-            @Override
-            public void apply(Session session) {
-                Log.d(TAG, String.format("FFmpeg process exited with state %s and rc %s.%s", session.getState(), session.getReturnCode(), notNull(session.getFailStackTrace(), "\n")));
-
-                if (ReturnCode.isSuccess(session.getReturnCode())) {
-                    android.util.Log.d(TAG, "AUDIO sample created");
+        new Pipeline.Builder("chromaprint")
+                .addStage(new Pipeline.Stage("sample", ffmpegCommand)
+                        .writes(audioSampleFile.getAbsolutePath()))
+                .addStage(new Pipeline.Stage("chromaprint", chromaprintCommand)
+                        .reads(audioSampleFile.getAbsolutePath())
+                        .writes(getChromaprintOutputFile().getAbsolutePath())
+                        .setLogCallback(new LogCallback() {
+
+                            @Override
+                            public void apply(final com.arthenica.ffmpegkit.Log log) {
+                                MainActivity.addUIAction(new Callable<Object>() {
+
+                                    @Override
+                                    public Object call() {
+                                        appendOutput(log.getMessage());
+                                        return null;
+                                    }
+                                });
+                            }
+                        }))
+                .setListener(new Pipeline.Listener() {
+
+                    @Override
+                    public void onStageStarted(final Pipeline pipeline, final Pipeline.Stage stage) {
+                        // DO NOTHING
+                    }
 
-                    String chromaprintCommand = String.format("-hide_banner -y -i %s -f chromaprint -fp_format 2 %s", audioSampleFile, getChromaprintOutputFile().getAbsolutePath());
+                    @Override
+                    public void onStageCompleted(final Pipeline pipeline, final Pipeline.Stage stage, final Session session) {
+                        if ("sample".equals(stage.getName()) && ReturnCode.isSuccess(session.getReturnCode())) {
+                            android.util.Log.d(TAG, "AUDIO sample created");
+                        }
+                    }
 
-                    Log.d(TAG, String.format("FFmpeg process started with arguments\n'%s'.", chromaprintCommand));
+                    @Override
+                    public void onProgress(final Pipeline pipeline, final Pipeline.Stage stage, final double progress) {
+                        // DO NOTHING
+                    }
 
-                    FFmpegKit.executeAsync(chromaprintCommand, new ExecuteCallback() {
+                    @Override
+                    public void onCompleted(final Pipeline pipeline, final Pipeline.Result result) {
+                        final boolean sampleCreated = pipeline.getStage("sample").getState() == Pipeline.StageState.COMPLETED;
 
-                        @Override
-                        public void apply(final Session session) {
-                            MainActivity.addUIAction(new Callable<Object>() {
+                        MainActivity.addUIAction(new Callable<Object>() {
 
-                                @Override
-                                public Object call() {
-                                    Log.d(TAG, String.format("FFmpeg process exited with state %s and rc %s.%s", session.getState(), session.getReturnCode(), notNull(session.getFailStackTrace(), "\n")));
-
-                                    if (ReturnCode.isSuccess(session.getReturnCode())) {
-                                        Popup.show(requireContext(), "Testing chromaprint completed successfully.");
-                                    } else {
-                                        Popup.show(requireContext(), "Testing chromaprint failed. Please check logs for the details.");
-                                    }
-                                    return null;
+                            @Override
+                            public Object call() {
+                                if (result == Pipeline.Result.SUCCESS) {
+                                    Popup.show(requireContext(), "Testing chromaprint completed successfully.");
+                                } else if (sampleCreated) {
+                                    Popup.show(requireContext(), "Testing chromaprint failed. Please check logs for the details.");
+                                } else {
+                                    Popup.show(requireContext(), "Creating AUDIO sample failed. Please check logs for the details.");
                                 }
-                            });
-                        }
-                    }, new LogCallback() {
+                                return null;
+                            }
+                        });
+                    }
+                })
+                .build()
+                .start();
+    }
 
-                        @Override
-                        public void apply(final com.arthenica.ffmpegkit.Log log) {
-                            MainActivity.addUIAction(new Callable<Object>() {
+    protected void testDav1d() {
+        Log.d(TAG, "Testing decoding 'av1' codec");
 
-                                @Override
-                                public Object call() {
-                                    appendOutput(log.getMessage());
-                                    return null;
-                                }
-                            });
-                        }
-                    }, null);
+        // PARALLEL RANGE REQUESTS FEED A PIPE, THE DOWNLOAD IS KEPT FOR THE NEXT RUN
+        final String inputPipe = FFmpegKitConfig.registerNewFFmpegPipe(requireContext());
+        final RangePrefetcher prefetcher = new RangePrefetcher(DAV1D_TEST_DEFAULT_URL, getDav1dInputFile());
+        prefetcher.start(inputPipe).whenComplete(new BiConsumer<RangePrefetcher.Result, Throwable>() {
 
-                } else {
-                    Popup.show(requireContext(), "Creating AUDIO sample failed. Please check logs for the details.");
+            @Override
+            public void accept(final RangePrefetcher.Result result, final Throwable throwable) {
+                if (throwable == null) {
+                    Log.d(TAG, String.format("Dav1d input prefetched, %s.", result));
                 }
             }
         });
-    }
 
-    protected void testDav1d() {
-        Log.d(TAG, "Testing decoding 'av1' codec");
-
-        final String ffmpegCommand = String.format("-hide_banner -y -i %s %s", DAV1D_TEST_DEFAULT_URL, getDav1dOutputFile().getAbsolutePath());
+        final String ffmpegCommand = String.format("-hide_banner -y -i %s %s", inputPipe, getDav1dOutputFile().getAbsolutePath());
 
         Log.d(TAG, String.format("FFmpeg process started with arguments\n'%s'.", ffmpegCommand));
 
-        FFmpegKit.executeAsync(ffmpegCommand, new ExecuteCallback() {
+        // A STALLED DOWNLOAD IS CANCELLED INSTEAD OF HANGING FOREVER
+        FFmpegKitFutures.withTimeout(FFmpegKitFutures.executeAsync(ffmpegCommand, new LogCallback() {
 
             @Override
-            public void apply(final Session session) {
-                Log.d(TAG, String.format("FFmpeg process exited with state %s and rc %s.%s", session.getState(), session.getReturnCode(), notNull(session.getFailStackTrace(), "\n")));
+            public void apply(final com.arthenica.ffmpegkit.Log log) {
+                Log.d(TAG, log.getMessage());
             }
-        }, new LogCallback() {
+        }, null), DAV1D_TEST_TIMEOUT, TimeUnit.SECONDS).whenComplete(new BiConsumer<FFmpegSession, Throwable>() {
 
             @Override
-            public void apply(final com.arthenica.ffmpegkit.Log log) {
-                Log.d(TAG, log.getMessage());
+            public void accept(final FFmpegSession session, final Throwable throwable) {
+                if (throwable != null) {
+                    prefetcher.cancel();
+                    Log.d(TAG, String.format("FFmpeg process did not complete. %s", FFmpegKitFutures.unwrap(throwable).getMessage()));
+                } else {
+                    Log.d(TAG, String.format("FFmpeg process exited with state %s and rc %s.%s", session.getState(), session.getReturnCode(), notNull(session.getFailStackTrace(), "\n")));
+                }
+                FFmpegKitConfig.closeFFmpegPipe(inputPipe);
             }
-        }, null);
+        });
     }
 
     protected void testWebp() {
@@ -254,10 +362,226 @@ public class OtherTabFragment extends Fragment implements AdapterView.OnItemSele
         }
     }
 
+    protected void testJsonParser() {
+        Log.d(TAG, "Testing ffprobe json parsers");
+
+        // PACKETS MAKE THE OUTPUT LARGE, THE PROJECTION SKIPS THEM
+        final String ffprobeCommand = "-hide_banner -v error -print_format json -show_format -show_streams -show_packets -f lavfi -i testsrc=duration=20:size=320x240:rate=30";
+
+        Log.d(TAG, String.format("FFprobe process started with arguments\n'%s'.", ffprobeCommand));
+
+        FFprobeKit.executeAsync(ffprobeCommand, new ExecuteCallback() {
+
+            @Override
+            public void apply(final Session session) {
+                final String report;
+
+                if (ReturnCode.isSuccess(session.getReturnCode())) {
+                    report = MediaInformationParserBenchmark.run(session.getOutput(), JSON_PARSER_TEST_ITERATIONS);
+                } else {
+                    report = String.format("FFprobe process exited with state %s and rc %s.%s", session.getState(), session.getReturnCode(), notNull(session.getFailStackTrace(), "\n"));
+                }
+
+                Log.d(TAG, report);
+
+                MainActivity.addUIAction(new Callable<Object>() {
+
+                    @Override
+                    public Object call() {
+                        appendOutput(report);
+                        return null;
+                    }
+                });
+            }
+        });
+    }
+
+    protected void testLogParser() {
+        Log.d(TAG, "Testing ffmpeg log line parsers");
+
+        // DEBUG VERBOSITY PRODUCES THE LOG VOLUME THE PARSER IS MEANT FOR
+        final String ffmpegCommand = "-hide_banner -loglevel debug -stats -f lavfi -i testsrc=duration=10:size=320x240:rate=30 -f lavfi -i sine=frequency=440:duration=10 -c:v mpeg4 -c:a aac -f null -";
+
+        Log.d(TAG, String.format("FFmpeg process started with arguments\n'%s'.", ffmpegCommand));
+
+        FFmpegKitFutures.executeAsync(ffmpegCommand).thenApply(new Function<FFmpegSession, String>() {
+
+            @Override
+            public String apply(final FFmpegSession session) {
+                return LogLineParserBenchmark.run(session.getAllLogs(), LOG_PARSER_TEST_ITERATIONS);
+            }
+        }).whenCompleteAsync(new BiConsumer<String, Throwable>() {
+
+            @Override
+            public void accept(final String report, final Throwable throwable) {
+                if (throwable != null) {
+                    Log.e(TAG, String.format("Log parser test failed.%s", Exceptions.getStackTraceString(throwable)));
+                    Popup.show(requireContext(), "Log parser test failed. Please check logs for the details.");
+                    return;
+                }
+
+                Log.d(TAG, report);
+                appendOutput(report);
+            }
+        }, MainActivity.getUIExecutor());
+    }
+
+    protected void testBatchProbe() {
+        Log.d(TAG, "Testing batch probe");
+
+        // DUPLICATES ARE PROBED ONCE
+        final List<String> inputs = Arrays.asList(
+                HttpsTabFragment.HTTPS_TEST_DEFAULT_URL,
+                HttpsTabFragment.HTTPS_TEST_RANDOM_URL_1,
+                HttpsTabFragment.HTTPS_TEST_RANDOM_URL_2,
+                HttpsTabFragment.HTTPS_TEST_RANDOM_URL_3,
+                HttpsTabFragment.HTTPS_TEST_FAIL_URL,
+                HttpsTabFragment.HTTPS_TEST_RANDOM_URL_1,
+                HttpsTabFragment.HTTPS_TEST_DEFAULT_URL);
+
+        if (batchProber == null) {
+            batchProber = new BatchProber(BATCH_PROBE_PARALLELISM);
+        }
+
+        batchProber.probe(inputs, new BatchProber.Listener() {
+
+            @Override
+            public void onResult(final BatchProber.Batch batch, final BatchProber.Result result) {
+                final MediaInformation mediaInformation = result.getMediaInformation();
+                final String line = String.format(Locale.ENGLISH, "%s %s in %d ms%s\n", result.getStatus(), result.getInput(), result.getDuration(),
+                        (mediaInformation == null) ? "" : String.format(", format %s, duration %s", mediaInformation.getFormat(), mediaInformation.getDuration()));
+
+                MainActivity.addUIAction(new Callable<Object>() {
+
+                    @Override
+                    public Object call() {
+                        appendOutput(line);
+                        return null;
+                    }
+                });
+            }
+
+            @Override
+            public void onCompleted(final BatchProber.Batch batch) {
+                final String stats = batch.getStats();
+
+                MainActivity.addUIAction(new Callable<Object>() {
+
+                    @Override
+                    public Object call() {
+                        appendOutput(stats + "\n");
+                        return null;
+                    }
+                });
+            }
+        });
+    }
+
+    protected void testLocalServer() {
+        Log.d(TAG, "Testing probe and decode latency against the local media server");
+
+        final File fixtureDirectory = getFixtureDirectory();
+        final Context context = requireContext().getApplicationContext();
+
+        CompletableFuture.supplyAsync(new Supplier<String>() {
+
+            @Override
+            public String get() {
+                final List<String> fixtures = LocalMediaServer.createFixtures(fixtureDirectory);
+                if (fixtures.isEmpty()) {
+                    return "Creating fixtures failed.\n";
+                }
+
+                final StringBuilder report = new StringBuilder();
+
+                // THE SAME SEED INJECTS THE SAME ERRORS ON EVERY RUN
+                final LocalMediaServer.Configuration[] configurations = new LocalMediaServer.Configuration[]{
+                        new LocalMediaServer.Configuration().setLatency(LOCAL_SERVER_TEST_LATENCY).setBandwidth(LOCAL_SERVER_TEST_BANDWIDTH),
+                        new LocalMediaServer.Configuration().setLatency(LOCAL_SERVER_TEST_LATENCY).setBandwidth(LOCAL_SERVER_TEST_BANDWIDTH).setErrorRate(0.1).setDropRate(0.05)
+                };
+
+                for (LocalMediaServer.Configuration configuration : configurations) {
+                    final LocalMediaServer server = new LocalMediaServer(fixtureDirectory, configuration);
+                    try {
+                        server.start();
+                        report.append(configuration).append('\n');
+                        report.append(NetworkBenchmark.run(context, server, fixtures, LOCAL_SERVER_TEST_ITERATIONS));
+                    } catch (final IOException e) {
+                        Log.e(TAG, String.format("Starting local media server failed.%s", Exceptions.getStackTraceString(e)));
+                        report.append("Starting local media server failed.\n");
+                    } finally {
+                        server.stop();
+                    }
+                }
+
+                return report.toString();
+            }
+        }, benchmarkExecutor).thenAcceptAsync(new Consumer<String>() {
+
+            @Override
+            public void accept(final String report) {
+                Log.d(TAG, report);
+                appendOutput(report);
+            }
+        }, MainActivity.getUIExecutor());
+    }
+
+    protected void testResilientProbe() {
+        Log.d(TAG, "Testing resilient probe against a slow and failing local media server");
+
+        final File fixtureDirectory = getFixtureDirectory();
+
+        if (resilientInput == null) {
+            resilientInput = new ResilientInput(new ResilientInput.Policy().setAttemptTimeout(5000));
+        }
+
+        CompletableFuture.supplyAsync(new Supplier<String>() {
+
+            @Override
+            public String get() {
+                final List<String> fixtures = LocalMediaServer.createFixtures(fixtureDirectory);
+                if (fixtures.isEmpty()) {
+                    return "Creating fixtures failed.\n";
+                }
+
+                // ONE IN FIVE RESPONSES OF THE PRIMARY STALLS, ONE IN TEN FAILS
+                final LocalMediaServer.Configuration primaryConfiguration = new LocalMediaServer.Configuration().setLatency(LOCAL_SERVER_TEST_LATENCY).setErrorRate(0.1).setStall(0.2, 3000);
+                final LocalMediaServer primary = new LocalMediaServer(fixtureDirectory, primaryConfiguration);
+                final LocalMediaServer mirror = new LocalMediaServer(fixtureDirectory, new LocalMediaServer.Configuration().setLatency(LOCAL_SERVER_TEST_LATENCY));
+                try {
+                    primary.start();
+                    mirror.start();
+                    return primaryConfiguration + "\n" + NetworkBenchmark.runResilience(primary, mirror, fixtures.get(0), RESILIENT_PROBE_TEST_ITERATIONS, resilientInput);
+                } catch (final IOException e) {
+                    Log.e(TAG, String.format("Starting local media server failed.%s", Exceptions.getStackTraceString(e)));
+                    return "Starting local media server failed.\n";
+                } finally {
+                    primary.stop();
+                    mirror.stop();
+                }
+            }
+        }, benchmarkExecutor).thenAcceptAsync(new Consumer<String>() {
+
+            @Override
+            public void accept(final String report) {
+                Log.d(TAG, report);
+                appendOutput(report);
+            }
+        }, MainActivity.getUIExecutor());
+    }
+
+    public File getFixtureDirectory() {
+        return new File(requireContext().getCacheDir(), "fixtures");
+    }
+
     public File getChromaprintSampleFile() {
         return new File(requireContext().getFilesDir(), "audio-sample.wav");
     }
 
+    public File getDav1dInputFile() {
+        return new File(requireContext().getCacheDir(), "dav1d-input.obu");
+    }
+
     public File getDav1dOutputFile() {
         return new File(requireContext().getFilesDir(), "video.mp4");
     }
@@ -35,7 +35,6 @@ import androidx.appcompat.app.AlertDialog;
 import androidx.fragment.app.Fragment;
 
 import com.arthenica.ffmpegkit.ExecuteCallback;
-import com.arthenica.ffmpegkit.FFmpegKit;
 import com.arthenica.ffmpegkit.FFmpegKitConfig;
 import com.arthenica.ffmpegkit.LogCallback;
 import com.arthenica.ffmpegkit.ReturnCode;
@@ -44,6 +43,7 @@ import com.arthenica.ffmpegkit.SessionState;
 import com.arthenica.ffmpegkit.Statistics;
 import com.arthenica.ffmpegkit.StatisticsCallback;
 import com.arthenica.ffmpegkit.util.AsyncCatImageTask;
+import com.arthenica.ffmpegkit.util.CallbackExecutor;
 import com.arthenica.ffmpegkit.util.DialogUtil;
 import com.arthenica.ffmpegkit.util.ResourcesUtil;
 import com.arthenica.smartexception.java.Exceptions;
@@ -95,18 +95,18 @@ public class PipeTabFragment extends Fragment {
         return new PipeTabFragment();
     }
 
-    public void enableLogCallback() {
-        FFmpegKitConfig.enableLogCallback(new LogCallback() {
+    public LogCallback createLogCallback() {
+        return MainActivity.getCallbackExecutor().wrap("pipe log", new LogCallback() {
 
             @Override
             public void apply(final com.arthenica.ffmpegkit.Log log) {
                 Log.d(MainActivity.TAG, log.getMessage());
             }
-        });
+        }, CallbackExecutor.Policy.forLogs());
     }
 
-    public void enableStatisticsCallback() {
-        FFmpegKitConfig.enableStatisticsCallback(new StatisticsCallback() {
+    public StatisticsCallback createStatisticsCallback() {
+        return MainActivity.getCallbackExecutor().wrap("pipe statistics", new StatisticsCallback() {
 
             @Override
             public void apply(final Statistics newStatistics) {
@@ -120,7 +120,7 @@ public class PipeTabFragment extends Fragment {
                     }
                 });
             }
-        });
+        }, CallbackExecutor.Policy.forStatistics());
     }
 
     void startAsyncCatImageProcess(final String imagePath, final String namedPipePath) {
@@ -159,7 +159,7 @@ public class PipeTabFragment extends Fragment {
 
             Log.d(TAG, String.format("FFmpeg process started with arguments\n'%s'.", ffmpegCommand));
 
-            FFmpegKit.executeAsync(ffmpegCommand, new ExecuteCallback() {
+            MainActivity.getSessionCallbackRouter().executeAsync(ffmpegCommand, new ExecuteCallback() {
 
                 @Override
                 public void apply(final Session session) {
@@ -190,7 +190,7 @@ public class PipeTabFragment extends Fragment {
                         }
                     });
                 }
-            });
+            }, createLogCallback(), createStatisticsCallback());
 
             // START ASYNC PROCESSES AFTER INITIATING FFMPEG COMMAND
             startAsyncCatImageProcess(image1File.getAbsolutePath(), pipe1);
@@ -233,8 +233,6 @@ public class PipeTabFragment extends Fragment {
 
     public void setActive() {
         Log.i(MainActivity.TAG, "Pipe Tab Activated");
-        enableLogCallback();
-        enableStatisticsCallback();
         Popup.show(requireContext(), getString(R.string.pipe_test_tooltip_text));
     }
 
@@ -35,25 +35,33 @@ import androidx.appcompat.app.AlertDialog;
 import androidx.fragment.app.Fragment;
 
 import com.arthenica.ffmpegkit.ExecuteCallback;
-import com.arthenica.ffmpegkit.FFmpegKit;
 import com.arthenica.ffmpegkit.FFmpegKitConfig;
 import com.arthenica.ffmpegkit.FFmpegSession;
-import com.arthenica.ffmpegkit.FFprobeKit;
-import com.arthenica.ffmpegkit.FFprobeSession;
 import com.arthenica.ffmpegkit.LogCallback;
+import com.arthenica.ffmpegkit.MediaInformationSession;
 import com.arthenica.ffmpegkit.ReturnCode;
 import com.arthenica.ffmpegkit.Session;
 import com.arthenica.ffmpegkit.SessionState;
 import com.arthenica.ffmpegkit.Statistics;
 import com.arthenica.ffmpegkit.StatisticsCallback;
+import com.arthenica.ffmpegkit.util.CallbackExecutor;
 import com.arthenica.ffmpegkit.util.DialogUtil;
+import com.arthenica.ffmpegkit.util.FastProbe;
+import com.arthenica.ffmpegkit.util.OutputMode;
+import com.arthenica.ffmpegkit.util.Pipeline;
+import com.arthenica.ffmpegkit.util.ProjectedMediaInformation;
 import com.arthenica.ffmpegkit.util.ResourcesUtil;
+import com.arthenica.ffmpegkit.util.SafProbeService;
+import com.arthenica.ffmpegkit.util.SafStagingCache;
 import com.arthenica.smartexception.java.Exceptions;
 
 import java.io.File;
 import java.io.IOException;
 import java.math.BigDecimal;
+import java.util.Locale;
 import java.util.concurrent.Callable;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 
 import static android.app.Activity.RESULT_OK;
 import static com.arthenica.ffmpegkit.test.MainActivity.TAG;
@@ -65,6 +73,7 @@ public class SafTabFragment extends Fragment {
     private Uri outUri;
     private static final int REQUEST_SAF_FFPROBE = 11;
     private static final int REQUEST_SAF_FFMPEG = 12;
+    private static final int REQUEST_SAF_VIDSTAB = 13;
 
     private boolean backFromIntent = false;
 
@@ -73,6 +82,9 @@ public class SafTabFragment extends Fragment {
 
     private Button runFFmpegButton;
     private Button runFFprobeButton;
+    private Button stabilizeVideoButton;
+
+    private static SafProbeService safProbeService;
 
     public SafTabFragment() {
         super(R.layout.fragment_saf_tab);
@@ -108,6 +120,18 @@ public class SafTabFragment extends Fragment {
             }
         });
 
+        stabilizeVideoButton = view.findViewById(R.id.stabilizeVideoButton);
+        stabilizeVideoButton.setOnClickListener(new View.OnClickListener() {
+
+            @Override
+            public void onClick(View v) {
+                Intent intent = new Intent(Intent.ACTION_GET_CONTENT)
+                        .setType("video/*")
+                        .addCategory(Intent.CATEGORY_OPENABLE);
+                startActivityForResult(intent, REQUEST_SAF_VIDSTAB);
+            }
+        });
+
         outputText = view.findViewById(R.id.outputText);
         outputText.setMovementMethod(new ScrollingMovementMethod());
 
@@ -124,8 +148,8 @@ public class SafTabFragment extends Fragment {
         return new SafTabFragment();
     }
 
-    private void enableLogCallback() {
-        FFmpegKitConfig.enableLogCallback(new LogCallback() {
+    private LogCallback createLogCallback() {
+        return MainActivity.getCallbackExecutor().wrap("saf log", new LogCallback() {
 
             @Override
             public void apply(final com.arthenica.ffmpegkit.Log log) {
@@ -138,26 +162,47 @@ public class SafTabFragment extends Fragment {
                     }
                 });
             }
-        });
+        }, CallbackExecutor.Policy.forLogs());
     }
 
     private void runFFprobe() {
         clearOutput();
 
-        final String ffprobeCommand = "-hide_banner -print_format json -show_format -show_streams " + FFmpegKitConfig.getSafParameterForRead(getContext(), inUri);
+        final Uri uri = inUri;
+        inUri = null;
 
-        Log.d(TAG, "Testing FFprobe COMMAND synchronously.");
+        Log.d(TAG, "Testing FFprobe COMMAND asynchronously with fast probe.");
 
-        Log.d(TAG, String.format("FFprobe process started with arguments\n'%s'", ffprobeCommand));
+        if (safProbeService == null) {
+            safProbeService = new SafProbeService(requireContext(), new FastProbe(ProjectedMediaInformation.DEFAULT_PROJECTION));
+        }
 
-        final FFprobeSession session = FFprobeKit.execute(ffprobeCommand);
+        safProbeService.probeAsync(uri).thenAcceptAsync(new Consumer<SafProbeService.Result>() {
 
-        Log.d(TAG, String.format("FFprobe process exited with state %s and rc %s.%s", session.getState(), session.getReturnCode(), notNull(session.getFailStackTrace(), "\n")));
+            @Override
+            public void accept(final SafProbeService.Result result) {
+                final MediaInformationSession session = result.getSession();
 
-        if (!ReturnCode.isSuccess(session.getReturnCode())) {
-            Popup.show(requireContext(), "Command failed. Please check output for the details.");
-        }
-        inUri = null;
+                if (result.isMemoized()) {
+
+                    // NO FFPROBE LOGS ARE PRINTED FOR A MEMOIZED RESULT
+                    appendOutput(HttpsTabFragment.formatMediaInformation(result.getMediaInformation(), null));
+                } else if (session != null) {
+                    Log.d(TAG, String.format("FFprobe process exited with state %s and rc %s.%s", session.getState(), session.getReturnCode(), notNull(session.getFailStackTrace(), "\n")));
+                }
+
+                if (!isAdded()) {
+                    Log.d(TAG, String.format(Locale.ENGLISH, "FFprobe result delivered after the tab was detached in %d ms.", result.getTimeToResult()));
+                    return;
+                }
+
+                appendOutput(String.format(Locale.ENGLISH, "\nTime to result: %d ms%s.\n", result.getTimeToResult(), result.isMemoized() ? " (memoized)" : ""));
+
+                if (result.getMediaInformation() == null) {
+                    Popup.show(requireContext(), "Command failed. Please check output for the details.");
+                }
+            }
+        }, MainActivity.getUIExecutor());
     }
 
     private void encodeVideo() {
@@ -170,6 +215,9 @@ public class SafTabFragment extends Fragment {
             String selectedCodec = getCodec(videoPath);
             Log.d(TAG, String.format("Testing VIDEO encoding with '%s' codec", selectedCodec));
 
+            // SAF DOCUMENTS MAY NOT BE SEEKABLE, MP4 IS WRITTEN FRAGMENTED
+            Log.d(TAG, String.format("Selected output mode is %s.", OutputMode.select(videoPath)));
+
             showProgressDialog();
 
             ResourcesUtil.resourceToFile(getResources(), R.drawable.machupicchu, image1File);
@@ -180,7 +228,7 @@ public class SafTabFragment extends Fragment {
 
             Log.d(TAG, String.format("FFmpeg process started with arguments\n'%s'.", ffmpegCommand));
 
-            FFmpegSession session = FFmpegKit.executeAsync(ffmpegCommand, new ExecuteCallback() {
+            FFmpegSession session = MainActivity.getSessionCallbackRouter().executeAsync(ffmpegCommand, new ExecuteCallback() {
 
                 @Override
                 public void apply(final Session session) {
@@ -205,7 +253,7 @@ public class SafTabFragment extends Fragment {
                         }
                     });
                 }
-            });
+            }, createLogCallback(), createStatisticsCallback());
 
             Log.d(TAG, String.format("Async FFmpeg process started with sessionId %d.", session.getSessionId()));
 
@@ -215,6 +263,83 @@ public class SafTabFragment extends Fragment {
         }
     }
 
+    private void stabilizeVideo() {
+        clearOutput();
+
+        final Uri uri = inUri;
+        inUri = null;
+
+        final File shakeResultsFile = new File(requireContext().getCacheDir(), "saf-transforms.trf");
+        final File stabilizedVideoFile = new File(requireContext().getFilesDir(), "saf-stabilized.mp4");
+        final SafStagingCache stagingCache = MainActivity.getSafStagingCache();
+
+        Log.d(TAG, String.format("Testing VID.STAB on SAF document %s.", uri));
+
+        // BOTH PASSES READ AND SEEK THE INPUT, SO IT IS STAGED ONCE INSTEAD OF READ TWICE THROUGH THE PROVIDER
+        stagingCache.acquireAsync(uri).whenCompleteAsync(new BiConsumer<File, Throwable>() {
+
+            @Override
+            public void accept(final File stagedFile, final Throwable throwable) {
+                if (throwable != null) {
+                    Log.e(TAG, String.format("Staging %s failed.%s", uri, Exceptions.getStackTraceString(throwable)));
+                    if (isAdded()) {
+                        Popup.show(requireContext(), "Stabilize video failed");
+                    }
+                    return;
+                }
+
+                final String analyzeVideoCommand = String.format("-y -i %s -vf vidstabdetect=shakiness=10:accuracy=15:result=%s -f null -", stagedFile.getAbsolutePath(), shakeResultsFile.getAbsolutePath());
+                final String stabilizeVideoCommand = String.format("-y -i %s -vf vidstabtransform=smoothing=30:input=%s -c:v mpeg4 %s", stagedFile.getAbsolutePath(), shakeResultsFile.getAbsolutePath(), stabilizedVideoFile.getAbsolutePath());
+
+                new Pipeline.Builder("saf vidstab")
+                        .addStage(new Pipeline.Stage("detect", analyzeVideoCommand)
+                                .reads(stagedFile.getAbsolutePath())
+                                .writes(shakeResultsFile.getAbsolutePath()))
+                        .addStage(new Pipeline.Stage("transform", stabilizeVideoCommand)
+                                .reads(stagedFile.getAbsolutePath(), shakeResultsFile.getAbsolutePath())
+                                .writes(stabilizedVideoFile.getAbsolutePath()))
+                        .setListener(new Pipeline.Listener() {
+
+                            @Override
+                            public void onStageStarted(final Pipeline pipeline, final Pipeline.Stage stage) {
+                                MainActivity.getSessionCallbackRouter().register(stage.getSession().getSessionId(), createLogCallback(), null);
+                            }
+
+                            @Override
+                            public void onStageCompleted(final Pipeline pipeline, final Pipeline.Stage stage, final Session session) {
+                                Log.d(TAG, String.format("Stage %s exited with state %s and rc %s.%s", stage.getName(), session.getState(), session.getReturnCode(), notNull(session.getFailStackTrace(), "\n")));
+                            }
+
+                            @Override
+                            public void onProgress(final Pipeline pipeline, final Pipeline.Stage stage, final double progress) {
+                                // DO NOTHING
+                            }
+
+                            @Override
+                            public void onCompleted(final Pipeline pipeline, final Pipeline.Result result) {
+                                stagingCache.release(stagedFile);
+
+                                Log.d(TAG, String.format("Stabilize video completed with result %s. Staging cache: %s.", result, stagingCache.getStats()));
+
+                                MainActivity.addUIAction(new Callable<Object>() {
+
+                                    @Override
+                                    public Object call() {
+                                        if (result != Pipeline.Result.SUCCESS && isAdded()) {
+                                            Popup.show(requireContext(), "Stabilize video failed. Please check output for the details.");
+                                        }
+
+                                        return null;
+                                    }
+                                });
+                            }
+                        })
+                        .build()
+                        .start();
+            }
+        }, MainActivity.getUIExecutor());
+    }
+
     private void setActive() {
         if (backFromIntent) {
             backFromIntent = false;
@@ -224,13 +349,12 @@ public class SafTabFragment extends Fragment {
             Popup.show(requireContext(), "SAF is only available for Android 4.4 and above.");
             runFFprobeButton.setEnabled(false);
             runFFmpegButton.setEnabled(false);
+            stabilizeVideoButton.setEnabled(false);
             outputText.setEnabled(false);
             Log.i(TAG, "SAF Tab Dectivated");
             return;
         }
         Log.i(TAG, "SAF Tab Activated");
-        enableLogCallback();
-        enableStatisticsCallback();
         Popup.show(requireContext(), getString(R.string.saf_test_tooltip_text));
     }
 
@@ -261,6 +385,14 @@ public class SafTabFragment extends Fragment {
                     encodeVideo();
                 }
             });
+        } else if (requestCode == REQUEST_SAF_VIDSTAB && resultCode == RESULT_OK && data != null) {
+            inUri = data.getData();
+            MainActivity.handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    stabilizeVideo();
+                }
+            });
         } else {
             super.onActivityResult(requestCode, resultCode, data);
         }
@@ -308,8 +440,8 @@ public class SafTabFragment extends Fragment {
         }
     }
 
-    private void enableStatisticsCallback() {
-        FFmpegKitConfig.enableStatisticsCallback(new StatisticsCallback() {
+    private StatisticsCallback createStatisticsCallback() {
+        return MainActivity.getCallbackExecutor().wrap("saf statistics", new StatisticsCallback() {
 
             @Override
             public void apply(final Statistics newStatistics) {
@@ -323,7 +455,7 @@ public class SafTabFragment extends Fragment {
                     }
                 });
             }
-        });
+        }, CallbackExecutor.Policy.forStatistics());
     }
 
     private void showProgressDialog() {
@@ -24,7 +24,10 @@ import android.net.Uri;
 import android.os.Bundle;
 import android.util.Log;
 import android.view.View;
+import android.widget.AdapterView;
+import android.widget.ArrayAdapter;
 import android.widget.MediaController;
+import android.widget.Spinner;
 import android.widget.TextView;
 import android.widget.VideoView;
 
@@ -33,27 +36,28 @@ import androidx.annotation.Nullable;
 import androidx.appcompat.app.AlertDialog;
 import androidx.fragment.app.Fragment;
 
-import com.arthenica.ffmpegkit.ExecuteCallback;
-import com.arthenica.ffmpegkit.FFmpegKit;
-import com.arthenica.ffmpegkit.FFmpegKitConfig;
 import com.arthenica.ffmpegkit.LogCallback;
-import com.arthenica.ffmpegkit.ReturnCode;
 import com.arthenica.ffmpegkit.Session;
-import com.arthenica.ffmpegkit.Statistics;
-import com.arthenica.ffmpegkit.StatisticsCallback;
+import com.arthenica.ffmpegkit.util.CallbackExecutor;
 import com.arthenica.ffmpegkit.util.DialogUtil;
+import com.arthenica.ffmpegkit.util.Pipeline;
 import com.arthenica.ffmpegkit.util.ResourcesUtil;
+import com.arthenica.ffmpegkit.util.Tracer;
 import com.arthenica.smartexception.java.Exceptions;
 
 import java.io.File;
 import java.io.IOException;
-import java.math.BigDecimal;
+import java.util.Locale;
 import java.util.concurrent.Callable;
 
 import static com.arthenica.ffmpegkit.test.MainActivity.TAG;
 import static com.arthenica.ffmpegkit.test.MainActivity.notNull;
 
-public class SubtitleTabFragment extends Fragment {
+public class SubtitleTabFragment extends Fragment implements AdapterView.OnItemSelectedListener {
+    private static final String STAGE_CREATE = "create";
+    private static final String STAGE_BURN = "burn";
+    private static final String SINGLE_PASS_MODE = "single pass";
+    private static final long VIDEO_DURATION = 9000;
 
     private enum State {
         IDLE,
@@ -64,9 +68,9 @@ public class SubtitleTabFragment extends Fragment {
     private VideoView videoView;
     private AlertDialog createProgressDialog;
     private AlertDialog burnProgressDialog;
-    private Statistics statistics;
     private State state;
-    private Long sessionId;
+    private Pipeline pipeline;
+    private String selectedMode;
 
     public SubtitleTabFragment() {
         super(R.layout.fragment_subtitle_tab);
@@ -76,6 +80,12 @@ public class SubtitleTabFragment extends Fragment {
     public void onViewCreated(@NonNull View view, @Nullable Bundle savedInstanceState) {
         super.onViewCreated(view, savedInstanceState);
 
+        Spinner subtitleModeSpinner = view.findViewById(R.id.subtitleModeSpinner);
+        ArrayAdapter<CharSequence> adapter = ArrayAdapter.createFromResource(requireContext(), R.array.subtitle_mode, R.layout.spinner_item);
+        adapter.setDropDownViewResource(R.layout.spinner_dropdown_item);
+        subtitleModeSpinner.setAdapter(adapter);
+        subtitleModeSpinner.setOnItemSelectedListener(this);
+
         View burnSubtitlesButton = view.findViewById(R.id.burnSubtitlesButton);
         burnSubtitlesButton.setOnClickListener(new View.OnClickListener() {
 
@@ -88,6 +98,8 @@ public class SubtitleTabFragment extends Fragment {
         videoView = view.findViewById(R.id.videoPlayerFrame);
 
         state = State.IDLE;
+
+        selectedMode = getResources().getStringArray(R.array.subtitle_mode)[0];
     }
 
     @Override
@@ -100,32 +112,24 @@ public class SubtitleTabFragment extends Fragment {
         return new SubtitleTabFragment();
     }
 
-    public void enableLogCallback() {
-        FFmpegKitConfig.enableLogCallback(new LogCallback() {
+    @Override
+    public void onItemSelected(AdapterView<?> parent, View view, int position, long id) {
+        selectedMode = parent.getItemAtPosition(position).toString();
+    }
 
-            @Override
-            public void apply(final com.arthenica.ffmpegkit.Log log) {
-                Log.d(MainActivity.TAG, log.getMessage());
-            }
-        });
+    @Override
+    public void onNothingSelected(AdapterView<?> parent) {
+        // DO NOTHING
     }
 
-    public void enableStatisticsCallback() {
-        FFmpegKitConfig.enableStatisticsCallback(new StatisticsCallback() {
+    public LogCallback createLogCallback() {
+        return MainActivity.getCallbackExecutor().wrap("subtitle log", new LogCallback() {
 
             @Override
-            public void apply(final Statistics newStatistics) {
-                MainActivity.addUIAction(new Callable<Object>() {
-
-                    @Override
-                    public Object call() {
-                        SubtitleTabFragment.this.statistics = newStatistics;
-                        updateProgressDialog();
-                        return null;
-                    }
-                });
+            public void apply(final com.arthenica.ffmpegkit.Log log) {
+                Log.d(MainActivity.TAG, log.getMessage());
             }
-        });
+        }, CallbackExecutor.Policy.forLogs());
     }
 
     public void burnSubtitles() {
@@ -134,92 +138,156 @@ public class SubtitleTabFragment extends Fragment {
         final File image3File = new File(requireContext().getCacheDir(), "stonehenge.jpg");
         final File videoFile = getVideoFile();
         final File videoWithSubtitlesFile = getVideoWithSubtitlesFile();
+        final Tracer tracer = MainActivity.getTracer();
+        final Tracer.Span flowSpan = tracer.startSpan("subtitle").setArg("mode", selectedMode);
+        final Tracer.Span previousSpan = tracer.enter(flowSpan);
 
         try {
 
             // IF VIDEO IS PLAYING STOP PLAYBACK
             videoView.stopPlayback();
 
-            Log.d(TAG, "Testing SUBTITLE burning");
+            final boolean singlePass = SINGLE_PASS_MODE.equals(selectedMode);
 
-            showCreateProgressDialog();
+            Log.d(TAG, String.format("Testing SUBTITLE burning in %s mode", selectedMode));
+
+            if (singlePass) {
+                showBurnProgressDialog();
+            } else {
+                showCreateProgressDialog();
+            }
 
+            final Tracer.Span extractSpan = tracer.startSpan("extract assets");
             ResourcesUtil.resourceToFile(getResources(), R.drawable.machupicchu, image1File);
             ResourcesUtil.resourceToFile(getResources(), R.drawable.pyramid, image2File);
             ResourcesUtil.resourceToFile(getResources(), R.drawable.stonehenge, image3File);
             ResourcesUtil.rawResourceToFile(getResources(), R.raw.subtitle, getSubtitleFile());
+            extractSpan.end();
 
-            final String ffmpegCommand = Video.generateEncodeVideoScript(image1File.getAbsolutePath(), image2File.getAbsolutePath(), image3File.getAbsolutePath(), videoFile.getAbsolutePath(), "mpeg4", "");
+            final Pipeline.Builder builder = new Pipeline.Builder("subtitle");
 
-            Log.d(TAG, String.format("FFmpeg process started with arguments\n'%s'.", ffmpegCommand));
+            if (singlePass) {
 
-            state = State.CREATING;
+                // SUBTITLES ARE BURNED BY THE FILTER GRAPH THAT CREATES THE VIDEO
+                final String burnSubtitlesCommand = Video.generateEncodeVideoWithSubtitlesScript(image1File.getAbsolutePath(), image2File.getAbsolutePath(), image3File.getAbsolutePath(), getSubtitleFile().getAbsolutePath(), "MyFontName", videoWithSubtitlesFile.getAbsolutePath(), "mpeg4", "");
 
-            sessionId = FFmpegKit.executeAsync(ffmpegCommand, new ExecuteCallback() {
+                state = State.BURNING;
 
-                @Override
-                public void apply(final Session session) {
-                    Log.d(TAG, String.format("FFmpeg process exited with state %s and rc %s.%s", session.getState(), session.getReturnCode(), notNull(session.getFailStackTrace(), "\n")));
+                builder.addStage(new Pipeline.Stage(STAGE_BURN, burnSubtitlesCommand)
+                        .reads(getSubtitleFile().getAbsolutePath())
+                        .writes(videoWithSubtitlesFile.getAbsolutePath())
+                        .setExpectedDuration(VIDEO_DURATION));
+            } else {
+                final String ffmpegCommand = Video.generateEncodeVideoScript(image1File.getAbsolutePath(), image2File.getAbsolutePath(), image3File.getAbsolutePath(), videoFile.getAbsolutePath(), "mpeg4", "");
+                final String burnSubtitlesCommand = String.format("-y -i %s -vf subtitles=%s:force_style='FontName=MyFontName' -c:v mpeg4 %s", videoFile.getAbsolutePath(), getSubtitleFile().getAbsolutePath(), videoWithSubtitlesFile.getAbsolutePath());
 
-                    hideCreateProgressDialog();
+                state = State.CREATING;
 
-                    if (ReturnCode.isSuccess(session.getReturnCode())) {
-
-                        MainActivity.addUIAction(new Callable<Object>() {
+                builder.addStage(new Pipeline.Stage(STAGE_CREATE, ffmpegCommand)
+                        .writes(videoFile.getAbsolutePath())
+                        .setExpectedDuration(VIDEO_DURATION));
+                builder.addStage(new Pipeline.Stage(STAGE_BURN, burnSubtitlesCommand)
+                        .reads(videoFile.getAbsolutePath(), getSubtitleFile().getAbsolutePath())
+                        .writes(videoWithSubtitlesFile.getAbsolutePath())
+                        .setExpectedDuration(VIDEO_DURATION));
+            }
 
-                            @Override
-                            public Object call() {
+            pipeline = builder
+                    .setTracer(tracer)
+                    .setListener(new Pipeline.Listener() {
 
-                                Log.d(TAG, "Create completed successfully; burning subtitles.");
+                        @Override
+                        public void onStageStarted(final Pipeline pipeline, final Pipeline.Stage stage) {
 
-                                String burnSubtitlesCommand = String.format("-y -i %s -vf subtitles=%s:force_style='FontName=MyFontName' -c:v mpeg4 %s", videoFile.getAbsolutePath(), getSubtitleFile().getAbsolutePath(), videoWithSubtitlesFile.getAbsolutePath());
+                            // CALLED BEFORE THE STAGE'S SESSION STARTS, SO NO MESSAGE IS MISSED
+                            MainActivity.getSessionCallbackRouter().register(stage.getSession().getSessionId(), createLogCallback(), null);
 
-                                showBurnProgressDialog();
+                            if (STAGE_BURN.equals(stage.getName()) && pipeline.getStage(STAGE_CREATE) != null) {
+                                MainActivity.addUIAction(new Callable<Object>() {
 
-                                Log.d(TAG, String.format("FFmpeg process started with arguments\n'%s'.", burnSubtitlesCommand));
+                                    @Override
+                                    public Object call() {
+                                        Log.d(TAG, "Create completed successfully; burning subtitles.");
+                                        showBurnProgressDialog();
+                                        state = State.BURNING;
+                                        return null;
+                                    }
+                                });
+                            }
+                        }
 
-                                state = State.BURNING;
+                        @Override
+                        public void onStageCompleted(final Pipeline pipeline, final Pipeline.Stage stage, final Session session) {
+                            if (STAGE_CREATE.equals(stage.getName())) {
+                                hideCreateProgressDialog();
+                            } else {
 
-                                FFmpegKit.executeAsync(burnSubtitlesCommand, new ExecuteCallback() {
+                                // BURN DIALOG IS SHOWN BY A UI ACTION, HIDE IT IN ONE TOO
+                                MainActivity.addUIAction(new Callable<Object>() {
 
                                     @Override
-                                    public void apply(final Session secondSession) {
-
+                                    public Object call() {
                                         hideBurnProgressDialog();
-
-                                        MainActivity.addUIAction(new Callable<Object>() {
-
-                                            @Override
-                                            public Object call() {
-                                                if (ReturnCode.isSuccess(secondSession.getReturnCode())) {
-                                                    Log.d(TAG, "Burn subtitles completed successfully; playing video.");
-                                                    playVideo();
-                                                } else if (ReturnCode.isCancel(secondSession.getReturnCode())) {
-                                                    Popup.show(requireContext(), "Burn subtitles operation cancelled.");
-                                                    Log.e(TAG, "Burn subtitles operation cancelled");
-                                                } else {
-                                                    Popup.show(requireContext(), "Burn subtitles failed. Please check logs for the details.");
-                                                    Log.d(TAG, String.format("Burn subtitles failed with state %s and rc %s.%s", secondSession.getState(), secondSession.getReturnCode(), notNull(secondSession.getFailStackTrace(), "\n")));
-                                                }
-
-                                                return null;
-                                            }
-                                        });
+                                        return null;
                                     }
                                 });
-
-                                return null;
                             }
-                        });
-                    }
-                }
-            }).getSessionId();
+                        }
+
+                        @Override
+                        public void onProgress(final Pipeline pipeline, final Pipeline.Stage stage, final double progress) {
+                            MainActivity.addUIAction(new Callable<Object>() {
+
+                                @Override
+                                public Object call() {
+                                    updateProgressDialog(progress);
+                                    return null;
+                                }
+                            });
+                        }
+
+                        @Override
+                        public void onCompleted(final Pipeline pipeline, final Pipeline.Result result) {
+                            final Session burnSession = pipeline.getStage(STAGE_BURN).getSession();
+
+                            MainActivity.addUIAction(new Callable<Object>() {
+
+                                @Override
+                                public Object call() {
+                                    state = State.IDLE;
+
+                                    if (result == Pipeline.Result.SUCCESS) {
+                                        Log.d(TAG, "Burn subtitles completed successfully; playing video.");
+                                        playVideo();
+                                    } else if (result == Pipeline.Result.CANCELLED) {
+                                        Popup.show(requireContext(), "Burn subtitles operation cancelled.");
+                                        Log.e(TAG, "Burn subtitles operation cancelled");
+                                    } else if (burnSession != null) {
+                                        Popup.show(requireContext(), "Burn subtitles failed. Please check logs for the details.");
+                                        Log.d(TAG, String.format("Burn subtitles failed with state %s and rc %s.%s", burnSession.getState(), burnSession.getReturnCode(), notNull(burnSession.getFailStackTrace(), "\n")));
+                                    } else {
+                                        Popup.show(requireContext(), "Create video failed. Please check logs for the details.");
+                                    }
+
+                                    flowSpan.setArg("result", result.name()).end();
+
+                                    return null;
+                                }
+                            });
+                        }
+                    })
+                    .build();
 
-            Log.d(TAG, String.format("Async FFmpeg process started with sessionId %d.", sessionId));
+            pipeline.start();
+
+            Log.d(TAG, String.format("Async FFmpeg pipeline started with sessionId %d.", pipeline.getStages().get(0).getSession().getSessionId()));
 
         } catch (IOException e) {
             Log.e(TAG, String.format("Burn subtitles failed %s.", Exceptions.getStackTraceString(e)));
+            flowSpan.setArg("error", e.getMessage()).end();
             Popup.show(requireContext(), "Burn subtitles failed");
+        } finally {
+            tracer.exit(previousSpan);
         }
     }
 
@@ -261,48 +329,38 @@ public class SubtitleTabFragment extends Fragment {
 
     public void setActive() {
         Log.i(MainActivity.TAG, "Subtitle Tab Activated");
-        enableLogCallback();
-        enableStatisticsCallback();
         Popup.show(requireContext(), getString(R.string.subtitle_test_tooltip_text));
     }
 
     protected void showCreateProgressDialog() {
-
-        // CLEAN STATISTICS
-        statistics = null;
-
         createProgressDialog = DialogUtil.createCancellableProgressDialog(requireContext(), "Creating video", new View.OnClickListener() {
 
             @Override
             public void onClick(View v) {
-                if (sessionId != null) {
-                    Log.d(TAG, String.format("Cancelling FFmpeg execution with sessionId %d.", sessionId));
-                    FFmpegKit.cancel(sessionId);
+                if (pipeline != null) {
+                    Log.d(TAG, "Cancelling FFmpeg pipeline while creating video.");
+                    pipeline.cancel();
                 }
             }
         });
         createProgressDialog.show();
     }
 
-    protected void updateProgressDialog() {
-        if (statistics == null || statistics.getTime() < 0) {
-            return;
-        }
-
-        int timeInMilliseconds = this.statistics.getTime();
-        int totalVideoDuration = 9000;
-
-        String completePercentage = new BigDecimal(timeInMilliseconds).multiply(new BigDecimal(100)).divide(new BigDecimal(totalVideoDuration), 0, BigDecimal.ROUND_HALF_UP).toString();
+    /**
+     * @param progress progress of the whole pipeline, between 0 and 1
+     */
+    protected void updateProgressDialog(final double progress) {
+        final long completePercentage = Math.round(progress * 100);
 
         if (state == State.CREATING) {
             TextView textView = createProgressDialog.findViewById(R.id.progressDialogText);
             if (textView != null) {
-                textView.setText(String.format("Creating video: %% %s.", completePercentage));
+                textView.setText(String.format(Locale.ENGLISH, "Creating video: %% %d.", completePercentage));
             }
         } else if (state == State.BURNING) {
             TextView textView = burnProgressDialog.findViewById(R.id.progressDialogText);
             if (textView != null) {
-                textView.setText(String.format("Burning subtitles: %% %s.", completePercentage));
+                textView.setText(String.format(Locale.ENGLISH, "Burning subtitles: %% %d.", completePercentage));
             }
         }
 
@@ -313,14 +371,13 @@ public class SubtitleTabFragment extends Fragment {
     }
 
     protected void showBurnProgressDialog() {
-
-        // CLEAN STATISTICS
-        statistics = null;
-
         burnProgressDialog = DialogUtil.createCancellableProgressDialog(requireContext(), "Burning subtitles", new View.OnClickListener() {
             @Override
             public void onClick(View v) {
-                FFmpegKit.cancel();
+                if (pipeline != null) {
+                    Log.d(TAG, "Cancelling FFmpeg pipeline while burning subtitles.");
+                    pipeline.cancel();
+                }
             }
         });
         burnProgressDialog.show();
@@ -36,17 +36,15 @@ import androidx.annotation.Nullable;
 import androidx.appcompat.app.AlertDialog;
 import androidx.fragment.app.Fragment;
 
-import com.arthenica.ffmpegkit.ExecuteCallback;
-import com.arthenica.ffmpegkit.FFmpegKit;
-import com.arthenica.ffmpegkit.FFmpegKitConfig;
-import com.arthenica.ffmpegkit.FFmpegSession;
 import com.arthenica.ffmpegkit.LogCallback;
 import com.arthenica.ffmpegkit.ReturnCode;
 import com.arthenica.ffmpegkit.Session;
 import com.arthenica.ffmpegkit.Statistics;
 import com.arthenica.ffmpegkit.StatisticsCallback;
+import com.arthenica.ffmpegkit.util.CallbackExecutor;
 import com.arthenica.ffmpegkit.util.DialogUtil;
 import com.arthenica.ffmpegkit.util.ResourcesUtil;
+import com.arthenica.ffmpegkit.util.ResultCache;
 import com.arthenica.smartexception.java.Exceptions;
 
 import java.io.File;
@@ -145,11 +143,13 @@ public class VideoTabFragment extends Fragment implements AdapterView.OnItemSele
 
             Log.d(TAG, String.format("FFmpeg process started with arguments\n'%s'.", ffmpegCommand));
 
-            final FFmpegSession session = FFmpegKit.executeAsync(ffmpegCommand, new ExecuteCallback() {
+            // REPEATED ENCODES OF THE SAME IMAGES WITH THE SAME OPTIONS ARE RESTORED FROM CACHE
+            MainActivity.getResultCache().execute(ffmpegCommand, videoFile.getAbsolutePath(), new ResultCache.Callback() {
 
                 @Override
-                public void apply(final Session session) {
-                    final ReturnCode returnCode = session.getReturnCode();
+                public void apply(final ResultCache.Result result) {
+                    final ReturnCode returnCode = result.getReturnCode();
+                    final Session session = result.getSession();
 
                     hideProgressDialog();
 
@@ -158,7 +158,7 @@ public class VideoTabFragment extends Fragment implements AdapterView.OnItemSele
                         @Override
                         public Object call() {
                             if (ReturnCode.isSuccess(returnCode)) {
-                                Log.d(TAG, String.format("Encode completed successfully in %d milliseconds; playing video.", session.getDuration()));
+                                Log.d(TAG, String.format("Encode completed successfully in %d milliseconds%s; playing video.", result.getDuration(), result.isCacheHit() ? " from cache" : ""));
                                 playVideo();
                             } else {
                                 Popup.show(requireContext(), "Encode failed. Please check logs for the details.");
@@ -169,22 +169,20 @@ public class VideoTabFragment extends Fragment implements AdapterView.OnItemSele
                         }
                     });
                 }
-            }, new LogCallback() {
+            }, MainActivity.getCallbackExecutor().wrap("video log", new LogCallback() {
 
                 @Override
                 public void apply(com.arthenica.ffmpegkit.Log log) {
                     android.util.Log.d(MainActivity.TAG, log.getMessage());
                 }
-            }, new StatisticsCallback() {
+            }, CallbackExecutor.Policy.forLogs()), MainActivity.getCallbackExecutor().wrap("video statistics", new StatisticsCallback() {
 
                 @Override
                 public void apply(Statistics statistics) {
                     VideoTabFragment.this.statistics = statistics;
                     updateProgressDialog();
                 }
-            });
-
-            Log.d(TAG, String.format("Async FFmpeg process started with sessionId %d.", session.getSessionId()));
+            }, CallbackExecutor.Policy.forStatistics()));
 
         } catch (IOException e) {
             Log.e(TAG, String.format("Encode video failed %s.", Exceptions.getStackTraceString(e)));
@@ -308,8 +306,6 @@ public class VideoTabFragment extends Fragment implements AdapterView.OnItemSele
 
     public void setActive() {
         Log.i(MainActivity.TAG, "Video Tab Activated");
-        FFmpegKitConfig.enableLogCallback(null);
-        FFmpegKitConfig.enableStatisticsCallback(null);
         Popup.show(requireContext(), getString(R.string.video_test_tooltip_text));
     }
 
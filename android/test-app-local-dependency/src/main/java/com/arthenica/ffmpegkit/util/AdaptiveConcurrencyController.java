@@ -0,0 +1,372 @@
+/*
+ * Copyright (c) 2021 Taner Sener
+ *
+ * This file is part of FFmpegKitTest.
+ *
+ * FFmpegKitTest is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FFmpegKitTest is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with FFmpegKitTest.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.arthenica.ffmpegkit.util;
+
+import android.util.Log;
+
+import com.arthenica.ffmpegkit.ExecuteCallback;
+import com.arthenica.ffmpegkit.FFmpegKit;
+import com.arthenica.ffmpegkit.FFmpegKitConfig;
+import com.arthenica.ffmpegkit.FFmpegSession;
+import com.arthenica.ffmpegkit.LogCallback;
+import com.arthenica.ffmpegkit.Session;
+import com.arthenica.ffmpegkit.SessionState;
+import com.arthenica.ffmpegkit.Statistics;
+import com.arthenica.ffmpegkit.StatisticsCallback;
+import com.arthenica.smartexception.java.Exceptions;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import static com.arthenica.ffmpegkit.test.MainActivity.TAG;
+
+/**
+ * <p>Runs FFmpeg sessions under a concurrency limit that is tuned at runtime using an AIMD
+ * (additive increase, multiplicative decrease) policy.
+ *
+ * <p>Aggregate throughput is the sum of the last reported {@link Statistics#getSpeed()} of every
+ * running session. Sessions that have not reported statistics yet are left out, so a session that
+ * just started does not look like a stalled one. While the queue is saturated, the limit is raised
+ * by one as long as throughput keeps improving. An increase that does not pay off is reverted, and
+ * a throughput drop at a stable limit halves it. Every decision, including holding the limit while
+ * the queue is not saturated, is logged and optionally appended to a CSV file.
+ *
+ * <p>A queued session that is cancelled is never started. It is passed to its execute callback
+ * right away, still in the {@link SessionState#CREATED} state and without a return code; see
+ * {@link #isCancelledInQueue(Session)}.
+ */
+public class AdaptiveConcurrencyController {
+
+    public static final long DEFAULT_SAMPLE_INTERVAL = 2000;
+
+    /**
+     * Relative throughput change below this value is treated as noise.
+     */
+    private static final double TOLERANCE = 0.05;
+
+    /**
+     * Number of stable samples after which the controller probes a higher limit again.
+     */
+    private static final int PROBE_AFTER_STABLE_SAMPLES = 5;
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final Deque<FFmpegSession> pendingSessions;
+    /**
+     * Last speed reported by each running session, null until its first statistics.
+     */
+    private final Map<Long, Double> runningSessions;
+    private final ScheduledExecutorService scheduler;
+    private final File decisionLogFile;
+
+    private int limit;
+    private int previousLimit;
+    private double previousThroughput;
+    private int stableSamples;
+
+    public AdaptiveConcurrencyController(final int minLimit, final int maxLimit) {
+        this(minLimit, maxLimit, DEFAULT_SAMPLE_INTERVAL, null);
+    }
+
+    public AdaptiveConcurrencyController(final int minLimit, final int maxLimit, final long sampleInterval, final File decisionLogFile) {
+        if (minLimit < 1 || maxLimit < minLimit) {
+            throw new IllegalArgumentException(String.format(Locale.ENGLISH, "Invalid concurrency limits %d-%d.", minLimit, maxLimit));
+        }
+
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.pendingSessions = new ArrayDeque<>();
+        this.runningSessions = new HashMap<>();
+        this.decisionLogFile = decisionLogFile;
+        this.limit = minLimit;
+        this.previousLimit = minLimit;
+        this.previousThroughput = -1;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(runnable, "concurrency-controller");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.scheduler.scheduleAtFixedRate(new Runnable() {
+
+            @Override
+            public void run() {
+                sample();
+            }
+        }, sampleInterval, sampleInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * <p>Creates a session for the given command and starts it as soon as a slot is available.
+     *
+     * @return the session created, its id can be used to cancel it even if it is still queued
+     */
+    public FFmpegSession submit(final String command, final ExecuteCallback executeCallback, final LogCallback logCallback, final StatisticsCallback statisticsCallback) {
+        final FFmpegSession session = new FFmpegSession(FFmpegKit.parseArguments(command), new ExecuteCallback() {
+
+            @Override
+            public void apply(final Session session) {
+                onSessionCompleted(session);
+                if (executeCallback != null) {
+                    executeCallback.apply(session);
+                }
+            }
+        }, logCallback, new StatisticsCallback() {
+
+            @Override
+            public void apply(final Statistics statistics) {
+                onStatistics(statistics);
+                if (statisticsCallback != null) {
+                    statisticsCallback.apply(statistics);
+                }
+            }
+        });
+
+        synchronized (this) {
+            pendingSessions.add(session);
+        }
+
+        dispatch();
+
+        return session;
+    }
+
+    /**
+     * <p>Cancels the given session. Queued sessions are dropped without being started.
+     */
+    public void cancel(final long sessionId) {
+        FFmpegSession removed = null;
+
+        synchronized (this) {
+            final Iterator<FFmpegSession> iterator = pendingSessions.iterator();
+            while (iterator.hasNext()) {
+                final FFmpegSession session = iterator.next();
+                if (session.getSessionId() == sessionId) {
+                    iterator.remove();
+                    removed = session;
+                    break;
+                }
+            }
+        }
+
+        if (removed != null) {
+            Log.d(TAG, String.format(Locale.ENGLISH, "Removed queued session %d.", sessionId));
+            completeCancelled(removed);
+        } else {
+            FFmpegKit.cancel(sessionId);
+        }
+    }
+
+    /**
+     * <p>Drops all queued sessions and cancels the running ones.
+     */
+    public void cancelAll() {
+        final List<FFmpegSession> removed;
+
+        synchronized (this) {
+            removed = new ArrayList<>(pendingSessions);
+            pendingSessions.clear();
+        }
+
+        for (FFmpegSession session : removed) {
+            completeCancelled(session);
+        }
+
+        FFmpegKit.cancel();
+    }
+
+    /**
+     * @return true if the given session was cancelled while it was queued and never started
+     */
+    public static boolean isCancelledInQueue(final Session session) {
+        return session.getState() == SessionState.CREATED;
+    }
+
+    public synchronized int getLimit() {
+        return limit;
+    }
+
+    public void shutdown() {
+        scheduler.shutdownNow();
+    }
+
+    protected void dispatch() {
+        while (true) {
+            final FFmpegSession session;
+
+            synchronized (this) {
+                if (runningSessions.size() >= limit || pendingSessions.isEmpty()) {
+                    return;
+                }
+                session = pendingSessions.poll();
+                runningSessions.put(session.getSessionId(), null);
+            }
+
+            Log.d(TAG, String.format(Locale.ENGLISH, "Starting session %d under concurrency limit %d.", session.getSessionId(), getLimit()));
+
+            FFmpegKitConfig.asyncFFmpegExecute(session);
+        }
+    }
+
+    protected void onStatistics(final Statistics statistics) {
+        synchronized (this) {
+            if (runningSessions.containsKey(statistics.getSessionId()) && statistics.getSpeed() > 0) {
+                runningSessions.put(statistics.getSessionId(), statistics.getSpeed());
+            }
+        }
+    }
+
+    /**
+     * <p>Passes a session removed from the queue to its execute callback. It bypasses
+     * {@link #onSessionCompleted(Session)} through the wrapper, which is harmless because the
+     * session never held a slot.
+     */
+    protected void completeCancelled(final FFmpegSession session) {
+        final ExecuteCallback executeCallback = session.getExecuteCallback();
+        if (executeCallback != null) {
+            try {
+                executeCallback.apply(session);
+            } catch (final Exception e) {
+                Log.w(TAG, String.format("Execute callback of cancelled session %d failed.%s", session.getSessionId(), Exceptions.getStackTraceString(e)));
+            }
+        }
+    }
+
+    protected void onSessionCompleted(final Session session) {
+        synchronized (this) {
+            runningSessions.remove(session.getSessionId());
+        }
+
+        dispatch();
+    }
+
+    protected void sample() {
+        final String decision;
+        final int oldLimit;
+        final int newLimit;
+        final double throughput;
+        final int running;
+        final int pending;
+
+        synchronized (this) {
+            running = runningSessions.size();
+            pending = pendingSessions.size();
+            oldLimit = limit;
+
+            boolean measured = true;
+            double sum = 0;
+            int reporting = 0;
+            for (Double speed : runningSessions.values()) {
+                if (speed != null) {
+                    sum += speed;
+                    reporting++;
+                }
+            }
+            throughput = sum;
+
+            if (running < limit && pending == 0) {
+
+                // NOT SATURATED, THROUGHPUT SAYS NOTHING ABOUT THE LIMIT
+                decision = "not-saturated";
+                measured = false;
+            } else if (reporting < running) {
+
+                // A SESSION WITHOUT STATISTICS WOULD COUNT AS A THROUGHPUT DROP
+                decision = "warming-up";
+                measured = false;
+            } else if (previousThroughput < 0) {
+                decision = "slow-start";
+                previousLimit = limit;
+                limit = Math.min(maxLimit, limit + 1);
+            } else if (limit > previousLimit) {
+                if (throughput > previousThroughput * (1 + TOLERANCE)) {
+                    decision = "increase-paid-off";
+                    previousLimit = limit;
+                    limit = Math.min(maxLimit, limit + 1);
+                } else {
+                    decision = "knee-revert";
+                    limit = previousLimit;
+                }
+                stableSamples = 0;
+            } else if (throughput < previousThroughput * (1 - TOLERANCE)) {
+                decision = "multiplicative-decrease";
+                limit = Math.max(minLimit, limit / 2);
+                previousLimit = limit;
+                stableSamples = 0;
+            } else if (++stableSamples >= PROBE_AFTER_STABLE_SAMPLES && limit < maxLimit) {
+                decision = "additive-increase";
+                previousLimit = limit;
+                limit = limit + 1;
+                stableSamples = 0;
+            } else {
+                decision = "hold";
+            }
+
+            if (measured) {
+                previousThroughput = throughput;
+            }
+            newLimit = limit;
+        }
+
+        logDecision(decision, oldLimit, newLimit, throughput, running, pending);
+
+        if (newLimit > oldLimit) {
+            dispatch();
+        }
+    }
+
+    protected void logDecision(final String decision, final int oldLimit, final int newLimit, final double throughput, final int running, final int pending) {
+        Log.d(TAG, String.format(Locale.ENGLISH, "Concurrency decision %s: limit %d -> %d, throughput %.3f, running %d, pending %d.", decision, oldLimit, newLimit, throughput, running, pending));
+
+        if (decisionLogFile != null) {
+            FileWriter writer = null;
+            try {
+                writer = new FileWriter(decisionLogFile, true);
+                writer.write(String.format(Locale.ENGLISH, "%d,%s,%d,%d,%.3f,%d,%d\n", System.currentTimeMillis(), decision, oldLimit, newLimit, throughput, running, pending));
+            } catch (final IOException e) {
+                Log.w(TAG, String.format("Writing concurrency decision failed.%s", Exceptions.getStackTraceString(e)));
+            } finally {
+                if (writer != null) {
+                    try {
+                        writer.close();
+                    } catch (final IOException ignored) {
+                    }
+                }
+            }
+        }
+    }
+
+}
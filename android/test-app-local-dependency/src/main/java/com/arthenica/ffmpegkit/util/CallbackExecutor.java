@@ -0,0 +1,370 @@
+/*
+ * Copyright (c) 2021 Taner Sener
+ *
+ * This file is part of FFmpegKitTest.
+ *
+ * FFmpegKitTest is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FFmpegKitTest is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with FFmpegKitTest.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.arthenica.ffmpegkit.util;
+
+import android.util.Log;
+
+import com.arthenica.ffmpegkit.LogCallback;
+import com.arthenica.ffmpegkit.Statistics;
+import com.arthenica.ffmpegkit.StatisticsCallback;
+import com.arthenica.smartexception.java.Exceptions;
+
+import java.util.Locale;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.arthenica.ffmpegkit.test.MainActivity.TAG;
+
+/**
+ * <p>Runs user log and statistics callbacks away from the thread that delivers FFmpeg messages.
+ *
+ * <p>Every wrapped callback gets its own bounded lane, drained in order by a small shared pool.
+ * Handing a message to a lane never blocks; when a lane is overloaded messages are dropped, sampled
+ * or conflated as its policy says. A lane drains for at most a time slice before it yields its
+ * thread to the other lanes.
+ *
+ * <p>Callbacks can not be interrupted, so a time budget is enforced by accounting: a call that
+ * throws or runs longer than its budget counts as a failure. After enough consecutive failures the
+ * lane's circuit breaker opens and its messages are discarded for a cool down period. Then a single
+ * call is let through, and the breaker closes again if it succeeds.
+ */
+public class CallbackExecutor {
+
+    public enum OverloadPolicy {
+
+        /**
+         * New messages are dropped while the lane is full.
+         */
+        DROP,
+
+        /**
+         * Once the lane is half full only every n-th message is kept, new messages are dropped
+         * while it is full.
+         */
+        SAMPLE,
+
+        /**
+         * The oldest queued message is replaced, for callbacks that only need the latest value.
+         */
+        LATEST
+    }
+
+    public static class Policy {
+        private int capacity = 256;
+        private OverloadPolicy overloadPolicy = OverloadPolicy.SAMPLE;
+        private int sampleRate = 8;
+        private long timeBudget = 10;
+        private int failureThreshold = 5;
+        private long coolDown = 5000;
+
+        /**
+         * @return policy for log callbacks, sampled under overload
+         */
+        public static Policy forLogs() {
+            return new Policy();
+        }
+
+        /**
+         * @return policy for statistics callbacks, which only need the latest statistics
+         */
+        public static Policy forStatistics() {
+            return new Policy().setCapacity(4).setOverloadPolicy(OverloadPolicy.LATEST);
+        }
+
+        public Policy setCapacity(final int capacity) {
+            this.capacity = capacity;
+            return this;
+        }
+
+        public Policy setOverloadPolicy(final OverloadPolicy overloadPolicy) {
+            this.overloadPolicy = overloadPolicy;
+            return this;
+        }
+
+        /**
+         * @param sampleRate one of every <code>sampleRate</code> messages is kept by
+         *                   {@link OverloadPolicy#SAMPLE} under overload
+         */
+        public Policy setSampleRate(final int sampleRate) {
+            this.sampleRate = sampleRate;
+            return this;
+        }
+
+        /**
+         * @param timeBudget time a single call may take before it counts as a failure, in
+         *                   milliseconds
+         */
+        public Policy setTimeBudget(final long timeBudget) {
+            this.timeBudget = timeBudget;
+            return this;
+        }
+
+        /**
+         * @param failureThreshold consecutive failures that open the circuit breaker
+         * @param coolDown         time the breaker stays open, in milliseconds
+         */
+        public Policy setCircuitBreaker(final int failureThreshold, final long coolDown) {
+            this.failureThreshold = failureThreshold;
+            this.coolDown = coolDown;
+            return this;
+        }
+    }
+
+    /**
+     * <p>A serial queue of messages for a single callback.
+     */
+    protected abstract class Lane<T> implements Runnable {
+        private final String name;
+        private final Policy policy;
+        private final ConcurrentLinkedQueue<T> queue;
+        private final AtomicInteger size = new AtomicInteger();
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        private final AtomicLong sampleCounter = new AtomicLong();
+        private final AtomicInteger consecutiveFailures = new AtomicInteger();
+        private volatile long openUntil;
+
+        Lane(final String name, final Policy policy) {
+            this.name = name;
+            this.policy = policy;
+            this.queue = new ConcurrentLinkedQueue<>();
+        }
+
+        protected abstract void deliver(final T message);
+
+        /**
+         * <p>Called on the delivering thread, must not block.
+         */
+        void offer(final T message) {
+            if (isOpen()) {
+                dropped.incrementAndGet();
+                return;
+            }
+
+            final int queued = size.get();
+            if (queued >= policy.capacity) {
+                if (policy.overloadPolicy != OverloadPolicy.LATEST || queue.poll() == null) {
+                    dropped.incrementAndGet();
+                    return;
+                }
+                size.decrementAndGet();
+                dropped.incrementAndGet();
+            } else if (policy.overloadPolicy == OverloadPolicy.SAMPLE && queued >= policy.capacity / 2) {
+                if (sampleCounter.incrementAndGet() % policy.sampleRate != 0) {
+                    sampled.incrementAndGet();
+                    return;
+                }
+            }
+
+            queue.add(message);
+            size.incrementAndGet();
+            schedule();
+        }
+
+        void schedule() {
+            if (scheduled.compareAndSet(false, true)) {
+                try {
+                    executor.execute(this);
+                } catch (final RejectedExecutionException e) {
+                    scheduled.set(false);
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            final long sliceEnd = System.nanoTime() + TIME_SLICE;
+            try {
+                T message;
+                while ((message = queue.poll()) != null) {
+                    size.decrementAndGet();
+
+                    if (isOpen()) {
+                        dropped.incrementAndGet();
+                        continue;
+                    }
+
+                    call(message);
+
+                    if (System.nanoTime() > sliceEnd) {
+                        break;
+                    }
+                }
+            } finally {
+                scheduled.set(false);
+            }
+
+            // MESSAGES LEFT AFTER THE SLICE OR OFFERED WHILE SCHEDULED IS BEING CLEARED
+            if (!queue.isEmpty()) {
+                schedule();
+            }
+        }
+
+        protected void call(final T message) {
+            final long startTime = System.nanoTime();
+            Throwable failure = null;
+            try {
+                deliver(message);
+            } catch (final Throwable t) {
+                failure = t;
+            }
+            final long elapsedNanos = System.nanoTime() - startTime;
+            final long elapsed = TimeUnit.NANOSECONDS.toMillis(elapsedNanos);
+
+            final MetricsRegistry.Histogram histogram = callDurationHistogram;
+            if (histogram != null) {
+                histogram.observe(elapsedNanos / 1e9);
+            }
+
+            if (failure != null) {
+                failed.incrementAndGet();
+                if (consecutiveFailures.get() == 0) {
+                    Log.w(TAG, String.format("Callback %s threw an exception.%s", name, Exceptions.getStackTraceString(failure)));
+                }
+            } else if (elapsed > policy.timeBudget) {
+                overruns.incrementAndGet();
+            } else {
+                delivered.incrementAndGet();
+                consecutiveFailures.set(0);
+                openUntil = 0;
+                return;
+            }
+
+            if (consecutiveFailures.incrementAndGet() >= policy.failureThreshold) {
+                openUntil = System.currentTimeMillis() + policy.coolDown;
+                consecutiveFailures.set(policy.failureThreshold - 1);
+                trips.incrementAndGet();
+                Log.w(TAG, String.format(Locale.ENGLISH, "Callback %s disabled for %d ms after %d consecutive failures.", name, policy.coolDown, policy.failureThreshold));
+            }
+        }
+
+        /**
+         * <p>After the cool down the breaker is half open: calls go through, and the next failure
+         * opens it again because the failure count is kept just below the threshold.
+         */
+        boolean isOpen() {
+            final long until = openUntil;
+            return until != 0 && System.currentTimeMillis() < until;
+        }
+    }
+
+    private static final long TIME_SLICE = TimeUnit.MILLISECONDS.toNanos(20);
+
+    private final ExecutorService executor;
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong sampled = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong overruns = new AtomicLong();
+    private final AtomicLong trips = new AtomicLong();
+    private volatile MetricsRegistry.Histogram callDurationHistogram;
+
+    public CallbackExecutor(final int threads) {
+        final AtomicInteger threadCount = new AtomicInteger();
+
+        // AT MOST ONE TASK PER LANE IS QUEUED, SO THE QUEUE IS BOUNDED BY THE NUMBER OF LANES
+        this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(runnable, "callback-executor-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * <p>Wraps the given log callback so that it runs on this executor.
+     *
+     * @param name name used in warnings
+     */
+    public LogCallback wrap(final String name, final LogCallback logCallback, final Policy policy) {
+        final Lane<com.arthenica.ffmpegkit.Log> lane = new Lane<com.arthenica.ffmpegkit.Log>(name, policy) {
+
+            @Override
+            protected void deliver(final com.arthenica.ffmpegkit.Log log) {
+                logCallback.apply(log);
+            }
+        };
+
+        return new LogCallback() {
+
+            @Override
+            public void apply(final com.arthenica.ffmpegkit.Log log) {
+                lane.offer(log);
+            }
+        };
+    }
+
+    /**
+     * <p>Wraps the given statistics callback so that it runs on this executor.
+     *
+     * @param name name used in warnings
+     */
+    public StatisticsCallback wrap(final String name, final StatisticsCallback statisticsCallback, final Policy policy) {
+        final Lane<Statistics> lane = new Lane<Statistics>(name, policy) {
+
+            @Override
+            protected void deliver(final Statistics statistics) {
+                statisticsCallback.apply(statistics);
+            }
+        };
+
+        return new StatisticsCallback() {
+
+            @Override
+            public void apply(final Statistics statistics) {
+                lane.offer(statistics);
+            }
+        };
+    }
+
+    /**
+     * <p>Sets the histogram that the duration of every callback call is recorded in, in seconds.
+     */
+    public void setCallDurationHistogram(final MetricsRegistry.Histogram callDurationHistogram) {
+        this.callDurationHistogram = callDurationHistogram;
+    }
+
+    public long getDeliveredCount() {
+        return delivered.get();
+    }
+
+    public long getDroppedCount() {
+        return dropped.get() + sampled.get();
+    }
+
+    public long getFailedCount() {
+        return failed.get() + overruns.get();
+    }
+
+    public String getStats() {
+        return String.format(Locale.ENGLISH, "%d delivered, %d dropped, %d sampled out, %d failed, %d over budget, %d breaker trips", delivered.get(), dropped.get(), sampled.get(), failed.get(), overruns.get(), trips.get());
+    }
+
+}
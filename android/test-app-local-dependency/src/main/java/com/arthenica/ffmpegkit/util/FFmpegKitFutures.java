@@ -0,0 +1,258 @@
+/*
+ * Copyright (c) 2021 Taner Sener
+ *
+ * This file is part of FFmpegKitTest.
+ *
+ * FFmpegKitTest is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FFmpegKitTest is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with FFmpegKitTest.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.arthenica.ffmpegkit.util;
+
+import com.arthenica.ffmpegkit.ExecuteCallback;
+import com.arthenica.ffmpegkit.FFmpegKit;
+import com.arthenica.ffmpegkit.FFmpegKitConfig;
+import com.arthenica.ffmpegkit.FFmpegSession;
+import com.arthenica.ffmpegkit.LogCallback;
+import com.arthenica.ffmpegkit.ReturnCode;
+import com.arthenica.ffmpegkit.Session;
+import com.arthenica.ffmpegkit.Statistics;
+import com.arthenica.ffmpegkit.StatisticsCallback;
+
+import java.util.Locale;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * <p>A {@link CompletableFuture} based facade over asynchronous FFmpeg executions.
+ *
+ * <p>Futures are completed directly on the thread that runs the execute callback, so a stage only
+ * changes thread when the caller asks for it with one of the <code>*Async(..., executor)</code>
+ * methods of {@link CompletableFuture}. Cancelling a future cancels its session.
+ *
+ * <p>Statistics are delivered through a {@link StatisticsStream}, which conflates updates that
+ * arrive while the previous one is still being consumed.
+ */
+public class FFmpegKitFutures {
+
+    /**
+     * <p>Thrown through a future when a session does not complete successfully.
+     */
+    public static class SessionFailedException extends RuntimeException {
+        private final Session session;
+
+        public SessionFailedException(final Session session) {
+            super(String.format(Locale.ENGLISH, "Session %d failed with state %s and rc %s.", session.getSessionId(), session.getState(), session.getReturnCode()));
+            this.session = session;
+        }
+
+        public Session getSession() {
+            return session;
+        }
+    }
+
+    /**
+     * <p>A bounded statistics stream. At most one update is pending delivery at a time; updates
+     * arriving while one is pending replace it instead of being queued behind it.
+     */
+    public static class StatisticsStream implements StatisticsCallback {
+        private final Executor executor;
+        private final StatisticsCallback consumer;
+        private final AtomicReference<Statistics> latest;
+        private final AtomicBoolean scheduled;
+        private final AtomicLong conflatedCount;
+        private final Runnable drain;
+
+        /**
+         * @param executor executor statistics are delivered on
+         * @param consumer consumer receiving the latest statistics
+         */
+        public StatisticsStream(final Executor executor, final StatisticsCallback consumer) {
+            this.executor = executor;
+            this.consumer = consumer;
+            this.latest = new AtomicReference<>();
+            this.scheduled = new AtomicBoolean();
+            this.conflatedCount = new AtomicLong();
+            this.drain = new Runnable() {
+
+                @Override
+                public void run() {
+                    scheduled.set(false);
+                    final Statistics statistics = latest.getAndSet(null);
+                    if (statistics != null) {
+                        consumer.apply(statistics);
+                    }
+                }
+            };
+        }
+
+        @Override
+        public void apply(final Statistics statistics) {
+            if (latest.getAndSet(statistics) != null) {
+                conflatedCount.incrementAndGet();
+            }
+            if (scheduled.compareAndSet(false, true)) {
+                executor.execute(drain);
+            }
+        }
+
+        /**
+         * @return number of updates replaced by a newer one before they were delivered
+         */
+        public long getConflatedCount() {
+            return conflatedCount.get();
+        }
+    }
+
+    private static final ScheduledExecutorService timeoutScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            final Thread thread = new Thread(runnable, "ffmpeg-kit-futures-timeout");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private FFmpegKitFutures() {
+    }
+
+    /**
+     * <p>Starts the given command asynchronously.
+     *
+     * @return future completed with the session when it ends, whatever its return code is
+     */
+    public static CompletableFuture<FFmpegSession> executeAsync(final String command) {
+        return executeAsync(command, null, null);
+    }
+
+    /**
+     * <p>Starts the given command asynchronously.
+     *
+     * @param logCallback        log callback, may be null
+     * @param statisticsCallback statistics callback, wrap it in a {@link StatisticsStream} to bound
+     *                           deliveries, may be null
+     * @return future completed with the session when it ends, whatever its return code is
+     */
+    public static CompletableFuture<FFmpegSession> executeAsync(final String command, final LogCallback logCallback, final StatisticsCallback statisticsCallback) {
+        final CompletableFuture<FFmpegSession> future = new CompletableFuture<>();
+
+        final FFmpegSession session = new FFmpegSession(FFmpegKit.parseArguments(command), new ExecuteCallback() {
+
+            @Override
+            public void apply(final Session session) {
+                future.complete((FFmpegSession) session);
+            }
+        }, logCallback, statisticsCallback);
+
+        future.whenComplete(new BiConsumer<FFmpegSession, Throwable>() {
+
+            @Override
+            public void accept(final FFmpegSession completedSession, final Throwable throwable) {
+                if (throwable != null) {
+
+                    // CANCELLED OR TIMED OUT BY THE CALLER
+                    FFmpegKit.cancel(session.getSessionId());
+                }
+            }
+        });
+
+        FFmpegKitConfig.asyncFFmpegExecute(session);
+
+        return future;
+    }
+
+    /**
+     * <p>Starts the given command asynchronously and cancels it if it does not end in time.
+     *
+     * @return future completed with the session, or completed exceptionally with a
+     * {@link TimeoutException} if the timeout expires first
+     */
+    public static CompletableFuture<FFmpegSession> executeAsync(final String command, final long timeout, final TimeUnit unit) {
+        return withTimeout(executeAsync(command), timeout, unit);
+    }
+
+    /**
+     * <p>Completes the given future exceptionally with a {@link TimeoutException} if it is not
+     * completed within the timeout. Session futures cancel their session when this happens.
+     *
+     * @return the same future
+     */
+    public static <T> CompletableFuture<T> withTimeout(final CompletableFuture<T> future, final long timeout, final TimeUnit unit) {
+        final ScheduledFuture<?> scheduledTimeout = timeoutScheduler.schedule(new Runnable() {
+
+            @Override
+            public void run() {
+                future.completeExceptionally(new TimeoutException(String.format(Locale.ENGLISH, "Timed out after %d %s.", timeout, unit.name().toLowerCase(Locale.ENGLISH))));
+            }
+        }, timeout, unit);
+
+        future.whenComplete(new BiConsumer<T, Throwable>() {
+
+            @Override
+            public void accept(final T value, final Throwable throwable) {
+                scheduledTimeout.cancel(false);
+            }
+        });
+
+        return future;
+    }
+
+    /**
+     * <p>Maps a session future to one that fails with {@link SessionFailedException} or
+     * {@link CancellationException} unless the session completed successfully. Useful between
+     * composed stages, so that a failed stage does not start the next one.
+     */
+    public static <T extends Session> CompletableFuture<T> requireSuccess(final CompletableFuture<T> future) {
+        return future.thenApply(new Function<T, T>() {
+
+            @Override
+            public T apply(final T session) {
+                final ReturnCode returnCode = session.getReturnCode();
+
+                if (ReturnCode.isSuccess(returnCode)) {
+                    return session;
+                } else if (ReturnCode.isCancel(returnCode)) {
+                    throw new CancellationException(String.format(Locale.ENGLISH, "Session %d was cancelled.", session.getSessionId()));
+                } else {
+                    throw new SessionFailedException(session);
+                }
+            }
+        });
+    }
+
+    /**
+     * <p>Returns the cause of a failure received in <code>exceptionally</code> or
+     * <code>handle</code> stages, without the {@link CompletionException} wrapper.
+     */
+    public static Throwable unwrap(final Throwable throwable) {
+        if (throwable instanceof CompletionException && throwable.getCause() != null) {
+            return throwable.getCause();
+        }
+        return throwable;
+    }
+
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2019-2021 Alexander Berezhnoi
+ *
+ * This file is part of FFmpegKitTest.
+ *
+ * FFmpegKitTest is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FFmpegKitTest is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with FFmpegKitTest.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.arthenica.ffmpegkit.util;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * <p>Small file, stream and digest helpers shared by the utility classes.
+ */
+public class IOUtil {
+
+    private IOUtil() {
+    }
+
+    public static String readFile(final File file) throws IOException {
+        final byte[] content = new byte[(int) file.length()];
+
+        InputStream inputStream = null;
+        try {
+            inputStream = new FileInputStream(file);
+
+            int offset = 0;
+            int read;
+            while (offset < content.length && (read = inputStream.read(content, offset, content.length - offset)) != -1) {
+                offset += read;
+            }
+        } finally {
+            closeQuietly(inputStream);
+        }
+
+        return new String(content, Charset.forName("UTF-8"));
+    }
+
+    public static MessageDigest newDigest() throws IOException {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (final NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }
+
+    public static String toHex(final byte[] bytes) {
+        final StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(String.format("%02x", b & 0xff));
+        }
+        return hex.toString();
+    }
+
+    public static void closeQuietly(final Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (final IOException ignored) {
+            }
+        }
+    }
+
+}
@@ -0,0 +1,582 @@
+/*
+ * Copyright (c) 2021 Taner Sener
+ *
+ * This file is part of FFmpegKitTest.
+ *
+ * FFmpegKitTest is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FFmpegKitTest is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with FFmpegKitTest.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.arthenica.ffmpegkit.util;
+
+import android.util.Log;
+
+import com.arthenica.ffmpegkit.ExecuteCallback;
+import com.arthenica.ffmpegkit.FFmpegSession;
+import com.arthenica.ffmpegkit.LogCallback;
+import com.arthenica.ffmpegkit.ReturnCode;
+import com.arthenica.ffmpegkit.Session;
+import com.arthenica.ffmpegkit.SessionState;
+import com.arthenica.smartexception.java.Exceptions;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import static com.arthenica.ffmpegkit.test.MainActivity.TAG;
+
+/**
+ * <p>A durable FFmpeg job queue backed by an append-only journal.
+ *
+ * <p>Every submit, start and completion is appended to the journal as a single JSON line and
+ * synced to disk before the job moves on. When the queue is opened again after a process death,
+ * the journal is replayed: finished jobs are kept as they are, even when their output has since
+ * been deleted, jobs that were running are re-queued after their partial output is deleted, and
+ * queued jobs are started again. The journal is compacted into one snapshot line per job once it
+ * grows past a threshold.
+ *
+ * <p>Journal writes are synced, so opening the queue, submitting and cancelling run on the queue's
+ * own thread and never block the caller. They run in the order they are called, so jobs submitted
+ * while the journal is being replayed are journaled after it.
+ */
+public class JobQueue {
+
+    public enum JobState {
+        QUEUED,
+        RUNNING,
+        COMPLETED,
+        FAILED,
+        CANCELLED
+    }
+
+    public static class Job {
+        private final long jobId;
+        private final String command;
+        private final String outputPath;
+        private JobState state;
+        private long sessionId;
+        private int returnCode;
+        private int attempts;
+        private ExecuteCallback executeCallback;
+        private LogCallback logCallback;
+
+        Job(final long jobId, final String command, final String outputPath) {
+            this.jobId = jobId;
+            this.command = command;
+            this.outputPath = outputPath;
+            this.state = JobState.QUEUED;
+            this.returnCode = -1;
+        }
+
+        public long getJobId() {
+            return jobId;
+        }
+
+        public String getCommand() {
+            return command;
+        }
+
+        public String getOutputPath() {
+            return outputPath;
+        }
+
+        public synchronized JobState getState() {
+            return state;
+        }
+
+        public synchronized long getSessionId() {
+            return sessionId;
+        }
+
+        public synchronized int getReturnCode() {
+            return returnCode;
+        }
+
+        public synchronized int getAttempts() {
+            return attempts;
+        }
+
+        @Override
+        public synchronized String toString() {
+            return String.format(Locale.ENGLISH, "Job{id=%d, state=%s, sessionId=%d, rc=%d, attempts=%d, output=%s}", jobId, state, sessionId, returnCode, attempts, outputPath);
+        }
+    }
+
+    private static final String OP_SUBMIT = "submit";
+    private static final String OP_START = "start";
+    private static final String OP_COMPLETE = "complete";
+    private static final String OP_CANCEL = "cancel";
+    private static final String OP_SNAPSHOT = "snapshot";
+
+    /**
+     * Journal is compacted when it holds this many records more than the number of jobs.
+     */
+    private static final int COMPACTION_SLACK = 256;
+
+    /**
+     * Number of finished jobs kept in the journal after compaction.
+     */
+    private static final int FINISHED_JOBS_KEPT = 100;
+
+    private final File journalFile;
+    private final AdaptiveConcurrencyController controller;
+    private final Map<Long, Job> jobs;
+    private final ExecutorService executor;
+    private FileOutputStream journal;
+    private int journalRecords;
+    private long nextJobId;
+
+    protected JobQueue(final File journalFile, final AdaptiveConcurrencyController controller) {
+        this.journalFile = journalFile;
+        this.controller = controller;
+        this.jobs = new LinkedHashMap<>();
+        this.nextJobId = 1;
+        this.executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(runnable, "job-queue");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * <p>Opens the queue. The journal is replayed and the jobs that did not finish are resumed on
+     * the queue's thread.
+     */
+    public static JobQueue open(final File journalFile, final AdaptiveConcurrencyController controller) {
+        final JobQueue jobQueue = new JobQueue(journalFile, controller);
+
+        jobQueue.executor.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                jobQueue.resume();
+            }
+        });
+
+        return jobQueue;
+    }
+
+    protected void resume() {
+        final List<Job> resumed;
+        try {
+            resumed = replay();
+            compact();
+        } catch (final IOException e) {
+            Log.e(TAG, String.format("Replaying job journal failed.%s", Exceptions.getStackTraceString(e)));
+            return;
+        }
+
+        Log.d(TAG, String.format(Locale.ENGLISH, "Job queue opened with %d jobs, resuming %d.", getJobs().size(), resumed.size()));
+
+        for (Job job : resumed) {
+            start(job);
+        }
+    }
+
+    public AdaptiveConcurrencyController getController() {
+        return controller;
+    }
+
+    /**
+     * <p>Adds a job to the queue. The job is journaled before it is started.
+     */
+    public CompletableFuture<Job> submit(final String command, final String outputPath, final ExecuteCallback executeCallback) {
+        return submit(command, outputPath, executeCallback, null);
+    }
+
+    /**
+     * <p>Adds a job to the queue. The job is journaled before it is started.
+     *
+     * @param logCallback log callback of the job's session, not restored for resumed jobs
+     * @return future completed with the job once it is journaled and handed to the controller,
+     * or completed exceptionally if it could not be journaled
+     */
+    public CompletableFuture<Job> submit(final String command, final String outputPath, final ExecuteCallback executeCallback, final LogCallback logCallback) {
+        final CompletableFuture<Job> future = new CompletableFuture<>();
+
+        executor.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                final Job job;
+
+                synchronized (JobQueue.this) {
+                    job = new Job(nextJobId++, command, outputPath);
+                    job.executeCallback = executeCallback;
+                    job.logCallback = logCallback;
+                    try {
+                        append(toRecord(OP_SUBMIT, job));
+                    } catch (final IOException e) {
+                        future.completeExceptionally(e);
+                        return;
+                    }
+
+                    // ONLY JOURNALED JOBS ARE TRACKED, OTHERWISE A JOB WOULD EXIST THAT IS NEVER REPLAYED
+                    jobs.put(job.jobId, job);
+                }
+
+                start(job);
+
+                future.complete(job);
+            }
+        });
+
+        return future;
+    }
+
+    /**
+     * <p>Cancels the job running with the given session id. Cancelled jobs are not resumed.
+     */
+    public void cancel(final long sessionId) {
+        executor.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                cancelSession(sessionId);
+            }
+        });
+    }
+
+    public void cancelAll() {
+        executor.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                cancelAllJobs();
+            }
+        });
+    }
+
+    protected void cancelSession(final long sessionId) {
+        Job cancelled = null;
+
+        synchronized (this) {
+            for (Job job : jobs.values()) {
+                if (job.getSessionId() == sessionId && !isFinished(job.getState())) {
+                    cancelled = job;
+                    break;
+                }
+            }
+            if (cancelled != null) {
+                synchronized (cancelled) {
+                    cancelled.state = JobState.CANCELLED;
+                }
+                appendQuietly(toRecord(OP_CANCEL, cancelled));
+            }
+        }
+
+        controller.cancel(sessionId);
+    }
+
+    protected void cancelAllJobs() {
+        synchronized (this) {
+            for (Job job : jobs.values()) {
+                if (!isFinished(job.getState())) {
+                    synchronized (job) {
+                        job.state = JobState.CANCELLED;
+                    }
+                    appendQuietly(toRecord(OP_CANCEL, job));
+                }
+            }
+        }
+
+        controller.cancelAll();
+    }
+
+    public synchronized List<Job> getJobs() {
+        return new ArrayList<>(jobs.values());
+    }
+
+    /**
+     * <p>Closes the journal after the operations already called have run.
+     */
+    public void close() {
+        executor.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                closeJournal();
+            }
+        });
+        executor.shutdown();
+    }
+
+    protected synchronized void closeJournal() {
+        if (journal != null) {
+            try {
+                journal.close();
+            } catch (final IOException e) {
+                Log.w(TAG, String.format("Closing job journal failed.%s", Exceptions.getStackTraceString(e)));
+            }
+            journal = null;
+        }
+    }
+
+    protected void start(final Job job) {
+        final FFmpegSession session = controller.submit(job.command, new ExecuteCallback() {
+
+            @Override
+            public void apply(final Session session) {
+                onJobCompleted(job, session);
+            }
+        }, job.logCallback, null);
+
+        synchronized (this) {
+            synchronized (job) {
+                job.sessionId = session.getSessionId();
+                job.attempts++;
+                if (job.state != JobState.QUEUED) {
+
+                    // ALREADY CANCELLED OR COMPLETED
+                    return;
+                }
+                job.state = JobState.RUNNING;
+            }
+            appendQuietly(toRecord(OP_START, job));
+        }
+    }
+
+    protected void onJobCompleted(final Job job, final Session session) {
+        final ReturnCode returnCode = session.getReturnCode();
+
+        synchronized (this) {
+            synchronized (job) {
+                job.returnCode = (returnCode == null) ? -1 : returnCode.getValue();
+                if (ReturnCode.isCancel(returnCode) || job.state == JobState.CANCELLED) {
+                    job.state = JobState.CANCELLED;
+                } else if (session.getState() == SessionState.COMPLETED && ReturnCode.isSuccess(returnCode)) {
+                    job.state = JobState.COMPLETED;
+                } else {
+                    job.state = JobState.FAILED;
+                }
+            }
+            appendQuietly(toRecord(OP_COMPLETE, job));
+            if (journalRecords > jobs.size() + COMPACTION_SLACK) {
+                try {
+                    compact();
+                } catch (final IOException e) {
+                    Log.w(TAG, String.format("Compacting job journal failed.%s", Exceptions.getStackTraceString(e)));
+                }
+            }
+        }
+
+        Log.d(TAG, String.format("Job completed %s.", job));
+
+        if (job.executeCallback != null) {
+            job.executeCallback.apply(session);
+        }
+    }
+
+    /**
+     * <p>Rebuilds the job table from the journal.
+     *
+     * @return jobs that must be started again
+     */
+    protected synchronized List<Job> replay() throws IOException {
+        final List<Job> resumed = new ArrayList<>();
+
+        if (journalFile.exists()) {
+            final BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(journalFile), Charset.forName("UTF-8")));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    try {
+                        applyRecord(new JSONObject(line));
+                    } catch (final JSONException e) {
+
+                        // A TORN LAST RECORD IS EXPECTED AFTER A CRASH
+                        Log.w(TAG, String.format("Skipping invalid job journal record '%s'.", line));
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        }
+
+        for (Job job : jobs.values()) {
+            if (job.state == JobState.RUNNING) {
+
+                // FFMPEG CAN NOT CONTINUE A PARTIAL OUTPUT, START OVER
+                deletePartialOutput(job);
+                job.state = JobState.QUEUED;
+            } else if (job.state == JobState.COMPLETED && job.outputPath != null && !new File(job.outputPath).exists()) {
+
+                // FINISHED WORK IS NEVER REDONE, A CLEARED OUTPUT IS THE USER'S CHOICE
+                Log.d(TAG, String.format("Output of completed job %d is missing, keeping it completed.", job.jobId));
+            }
+            if (job.state == JobState.QUEUED) {
+                resumed.add(job);
+            }
+        }
+
+        return resumed;
+    }
+
+    protected void applyRecord(final JSONObject record) throws JSONException {
+        final String op = record.getString("op");
+        final long jobId = record.getLong("id");
+
+        nextJobId = Math.max(nextJobId, jobId + 1);
+
+        Job job = jobs.get(jobId);
+        if (job == null) {
+            if (!OP_SUBMIT.equals(op) && !OP_SNAPSHOT.equals(op)) {
+                return;
+            }
+            job = new Job(jobId, record.getString("command"), record.optString("output", null));
+            jobs.put(jobId, job);
+        }
+
+        switch (op) {
+            case OP_SNAPSHOT:
+                job.state = JobState.valueOf(record.getString("state"));
+                job.sessionId = record.optLong("sessionId");
+                job.returnCode = record.optInt("rc", -1);
+                job.attempts = record.optInt("attempts");
+                break;
+            case OP_START:
+                job.sessionId = record.optLong("sessionId");
+                job.attempts = record.optInt("attempts");
+                job.state = JobState.RUNNING;
+                break;
+            case OP_COMPLETE:
+                job.returnCode = record.optInt("rc", -1);
+                job.state = JobState.valueOf(record.getString("state"));
+                break;
+            case OP_CANCEL:
+                job.state = JobState.CANCELLED;
+                break;
+            default:
+                job.state = JobState.QUEUED;
+        }
+    }
+
+    /**
+     * <p>Rewrites the journal with a single snapshot record per job, keeping only the most recent
+     * finished jobs. The new journal replaces the old one atomically.
+     */
+    protected synchronized void compact() throws IOException {
+        closeJournal();
+
+        int finishedToDrop = -FINISHED_JOBS_KEPT;
+        for (Job job : jobs.values()) {
+            if (isFinished(job.state)) {
+                finishedToDrop++;
+            }
+        }
+
+        final List<Long> dropped = new ArrayList<>();
+        final File compactedFile = new File(journalFile.getAbsolutePath() + ".compact");
+        final FileOutputStream outputStream = new FileOutputStream(compactedFile);
+        int records = 0;
+        try {
+            for (Job job : jobs.values()) {
+                if (finishedToDrop > 0 && isFinished(job.state)) {
+                    finishedToDrop--;
+                    dropped.add(job.jobId);
+                    continue;
+                }
+                outputStream.write(toRecord(OP_SNAPSHOT, job).getBytes(Charset.forName("UTF-8")));
+                records++;
+            }
+            outputStream.getFD().sync();
+        } finally {
+            outputStream.close();
+        }
+
+        if (!compactedFile.renameTo(journalFile)) {
+            throw new IOException(String.format("Failed to replace job journal %s.", journalFile.getAbsolutePath()));
+        }
+
+        for (Long jobId : dropped) {
+            jobs.remove(jobId);
+        }
+        journalRecords = records;
+
+        Log.d(TAG, String.format(Locale.ENGLISH, "Job journal compacted to %d records.", records));
+    }
+
+    protected void append(final String record) throws IOException {
+        if (journal == null) {
+            journal = new FileOutputStream(journalFile, true);
+        }
+        journal.write(record.getBytes(Charset.forName("UTF-8")));
+        journal.getFD().sync();
+        journalRecords++;
+    }
+
+    protected void appendQuietly(final String record) {
+        try {
+            append(record);
+        } catch (final IOException e) {
+            Log.e(TAG, String.format("Writing job journal record failed.%s", Exceptions.getStackTraceString(e)));
+        }
+    }
+
+    protected static String toRecord(final String op, final Job job) {
+        final JSONObject record = new JSONObject();
+
+        synchronized (job) {
+            try {
+                record.put("op", op);
+                record.put("id", job.jobId);
+                if (OP_SUBMIT.equals(op) || OP_SNAPSHOT.equals(op)) {
+                    record.put("command", job.command);
+                    record.put("output", job.outputPath);
+                }
+                record.put("state", job.state.name());
+                record.put("sessionId", job.sessionId);
+                record.put("rc", job.returnCode);
+                record.put("attempts", job.attempts);
+            } catch (final JSONException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        return record.toString() + "\n";
+    }
+
+    protected static void deletePartialOutput(final Job job) {
+        if (job.outputPath != null) {
+            final File output = new File(job.outputPath);
+            if (output.exists() && output.delete()) {
+                Log.d(TAG, String.format("Deleted partial output %s of job %d.", job.outputPath, job.jobId));
+            }
+        }
+    }
+
+    protected static boolean isFinished(final JobState state) {
+        return state == JobState.COMPLETED || state == JobState.FAILED || state == JobState.CANCELLED;
+    }
+
+}
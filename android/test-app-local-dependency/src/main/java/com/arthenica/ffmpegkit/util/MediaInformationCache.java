@@ -0,0 +1,551 @@
+/*
+ * Copyright (c) 2021 Taner Sener
+ *
+ * This file is part of FFmpegKitTest.
+ *
+ * FFmpegKitTest is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FFmpegKitTest is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with FFmpegKitTest.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.arthenica.ffmpegkit.util;
+
+import android.util.Log;
+
+import com.arthenica.ffmpegkit.ExecuteCallback;
+import com.arthenica.ffmpegkit.FFprobeKit;
+import com.arthenica.ffmpegkit.MediaInformation;
+import com.arthenica.ffmpegkit.MediaInformationJsonParser;
+import com.arthenica.ffmpegkit.MediaInformationSession;
+import com.arthenica.ffmpegkit.Session;
+import com.arthenica.smartexception.java.Exceptions;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.arthenica.ffmpegkit.test.MainActivity.TAG;
+
+/**
+ * <p>Caches {@link MediaInformation} of remote media in memory and on disk.
+ *
+ * <p>Entries are keyed by URL and stored together with the <code>ETag</code>,
+ * <code>Last-Modified</code> and <code>Content-Length</code> validators the server returned when
+ * the media was probed. A cached entry is revalidated with a single conditional <code>HEAD</code>
+ * request before it is used, unless it was validated within the last
+ * {@link #DEFAULT_FRESHNESS_PERIOD} milliseconds. Media served without any validator is probed
+ * every time. Local files are validated with their size and modification time.
+ *
+ * <p>The in-memory level is an LRU map of parsed entries. The disk level keeps one compact JSON
+ * file per URL, holding the validators and the raw ffprobe output. Disk entries are evicted in
+ * least recently used order once their count or total size exceeds its limit; the order is
+ * rebuilt from file modification times after a restart.
+ */
+public class MediaInformationCache {
+
+    public interface Callback {
+
+        /**
+         * @param mediaInformation media information, null if probing failed
+         * @param session          probe session, null if the media information came from cache
+         */
+        void apply(MediaInformation mediaInformation, MediaInformationSession session);
+    }
+
+    protected static class Validators {
+        final String eTag;
+        final String lastModified;
+        final long contentLength;
+
+        Validators(final String eTag, final String lastModified, final long contentLength) {
+            this.eTag = eTag;
+            this.lastModified = lastModified;
+            this.contentLength = contentLength;
+        }
+
+        boolean isEmpty() {
+            return eTag == null && lastModified == null;
+        }
+
+        boolean matches(final Validators other) {
+            if (eTag != null && other.eTag != null) {
+                return eTag.equals(other.eTag);
+            }
+            return lastModified != null && lastModified.equals(other.lastModified) && contentLength == other.contentLength;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ENGLISH, "etag=%s, last-modified=%s, content-length=%d", eTag, lastModified, contentLength);
+        }
+    }
+
+    protected static class CacheEntry {
+        final String url;
+        final Validators validators;
+        final String json;
+        final MediaInformation mediaInformation;
+        volatile long validatedTime;
+
+        CacheEntry(final String url, final Validators validators, final String json, final MediaInformation mediaInformation, final long validatedTime) {
+            this.url = url;
+            this.validators = validators;
+            this.json = json;
+            this.mediaInformation = mediaInformation;
+            this.validatedTime = validatedTime;
+        }
+    }
+
+    public static final long DEFAULT_FRESHNESS_PERIOD = 30000;
+
+    private static final int DEFAULT_MEMORY_ENTRIES = 64;
+    private static final int DEFAULT_DISK_ENTRIES = 512;
+    private static final long DEFAULT_DISK_BYTES = 8 * 1024 * 1024;
+    private static final int HEAD_TIMEOUT = 5000;
+
+    private final File directory;
+    private final long freshnessPeriod;
+    private final LinkedHashMap<String, CacheEntry> memory;
+    private final int diskEntries;
+    private final long diskBytes;
+    private final LinkedHashMap<String, Long> diskIndex;
+    private boolean diskIndexLoaded;
+    private long diskSize;
+    private final ExecutorService executor;
+    private volatile FastProbe fastProbe;
+
+    private final AtomicLong memoryHits = new AtomicLong();
+    private final AtomicLong diskHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong revalidations = new AtomicLong();
+    private final AtomicLong staleEntries = new AtomicLong();
+    private final AtomicLong uncacheable = new AtomicLong();
+
+    public MediaInformationCache(final File directory) {
+        this(directory, DEFAULT_MEMORY_ENTRIES, DEFAULT_DISK_ENTRIES, DEFAULT_DISK_BYTES, DEFAULT_FRESHNESS_PERIOD);
+    }
+
+    public MediaInformationCache(final File directory, final int memoryEntries, final int diskEntries, final long diskBytes, final long freshnessPeriod) {
+        this.directory = directory;
+        this.freshnessPeriod = freshnessPeriod;
+        this.diskEntries = diskEntries;
+        this.diskBytes = diskBytes;
+        this.diskIndex = new LinkedHashMap<>(16, 0.75f, true);
+        this.memory = new LinkedHashMap<String, CacheEntry>(16, 0.75f, true) {
+
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<String, CacheEntry> eldest) {
+                return size() > memoryEntries;
+            }
+        };
+        this.executor = Executors.newFixedThreadPool(2, new ThreadFactory() {
+
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(runnable, "media-information-cache");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * <p>Returns media information of the given url from cache if it is still valid, probes it
+     * otherwise. The callback is invoked on a background thread.
+     */
+    public void getMediaInformationAsync(final String url, final Callback callback) {
+        executor.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                lookup(url, callback);
+            }
+        });
+    }
+
+    /**
+     * <p>Makes cache misses probe with the given fast probe instead of the default probing.
+     */
+    public void setFastProbe(final FastProbe fastProbe) {
+        this.fastProbe = fastProbe;
+    }
+
+    /**
+     * @return lookups answered from memory or disk
+     */
+    public long getHitCount() {
+        return memoryHits.get() + diskHits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public String getMetrics() {
+        final long hits = memoryHits.get() + diskHits.get();
+        final long total = hits + misses.get();
+
+        return String.format(Locale.ENGLISH, "hits %d (memory %d, disk %d), misses %d, hit ratio %.2f, revalidations %d, stale %d, uncacheable %d",
+                hits, memoryHits.get(), diskHits.get(), misses.get(), (total == 0) ? 0.0 : (double) hits / total, revalidations.get(), staleEntries.get(), uncacheable.get());
+    }
+
+    public void clear() {
+        synchronized (memory) {
+            memory.clear();
+        }
+        synchronized (diskIndex) {
+            diskIndex.clear();
+            diskSize = 0;
+        }
+
+        final File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+    }
+
+    protected void lookup(final String url, final Callback callback) {
+        boolean fromMemory = true;
+        CacheEntry entry;
+
+        synchronized (memory) {
+            entry = memory.get(url);
+        }
+
+        if (entry == null) {
+            fromMemory = false;
+            entry = readEntry(url);
+        }
+
+        final long now = System.currentTimeMillis();
+
+        if (entry != null && now - entry.validatedTime < freshnessPeriod) {
+            hit(entry, fromMemory, callback);
+            return;
+        }
+
+        // A SINGLE HEAD REQUEST BOTH REVALIDATES THE ENTRY AND PROVIDES VALIDATORS FOR A NEW ONE
+        final Validators validators = fetchValidators(url, entry);
+
+        if (entry != null) {
+            revalidations.incrementAndGet();
+
+            if (validators != null && (validators == entry.validators || entry.validators.matches(validators))) {
+                entry.validatedTime = now;
+                hit(entry, fromMemory, callback);
+                return;
+            }
+
+            Log.d(TAG, String.format("Media information cache entry for %s is stale.", url));
+            staleEntries.incrementAndGet();
+            removeEntry(url);
+        }
+
+        misses.incrementAndGet();
+
+        probe(url, validators, callback);
+    }
+
+    protected void hit(final CacheEntry entry, final boolean fromMemory, final Callback callback) {
+        if (fromMemory) {
+            memoryHits.incrementAndGet();
+        } else {
+            diskHits.incrementAndGet();
+            synchronized (memory) {
+                memory.put(entry.url, entry);
+            }
+        }
+
+        Log.d(TAG, String.format("Media information for %s served from %s cache.", entry.url, fromMemory ? "memory" : "disk"));
+
+        callback.apply(entry.mediaInformation, null);
+    }
+
+    protected void probe(final String url, final Validators validators, final Callback callback) {
+        final FastProbe fastProbe = this.fastProbe;
+        if (fastProbe != null) {
+            onProbeCompleted(url, validators, fastProbe.probe(url).getSession(), callback);
+            return;
+        }
+
+        FFprobeKit.getMediaInformationAsync(url, new ExecuteCallback() {
+
+            @Override
+            public void apply(final Session session) {
+                onProbeCompleted(url, validators, (MediaInformationSession) session, callback);
+            }
+        });
+    }
+
+    protected void onProbeCompleted(final String url, final Validators validators, final MediaInformationSession mediaInformationSession, final Callback callback) {
+        final MediaInformation mediaInformation = mediaInformationSession.getMediaInformation();
+
+        if (mediaInformation != null && mediaInformation.getAllProperties() != null) {
+            if (validators == null || validators.isEmpty()) {
+                uncacheable.incrementAndGet();
+            } else {
+                final CacheEntry entry = new CacheEntry(url, validators, mediaInformation.getAllProperties().toString(), mediaInformation, System.currentTimeMillis());
+                synchronized (memory) {
+                    memory.put(url, entry);
+                }
+                writeEntry(entry);
+            }
+        }
+
+        callback.apply(mediaInformation, mediaInformationSession);
+    }
+
+    /**
+     * <p>Reads the validators of the given url. When a cached entry exists the request is made
+     * conditional, so an unchanged resource is answered with <code>304 Not Modified</code>.
+     *
+     * @return validators, the cached entry's validators if the server confirmed them, or null if
+     * they could not be read
+     */
+    protected Validators fetchValidators(final String url, final CacheEntry entry) {
+        if (!url.startsWith("http://") && !url.startsWith("https://")) {
+            final File file = new File(url);
+            if (!file.isFile()) {
+                return null;
+            }
+            return new Validators(null, String.valueOf(file.lastModified()), file.length());
+        }
+
+        HttpURLConnection connection = null;
+        try {
+            connection = (HttpURLConnection) new URL(url).openConnection();
+            connection.setRequestMethod("HEAD");
+            connection.setConnectTimeout(HEAD_TIMEOUT);
+            connection.setReadTimeout(HEAD_TIMEOUT);
+
+            if (entry != null) {
+                if (entry.validators.eTag != null) {
+                    connection.setRequestProperty("If-None-Match", entry.validators.eTag);
+                }
+                if (entry.validators.lastModified != null) {
+                    connection.setRequestProperty("If-Modified-Since", entry.validators.lastModified);
+                }
+            }
+
+            final int responseCode = connection.getResponseCode();
+            if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED && entry != null) {
+                return entry.validators;
+            }
+            if (responseCode != HttpURLConnection.HTTP_OK) {
+                Log.d(TAG, String.format(Locale.ENGLISH, "HEAD %s returned %d, media information will not be cached.", url, responseCode));
+                return null;
+            }
+
+            return new Validators(connection.getHeaderField("ETag"), connection.getHeaderField("Last-Modified"), connection.getContentLength());
+        } catch (final IOException e) {
+            Log.d(TAG, String.format("HEAD %s failed.%s", url, Exceptions.getStackTraceString(e)));
+            return null;
+        } finally {
+            if (connection != null) {
+                connection.disconnect();
+            }
+        }
+    }
+
+    protected CacheEntry readEntry(final String url) {
+        final File file = getEntryFile(url);
+        if (!file.isFile()) {
+            return null;
+        }
+
+        try {
+            final JSONObject record = new JSONObject(IOUtil.readFile(file));
+            if (!url.equals(record.getString("url"))) {
+                return null;
+            }
+
+            final String json = record.getJSONObject("info").toString();
+            final MediaInformation mediaInformation = MediaInformationJsonParser.from(json);
+            if (mediaInformation == null) {
+                throw new JSONException("Invalid media information.");
+            }
+
+            final Validators validators = new Validators(record.has("etag") ? record.getString("etag") : null, record.has("lastModified") ? record.getString("lastModified") : null, record.getLong("contentLength"));
+
+            touchDiskEntry(file);
+
+            return new CacheEntry(url, validators, json, mediaInformation, record.getLong("validatedTime"));
+        } catch (final IOException | JSONException e) {
+            Log.w(TAG, String.format("Reading media information cache entry for %s failed, dropping it.%s", url, Exceptions.getStackTraceString(e)));
+            removeDiskEntry(file);
+            return null;
+        }
+    }
+
+    protected void writeEntry(final CacheEntry entry) {
+
+        // CREATES THE DIRECTORY ON THE CACHE'S THREAD BEFORE THE FIRST WRITE
+        synchronized (diskIndex) {
+            loadDiskIndex();
+        }
+
+        final File file = getEntryFile(entry.url);
+        final File temporaryFile = new File(file.getAbsolutePath() + ".tmp");
+
+        FileOutputStream outputStream = null;
+        try {
+            final JSONObject record = new JSONObject();
+            record.put("url", entry.url);
+            record.put("etag", entry.validators.eTag);
+            record.put("lastModified", entry.validators.lastModified);
+            record.put("contentLength", entry.validators.contentLength);
+            record.put("validatedTime", entry.validatedTime);
+            record.put("info", new JSONObject(entry.json));
+
+            outputStream = new FileOutputStream(temporaryFile);
+            outputStream.write(record.toString().getBytes(Charset.forName("UTF-8")));
+            outputStream.close();
+            outputStream = null;
+
+            if (!temporaryFile.renameTo(file)) {
+                throw new IOException(String.format("Failed to rename %s.", temporaryFile.getAbsolutePath()));
+            }
+
+            addDiskEntry(file);
+        } catch (final IOException | JSONException e) {
+            Log.w(TAG, String.format("Writing media information cache entry for %s failed.%s", entry.url, Exceptions.getStackTraceString(e)));
+            temporaryFile.delete();
+        } finally {
+            IOUtil.closeQuietly(outputStream);
+        }
+    }
+
+    protected void removeEntry(final String url) {
+        synchronized (memory) {
+            memory.remove(url);
+        }
+        removeDiskEntry(getEntryFile(url));
+    }
+
+    protected void addDiskEntry(final File file) {
+        synchronized (diskIndex) {
+            loadDiskIndex();
+
+            final Long previous = diskIndex.put(file.getName(), file.length());
+            if (previous != null) {
+                diskSize -= previous;
+            }
+            diskSize += file.length();
+
+            final Iterator<Map.Entry<String, Long>> iterator = diskIndex.entrySet().iterator();
+            while ((diskIndex.size() > diskEntries || diskSize > diskBytes) && iterator.hasNext()) {
+                final Map.Entry<String, Long> eldest = iterator.next();
+                if (eldest.getKey().equals(file.getName())) {
+                    continue;
+                }
+
+                iterator.remove();
+                diskSize -= eldest.getValue();
+                new File(directory, eldest.getKey()).delete();
+
+                Log.d(TAG, String.format("Evicted media information cache entry %s.", eldest.getKey()));
+            }
+        }
+    }
+
+    protected void touchDiskEntry(final File file) {
+        synchronized (diskIndex) {
+            loadDiskIndex();
+
+            if (diskIndex.get(file.getName()) == null) {
+                diskIndex.put(file.getName(), file.length());
+                diskSize += file.length();
+            }
+        }
+
+        // KEEPS THE ACCESS ORDER ACROSS RESTARTS
+        file.setLastModified(System.currentTimeMillis());
+    }
+
+    protected void removeDiskEntry(final File file) {
+        synchronized (diskIndex) {
+            loadDiskIndex();
+
+            final Long size = diskIndex.remove(file.getName());
+            if (size != null) {
+                diskSize -= size;
+            }
+        }
+        file.delete();
+    }
+
+    /**
+     * <p>Creates the cache directory and indexes entries written by earlier runs, least recently
+     * used first. Called with the index lock held, on the first disk access.
+     */
+    protected void loadDiskIndex() {
+        if (diskIndexLoaded) {
+            return;
+        }
+        diskIndexLoaded = true;
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            Log.w(TAG, String.format("Failed to create media information cache directory: %s.", directory.getAbsolutePath()));
+            return;
+        }
+
+        final File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        Arrays.sort(files, new Comparator<File>() {
+
+            @Override
+            public int compare(final File first, final File second) {
+                return Long.compare(first.lastModified(), second.lastModified());
+            }
+        });
+
+        for (File file : files) {
+            if (file.getName().endsWith(".tmp")) {
+                file.delete();
+            } else if (file.isFile()) {
+                diskIndex.put(file.getName(), file.length());
+                diskSize += file.length();
+            }
+        }
+    }
+
+    protected File getEntryFile(final String url) {
+        try {
+            final byte[] digest = IOUtil.newDigest().digest(url.getBytes(Charset.forName("UTF-8")));
+            return new File(directory, IOUtil.toHex(digest) + ".json");
+        } catch (final IOException e) {
+            return new File(directory, Integer.toHexString(url.hashCode()) + ".json");
+        }
+    }
+
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2021 Taner Sener
+ *
+ * This file is part of FFmpegKitTest.
+ *
+ * FFmpegKitTest is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FFmpegKitTest is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with FFmpegKitTest.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.arthenica.ffmpegkit.util;
+
+import com.arthenica.ffmpegkit.MediaInformation;
+import com.arthenica.ffmpegkit.MediaInformationJsonParser;
+
+import java.util.Locale;
+
+/**
+ * <p>Compares parsing ffprobe output into {@link MediaInformation} with parsing it into
+ * {@link ProjectedMediaInformation}.
+ *
+ * <p>Both paths read the same values: the format duration and the codec of every stream. Each
+ * path is warmed up before it is measured. Retained memory is measured separately from parse
+ * time: every result is parsed from its own copy of the output and kept, and heap growth is sampled
+ * after a garbage collection request, so it approximates what a parsed result holds on to,
+ * including the output itself if the result keeps it.
+ */
+public class MediaInformationParserBenchmark {
+
+    private static final int WARM_UP_ITERATIONS = 3;
+
+    private MediaInformationParserBenchmark() {
+    }
+
+    /**
+     * <p>Runs the benchmark on the calling thread.
+     *
+     * @return a human readable report
+     */
+    public static String run(final String json, final int iterations) {
+        final StringBuilder report = new StringBuilder();
+        report.append(String.format(Locale.ENGLISH, "Parsing %d characters of ffprobe output %d times.\n", json.length(), iterations));
+
+        for (int i = 0; i < WARM_UP_ITERATIONS; i++) {
+            parse(json, false);
+            parse(json, true);
+        }
+
+        for (boolean projection : new boolean[]{false, true}) {
+            int streams = 0;
+            final long startTime = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                streams = parse(json, projection);
+            }
+            final long elapsed = System.nanoTime() - startTime;
+
+            final Object[] retained = new Object[iterations];
+            final long heapBefore = usedHeap();
+            for (int i = 0; i < iterations; i++) {
+
+                // A PRIVATE COPY, SO A RESULT THAT KEEPS THE OUTPUT IS CHARGED FOR IT
+                final String copy = new String(json.toCharArray());
+                retained[i] = projection ? parseWithProjection(copy) : parseWithJsonObject(copy);
+            }
+            final long heapAfter = usedHeap();
+
+            appendResult(report, projection ? "projection" : "JSONObject", elapsed, iterations, heapAfter - heapBefore, streams);
+        }
+
+        return report.toString();
+    }
+
+    /**
+     * @return the number of streams read
+     */
+    protected static int parse(final String json, final boolean projection) {
+        if (projection) {
+            return parseWithProjection(json).getStreamCount();
+        }
+
+        final MediaInformation mediaInformation = parseWithJsonObject(json);
+        return (mediaInformation == null || mediaInformation.getStreams() == null) ? 0 : mediaInformation.getStreams().size();
+    }
+
+    protected static MediaInformation parseWithJsonObject(final String json) {
+        final MediaInformation mediaInformation = MediaInformationJsonParser.from(json);
+        if (mediaInformation != null) {
+            mediaInformation.getDuration();
+            if (mediaInformation.getStreams() != null) {
+                for (int i = 0; i < mediaInformation.getStreams().size(); i++) {
+                    mediaInformation.getStreams().get(i).getCodec();
+                }
+            }
+        }
+        return mediaInformation;
+    }
+
+    protected static ProjectedMediaInformation parseWithProjection(final String json) {
+        final ProjectedMediaInformation mediaInformation = ProjectedMediaInformation.from(json, ProjectedMediaInformation.DEFAULT_PROJECTION);
+        mediaInformation.getFormatDouble("duration");
+        for (int i = 0; i < mediaInformation.getStreamCount(); i++) {
+            mediaInformation.getStreamString(i, "codec_name");
+        }
+        return mediaInformation;
+    }
+
+    protected static void appendResult(final StringBuilder report, final String name, final long elapsedNanos, final int iterations, final long heapGrowth, final int streams) {
+        report.append(String.format(Locale.ENGLISH, "%s: %.3f ms per parse, ~%d KB retained per result, %d streams.\n", name, elapsedNanos / 1000000.0 / iterations, Math.max(0, heapGrowth) / 1024 / iterations, streams));
+    }
+
+    protected static long usedHeap() {
+        final Runtime runtime = Runtime.getRuntime();
+        runtime.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+}
@@ -0,0 +1,260 @@
+/*
+ * Copyright (c) 2021 Taner Sener
+ *
+ * This file is part of FFmpegKitTest.
+ *
+ * FFmpegKitTest is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FFmpegKitTest is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with FFmpegKitTest.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.arthenica.ffmpegkit.util;
+
+import android.util.Log;
+
+import com.arthenica.smartexception.java.Exceptions;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import static com.arthenica.ffmpegkit.test.MainActivity.TAG;
+
+/**
+ * <p>Exposes a {@link MetricsRegistry} over HTTP on the loopback interface and writes periodic
+ * JSON snapshots of it.
+ *
+ * <p><code>GET /metrics</code> returns the Prometheus text format and
+ * <code>GET /metrics.json</code> the JSON form. Requests are served one at a time on a single
+ * thread with the connection closed after each response, which is all a scraper needs. With
+ * <code>adb forward tcp:9464 tcp:9464</code> the endpoint can be scraped from a host.
+ *
+ * <p>Snapshots are written to a temporary file and renamed, so a reader never sees a partial
+ * snapshot. Only the most recent snapshots are kept.
+ */
+public class MetricsExporter {
+
+    public static final int DEFAULT_PORT = 9464;
+
+    private static final int MAX_SNAPSHOTS = 24;
+    private static final int READ_TIMEOUT = 5000;
+    private static final String SNAPSHOT_PREFIX = "metrics-";
+    private static final String SNAPSHOT_SUFFIX = ".json";
+
+    private final MetricsRegistry registry;
+    private final ScheduledExecutorService executor;
+    private ServerSocket serverSocket;
+
+    public MetricsExporter(final MetricsRegistry registry) {
+        this.registry = registry;
+        this.executor = Executors.newScheduledThreadPool(2, new ThreadFactory() {
+
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(runnable, "metrics-exporter");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * <p>Starts serving metrics on the given loopback port, 0 selects an ephemeral port.
+     */
+    public synchronized void startServer(final int port) throws IOException {
+        if (serverSocket != null) {
+            return;
+        }
+
+        serverSocket = new ServerSocket(port, 8, InetAddress.getByName("127.0.0.1"));
+
+        final ServerSocket acceptingSocket = serverSocket;
+        executor.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                accept(acceptingSocket);
+            }
+        });
+
+        Log.d(TAG, String.format(Locale.ENGLISH, "Metrics served at http://127.0.0.1:%d/metrics.", serverSocket.getLocalPort()));
+    }
+
+    /**
+     * <p>Writes a snapshot into the given directory every period.
+     *
+     * @param period snapshot period, in milliseconds
+     */
+    public void startSnapshots(final File directory, final long period) {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            Log.w(TAG, String.format("Failed to create metrics directory: %s.", directory.getAbsolutePath()));
+            return;
+        }
+
+        executor.scheduleAtFixedRate(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    writeSnapshot(directory);
+                } catch (final IOException | JSONException e) {
+                    Log.w(TAG, String.format("Writing metrics snapshot failed.%s", Exceptions.getStackTraceString(e)));
+                }
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stop() {
+        if (serverSocket != null) {
+            try {
+                serverSocket.close();
+            } catch (final IOException ignored) {
+            }
+            serverSocket = null;
+        }
+        executor.shutdownNow();
+    }
+
+    public synchronized int getPort() {
+        return (serverSocket == null) ? -1 : serverSocket.getLocalPort();
+    }
+
+    public File writeSnapshot(final File directory) throws IOException, JSONException {
+        final long now = System.currentTimeMillis();
+        final JSONObject snapshot = new JSONObject();
+        snapshot.put("timestamp", now);
+        snapshot.put("metrics", registry.toJson());
+
+        final File file = new File(directory, String.format(Locale.ENGLISH, "%s%d%s", SNAPSHOT_PREFIX, now, SNAPSHOT_SUFFIX));
+        final File partFile = new File(directory, file.getName() + ".part");
+
+        Writer writer = null;
+        try {
+            writer = new FileWriter(partFile);
+            writer.write(snapshot.toString());
+            writer.close();
+            writer = null;
+
+            if (!partFile.renameTo(file)) {
+                throw new IOException(String.format("Failed to rename %s.", partFile.getAbsolutePath()));
+            }
+        } finally {
+            IOUtil.closeQuietly(writer);
+            partFile.delete();
+        }
+
+        deleteOldSnapshots(directory);
+
+        return file;
+    }
+
+    protected void deleteOldSnapshots(final File directory) {
+        final File[] snapshots = directory.listFiles(new FileFilter() {
+
+            @Override
+            public boolean accept(final File file) {
+                return file.getName().startsWith(SNAPSHOT_PREFIX) && file.getName().endsWith(SNAPSHOT_SUFFIX);
+            }
+        });
+        if (snapshots == null || snapshots.length <= MAX_SNAPSHOTS) {
+            return;
+        }
+
+        Arrays.sort(snapshots, new Comparator<File>() {
+
+            @Override
+            public int compare(final File first, final File second) {
+                return Long.compare(first.lastModified(), second.lastModified());
+            }
+        });
+        for (int i = 0; i < snapshots.length - MAX_SNAPSHOTS; i++) {
+            snapshots[i].delete();
+        }
+    }
+
+    protected void accept(final ServerSocket acceptingSocket) {
+        while (!acceptingSocket.isClosed()) {
+            try {
+                final Socket socket = acceptingSocket.accept();
+                serve(socket);
+            } catch (final SocketException e) {
+
+                // SERVER SOCKET CLOSED
+                return;
+            } catch (final IOException e) {
+                Log.w(TAG, String.format("Metrics server accept failed.%s", Exceptions.getStackTraceString(e)));
+            }
+        }
+    }
+
+    protected void serve(final Socket socket) {
+        try {
+            socket.setSoTimeout(READ_TIMEOUT);
+
+            final InputStream inputStream = new BufferedInputStream(socket.getInputStream());
+            final String requestLine = LocalMediaServer.readLine(inputStream);
+            String line;
+            while ((line = LocalMediaServer.readLine(inputStream)) != null && !line.isEmpty()) {
+                // HEADERS ARE NOT NEEDED
+            }
+
+            final String[] parts = (requestLine == null) ? new String[0] : requestLine.split(" ");
+            final String path = (parts.length > 1) ? parts[1] : "";
+
+            if (parts.length < 2 || !"GET".equals(parts[0])) {
+                respond(socket, "405 Method Not Allowed", "text/plain", "");
+            } else if ("/metrics".equals(path)) {
+                final StringWriter body = new StringWriter();
+                registry.writePrometheus(body);
+                respond(socket, "200 OK", "text/plain; version=0.0.4; charset=utf-8", body.toString());
+            } else if ("/metrics.json".equals(path)) {
+                respond(socket, "200 OK", "application/json", registry.toJson().toString());
+            } else {
+                respond(socket, "404 Not Found", "text/plain", "");
+            }
+        } catch (final IOException | JSONException e) {
+            Log.w(TAG, String.format("Serving metrics failed.%s", Exceptions.getStackTraceString(e)));
+        } finally {
+            IOUtil.closeQuietly(socket);
+        }
+    }
+
+    protected void respond(final Socket socket, final String status, final String contentType, final String body) throws IOException {
+        final byte[] bytes = body.getBytes(Charset.forName("UTF-8"));
+        final OutputStream outputStream = socket.getOutputStream();
+        outputStream.write(String.format(Locale.ENGLISH, "HTTP/1.1 %s\r\nContent-Type: %s\r\nContent-Length: %d\r\nConnection: close\r\n\r\n", status, contentType, bytes.length).getBytes(Charset.forName("US-ASCII")));
+        outputStream.write(bytes);
+        outputStream.flush();
+    }
+
+}
@@ -0,0 +1,377 @@
+/*
+ * Copyright (c) 2021 Taner Sener
+ *
+ * This file is part of FFmpegKitTest.
+ *
+ * FFmpegKitTest is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FFmpegKitTest is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with FFmpegKitTest.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.arthenica.ffmpegkit.util;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+import java.util.function.LongSupplier;
+
+/**
+ * <p>A registry of counters, gauges and histograms that can be written in the Prometheus text
+ * format or as JSON.
+ *
+ * <p>Counters and histogram buckets are striped {@link LongAdder}s, so recording never takes a
+ * lock and threads updating the same instrument rarely contend. Histograms have fixed buckets
+ * chosen when they are created. Gauges, and counters kept by other classes, are read from a
+ * supplier when metrics are written.
+ *
+ * <p>An instrument is identified by its name and its labels, given as alternating label names and
+ * values. Asking twice for the same instrument returns the same object, so callers on hot paths
+ * should keep the instruments they use.
+ */
+public class MetricsRegistry {
+
+    public static final double[] LATENCY_BUCKETS = new double[]{0.001, 0.005, 0.01, 0.05, 0.1, 0.5, 1, 5, 10, 60};
+    public static final double[] DURATION_BUCKETS = new double[]{0.1, 0.5, 1, 5, 10, 30, 60, 300, 900};
+    public static final double[] SPEED_BUCKETS = new double[]{0.1, 0.25, 0.5, 1, 2, 4, 8, 16};
+    public static final double[] FPS_BUCKETS = new double[]{1, 5, 10, 15, 24, 30, 60, 120, 240};
+
+    protected abstract static class Metric {
+        final String name;
+        final String help;
+        final String labels;
+
+        Metric(final String name, final String help, final String labels) {
+            this.name = name;
+            this.help = help;
+            this.labels = labels;
+        }
+
+        abstract String getType();
+
+        abstract void writePrometheus(final Writer writer) throws IOException;
+
+        abstract Object toJson() throws JSONException;
+    }
+
+    public static class Counter extends Metric {
+        private final LongAdder value = new LongAdder();
+
+        Counter(final String name, final String help, final String labels) {
+            super(name, help, labels);
+        }
+
+        public void increment() {
+            value.increment();
+        }
+
+        public void add(final long amount) {
+            value.add(amount);
+        }
+
+        public long get() {
+            return value.sum();
+        }
+
+        @Override
+        String getType() {
+            return "counter";
+        }
+
+        @Override
+        void writePrometheus(final Writer writer) throws IOException {
+            writer.write(String.format(Locale.ENGLISH, "%s%s %d\n", name, format(labels, null), value.sum()));
+        }
+
+        @Override
+        Object toJson() {
+            return value.sum();
+        }
+    }
+
+    /**
+     * <p>A counter whose value is kept elsewhere and read from a supplier, which must never
+     * decrease.
+     */
+    public static class FunctionCounter extends Metric {
+        private final LongSupplier supplier;
+
+        FunctionCounter(final String name, final String help, final String labels, final LongSupplier supplier) {
+            super(name, help, labels);
+            this.supplier = supplier;
+        }
+
+        public long get() {
+            return supplier.getAsLong();
+        }
+
+        @Override
+        String getType() {
+            return "counter";
+        }
+
+        @Override
+        void writePrometheus(final Writer writer) throws IOException {
+            writer.write(String.format(Locale.ENGLISH, "%s%s %d\n", name, format(labels, null), get()));
+        }
+
+        @Override
+        Object toJson() {
+            return get();
+        }
+    }
+
+    public static class Gauge extends Metric {
+        private final DoubleSupplier supplier;
+
+        Gauge(final String name, final String help, final String labels, final DoubleSupplier supplier) {
+            super(name, help, labels);
+            this.supplier = supplier;
+        }
+
+        public double get() {
+            return supplier.getAsDouble();
+        }
+
+        @Override
+        String getType() {
+            return "gauge";
+        }
+
+        @Override
+        void writePrometheus(final Writer writer) throws IOException {
+            writer.write(String.format(Locale.ENGLISH, "%s%s %s\n", name, format(labels, null), formatDouble(get())));
+        }
+
+        @Override
+        Object toJson() {
+            return get();
+        }
+    }
+
+    public static class Histogram extends Metric {
+        private final double[] bounds;
+        private final LongAdder[] buckets;
+        private final LongAdder count = new LongAdder();
+        private final DoubleAdder sum = new DoubleAdder();
+
+        Histogram(final String name, final String help, final String labels, final double[] bounds) {
+            super(name, help, labels);
+            this.bounds = bounds.clone();
+            this.buckets = new LongAdder[bounds.length + 1];
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        public void observe(final double value) {
+            int index = 0;
+            while (index < bounds.length && value > bounds[index]) {
+                index++;
+            }
+            buckets[index].increment();
+            count.increment();
+            sum.add(value);
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+
+        public double getSum() {
+            return sum.sum();
+        }
+
+        @Override
+        String getType() {
+            return "histogram";
+        }
+
+        @Override
+        void writePrometheus(final Writer writer) throws IOException {
+            long cumulative = 0;
+            for (int i = 0; i < bounds.length; i++) {
+                cumulative += buckets[i].sum();
+                writer.write(String.format(Locale.ENGLISH, "%s_bucket%s %d\n", name, format(labels, "le=\"" + formatDouble(bounds[i]) + "\""), cumulative));
+            }
+            cumulative += buckets[bounds.length].sum();
+            writer.write(String.format(Locale.ENGLISH, "%s_bucket%s %d\n", name, format(labels, "le=\"+Inf\""), cumulative));
+            writer.write(String.format(Locale.ENGLISH, "%s_sum%s %s\n", name, format(labels, null), formatDouble(sum.sum())));
+            writer.write(String.format(Locale.ENGLISH, "%s_count%s %d\n", name, format(labels, null), count.sum()));
+        }
+
+        @Override
+        Object toJson() throws JSONException {
+            final JSONObject json = new JSONObject();
+            final JSONArray counts = new JSONArray();
+            for (LongAdder bucket : buckets) {
+                counts.put(bucket.sum());
+            }
+            final JSONArray upperBounds = new JSONArray();
+            for (double bound : bounds) {
+                upperBounds.put(bound);
+            }
+            json.put("bounds", upperBounds);
+            json.put("buckets", counts);
+            json.put("count", count.sum());
+            json.put("sum", sum.sum());
+            return json;
+        }
+    }
+
+    private final ConcurrentHashMap<String, Metric> metrics;
+
+    public MetricsRegistry() {
+        this.metrics = new ConcurrentHashMap<>();
+    }
+
+    public Counter counter(final String name, final String help, final String... labels) {
+        final String key = key(name, labels);
+        Metric metric = metrics.get(key);
+        if (metric == null) {
+            final Metric created = new Counter(name, help, formatLabels(labels));
+            metric = metrics.putIfAbsent(key, created);
+            if (metric == null) {
+                metric = created;
+            }
+        }
+        return (Counter) metric;
+    }
+
+    public Histogram histogram(final String name, final String help, final double[] bounds, final String... labels) {
+        final String key = key(name, labels);
+        Metric metric = metrics.get(key);
+        if (metric == null) {
+            final Metric created = new Histogram(name, help, formatLabels(labels), bounds);
+            metric = metrics.putIfAbsent(key, created);
+            if (metric == null) {
+                metric = created;
+            }
+        }
+        return (Histogram) metric;
+    }
+
+    /**
+     * <p>Registers a counter read from the given supplier, replacing a counter with the same name
+     * and labels.
+     */
+    public FunctionCounter counter(final String name, final String help, final LongSupplier supplier, final String... labels) {
+        final FunctionCounter counter = new FunctionCounter(name, help, formatLabels(labels), supplier);
+        metrics.put(key(name, labels), counter);
+        return counter;
+    }
+
+    /**
+     * <p>Registers a gauge, replacing a gauge with the same name and labels.
+     */
+    public Gauge gauge(final String name, final String help, final DoubleSupplier supplier, final String... labels) {
+        final Gauge gauge = new Gauge(name, help, formatLabels(labels), supplier);
+        metrics.put(key(name, labels), gauge);
+        return gauge;
+    }
+
+    /**
+     * <p>Writes all metrics in the Prometheus text exposition format.
+     */
+    public void writePrometheus(final Writer writer) throws IOException {
+        for (Map.Entry<String, List<Metric>> family : getFamilies().entrySet()) {
+            final Metric first = family.getValue().get(0);
+            writer.write(String.format("# HELP %s %s\n", first.name, first.help));
+            writer.write(String.format("# TYPE %s %s\n", first.name, first.getType()));
+            for (Metric metric : family.getValue()) {
+                metric.writePrometheus(writer);
+            }
+        }
+    }
+
+    /**
+     * @return all metrics keyed by name, with one entry per label set
+     */
+    public JSONObject toJson() throws JSONException {
+        final JSONObject json = new JSONObject();
+        for (Map.Entry<String, List<Metric>> family : getFamilies().entrySet()) {
+            final JSONObject values = new JSONObject();
+            for (Metric metric : family.getValue()) {
+                values.put(metric.labels, metric.toJson());
+            }
+            json.put(family.getKey(), values);
+        }
+        return json;
+    }
+
+    protected Map<String, List<Metric>> getFamilies() {
+        final Map<String, List<Metric>> families = new TreeMap<>();
+        for (Metric metric : metrics.values()) {
+            List<Metric> family = families.get(metric.name);
+            if (family == null) {
+                family = new ArrayList<>();
+                families.put(metric.name, family);
+            }
+            family.add(metric);
+        }
+        return families;
+    }
+
+    protected static String key(final String name, final String[] labels) {
+        return name + formatLabels(labels);
+    }
+
+    /**
+     * @return labels in the Prometheus format without braces, like <code>state="completed"</code>
+     */
+    protected static String formatLabels(final String[] labels) {
+        if (labels.length % 2 != 0) {
+            throw new IllegalArgumentException("Labels must be given as name and value pairs.");
+        }
+
+        final StringBuilder formatted = new StringBuilder();
+        for (int i = 0; i < labels.length; i += 2) {
+            if (formatted.length() > 0) {
+                formatted.append(',');
+            }
+            formatted.append(labels[i]).append("=\"").append(labels[i + 1].replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n")).append('"');
+        }
+        return formatted.toString();
+    }
+
+    protected static String format(final String labels, final String extraLabel) {
+        if (extraLabel == null) {
+            return labels.isEmpty() ? "" : "{" + labels + "}";
+        }
+        return labels.isEmpty() ? "{" + extraLabel + "}" : "{" + labels + "," + extraLabel + "}";
+    }
+
+    protected static String formatDouble(final double value) {
+        if (Double.isNaN(value)) {
+            return "NaN";
+        }
+        if (Double.isInfinite(value)) {
+            return (value > 0) ? "+Inf" : "-Inf";
+        }
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            return String.valueOf((long) value);
+        }
+        return String.valueOf(value);
+    }
+
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright (c) 2021 Taner Sener
+ *
+ * This file is part of FFmpegKitTest.
+ *
+ * FFmpegKitTest is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FFmpegKitTest is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with FFmpegKitTest.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.arthenica.ffmpegkit.util;
+
+import android.content.Context;
+
+import com.arthenica.ffmpegkit.FFmpegKitConfig;
+import com.arthenica.ffmpegkit.FFmpegSession;
+import com.arthenica.ffmpegkit.MediaInformationSession;
+import com.arthenica.ffmpegkit.ReturnCode;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * <p>Measures probe and stream decode latency of fixtures served by a {@link LocalMediaServer}.
+ * Results are reported as the median, the p95 and the maximum.
+ *
+ * <p>Every fixture is probed with the default ffprobe settings and with {@link FastProbe}, then
+ * decoded to the <code>null</code> muxer, once reading the URL directly and once through a
+ * {@link RangePrefetcher} if the fixture can be read without seeking. Each measurement is repeated
+ * and reported together with the number of failed runs, so that runs with injected errors are
+ * comparable too.
+ */
+public class NetworkBenchmark {
+
+    private static final String DECODE_COMMAND = "-hide_banner -v error -i %s -f null -";
+
+    private NetworkBenchmark() {
+    }
+
+    /**
+     * <p>Runs the benchmark on the calling thread.
+     *
+     * @return a human readable report
+     */
+    public static String run(final Context context, final LocalMediaServer server, final List<String> fixtures, final int iterations) {
+        final StringBuilder report = new StringBuilder();
+        final FastProbe fastProbe = new FastProbe(ProjectedMediaInformation.DEFAULT_PROJECTION);
+
+        for (String fixture : fixtures) {
+            final String url = server.getUrl(fixture);
+            final long[] probeTimes = new long[iterations];
+            final long[] fastProbeTimes = new long[iterations];
+            final long[] decodeTimes = new long[iterations];
+            final long[] prefetchedDecodeTimes = new long[iterations];
+            int probeFailures = 0;
+            int fastProbeFailures = 0;
+            int decodeFailures = 0;
+            int prefetchedDecodeFailures = 0;
+
+            for (int i = 0; i < iterations; i++) {
+                long startTime = System.nanoTime();
+                final MediaInformationSession probeSession = SyncSessions.getMediaInformation(url);
+                probeTimes[i] = System.nanoTime() - startTime;
+                if (probeSession.getMediaInformation() == null) {
+                    probeFailures++;
+                }
+
+                startTime = System.nanoTime();
+                final FastProbe.Result fastProbeResult = fastProbe.probe(url);
+                fastProbeTimes[i] = System.nanoTime() - startTime;
+                if (!ReturnCode.isSuccess(fastProbeResult.getSession().getReturnCode())) {
+                    fastProbeFailures++;
+                }
+
+                startTime = System.nanoTime();
+                final FFmpegSession decodeSession = SyncSessions.execute(String.format(DECODE_COMMAND, url));
+                decodeTimes[i] = System.nanoTime() - startTime;
+                if (!ReturnCode.isSuccess(decodeSession.getReturnCode())) {
+                    decodeFailures++;
+                }
+
+                // A PIPE CAN NOT BE SEEKED, AN MP4 WITH A TRAILING INDEX WOULD ALWAYS FAIL
+                if (LocalMediaServer.isSequential(fixture)) {
+                    startTime = System.nanoTime();
+                    if (!decodePrefetched(context, url)) {
+                        prefetchedDecodeFailures++;
+                    }
+                    prefetchedDecodeTimes[i] = System.nanoTime() - startTime;
+                }
+            }
+
+            report.append(fixture).append('\n');
+            appendResult(report, "probe", probeTimes, probeFailures);
+            appendResult(report, "fast probe", fastProbeTimes, fastProbeFailures);
+            appendResult(report, "decode", decodeTimes, decodeFailures);
+            if (LocalMediaServer.isSequential(fixture)) {
+                appendResult(report, "prefetched decode", prefetchedDecodeTimes, prefetchedDecodeFailures);
+            } else {
+                report.append("  prefetched decode: skipped, the index is at the end of the file\n");
+            }
+        }
+
+        report.append(server.getStats()).append('\n');
+
+        return report.toString();
+    }
+
+    /**
+     * <p>Probes and decodes a fixture on a slow and failing primary server, first directly and then
+     * through the given {@link ResilientInput} with a mirror, and reports the latency distribution
+     * of each.
+     *
+     * @return a human readable report
+     */
+    public static String runResilience(final LocalMediaServer primary, final LocalMediaServer mirror, final String fixture, final int iterations, final ResilientInput resilientInput) {
+        final StringBuilder report = new StringBuilder();
+        final String primaryUrl = primary.getUrl(fixture);
+        final String mirrorUrl = mirror.getUrl(fixture);
+        final long[] directTimes = new long[iterations];
+        final long[] resilientTimes = new long[iterations];
+        final long[] directDecodeTimes = new long[iterations];
+        final long[] resilientDecodeTimes = new long[iterations];
+        int directFailures = 0;
+        int resilientFailures = 0;
+        int directDecodeFailures = 0;
+        int resilientDecodeFailures = 0;
+
+        for (int i = 0; i < iterations; i++) {
+            long startTime = System.nanoTime();
+            if (SyncSessions.getMediaInformation(primaryUrl).getMediaInformation() == null) {
+                directFailures++;
+            }
+            directTimes[i] = System.nanoTime() - startTime;
+
+            startTime = System.nanoTime();
+            try {
+                resilientInput.getMediaInformationAsync(primaryUrl, mirrorUrl).join();
+            } catch (final RuntimeException e) {
+                resilientFailures++;
+            }
+            resilientTimes[i] = System.nanoTime() - startTime;
+
+            startTime = System.nanoTime();
+            if (!ReturnCode.isSuccess(SyncSessions.execute(String.format(DECODE_COMMAND, primaryUrl)).getReturnCode())) {
+                directDecodeFailures++;
+            }
+            directDecodeTimes[i] = System.nanoTime() - startTime;
+
+            startTime = System.nanoTime();
+            try {
+                resilientInput.executeAsync(DECODE_COMMAND, primaryUrl, mirrorUrl).join();
+            } catch (final RuntimeException e) {
+                resilientDecodeFailures++;
+            }
+            resilientDecodeTimes[i] = System.nanoTime() - startTime;
+        }
+
+        report.append(fixture).append('\n');
+        appendResult(report, "direct probe", directTimes, directFailures);
+        appendResult(report, "resilient probe", resilientTimes, resilientFailures);
+        appendResult(report, "direct decode", directDecodeTimes, directDecodeFailures);
+        appendResult(report, "resilient decode", resilientDecodeTimes, resilientDecodeFailures);
+        report.append(resilientInput.getStats()).append('\n');
+
+        return report.toString();
+    }
+
+    /**
+     * <p>Decodes the URL through a pipe fed by a {@link RangePrefetcher}. Only inputs that can be
+     * read without seeking are decoded this way.
+     */
+    protected static boolean decodePrefetched(final Context context, final String url) {
+        final File localCopy = new File(context.getCacheDir(), "network-benchmark.download");
+        localCopy.delete();
+
+        final String pipe = FFmpegKitConfig.registerNewFFmpegPipe(context);
+        final RangePrefetcher prefetcher = new RangePrefetcher(url, localCopy);
+        final CompletableFuture<RangePrefetcher.Result> prefetch = prefetcher.start(pipe);
+
+        try {
+            final FFmpegSession session = SyncSessions.execute(String.format(DECODE_COMMAND, pipe));
+            if (!ReturnCode.isSuccess(session.getReturnCode())) {
+                prefetcher.cancel();
+                return false;
+            }
+            prefetch.join();
+            return true;
+        } catch (final RuntimeException e) {
+            return false;
+        } finally {
+            FFmpegKitConfig.closeFFmpegPipe(pipe);
+            localCopy.delete();
+        }
+    }
+
+    protected static void appendResult(final StringBuilder report, final String name, final long[] nanos, final int failures) {
+        final long[] sorted = nanos.clone();
+        Arrays.sort(sorted);
+
+        report.append(String.format(Locale.ENGLISH, "  %s: median %.1f ms, p95 %.1f ms, max %.1f ms, %d/%d failed\n", name,
+                sorted[sorted.length / 2] / 1000000.0, sorted[Math.min(sorted.length - 1, sorted.length * 95 / 100)] / 1000000.0, sorted[sorted.length - 1] / 1000000.0, failures, sorted.length));
+    }
+
+}
@@ -0,0 +1,279 @@
+/*
+ * Copyright (c) 2021 Taner Sener
+ *
+ * This file is part of FFmpegKitTest.
+ *
+ * FFmpegKitTest is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FFmpegKitTest is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with FFmpegKitTest.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.arthenica.ffmpegkit.util;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.Log;
+
+import com.arthenica.smartexception.java.Exceptions;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Arrays;
+
+import static com.arthenica.ffmpegkit.test.MainActivity.TAG;
+
+/**
+ * <p>Media information that keeps only the fields of a {@link Projection}.
+ *
+ * <p>The ffprobe output is parsed with a streaming pull parser the first time a value is read.
+ * Format and stream fields that are not projected, as well as whole sections like packets, frames
+ * and chapters, are skipped without being materialized. Projected values are stored in flat string
+ * arrays, stream values in row-major order, and converted to numbers on access. The ffprobe output
+ * is released once it is parsed, so an instance only retains the projected values.
+ */
+public class ProjectedMediaInformation {
+
+    /**
+     * <p>The fields kept from the <code>format</code> section and from each element of the
+     * <code>streams</code> section. Fields of nested objects are named with a dot, e.g.
+     * <code>tags.language</code>.
+     */
+    public static class Projection {
+        private final String[] formatFields;
+        private final String[] streamFields;
+
+        public Projection(final String[] formatFields, final String[] streamFields) {
+            this.formatFields = formatFields.clone();
+            this.streamFields = streamFields.clone();
+        }
+
+        public String[] getFormatFields() {
+            return formatFields.clone();
+        }
+
+        public String[] getStreamFields() {
+            return streamFields.clone();
+        }
+
+        static int indexOf(final String[] fields, final String field) {
+            for (int i = 0; i < fields.length; i++) {
+                if (fields[i].equals(field)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        static boolean hasNested(final String[] fields, final String prefix) {
+            for (String field : fields) {
+                if (field.length() > prefix.length() && field.startsWith(prefix) && field.charAt(prefix.length()) == '.') {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Fields printed by the test application.
+     */
+    public static final Projection DEFAULT_PROJECTION = new Projection(
+            new String[]{"filename", "format_name", "duration", "start_time", "size", "bit_rate"},
+            new String[]{"index", "codec_type", "codec_name", "width", "height", "sample_rate", "channel_layout", "bit_rate", "avg_frame_rate"});
+
+    private static final int INITIAL_STREAM_CAPACITY = 4;
+
+    private final Projection projection;
+
+    private String json;
+
+    private boolean parsed;
+    private String[] formatValues;
+    private String[] streamValues;
+    private int streamCount;
+
+    protected ProjectedMediaInformation(final String json, final Projection projection) {
+        this.json = json;
+        this.projection = projection;
+    }
+
+    /**
+     * <p>Creates media information for the given ffprobe JSON output. Parsing is deferred until a
+     * value is read.
+     */
+    public static ProjectedMediaInformation from(final String json, final Projection projection) {
+        return new ProjectedMediaInformation(json, projection);
+    }
+
+    public Projection getProjection() {
+        return projection;
+    }
+
+    public int getStreamCount() {
+        ensureParsed();
+        return streamCount;
+    }
+
+    public String getFormatString(final String field) {
+        ensureParsed();
+        final int index = Projection.indexOf(projection.formatFields, field);
+        return (index < 0) ? null : formatValues[index];
+    }
+
+    public Long getFormatLong(final String field) {
+        return toLong(getFormatString(field));
+    }
+
+    public Double getFormatDouble(final String field) {
+        return toDouble(getFormatString(field));
+    }
+
+    public String getStreamString(final int stream, final String field) {
+        ensureParsed();
+        final int index = Projection.indexOf(projection.streamFields, field);
+        if (index < 0 || stream < 0 || stream >= streamCount) {
+            return null;
+        }
+        return streamValues[stream * projection.streamFields.length + index];
+    }
+
+    public Long getStreamLong(final int stream, final String field) {
+        return toLong(getStreamString(stream, field));
+    }
+
+    public Double getStreamDouble(final int stream, final String field) {
+        return toDouble(getStreamString(stream, field));
+    }
+
+    protected synchronized void ensureParsed() {
+        if (parsed) {
+            return;
+        }
+
+        formatValues = new String[projection.formatFields.length];
+        streamValues = new String[INITIAL_STREAM_CAPACITY * projection.streamFields.length];
+        streamCount = 0;
+
+        final JsonReader reader = new JsonReader(new StringReader(json));
+        try {
+            parse(reader);
+        } catch (final IOException | IllegalStateException | NumberFormatException e) {
+            Log.w(TAG, String.format("Parsing media information failed.%s", Exceptions.getStackTraceString(e)));
+            formatValues = new String[projection.formatFields.length];
+            streamCount = 0;
+        } finally {
+            IOUtil.closeQuietly(reader);
+        }
+
+        // ONLY THE PROJECTED VALUES ARE RETAINED AFTER PARSING
+        streamValues = Arrays.copyOf(streamValues, streamCount * projection.streamFields.length);
+        json = null;
+        parsed = true;
+    }
+
+    protected void parse(final JsonReader reader) throws IOException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            final String name = reader.nextName();
+
+            if ("format".equals(name) && reader.peek() == JsonToken.BEGIN_OBJECT) {
+                readObject(reader, null, projection.formatFields, formatValues, 0);
+            } else if ("streams".equals(name) && reader.peek() == JsonToken.BEGIN_ARRAY) {
+                final int fieldCount = projection.streamFields.length;
+
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    if ((streamCount + 1) * fieldCount > streamValues.length) {
+                        streamValues = Arrays.copyOf(streamValues, streamValues.length * 2);
+                    }
+                    if (reader.peek() == JsonToken.BEGIN_OBJECT) {
+                        readObject(reader, null, projection.streamFields, streamValues, streamCount * fieldCount);
+                        streamCount++;
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endArray();
+            } else {
+
+                // PACKETS, FRAMES, CHAPTERS AND OTHER SECTIONS ARE NOT MATERIALIZED
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+    }
+
+    protected static void readObject(final JsonReader reader, final String prefix, final String[] fields, final String[] values, final int offset) throws IOException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            final String name = reader.nextName();
+            final String field = (prefix == null) ? name : prefix + "." + name;
+            final JsonToken token = reader.peek();
+
+            if (token == JsonToken.BEGIN_OBJECT) {
+                if (Projection.hasNested(fields, field)) {
+                    readObject(reader, field, fields, values, offset);
+                } else {
+                    reader.skipValue();
+                }
+                continue;
+            }
+
+            final int index = Projection.indexOf(fields, field);
+            if (index < 0) {
+                reader.skipValue();
+                continue;
+            }
+
+            switch (token) {
+                case STRING:
+                case NUMBER:
+                    values[offset + index] = reader.nextString();
+                    break;
+                case BOOLEAN:
+                    values[offset + index] = String.valueOf(reader.nextBoolean());
+                    break;
+                case NULL:
+                    reader.nextNull();
+                    break;
+                default:
+                    reader.skipValue();
+                    break;
+            }
+        }
+        reader.endObject();
+    }
+
+    protected static Long toLong(final String value) {
+        if (value == null) {
+            return null;
+        }
+        try {
+            return Long.valueOf(value);
+        } catch (final NumberFormatException e) {
+            final Double doubleValue = toDouble(value);
+            return (doubleValue == null) ? null : doubleValue.longValue();
+        }
+    }
+
+    protected static Double toDouble(final String value) {
+        if (value == null) {
+            return null;
+        }
+        try {
+            return Double.valueOf(value);
+        } catch (final NumberFormatException e) {
+            return null;
+        }
+    }
+
+}
@@ -0,0 +1,483 @@
+/*
+ * Copyright (c) 2021 Taner Sener
+ *
+ * This file is part of FFmpegKitTest.
+ *
+ * FFmpegKitTest is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FFmpegKitTest is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with FFmpegKitTest.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.arthenica.ffmpegkit.util;
+
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.util.Log;
+
+import com.arthenica.smartexception.java.Exceptions;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.arthenica.ffmpegkit.test.MainActivity.TAG;
+
+/**
+ * <p>Downloads a URL with several concurrent range requests and writes it, in order, to an FFmpeg
+ * pipe and to a local copy.
+ *
+ * <p>The file is split into fixed size chunks that are handed out to the download threads in
+ * order. A chunk that completes early waits in a reorder buffer until every chunk before it is
+ * written. The number of chunks downloaded but not yet written is bounded, and their buffers are
+ * reused, so memory use does not depend on the file size. When the local copy already exists it
+ * is streamed to the pipe instead. Servers that do not accept ranges are read with a single
+ * request.
+ */
+public class RangePrefetcher {
+
+    public static class Result {
+        private final long length;
+        private final long duration;
+        private final int chunkCount;
+        private final boolean localCopyUsed;
+
+        Result(final long length, final long duration, final int chunkCount, final boolean localCopyUsed) {
+            this.length = length;
+            this.duration = duration;
+            this.chunkCount = chunkCount;
+            this.localCopyUsed = localCopyUsed;
+        }
+
+        public long getLength() {
+            return length;
+        }
+
+        /**
+         * @return time spent until the last byte was written to the pipe, in milliseconds
+         */
+        public long getDuration() {
+            return duration;
+        }
+
+        /**
+         * @return number of range requests made, 0 if the input was read with a single request
+         */
+        public int getChunkCount() {
+            return chunkCount;
+        }
+
+        public boolean isLocalCopyUsed() {
+            return localCopyUsed;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ENGLISH, "%d bytes in %d ms, %d chunks%s", length, duration, chunkCount, localCopyUsed ? ", from local copy" : "");
+        }
+    }
+
+    public static final int DEFAULT_PARALLELISM = 4;
+    public static final int DEFAULT_CHUNK_SIZE = 512 * 1024;
+    public static final int DEFAULT_MAX_BUFFERED_CHUNKS = 12;
+
+    private static final int CONNECT_TIMEOUT = 15000;
+    private static final int READ_TIMEOUT = 30000;
+    private static final int MAX_ATTEMPTS = 3;
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    private final String url;
+    private final File localCopy;
+    private final int parallelism;
+    private final int chunkSize;
+    private final int maxBufferedChunks;
+    private final ExecutorService executor;
+    private final CompletableFuture<Result> future;
+    private final Object lock;
+    private final Map<Integer, byte[]> reorderBuffer;
+    private final BlockingQueue<byte[]> bufferPool;
+    private final Semaphore bufferPermits;
+    private final AtomicInteger nextChunk;
+    private volatile Throwable failure;
+    private volatile boolean cancelled;
+    private String pipePath;
+    private boolean pipeOpening;
+    private boolean pipeOpened;
+
+    public RangePrefetcher(final String url, final File localCopy) {
+        this(url, localCopy, DEFAULT_PARALLELISM, DEFAULT_CHUNK_SIZE, DEFAULT_MAX_BUFFERED_CHUNKS);
+    }
+
+    /**
+     * @param localCopy         file the download is kept in, reused by later runs
+     * @param parallelism       number of concurrent range requests
+     * @param chunkSize         size of a range request in bytes
+     * @param maxBufferedChunks maximum number of chunks held in memory, at least parallelism
+     */
+    public RangePrefetcher(final String url, final File localCopy, final int parallelism, final int chunkSize, final int maxBufferedChunks) {
+        this.url = url;
+        this.localCopy = localCopy;
+        this.parallelism = parallelism;
+        this.chunkSize = chunkSize;
+        this.maxBufferedChunks = Math.max(parallelism, maxBufferedChunks);
+        this.executor = Executors.newFixedThreadPool(parallelism + 1, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(runnable, "range-prefetcher-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.future = new CompletableFuture<>();
+        this.lock = new Object();
+        this.reorderBuffer = new HashMap<>();
+        this.bufferPool = new ArrayBlockingQueue<>(this.maxBufferedChunks);
+        this.bufferPermits = new Semaphore(this.maxBufferedChunks);
+        this.nextChunk = new AtomicInteger();
+    }
+
+    /**
+     * <p>Starts writing the input to the given pipe. The pipe is opened on a background thread,
+     * since opening it blocks until FFmpeg opens the other end.
+     *
+     * @return a future completed after the last byte is written, completed exceptionally if the
+     * download or the pipe fails
+     */
+    public CompletableFuture<Result> start(final String pipePath) {
+        executor.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    future.complete(transfer(pipePath));
+                } catch (final Throwable t) {
+                    if (!cancelled) {
+                        Log.w(TAG, String.format("Prefetching %s failed.%s", url, Exceptions.getStackTraceString(t)));
+                    }
+                    future.completeExceptionally(t);
+                } finally {
+                    executor.shutdownNow();
+                }
+            }
+        });
+
+        return future;
+    }
+
+    /**
+     * <p>Stops downloading. The pipe is closed, so FFmpeg sees the end of its input. A transfer
+     * still waiting for FFmpeg to open the pipe is released.
+     */
+    public void cancel() {
+        final boolean waitingForReader;
+        synchronized (lock) {
+            cancelled = true;
+            waitingForReader = pipeOpening && !pipeOpened;
+            lock.notifyAll();
+        }
+
+        if (waitingForReader) {
+            releasePipe();
+        }
+
+        executor.shutdownNow();
+        future.cancel(false);
+    }
+
+    public File getLocalCopy() {
+        return localCopy;
+    }
+
+    protected Result transfer(final String pipePath) throws IOException, InterruptedException {
+        final long startTime = System.currentTimeMillis();
+        final File partFile = new File(localCopy.getAbsolutePath() + ".part");
+
+        OutputStream pipeStream = null;
+        OutputStream fileStream = null;
+        try {
+
+            synchronized (lock) {
+                if (cancelled) {
+                    throw new InterruptedException("Prefetch cancelled.");
+                }
+                this.pipePath = pipePath;
+                this.pipeOpening = true;
+            }
+
+            // THE PIPE IS OPENED FIRST, SO THAT A FAILURE CLOSES IT AND FFMPEG DOES NOT WAIT FOREVER
+            pipeStream = new FileOutputStream(pipePath);
+
+            synchronized (lock) {
+                pipeOpened = true;
+            }
+
+            if (localCopy.isFile()) {
+                final long length = copyLocal(pipeStream);
+                return new Result(length, System.currentTimeMillis() - startTime, 0, true);
+            }
+
+            final long length = getRangeLength();
+            fileStream = new FileOutputStream(partFile);
+
+            final int chunkCount;
+            if (length > 0) {
+                chunkCount = (int) ((length + chunkSize - 1) / chunkSize);
+                writeChunks(length, chunkCount, pipeStream, fileStream);
+            } else {
+                chunkCount = 0;
+                writeSequential(pipeStream, fileStream);
+            }
+
+            fileStream.close();
+            fileStream = null;
+
+            if (cancelled) {
+                throw new InterruptedException("Prefetch cancelled.");
+            }
+            if (!partFile.renameTo(localCopy)) {
+                Log.w(TAG, String.format("Failed to keep local copy of %s at %s.", url, localCopy.getAbsolutePath()));
+            }
+
+            final Result result = new Result(localCopy.length(), System.currentTimeMillis() - startTime, chunkCount, false);
+            Log.d(TAG, String.format("Prefetched %s, %s.", url, result));
+
+            return result;
+        } finally {
+            IOUtil.closeQuietly(pipeStream);
+            IOUtil.closeQuietly(fileStream);
+            partFile.delete();
+        }
+    }
+
+    /**
+     * <p>Opening the write end of a pipe blocks until a reader opens it, and neither interrupts nor
+     * closing the pipe release it. Opening and closing the read end without blocking lets the
+     * transfer thread return.
+     */
+    protected void releasePipe() {
+        final String path;
+        synchronized (lock) {
+            path = pipePath;
+        }
+
+        try {
+            final FileDescriptor fileDescriptor = Os.open(path, OsConstants.O_RDONLY | OsConstants.O_NONBLOCK, 0);
+            Os.close(fileDescriptor);
+        } catch (final ErrnoException e) {
+            Log.d(TAG, String.format("Releasing pipe %s failed.%s", path, Exceptions.getStackTraceString(e)));
+        }
+    }
+
+    protected void writeChunks(final long length, final int chunkCount, final OutputStream pipeStream, final OutputStream fileStream) throws IOException, InterruptedException {
+        for (int i = 0; i < Math.min(parallelism, chunkCount); i++) {
+            executor.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    downloadChunks(length, chunkCount);
+                }
+            });
+        }
+
+        for (int i = 0; i < chunkCount; i++) {
+            final byte[] buffer;
+            synchronized (lock) {
+                while (!reorderBuffer.containsKey(i) && failure == null && !cancelled) {
+                    lock.wait();
+                }
+                if (cancelled) {
+                    throw new InterruptedException("Prefetch cancelled.");
+                }
+                if (failure != null) {
+                    throw new IOException("Downloading a chunk failed.", failure);
+                }
+                buffer = reorderBuffer.remove(i);
+            }
+
+            final int size = (int) Math.min(chunkSize, length - (long) i * chunkSize);
+            pipeStream.write(buffer, 0, size);
+            fileStream.write(buffer, 0, size);
+
+            bufferPool.offer(buffer);
+            bufferPermits.release();
+        }
+    }
+
+    protected void downloadChunks(final long length, final int chunkCount) {
+        try {
+            while (!cancelled && failure == null) {
+
+                // CHUNKS ARE HANDED OUT IN ORDER, SO THE NEXT CHUNK TO WRITE ALWAYS HOLDS A PERMIT
+                bufferPermits.acquire();
+                final int index = nextChunk.getAndIncrement();
+                if (index >= chunkCount) {
+                    bufferPermits.release();
+                    return;
+                }
+
+                byte[] buffer = bufferPool.poll();
+                if (buffer == null) {
+                    buffer = new byte[chunkSize];
+                }
+
+                final long start = (long) index * chunkSize;
+                final int size = (int) Math.min(chunkSize, length - start);
+                downloadRange(start, size, buffer);
+
+                synchronized (lock) {
+                    reorderBuffer.put(index, buffer);
+                    lock.notifyAll();
+                }
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (final Throwable t) {
+            synchronized (lock) {
+                failure = t;
+                lock.notifyAll();
+            }
+        }
+    }
+
+    protected void downloadRange(final long start, final int size, final byte[] buffer) throws IOException {
+        IOException lastException = null;
+
+        for (int attempt = 1; attempt <= MAX_ATTEMPTS && !cancelled; attempt++) {
+            HttpURLConnection connection = null;
+            InputStream inputStream = null;
+            try {
+                connection = openConnection("GET");
+                connection.setRequestProperty("Range", String.format(Locale.ENGLISH, "bytes=%d-%d", start, start + size - 1));
+
+                if (connection.getResponseCode() != HttpURLConnection.HTTP_PARTIAL) {
+                    throw new IOException(String.format(Locale.ENGLISH, "Range request returned %d.", connection.getResponseCode()));
+                }
+
+                inputStream = connection.getInputStream();
+                int offset = 0;
+                while (offset < size) {
+                    final int read = inputStream.read(buffer, offset, size - offset);
+                    if (read == -1) {
+                        throw new IOException(String.format(Locale.ENGLISH, "Range %d-%d ended after %d bytes.", start, start + size - 1, offset));
+                    }
+                    offset += read;
+                }
+                return;
+            } catch (final IOException e) {
+                lastException = e;
+                Log.d(TAG, String.format(Locale.ENGLISH, "Range %d-%d of %s failed on attempt %d: %s", start, start + size - 1, url, attempt, e.getMessage()));
+            } finally {
+                IOUtil.closeQuietly(inputStream);
+                if (connection != null) {
+                    connection.disconnect();
+                }
+            }
+        }
+
+        throw (lastException != null) ? lastException : new IOException("Prefetch cancelled.");
+    }
+
+    protected void writeSequential(final OutputStream pipeStream, final OutputStream fileStream) throws IOException {
+        HttpURLConnection connection = null;
+        InputStream inputStream = null;
+        try {
+            connection = openConnection("GET");
+            if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
+                throw new IOException(String.format(Locale.ENGLISH, "Request returned %d.", connection.getResponseCode()));
+            }
+
+            inputStream = connection.getInputStream();
+            final byte[] buffer = new byte[COPY_BUFFER_SIZE];
+            int read;
+            while (!cancelled && (read = inputStream.read(buffer)) != -1) {
+                pipeStream.write(buffer, 0, read);
+                fileStream.write(buffer, 0, read);
+            }
+        } finally {
+            IOUtil.closeQuietly(inputStream);
+            if (connection != null) {
+                connection.disconnect();
+            }
+        }
+    }
+
+    protected long copyLocal(final OutputStream pipeStream) throws IOException {
+        InputStream inputStream = null;
+        try {
+            inputStream = new FileInputStream(localCopy);
+
+            final byte[] buffer = new byte[COPY_BUFFER_SIZE];
+            long length = 0;
+            int read;
+            while (!cancelled && (read = inputStream.read(buffer)) != -1) {
+                pipeStream.write(buffer, 0, read);
+                length += read;
+            }
+            return length;
+        } finally {
+            IOUtil.closeQuietly(inputStream);
+        }
+    }
+
+    /**
+     * @return length of the input if the server accepts byte ranges, 0 otherwise
+     */
+    protected long getRangeLength() throws IOException {
+        HttpURLConnection connection = null;
+        try {
+            connection = openConnection("HEAD");
+            if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
+                return 0;
+            }
+
+            final String acceptRanges = connection.getHeaderField("Accept-Ranges");
+            final long length = connection.getContentLengthLong();
+
+            return ("bytes".equalsIgnoreCase(acceptRanges) && length > 0) ? length : 0;
+        } finally {
+            if (connection != null) {
+                connection.disconnect();
+            }
+        }
+    }
+
+    protected HttpURLConnection openConnection(final String method) throws IOException {
+        final HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setRequestMethod(method);
+        connection.setConnectTimeout(CONNECT_TIMEOUT);
+        connection.setReadTimeout(READ_TIMEOUT);
+
+        // RANGES ARE COUNTED ON THE STORED BYTES
+        connection.setRequestProperty("Accept-Encoding", "identity");
+        return connection;
+    }
+
+}
@@ -0,0 +1,356 @@
+/*
+ * Copyright (c) 2021 Taner Sener
+ *
+ * This file is part of FFmpegKitTest.
+ *
+ * FFmpegKitTest is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FFmpegKitTest is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with FFmpegKitTest.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.arthenica.ffmpegkit.util;
+
+import android.util.Log;
+
+import com.arthenica.ffmpegkit.AbstractSession;
+import com.arthenica.ffmpegkit.ExecuteCallback;
+import com.arthenica.ffmpegkit.FFmpegSession;
+import com.arthenica.ffmpegkit.FFprobeKit;
+import com.arthenica.ffmpegkit.MediaInformationSession;
+import com.arthenica.ffmpegkit.ReturnCode;
+import com.arthenica.ffmpegkit.Session;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+import static com.arthenica.ffmpegkit.test.MainActivity.TAG;
+
+/**
+ * <p>Runs probes and FFmpeg commands on network inputs with per attempt timeouts, retries and
+ * mirror fallbacks.
+ *
+ * <p>Attempts use the given URLs in turn, so the second attempt goes to the first mirror. A failed
+ * attempt is retried after an exponential backoff with full jitter. Probes are also hedged: when
+ * an attempt has not completed after the observed p95 probe latency, a duplicate is started on the
+ * next URL and the first one to succeed wins. FFmpeg commands are not hedged because two attempts
+ * would write to the same output.
+ *
+ * <p>FFmpeg attempts that time out or lose are cancelled. FFprobe sessions can not be cancelled,
+ * so every probe is given the attempt timeout as its <code>-rw_timeout</code>; an abandoned probe
+ * stops on its own once its connection stalls for that long.
+ */
+public class ResilientInput {
+
+    public static class Policy {
+        private long attemptTimeout = 15000;
+        private int maxAttempts = 4;
+        private long initialBackoff = 250;
+        private long maxBackoff = 4000;
+        private long initialHedgeDelay = 2000;
+        private double hedgeQuantile = 0.95;
+
+        /**
+         * @param attemptTimeout time after which an attempt is cancelled, in milliseconds
+         */
+        public Policy setAttemptTimeout(final long attemptTimeout) {
+            this.attemptTimeout = attemptTimeout;
+            return this;
+        }
+
+        /**
+         * @param maxAttempts maximum number of attempts, hedged ones included
+         */
+        public Policy setMaxAttempts(final int maxAttempts) {
+            this.maxAttempts = maxAttempts;
+            return this;
+        }
+
+        /**
+         * @param initialBackoff upper bound of the first retry delay, doubled on every retry
+         * @param maxBackoff     upper bound of any retry delay
+         */
+        public Policy setBackoff(final long initialBackoff, final long maxBackoff) {
+            this.initialBackoff = initialBackoff;
+            this.maxBackoff = maxBackoff;
+            return this;
+        }
+
+        /**
+         * @param initialHedgeDelay hedge delay used until enough latencies are observed, 0 disables
+         *                          hedging
+         * @param hedgeQuantile     latency quantile after which a probe is hedged
+         */
+        public Policy setHedging(final long initialHedgeDelay, final double hedgeQuantile) {
+            this.initialHedgeDelay = initialHedgeDelay;
+            this.hedgeQuantile = hedgeQuantile;
+            return this;
+        }
+    }
+
+    /**
+     * <p>Attempts of a single request.
+     */
+    protected class Request<T extends Session> {
+        private final List<String> urls;
+        private final Function<String, CompletableFuture<T>> starter;
+        private final boolean hedged;
+        private final CompletableFuture<T> result;
+        private final List<CompletableFuture<T>> inFlight;
+        private int attemptCount;
+        private T lastSession;
+        private Throwable lastError;
+
+        Request(final List<String> urls, final Function<String, CompletableFuture<T>> starter, final boolean hedged) {
+            this.urls = urls;
+            this.starter = starter;
+            this.hedged = hedged;
+            this.result = new CompletableFuture<>();
+            this.inFlight = new ArrayList<>();
+
+            result.whenComplete(new BiConsumer<T, Throwable>() {
+
+                @Override
+                public void accept(final T session, final Throwable throwable) {
+                    cancelInFlight();
+                }
+            });
+        }
+
+        protected synchronized void startAttempt(final boolean hedge) {
+            if (result.isDone() || attemptCount >= policy.maxAttempts) {
+                return;
+            }
+
+            final String url = urls.get(attemptCount % urls.size());
+            final long startTime = System.currentTimeMillis();
+            attemptCount++;
+            attempts.incrementAndGet();
+
+            final CompletableFuture<T> attempt = FFmpegKitFutures.withTimeout(starter.apply(url), policy.attemptTimeout, TimeUnit.MILLISECONDS);
+            inFlight.add(attempt);
+
+            attempt.whenComplete(new BiConsumer<T, Throwable>() {
+
+                @Override
+                public void accept(final T session, final Throwable throwable) {
+                    onAttemptCompleted(attempt, url, hedge, System.currentTimeMillis() - startTime, session, throwable);
+                }
+            });
+
+            final long hedgeDelay = getHedgeDelay();
+            if (hedged && !hedge && hedgeDelay > 0) {
+                scheduler.schedule(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        if (!attempt.isDone() && !result.isDone()) {
+                            hedges.incrementAndGet();
+                            Log.d(TAG, String.format(Locale.ENGLISH, "Hedging %s after %d ms.", url, hedgeDelay));
+                            startAttempt(true);
+                        }
+                    }
+                }, hedgeDelay, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        protected synchronized void onAttemptCompleted(final CompletableFuture<T> attempt, final String url, final boolean hedge, final long duration, final T session, final Throwable throwable) {
+            inFlight.remove(attempt);
+            if (result.isDone()) {
+                return;
+            }
+
+            if (throwable == null && isSuccess(session)) {
+                recordLatency(duration);
+                if (hedge) {
+                    hedgeWins.incrementAndGet();
+                }
+                result.complete(session);
+                return;
+            }
+
+            if (throwable == null) {
+                lastSession = session;
+            } else {
+                lastError = FFmpegKitFutures.unwrap(throwable);
+            }
+
+            Log.d(TAG, String.format(Locale.ENGLISH, "Attempt %d on %s failed after %d ms: %s", attemptCount, url, duration,
+                    (throwable == null) ? String.format("state %s, rc %s", session.getState(), session.getReturnCode()) : lastError.getMessage()));
+
+            if (!inFlight.isEmpty()) {
+
+                // A HEDGED ATTEMPT IS STILL RUNNING
+                return;
+            }
+
+            if (attemptCount >= policy.maxAttempts) {
+                failures.incrementAndGet();
+                result.completeExceptionally((lastSession != null) ? new FFmpegKitFutures.SessionFailedException(lastSession) : lastError);
+                return;
+            }
+
+            retries.incrementAndGet();
+            scheduler.schedule(new Runnable() {
+
+                @Override
+                public void run() {
+                    startAttempt(false);
+                }
+            }, getBackoff(attemptCount), TimeUnit.MILLISECONDS);
+        }
+
+        protected synchronized void cancelInFlight() {
+            for (CompletableFuture<T> attempt : new ArrayList<>(inFlight)) {
+
+                // FFMPEG SESSION FUTURES CANCEL THEIR SESSION, PROBES ARE ABANDONED
+                attempt.cancel(false);
+            }
+        }
+    }
+
+    private static final int LATENCY_WINDOW = 64;
+    private static final int MIN_LATENCY_SAMPLES = 8;
+
+    private final Policy policy;
+    private final ScheduledExecutorService scheduler;
+    private final Random random;
+    private final long[] latencies;
+    private int latencyCount;
+    private int latencyIndex;
+    private final AtomicLong attempts = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong hedges = new AtomicLong();
+    private final AtomicLong hedgeWins = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+
+    public ResilientInput(final Policy policy) {
+        this.policy = policy;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(runnable, "resilient-input");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.random = new Random();
+        this.latencies = new long[LATENCY_WINDOW];
+    }
+
+    /**
+     * <p>Probes the first URL, falling back to the mirrors that follow it.
+     *
+     * @return future completed with the first successful session, or completed exceptionally after
+     * the last attempt fails
+     */
+    public CompletableFuture<MediaInformationSession> getMediaInformationAsync(final String... urls) {
+        final Request<MediaInformationSession> request = new Request<>(Arrays.asList(urls), new Function<String, CompletableFuture<MediaInformationSession>>() {
+
+            @Override
+            public CompletableFuture<MediaInformationSession> apply(final String url) {
+                return probeAsync(url);
+            }
+        }, true);
+
+        request.startAttempt(false);
+
+        return request.result;
+    }
+
+    /**
+     * <p>Runs an FFmpeg command whose input is one of the given URLs.
+     *
+     * @param commandFormat command with a <code>%s</code> placeholder for the input URL
+     */
+    public CompletableFuture<FFmpegSession> executeAsync(final String commandFormat, final String... urls) {
+        final Request<FFmpegSession> request = new Request<>(Arrays.asList(urls), new Function<String, CompletableFuture<FFmpegSession>>() {
+
+            @Override
+            public CompletableFuture<FFmpegSession> apply(final String url) {
+                return FFmpegKitFutures.executeAsync(String.format(commandFormat, url));
+            }
+        }, false);
+
+        request.startAttempt(false);
+
+        return request.result;
+    }
+
+    /**
+     * @return delay after which a probe is hedged, in milliseconds
+     */
+    public synchronized long getHedgeDelay() {
+        if (policy.initialHedgeDelay <= 0 || latencyCount < MIN_LATENCY_SAMPLES) {
+            return policy.initialHedgeDelay;
+        }
+
+        final long[] sorted = Arrays.copyOf(latencies, latencyCount);
+        Arrays.sort(sorted);
+
+        return Math.max(1, sorted[Math.min(latencyCount - 1, (int) (latencyCount * policy.hedgeQuantile))]);
+    }
+
+    public String getStats() {
+        return String.format(Locale.ENGLISH, "%d attempts, %d retries, %d hedges, %d won by the hedge, %d requests failed, hedge delay %d ms",
+                attempts.get(), retries.get(), hedges.get(), hedgeWins.get(), failures.get(), getHedgeDelay());
+    }
+
+    protected synchronized void recordLatency(final long latency) {
+        latencies[latencyIndex] = latency;
+        latencyIndex = (latencyIndex + 1) % latencies.length;
+        latencyCount = Math.min(latencyCount + 1, latencies.length);
+    }
+
+    protected long getBackoff(final int attempt) {
+        final long cap = Math.min(policy.maxBackoff, policy.initialBackoff << Math.min(attempt - 1, 20));
+        synchronized (random) {
+            return (long) (random.nextDouble() * cap);
+        }
+    }
+
+    protected static boolean isSuccess(final Session session) {
+        if (!ReturnCode.isSuccess(session.getReturnCode())) {
+            return false;
+        }
+        return !(session instanceof MediaInformationSession) || ((MediaInformationSession) session).getMediaInformation() != null;
+    }
+
+    protected CompletableFuture<MediaInformationSession> probeAsync(final String url) {
+        final CompletableFuture<MediaInformationSession> future = new CompletableFuture<>();
+
+        // AN ABANDONED PROBE CAN NOT BE CANCELLED, THE I/O TIMEOUT ENDS IT
+        final String command = String.format(Locale.ENGLISH, "-v error -hide_banner -rw_timeout %d -print_format json -show_format -show_streams -show_chapters -i \"%s\"", policy.attemptTimeout * 1000, url);
+
+        FFprobeKit.getMediaInformationFromCommandAsync(command, new ExecuteCallback() {
+
+            @Override
+            public void apply(final Session session) {
+                future.complete((MediaInformationSession) session);
+            }
+        }, null, AbstractSession.DEFAULT_TIMEOUT_FOR_ASYNCHRONOUS_MESSAGES_IN_TRANSMIT);
+
+        return future;
+    }
+
+}
@@ -0,0 +1,442 @@
+/*
+ * Copyright (c) 2021 Taner Sener
+ *
+ * This file is part of FFmpegKitTest.
+ *
+ * FFmpegKitTest is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FFmpegKitTest is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with FFmpegKitTest.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.arthenica.ffmpegkit.util;
+
+import android.os.Build;
+import android.os.Process;
+import android.os.Trace;
+import android.util.Log;
+
+import com.arthenica.ffmpegkit.ExecuteCallback;
+import com.arthenica.ffmpegkit.Session;
+import com.arthenica.smartexception.java.Exceptions;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.arthenica.ffmpegkit.test.MainActivity.TAG;
+
+/**
+ * <p>Records spans of multi-stage flows and writes them in the Chrome trace event format, which
+ * can be opened in <code>chrome://tracing</code> or Perfetto.
+ *
+ * <p>A span has a parent, so the spans of a flow form a tree under its root span. Spans of a tree
+ * are written as async events sharing the root's id, so they are drawn on one track although they
+ * start and end on different threads. Each thread has a current span, which new spans are created
+ * under when no parent is given; it lets code that does not know about a flow, like UI dispatch,
+ * attach its spans to it.
+ *
+ * <p>The tracer is also an execute callback. A completed session gets spans for the time it waited
+ * for an executor thread, the time FFmpeg ran and the hop to its execute callback. These are added
+ * under the span bound to the session, which then ends, or under a new root span when no span is
+ * bound. FFmpegKit calls a session's own execute callback before the global one, so an owner that
+ * ends the parent of a bound span there calls {@link #completeSession(Session)} first; the child
+ * then ends before its parent.
+ *
+ * <p>On Android 10 and later spans can also be emitted as async <code>android.os.Trace</code>
+ * sections, so they show up in system traces next to the platform's own sections.
+ */
+public class Tracer implements ExecuteCallback {
+
+    public class Span {
+        private final long id;
+        private final long traceId;
+        private final long parentId;
+        private final String name;
+        private final String threadName;
+        private final long startTime;
+        private final Map<String, Object> args;
+        private final AtomicBoolean ended = new AtomicBoolean();
+        private final boolean systemTraced;
+        private volatile long endTime;
+
+        Span(final String name, final Span parent, final long startTime, final boolean systemTraced) {
+            this.id = spanCount.incrementAndGet();
+            this.traceId = (parent == null) ? id : parent.traceId;
+            this.parentId = (parent == null) ? 0 : parent.id;
+            this.name = name;
+            this.threadName = Thread.currentThread().getName();
+            this.startTime = startTime;
+            this.args = new LinkedHashMap<>();
+            this.systemTraced = systemTraced;
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public Span setArg(final String key, final Object value) {
+            synchronized (args) {
+                args.put(key, value);
+            }
+            return this;
+        }
+
+        public Span startChild(final String childName) {
+            return startSpan(childName, this);
+        }
+
+        /**
+         * <p>Ends the span. Ending a span more than once has no effect.
+         */
+        public void end() {
+            end(now());
+        }
+
+        void end(final long time) {
+            if (!ended.compareAndSet(false, true)) {
+                return;
+            }
+            endTime = time;
+            if (systemTraced && Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+                Trace.endAsyncSection(sectionName(name), (int) id);
+            }
+            finish(this);
+        }
+
+        public boolean isEnded() {
+            return ended.get();
+        }
+
+        public boolean isRoot() {
+            return parentId == 0;
+        }
+    }
+
+    public static final int DEFAULT_CAPACITY = 4096;
+
+    private static final long WRITE_DELAY = 1000;
+    private static final int MAX_SECTION_NAME_LENGTH = 127;
+
+    /**
+     * <p>Maps nano time to wall clock microseconds, so spans recorded from session dates line up
+     * with spans timed here.
+     */
+    private static final long ORIGIN_NANOS = System.nanoTime();
+    private static final long ORIGIN_MICROS = System.currentTimeMillis() * 1000;
+
+    private final int capacity;
+    private final AtomicLong spanCount = new AtomicLong();
+    private final ArrayDeque<Span> completed;
+    private final ThreadLocal<Span> current;
+    private final ConcurrentHashMap<Long, Span> sessionSpans;
+    private final ScheduledExecutorService writer;
+    private final AtomicBoolean writeScheduled = new AtomicBoolean();
+    private volatile File outputFile;
+    private volatile boolean systemTraceEnabled;
+    private long droppedSpans;
+
+    public Tracer() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity number of completed spans kept, older spans are dropped
+     */
+    public Tracer(final int capacity) {
+        this.capacity = capacity;
+        this.completed = new ArrayDeque<>();
+        this.current = new ThreadLocal<>();
+        this.sessionSpans = new ConcurrentHashMap<>();
+        this.writer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(runnable, "tracer");
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * <p>Sets the file the trace is written to shortly after a root span ends.
+     */
+    public void setOutputFile(final File outputFile) {
+        this.outputFile = outputFile;
+    }
+
+    /**
+     * <p>Emits spans as async <code>android.os.Trace</code> sections too. Has no effect before
+     * Android 10.
+     */
+    public void setSystemTraceEnabled(final boolean systemTraceEnabled) {
+        this.systemTraceEnabled = systemTraceEnabled;
+    }
+
+    /**
+     * @return current time in microseconds on the trace clock
+     */
+    public static long now() {
+        return ORIGIN_MICROS + (System.nanoTime() - ORIGIN_NANOS) / 1000;
+    }
+
+    /**
+     * <p>Starts a span under the current span of this thread, or a root span if there is none.
+     */
+    public Span startSpan(final String name) {
+        return startSpan(name, current.get());
+    }
+
+    /**
+     * @param parent parent span, a root span is started when null
+     */
+    public Span startSpan(final String name, final Span parent) {
+        final boolean systemTraced = isSystemTracing();
+        final Span span = new Span(name, parent, now(), systemTraced);
+        if (systemTraced && Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            Trace.beginAsyncSection(sectionName(name), (int) span.id);
+        }
+        return span;
+    }
+
+    /**
+     * <p>Records a span that has already ended.
+     *
+     * @param startTime start time on the trace clock, in microseconds
+     * @param endTime   end time on the trace clock, in microseconds
+     */
+    public Span record(final String name, final Span parent, final long startTime, final long endTime) {
+        final Span span = new Span(name, parent, startTime, false);
+        span.end(Math.max(startTime, endTime));
+        return span;
+    }
+
+    /**
+     * <p>Makes the given span the current span of this thread.
+     *
+     * @return the previous current span, to be passed to {@link #exit(Span)}
+     */
+    public Span enter(final Span span) {
+        final Span previous = current.get();
+        current.set(span);
+        return previous;
+    }
+
+    public void exit(final Span previous) {
+        if (previous == null) {
+            current.remove();
+        } else {
+            current.set(previous);
+        }
+    }
+
+    public Span getCurrentSpan() {
+        return current.get();
+    }
+
+    /**
+     * <p>Binds a span to a session. The session's spans are recorded under it when the session
+     * completes, and then the span ends.
+     */
+    public void bindSession(final long sessionId, final Span span) {
+        sessionSpans.put(sessionId, span);
+    }
+
+    @Override
+    public void apply(final Session session) {
+        final Span boundSpan = sessionSpans.remove(session.getSessionId());
+
+        // ALREADY RECORDED BY completeSession
+        if (boundSpan != null && boundSpan.isEnded()) {
+            return;
+        }
+
+        recordSession(session, boundSpan);
+    }
+
+    /**
+     * <p>Records a session and ends its bound span before the global execute callback runs. The
+     * binding is kept until the tracer's own execute callback is called, which then only drops it.
+     */
+    public void completeSession(final Session session) {
+        final Span boundSpan = sessionSpans.get(session.getSessionId());
+        if (boundSpan != null && !boundSpan.isEnded()) {
+            recordSession(session, boundSpan);
+        }
+    }
+
+    protected void recordSession(final Session session, final Span boundSpan) {
+        final long callbackTime = now();
+        final Date createTime = session.getCreateTime();
+        final Date startTime = session.getStartTime();
+        final Date endTime = session.getEndTime();
+
+        final Span parent;
+        if (boundSpan != null) {
+            parent = boundSpan;
+        } else {
+            parent = new Span(String.format("session %d", session.getSessionId()), null, (createTime == null) ? callbackTime : createTime.getTime() * 1000, false);
+            parent.setArg("command", session.getCommand());
+        }
+        parent.setArg("sessionId", session.getSessionId());
+        parent.setArg("state", String.valueOf(session.getState()));
+        parent.setArg("returnCode", String.valueOf(session.getReturnCode()));
+
+        if (createTime != null && startTime != null) {
+            record("queue", parent, createTime.getTime() * 1000, startTime.getTime() * 1000);
+        }
+        if (startTime != null && endTime != null) {
+            record("ffmpeg", parent, startTime.getTime() * 1000, endTime.getTime() * 1000);
+        }
+        if (endTime != null) {
+            record("execute callback", parent, endTime.getTime() * 1000, callbackTime);
+        }
+
+        parent.end(callbackTime);
+    }
+
+    public synchronized long getDroppedSpanCount() {
+        return droppedSpans;
+    }
+
+    /**
+     * <p>Writes the completed spans as a Chrome trace event file.
+     */
+    public void writeChromeTrace(final File file) throws IOException, JSONException {
+        final List<Span> spans;
+        synchronized (this) {
+            spans = new ArrayList<>(completed);
+        }
+
+        final JSONArray events = new JSONArray();
+        for (Span span : spans) {
+            final JSONObject args = new JSONObject();
+            args.put("spanId", span.id);
+            args.put("parentId", span.parentId);
+            args.put("thread", span.threadName);
+            synchronized (span.args) {
+                for (Map.Entry<String, Object> arg : span.args.entrySet()) {
+                    args.put(arg.getKey(), arg.getValue());
+                }
+            }
+
+            final String id = String.format("0x%x", span.traceId);
+            events.put(createEvent(span.name, "b", id, span.startTime).put("args", args));
+            events.put(createEvent(span.name, "e", id, span.endTime));
+        }
+
+        final JSONObject trace = new JSONObject();
+        trace.put("traceEvents", events);
+        trace.put("displayTimeUnit", "ms");
+
+        final File partFile = new File(file.getAbsolutePath() + ".part");
+        Writer writer = null;
+        try {
+            writer = new FileWriter(partFile);
+            writer.write(trace.toString());
+            writer.close();
+            writer = null;
+
+            if (!partFile.renameTo(file)) {
+                throw new IOException(String.format("Failed to rename %s.", partFile.getAbsolutePath()));
+            }
+        } finally {
+            IOUtil.closeQuietly(writer);
+            partFile.delete();
+        }
+    }
+
+    protected JSONObject createEvent(final String name, final String phase, final String id, final long timestamp) throws JSONException {
+        final JSONObject event = new JSONObject();
+        event.put("name", name);
+        event.put("cat", "ffmpegkit");
+        event.put("ph", phase);
+        event.put("id", id);
+        event.put("ts", timestamp);
+        event.put("pid", Process.myPid());
+        event.put("tid", 0);
+        return event;
+    }
+
+    protected void finish(final Span span) {
+        synchronized (this) {
+            if (completed.size() >= capacity) {
+                completed.pollFirst();
+                droppedSpans++;
+            }
+            completed.addLast(span);
+        }
+
+        if (span.isRoot() && outputFile != null) {
+            scheduleWrite();
+        }
+    }
+
+    /**
+     * <p>Writes are delayed, so roots ending close together are written once.
+     */
+    protected void scheduleWrite() {
+        if (!writeScheduled.compareAndSet(false, true)) {
+            return;
+        }
+
+        writer.schedule(new Runnable() {
+
+            @Override
+            public void run() {
+                writeScheduled.set(false);
+
+                final File file = outputFile;
+                if (file == null) {
+                    return;
+                }
+                try {
+                    writeChromeTrace(file);
+                } catch (final IOException | JSONException e) {
+                    Log.w(TAG, String.format("Writing trace to %s failed.%s", file.getAbsolutePath(), Exceptions.getStackTraceString(e)));
+                }
+            }
+        }, WRITE_DELAY, TimeUnit.MILLISECONDS);
+    }
+
+    protected boolean isSystemTracing() {
+        return systemTraceEnabled && Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q && Trace.isEnabled();
+    }
+
+    protected static String sectionName(final String name) {
+        return (name.length() > MAX_SECTION_NAME_LENGTH) ? name.substring(0, MAX_SECTION_NAME_LENGTH) : name;
+    }
+
+}
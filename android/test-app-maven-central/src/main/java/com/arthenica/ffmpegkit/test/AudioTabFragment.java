@@ -34,14 +34,14 @@ import androidx.appcompat.app.AlertDialog;
 import androidx.fragment.app.Fragment;
 
 import com.arthenica.ffmpegkit.ExecuteCallback;
-import com.arthenica.ffmpegkit.FFmpegKit;
-import com.arthenica.ffmpegkit.FFmpegKitConfig;
 import com.arthenica.ffmpegkit.FFmpegSession;
 import com.arthenica.ffmpegkit.LogCallback;
 import com.arthenica.ffmpegkit.ReturnCode;
 import com.arthenica.ffmpegkit.Session;
 import com.arthenica.ffmpegkit.SessionState;
+import com.arthenica.ffmpegkit.util.CallbackExecutor;
 import com.arthenica.ffmpegkit.util.DialogUtil;
+import com.arthenica.ffmpegkit.util.SyncSessions;
 
 import java.io.File;
 import java.util.concurrent.Callable;
@@ -97,8 +97,8 @@ public class AudioTabFragment extends Fragment implements AdapterView.OnItemSele
         return new AudioTabFragment();
     }
 
-    public void enableLogCallback() {
-        FFmpegKitConfig.enableLogCallback(new LogCallback() {
+    public LogCallback createLogCallback() {
+        return MainActivity.getCallbackExecutor().wrap("audio log", new LogCallback() {
 
             @Override
             public void apply(final com.arthenica.ffmpegkit.Log log) {
@@ -111,15 +111,7 @@ public class AudioTabFragment extends Fragment implements AdapterView.OnItemSele
                     }
                 });
             }
-        });
-    }
-
-    public void disableLogCallback() {
-        FFmpegKitConfig.enableLogCallback(null);
-    }
-
-    public void disableStatisticsCallback() {
-        FFmpegKitConfig.enableStatisticsCallback(null);
+        }, CallbackExecutor.Policy.forLogs());
     }
 
     @Override
@@ -150,19 +142,19 @@ public class AudioTabFragment extends Fragment implements AdapterView.OnItemSele
 
         android.util.Log.d(TAG, String.format("FFmpeg process started with arguments\n'%s'.", ffmpegCommand));
 
-        FFmpegKit.executeAsync(ffmpegCommand, new ExecuteCallback() {
+        MainActivity.getSessionCallbackRouter().executeAsync(ffmpegCommand, new ExecuteCallback() {
 
             @Override
             public void apply(final Session session) {
                 final SessionState state = session.getState();
                 final ReturnCode returnCode = session.getReturnCode();
 
-                hideProgressDialog();
-
                 MainActivity.addUIAction(new Callable<Object>() {
 
                     @Override
                     public Object call() {
+                        hideProgressDialog();
+
                         if (ReturnCode.isSuccess(returnCode)) {
                             Popup.show(requireContext(), "Encode completed successfully.");
                             android.util.Log.d(TAG, "Encode completed successfully.");
@@ -175,7 +167,7 @@ public class AudioTabFragment extends Fragment implements AdapterView.OnItemSele
                     }
                 });
             }
-        });
+        }, createLogCallback(), null);
     }
 
     public void createAudioSample() {
@@ -190,7 +182,7 @@ public class AudioTabFragment extends Fragment implements AdapterView.OnItemSele
 
         android.util.Log.d(TAG, String.format("Creating audio sample with '%s'.", ffmpegCommand));
 
-        final FFmpegSession session = FFmpegKit.execute(ffmpegCommand);
+        final FFmpegSession session = SyncSessions.execute(ffmpegCommand);
         if (ReturnCode.isSuccess(session.getReturnCode())) {
             encodeButton.setEnabled(true);
             android.util.Log.d(TAG, "AUDIO sample created");
@@ -248,10 +240,9 @@ public class AudioTabFragment extends Fragment implements AdapterView.OnItemSele
 
     public void setActive() {
         android.util.Log.i(MainActivity.TAG, "Audio Tab Activated");
-        disableStatisticsCallback();
-        disableLogCallback();
+
+        // SAMPLE LOGS ARE NOT SHOWN, ONLY ENCODE SESSIONS HAVE A LOG CALLBACK
         createAudioSample();
-        enableLogCallback();
         Popup.show(requireContext(), getString(R.string.audio_test_tooltip_text));
     }
 
@@ -135,6 +135,7 @@ public class CommandTabFragment extends Fragment {
                     }
                 });
 
+                // NOT WRAPPED BY THE CALLBACK EXECUTOR, WHOSE BREAKER WOULD STOP THE OUTPUT AFTER A FEW MESSAGES
                 throw new AndroidRuntimeException("I am test exception thrown by the application");
             }
         }, null);
@@ -187,7 +188,6 @@ public class CommandTabFragment extends Fragment {
 
     private void setActive() {
         Log.i(MainActivity.TAG, "Command Tab Activated");
-        FFmpegKitConfig.enableLogCallback(null);
         Popup.show(requireContext(), getString(R.string.command_test_tooltip_text));
     }
 
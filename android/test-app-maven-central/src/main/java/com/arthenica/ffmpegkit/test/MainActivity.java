@@ -42,7 +42,22 @@ import com.arthenica.ffmpegkit.FFprobeKit;
 import com.arthenica.ffmpegkit.FFprobeSession;
 import com.arthenica.ffmpegkit.Level;
 import com.arthenica.ffmpegkit.Signal;
+import com.arthenica.ffmpegkit.util.AdaptiveConcurrencyController;
+import com.arthenica.ffmpegkit.util.CallbackExecutor;
+import com.arthenica.ffmpegkit.util.FastProbe;
+import com.arthenica.ffmpegkit.util.JobQueue;
+import com.arthenica.ffmpegkit.util.MediaInformationCache;
+import com.arthenica.ffmpegkit.util.MetricsExporter;
+import com.arthenica.ffmpegkit.util.MetricsRegistry;
+import com.arthenica.ffmpegkit.util.ResourceSampler;
 import com.arthenica.ffmpegkit.util.ResourcesUtil;
+import com.arthenica.ffmpegkit.util.ResultCache;
+import com.arthenica.ffmpegkit.util.SafStagingCache;
+import com.arthenica.ffmpegkit.util.SessionCallbackRouter;
+import com.arthenica.ffmpegkit.util.SessionLogArchive;
+import com.arthenica.ffmpegkit.util.SessionMetrics;
+import com.arthenica.ffmpegkit.util.SyncSessions;
+import com.arthenica.ffmpegkit.util.Tracer;
 import com.arthenica.smartexception.java.Exceptions;
 
 import java.io.File;
@@ -53,6 +68,8 @@ import java.util.List;
 import java.util.Queue;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.function.LongSupplier;
 
 public class MainActivity extends AppCompatActivity {
 
@@ -64,6 +81,12 @@ public class MainActivity extends AppCompatActivity {
             Manifest.permission.CAMERA
     };
 
+    /**
+     * Serves metrics over HTTP on loopback port {@link MetricsExporter#DEFAULT_PORT} when enabled.
+     * Snapshots are written to the files directory either way.
+     */
+    public static final boolean METRICS_SERVER_ENABLED = true;
+
     static {
         Exceptions.registerRootPackage("com.arthenica");
     }
@@ -72,6 +95,39 @@ public class MainActivity extends AppCompatActivity {
 
     protected static final Handler handler = new Handler();
 
+    /**
+     * Runs tasks on the main thread without waiting for the next UI action poll.
+     */
+    protected static final Executor uiExecutor = new Executor() {
+
+        @Override
+        public void execute(final Runnable runnable) {
+            handler.post(runnable);
+        }
+    };
+
+    protected static JobQueue jobQueue;
+
+    protected static ResultCache resultCache;
+
+    protected static SafStagingCache safStagingCache;
+
+    protected static MediaInformationCache mediaInformationCache;
+
+    protected static SessionLogArchive sessionLogArchive;
+
+    protected static SessionCallbackRouter sessionCallbackRouter;
+
+    protected static final CallbackExecutor callbackExecutor = new CallbackExecutor(2);
+
+    protected static ResourceSampler resourceSampler;
+
+    protected static final MetricsRegistry metricsRegistry = new MetricsRegistry();
+
+    protected static MetricsExporter metricsExporter;
+
+    protected static final Tracer tracer = new Tracer();
+
     protected static final Runnable runnable = new Runnable() {
 
         @Override
@@ -147,6 +203,54 @@ public class MainActivity extends AppCompatActivity {
             Log.e(TAG, String.format("Font registration failed.%s.", Exceptions.getStackTraceString(e)));
         }
 
+        openJobQueue();
+
+        if (resultCache == null) {
+            resultCache = new ResultCache(new File(getCacheDir(), "result-cache"), 64 * 1024 * 1024);
+        }
+
+        if (safStagingCache == null) {
+            safStagingCache = new SafStagingCache(this, new File(getCacheDir(), "saf-staging"), 256 * 1024 * 1024);
+        }
+
+        if (mediaInformationCache == null) {
+            mediaInformationCache = new MediaInformationCache(new File(getCacheDir(), "media-information"));
+            mediaInformationCache.setFastProbe(new FastProbe(HttpsTabFragment.HTTPS_TEST_PROJECTION, FastProbe.DEFAULT_TIERS, true));
+        }
+
+        if (sessionCallbackRouter == null) {
+            sessionCallbackRouter = new SessionCallbackRouter();
+
+            // THE ONLY GLOBAL CALLBACKS, TABS REGISTER SINKS FOR THEIR OWN SESSIONS
+            FFmpegKitConfig.enableLogCallback(sessionCallbackRouter);
+            FFmpegKitConfig.enableStatisticsCallback(sessionCallbackRouter);
+            FFmpegKitConfig.enableExecuteCallback(sessionCallbackRouter);
+
+            // SYNCHRONOUS SESSIONS DO NOT CALL THE EXECUTE CALLBACK, THEY ARE REPORTED WHEN THEY RETURN
+            SyncSessions.enableExecuteCallback(sessionCallbackRouter);
+
+            // EVERY SESSION IS TRACED, UNDER ITS STAGE'S SPAN WHEN IT IS PART OF A PIPELINE
+            tracer.setOutputFile(new File(getFilesDir(), "trace.json"));
+            tracer.setSystemTraceEnabled(true);
+            sessionCallbackRouter.addExecuteCallback(tracer);
+        }
+
+        if (metricsExporter == null) {
+            openMetrics();
+        }
+
+        if (resourceSampler == null) {
+            resourceSampler = new ResourceSampler();
+            resourceSampler.setExportFile(new File(getFilesDir(), "resource-usage.csv"));
+
+            // SAMPLES ONLY WHILE FFMPEG SESSIONS RUN, STARTED BY THEIR FIRST LOG MESSAGE
+            sessionCallbackRouter.addLogCallback(resourceSampler);
+        }
+
+        if (sessionLogArchive == null) {
+            openSessionLogArchive();
+        }
+
         Log.d(TAG, "Listing supported camera ids.");
         listSupportedCameraIds();
 
@@ -197,8 +301,163 @@ public class MainActivity extends AppCompatActivity {
         handler.postDelayed(runnable, 250);
     }
 
+    /**
+     * <p>When called within a traced flow the time the action waits for the UI thread and the time
+     * it runs are traced under the caller's current span.
+     */
     public static void addUIAction(final Callable<Object> callable) {
-        actionQueue.add(callable);
+        final Tracer.Span parent = tracer.getCurrentSpan();
+        if (parent == null) {
+            actionQueue.add(callable);
+            return;
+        }
+
+        final Tracer.Span dispatchSpan = tracer.startSpan("ui dispatch", parent);
+        actionQueue.add(new Callable<Object>() {
+
+            @Override
+            public Object call() throws Exception {
+                dispatchSpan.end();
+
+                final Tracer.Span actionSpan = tracer.startSpan("ui action", parent);
+                final Tracer.Span previous = tracer.enter(actionSpan);
+                try {
+                    return callable.call();
+                } finally {
+                    tracer.exit(previous);
+                    actionSpan.end();
+                }
+            }
+        });
+    }
+
+    public static Executor getUIExecutor() {
+        return uiExecutor;
+    }
+
+    public static JobQueue getJobQueue() {
+        return jobQueue;
+    }
+
+    public static ResultCache getResultCache() {
+        return resultCache;
+    }
+
+    public static SafStagingCache getSafStagingCache() {
+        return safStagingCache;
+    }
+
+    public static MediaInformationCache getMediaInformationCache() {
+        return mediaInformationCache;
+    }
+
+    public static SessionLogArchive getSessionLogArchive() {
+        return sessionLogArchive;
+    }
+
+    public static SessionCallbackRouter getSessionCallbackRouter() {
+        return sessionCallbackRouter;
+    }
+
+    public static CallbackExecutor getCallbackExecutor() {
+        return callbackExecutor;
+    }
+
+    public static ResourceSampler getResourceSampler() {
+        return resourceSampler;
+    }
+
+    public static MetricsRegistry getMetricsRegistry() {
+        return metricsRegistry;
+    }
+
+    public static Tracer getTracer() {
+        return tracer;
+    }
+
+    protected void openJobQueue() {
+        if (jobQueue == null) {
+
+            // RESUMES JOBS INTERRUPTED BY A PROCESS DEATH, THE JOURNAL IS REPLAYED ON THE QUEUE'S THREAD
+            jobQueue = JobQueue.open(new File(getFilesDir(), "job-queue.journal"), new AdaptiveConcurrencyController(1, 8, AdaptiveConcurrencyController.DEFAULT_SAMPLE_INTERVAL, new File(getCacheDir(), "concurrency-decisions.csv")));
+        }
+    }
+
+    protected void openSessionLogArchive() {
+        final SessionLogArchive archive = new SessionLogArchive(new File(getCacheDir(), "session-logs"), SessionLogArchive.DEFAULT_SEGMENT_SIZE, 32 * 1024 * 1024, 7L * 24 * 60 * 60 * 1000);
+        archive.setResourceSampler(resourceSampler);
+        archive.start();
+
+        // REPLACES FFREPORT, WHICH WROTE EVERY SESSION SYNCHRONOUSLY INTO A SINGLE UNBOUNDED FILE
+        sessionCallbackRouter.addExecuteCallback(archive);
+        sessionLogArchive = archive;
+    }
+
+    protected void openMetrics() {
+        final SessionMetrics sessionMetrics = new SessionMetrics(metricsRegistry);
+        sessionCallbackRouter.addStatisticsCallback(sessionMetrics);
+        sessionCallbackRouter.addExecuteCallback(sessionMetrics);
+
+        callbackExecutor.setCallDurationHistogram(metricsRegistry.histogram("ffmpegkit_callback_duration_seconds", "Time spent in user log and statistics callbacks.", MetricsRegistry.LATENCY_BUCKETS));
+        metricsRegistry.counter("ffmpegkit_callbacks_dropped_total", "Callback messages dropped or sampled out under overload.", new LongSupplier() {
+
+            @Override
+            public long getAsLong() {
+                return callbackExecutor.getDroppedCount();
+            }
+        });
+        metricsRegistry.counter("ffmpegkit_cache_hits_total", "Cache lookups that found an entry.", new LongSupplier() {
+
+            @Override
+            public long getAsLong() {
+                return resultCache.getHitCount();
+            }
+        }, "cache", "result");
+        metricsRegistry.counter("ffmpegkit_cache_misses_total", "Cache lookups that found no entry.", new LongSupplier() {
+
+            @Override
+            public long getAsLong() {
+                return resultCache.getMissCount();
+            }
+        }, "cache", "result");
+        metricsRegistry.counter("ffmpegkit_cache_hits_total", "Cache lookups that found an entry.", new LongSupplier() {
+
+            @Override
+            public long getAsLong() {
+                return safStagingCache.getHitCount();
+            }
+        }, "cache", "saf_staging");
+        metricsRegistry.counter("ffmpegkit_cache_misses_total", "Cache lookups that found no entry.", new LongSupplier() {
+
+            @Override
+            public long getAsLong() {
+                return safStagingCache.getMissCount();
+            }
+        }, "cache", "saf_staging");
+        metricsRegistry.counter("ffmpegkit_cache_hits_total", "Cache lookups that found an entry.", new LongSupplier() {
+
+            @Override
+            public long getAsLong() {
+                return mediaInformationCache.getHitCount();
+            }
+        }, "cache", "media_information");
+        metricsRegistry.counter("ffmpegkit_cache_misses_total", "Cache lookups that found no entry.", new LongSupplier() {
+
+            @Override
+            public long getAsLong() {
+                return mediaInformationCache.getMissCount();
+            }
+        }, "cache", "media_information");
+
+        metricsExporter = new MetricsExporter(metricsRegistry);
+        if (METRICS_SERVER_ENABLED) {
+            try {
+                metricsExporter.startServer(MetricsExporter.DEFAULT_PORT);
+            } catch (final IOException e) {
+                Log.w(TAG, String.format("Starting metrics server failed.%s.", Exceptions.getStackTraceString(e)));
+            }
+        }
+        metricsExporter.startSnapshots(new File(getFilesDir(), "metrics"), 60 * 1000);
     }
 
     protected void registerAppFont() throws IOException {
@@ -217,7 +476,6 @@ public class MainActivity extends AppCompatActivity {
         final HashMap<String, String> fontNameMapping = new HashMap<>();
         fontNameMapping.put("MyFontName", "Doppio One");
         FFmpegKitConfig.setFontDirectoryList(this, Arrays.asList(fontDirectory.getAbsolutePath(), "/system/fonts"), fontNameMapping);
-        FFmpegKitConfig.setEnvironmentVariable("FFREPORT", String.format("file=%s", new File(cacheDirectory.getAbsolutePath(), "ffreport.txt").getAbsolutePath()));
     }
 
     protected void listSupportedCameraIds() {
@@ -24,7 +24,11 @@ import android.net.Uri;
 import android.os.Bundle;
 import android.util.Log;
 import android.view.View;
+import android.widget.AdapterView;
+import android.widget.ArrayAdapter;
 import android.widget.MediaController;
+import android.widget.Spinner;
+import android.widget.TextView;
 import android.widget.VideoView;
 
 import androidx.annotation.NonNull;
@@ -32,28 +36,36 @@ import androidx.annotation.Nullable;
 import androidx.appcompat.app.AlertDialog;
 import androidx.fragment.app.Fragment;
 
-import com.arthenica.ffmpegkit.ExecuteCallback;
-import com.arthenica.ffmpegkit.FFmpegKit;
 import com.arthenica.ffmpegkit.FFmpegKitConfig;
 import com.arthenica.ffmpegkit.LogCallback;
-import com.arthenica.ffmpegkit.ReturnCode;
 import com.arthenica.ffmpegkit.Session;
+import com.arthenica.ffmpegkit.util.CallbackExecutor;
 import com.arthenica.ffmpegkit.util.DialogUtil;
+import com.arthenica.ffmpegkit.util.Pipeline;
 import com.arthenica.ffmpegkit.util.ResourcesUtil;
+import com.arthenica.ffmpegkit.util.Tracer;
 import com.arthenica.smartexception.java.Exceptions;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Locale;
 import java.util.concurrent.Callable;
 
 import static com.arthenica.ffmpegkit.test.MainActivity.TAG;
-import static com.arthenica.ffmpegkit.test.MainActivity.notNull;
 
-public class VidStabTabFragment extends Fragment {
+public class VidStabTabFragment extends Fragment implements AdapterView.OnItemSelectedListener {
+    private static final String STAGE_CREATE = "create";
+    private static final String STAGE_DETECT = "detect";
+    private static final String STAGE_TRANSFORM = "transform";
+    private static final String FUSED_MODE = "fused";
+    private static final String STREAMING_MODE = "streaming";
+    private static final long VIDEO_DURATION = 9000;
+
     private VideoView videoView;
     private VideoView stabilizedVideoView;
     private AlertDialog createProgressDialog;
     private AlertDialog stabilizeProgressDialog;
+    private String selectedMode;
 
     public VidStabTabFragment() {
         super(R.layout.fragment_vidstab_tab);
@@ -63,6 +75,12 @@ public class VidStabTabFragment extends Fragment {
     public void onViewCreated(@NonNull View view, @Nullable Bundle savedInstanceState) {
         super.onViewCreated(view, savedInstanceState);
 
+        Spinner vidstabModeSpinner = view.findViewById(R.id.vidstabModeSpinner);
+        ArrayAdapter<CharSequence> adapter = ArrayAdapter.createFromResource(requireContext(), R.array.vidstab_mode, R.layout.spinner_item);
+        adapter.setDropDownViewResource(R.layout.spinner_dropdown_item);
+        vidstabModeSpinner.setAdapter(adapter);
+        vidstabModeSpinner.setOnItemSelectedListener(this);
+
         View stabilizeVideoButton = view.findViewById(R.id.stabilizeVideoButton);
         stabilizeVideoButton.setOnClickListener(new View.OnClickListener() {
 
@@ -77,6 +95,8 @@ public class VidStabTabFragment extends Fragment {
 
         createProgressDialog = DialogUtil.createProgressDialog(requireContext(), "Creating video");
         stabilizeProgressDialog = DialogUtil.createProgressDialog(requireContext(), "Stabilizing video");
+
+        selectedMode = getResources().getStringArray(R.array.vidstab_mode)[0];
     }
 
     @Override
@@ -85,18 +105,28 @@ public class VidStabTabFragment extends Fragment {
         setActive();
     }
 
+    @Override
+    public void onItemSelected(AdapterView<?> parent, View view, int position, long id) {
+        selectedMode = parent.getItemAtPosition(position).toString();
+    }
+
+    @Override
+    public void onNothingSelected(AdapterView<?> parent) {
+        // DO NOTHING
+    }
+
     public static VidStabTabFragment newInstance() {
         return new VidStabTabFragment();
     }
 
-    public void enableLogCallback() {
-        FFmpegKitConfig.enableLogCallback(new LogCallback() {
+    public LogCallback createLogCallback() {
+        return MainActivity.getCallbackExecutor().wrap("vidstab log", new LogCallback() {
 
             @Override
             public void apply(final com.arthenica.ffmpegkit.Log log) {
                 Log.d(MainActivity.TAG, log.getMessage());
             }
-        });
+        }, CallbackExecutor.Policy.forLogs());
     }
 
     public void stabilizeVideo() {
@@ -106,6 +136,9 @@ public class VidStabTabFragment extends Fragment {
         final File shakeResultsFile = getShakeResultsFile();
         final File videoFile = getVideoFile();
         final File stabilizedVideoFile = getStabilizedVideoFile();
+        final Tracer tracer = MainActivity.getTracer();
+        final Tracer.Span flowSpan = tracer.startSpan("vidstab").setArg("mode", selectedMode);
+        final Tracer.Span previousSpan = tracer.enter(flowSpan);
 
         try {
 
@@ -123,97 +156,137 @@ public class VidStabTabFragment extends Fragment {
                 stabilizedVideoFile.delete();
             }
 
-            Log.d(TAG, "Testing VID.STAB");
+            Log.d(TAG, String.format("Testing VID.STAB in %s mode", selectedMode));
 
             showCreateProgressDialog();
 
+            final Tracer.Span extractSpan = tracer.startSpan("extract assets");
             ResourcesUtil.resourceToFile(getResources(), R.drawable.machupicchu, image1File);
             ResourcesUtil.resourceToFile(getResources(), R.drawable.pyramid, image2File);
             ResourcesUtil.resourceToFile(getResources(), R.drawable.stonehenge, image3File);
+            extractSpan.end();
+
+            final String stabilizeVideoCommand = String.format("-y -i %s -vf vidstabtransform=smoothing=30:input=%s -c:v mpeg4 %s", videoFile.getAbsolutePath(), shakeResultsFile.getAbsolutePath(), stabilizedVideoFile.getAbsolutePath());
+
+            final Pipeline.Builder builder = new Pipeline.Builder("vidstab");
+
+            if (FUSED_MODE.equals(selectedMode)) {
+
+                // MOTION IS DETECTED ON A SPLIT BRANCH WHILE THE VIDEO IS CREATED
+                final String ffmpegCommand = Video.generateShakingVideoWithMotionDetectionScript(image1File.getAbsolutePath(), image2File.getAbsolutePath(), image3File.getAbsolutePath(), videoFile.getAbsolutePath(), shakeResultsFile.getAbsolutePath());
+                builder.addStage(new Pipeline.Stage(STAGE_CREATE, ffmpegCommand)
+                        .writes(videoFile.getAbsolutePath(), shakeResultsFile.getAbsolutePath())
+                        .setExpectedDuration(VIDEO_DURATION));
+            } else if (STREAMING_MODE.equals(selectedMode)) {
+
+                // MOTION DETECTION READS THE VIDEO FROM A PIPE WHILE IT IS BEING CREATED
+                final String videoPipe = FFmpegKitConfig.registerNewFFmpegPipe(requireContext());
+                final String ffmpegCommand = Video.generateShakingVideoWithPipeScript(image1File.getAbsolutePath(), image2File.getAbsolutePath(), image3File.getAbsolutePath(), videoFile.getAbsolutePath(), videoPipe);
+                final String analyzeVideoCommand = String.format("-y -f nut -i %s -vf vidstabdetect=shakiness=10:accuracy=15:result=%s -f null -", videoPipe, shakeResultsFile.getAbsolutePath());
+                builder.addStage(new Pipeline.Stage(STAGE_CREATE, ffmpegCommand)
+                        .writes(videoFile.getAbsolutePath())
+                        .writesPipe(videoPipe)
+                        .setExpectedDuration(VIDEO_DURATION));
+                builder.addStage(new Pipeline.Stage(STAGE_DETECT, analyzeVideoCommand)
+                        .readsPipe(videoPipe)
+                        .writes(shakeResultsFile.getAbsolutePath())
+                        .setExpectedDuration(VIDEO_DURATION));
+            } else {
+                final String ffmpegCommand = Video.generateShakingVideoScript(image1File.getAbsolutePath(), image2File.getAbsolutePath(), image3File.getAbsolutePath(), videoFile.getAbsolutePath());
+                final String analyzeVideoCommand = String.format("-y -i %s -vf vidstabdetect=shakiness=10:accuracy=15:result=%s -f null -", videoFile.getAbsolutePath(), shakeResultsFile.getAbsolutePath());
+                builder.addStage(new Pipeline.Stage(STAGE_CREATE, ffmpegCommand)
+                        .writes(videoFile.getAbsolutePath())
+                        .setExpectedDuration(VIDEO_DURATION));
+                builder.addStage(new Pipeline.Stage(STAGE_DETECT, analyzeVideoCommand)
+                        .reads(videoFile.getAbsolutePath())
+                        .writes(shakeResultsFile.getAbsolutePath())
+                        .setExpectedDuration(VIDEO_DURATION));
+            }
 
-            final String ffmpegCommand = Video.generateShakingVideoScript(image1File.getAbsolutePath(), image2File.getAbsolutePath(), image3File.getAbsolutePath(), videoFile.getAbsolutePath());
-
-            Log.d(TAG, String.format("FFmpeg process started with arguments\n'%s'.", ffmpegCommand));
-
-            FFmpegKit.executeAsync(ffmpegCommand, new ExecuteCallback() {
-
-                @Override
-                public void apply(final Session session) {
-                    Log.d(TAG, String.format("FFmpeg process exited with state %s and rc %s.%s", session.getState(), session.getReturnCode(), notNull(session.getFailStackTrace(), "\n")));
-
-                    hideCreateProgressDialog();
-
-                    MainActivity.addUIAction(new Callable<Object>() {
+            final Pipeline pipeline = builder
+                    .addStage(new Pipeline.Stage(STAGE_TRANSFORM, stabilizeVideoCommand)
+                            .reads(videoFile.getAbsolutePath(), shakeResultsFile.getAbsolutePath())
+                            .writes(stabilizedVideoFile.getAbsolutePath())
+                            .setExpectedDuration(VIDEO_DURATION))
+                    .setTracer(tracer)
+                    .setListener(new Pipeline.Listener() {
 
                         @Override
-                        public Object call() {
-                            if (ReturnCode.isSuccess(session.getReturnCode())) {
+                        public void onStageStarted(final Pipeline pipeline, final Pipeline.Stage stage) {
 
-                                Log.d(TAG, "Create completed successfully; stabilizing video.");
-
-                                final String analyzeVideoCommand = String.format("-y -i %s -vf vidstabdetect=shakiness=10:accuracy=15:result=%s -f null -", videoFile.getAbsolutePath(), shakeResultsFile.getAbsolutePath());
-
-                                showStabilizeProgressDialog();
-
-                                Log.d(TAG, String.format("FFmpeg process started with arguments\n'%s'.", analyzeVideoCommand));
+                            // CALLED BEFORE THE STAGE'S SESSION STARTS, SO NO MESSAGE IS MISSED
+                            MainActivity.getSessionCallbackRouter().register(stage.getSession().getSessionId(), createLogCallback(), null);
+                        }
 
-                                FFmpegKit.executeAsync(analyzeVideoCommand, new ExecuteCallback() {
+                        @Override
+                        public void onStageCompleted(final Pipeline pipeline, final Pipeline.Stage stage, final Session session) {
+                            if (STAGE_CREATE.equals(stage.getName()) && stage.getState() == Pipeline.StageState.COMPLETED) {
+                                MainActivity.addUIAction(new Callable<Object>() {
 
                                     @Override
-                                    public void apply(final Session secondSession) {
-                                        Log.d(TAG, String.format("FFmpeg process exited with state %s and rc %s.%s", secondSession.getState(), secondSession.getReturnCode(), notNull(secondSession.getFailStackTrace(), "\n")));
-
-                                        if (ReturnCode.isSuccess(secondSession.getReturnCode())) {
-                                            final String stabilizeVideoCommand = String.format("-y -i %s -vf vidstabtransform=smoothing=30:input=%s -c:v mpeg4 %s", videoFile.getAbsolutePath(), shakeResultsFile.getAbsolutePath(), stabilizedVideoFile.getAbsolutePath());
-
-                                            Log.d(TAG, String.format("FFmpeg process started with arguments\n'%s'.", stabilizeVideoCommand));
-
-                                            FFmpegKit.executeAsync(stabilizeVideoCommand, new ExecuteCallback() {
-
-                                                @Override
-                                                public void apply(final Session thirdSession) {
-                                                    Log.d(TAG, String.format("FFmpeg process exited with state %s and rc %s.%s", thirdSession.getState(), thirdSession.getReturnCode(), notNull(thirdSession.getFailStackTrace(), "\n")));
+                                    public Object call() {
+                                        Log.d(TAG, "Create completed successfully; stabilizing video.");
+                                        hideCreateProgressDialog();
+                                        showStabilizeProgressDialog();
+                                        return null;
+                                    }
+                                });
+                            }
+                        }
 
-                                                    hideStabilizeProgressDialog();
+                        @Override
+                        public void onProgress(final Pipeline pipeline, final Pipeline.Stage stage, final double progress) {
+                            MainActivity.addUIAction(new Callable<Object>() {
+
+                                @Override
+                                public Object call() {
+                                    updateProgressDialog(progress);
+                                    return null;
+                                }
+                            });
+                        }
 
-                                                    MainActivity.addUIAction(new Callable<Object>() {
+                        @Override
+                        public void onCompleted(final Pipeline pipeline, final Pipeline.Result result) {
+                            final boolean created = pipeline.getStage(STAGE_CREATE).getState() == Pipeline.StageState.COMPLETED;
 
-                                                        @Override
-                                                        public Object call() {
-                                                            if (ReturnCode.isSuccess(thirdSession.getReturnCode())) {
-                                                                Log.d(TAG, "Stabilize video completed successfully; playing videos.");
-                                                                playVideo();
-                                                                playStabilizedVideo();
-                                                            } else {
-                                                                Popup.show(requireContext(), "Stabilize video failed. Please check logs for the details.");
-                                                            }
+                            MainActivity.addUIAction(new Callable<Object>() {
 
-                                                            return null;
-                                                        }
-                                                    });
-                                                }
-                                            });
+                                @Override
+                                public Object call() {
+                                    if (created) {
+                                        hideStabilizeProgressDialog();
+                                    } else {
+                                        hideCreateProgressDialog();
+                                    }
 
-                                        } else {
-                                            hideStabilizeProgressDialog();
-                                            Popup.show(requireContext(), "Stabilize video failed. Please check logs for the details.");
-                                        }
+                                    if (result == Pipeline.Result.SUCCESS) {
+                                        Log.d(TAG, "Stabilize video completed successfully; playing videos.");
+                                        playVideo();
+                                        playStabilizedVideo();
+                                    } else if (created) {
+                                        Popup.show(requireContext(), "Stabilize video failed. Please check logs for the details.");
+                                    } else {
+                                        Popup.show(requireContext(), "Create video failed. Please check logs for the details.");
                                     }
-                                });
 
-                            } else {
-                                Popup.show(requireContext(), "Create video failed. Please check logs for the details.");
-                            }
+                                    flowSpan.setArg("result", result.name()).end();
 
-                            return null;
+                                    return null;
+                                }
+                            });
                         }
-                    });
-                }
-            });
+                    })
+                    .build();
+
+            pipeline.start();
 
         } catch (IOException e) {
             Log.e(TAG, String.format("Stabilize video failed %s.", Exceptions.getStackTraceString(e)));
+            flowSpan.setArg("error", e.getMessage()).end();
             Popup.show(requireContext(), "Stabilize video failed");
+        } finally {
+            tracer.exit(previousSpan);
         }
     }
 
@@ -279,7 +352,6 @@ public class VidStabTabFragment extends Fragment {
 
     public void setActive() {
         Log.i(MainActivity.TAG, "VidStab Tab Activated");
-        enableLogCallback();
         Popup.show(requireContext(), getString(R.string.vidstab_test_tooltip_text));
     }
 
@@ -295,6 +367,25 @@ public class VidStabTabFragment extends Fragment {
         stabilizeProgressDialog.show();
     }
 
+    /**
+     * @param progress progress of the whole pipeline, between 0 and 1
+     */
+    protected void updateProgressDialog(final double progress) {
+        final long completePercentage = Math.round(progress * 100);
+
+        if (createProgressDialog.isShowing()) {
+            TextView textView = createProgressDialog.findViewById(R.id.progressDialogText);
+            if (textView != null) {
+                textView.setText(String.format(Locale.ENGLISH, "Creating video: %% %d.", completePercentage));
+            }
+        } else if (stabilizeProgressDialog.isShowing()) {
+            TextView textView = stabilizeProgressDialog.findViewById(R.id.progressDialogText);
+            if (textView != null) {
+                textView.setText(String.format(Locale.ENGLISH, "Stabilizing video: %% %d.", completePercentage));
+            }
+        }
+    }
+
     protected void hideStabilizeProgressDialog() {
         stabilizeProgressDialog.dismiss();
     }
@@ -19,6 +19,8 @@
 
 package com.arthenica.ffmpegkit.test;
 
+import com.arthenica.ffmpegkit.util.OutputMode;
+
 import java.util.Locale;
 
 /**
@@ -46,10 +48,22 @@ public class Video {
                         "[stream2starting][stream1ending]blend=all_expr=\'if(gte(X,(W/2)*T/1)*lte(X,W-(W/2)*T/1),B,A)\':shortest=1[stream2blended];" +
                         "[stream3starting][stream2ending]blend=all_expr=\'if(gte(X,(W/2)*T/1)*lte(X,W-(W/2)*T/1),B,A)\':shortest=1[stream3blended];" +
                         "[stream1overlaid][stream2blended][stream2overlaid][stream3blended][stream3overlaid]concat=n=5:v=1:a=0,scale=w=640:h=424,format=yuv420p[video]\"" +
-                        " -map [video] -vsync 2 -async 1 -c:v mpeg4 -r 30 " + videoFilePath;
+                        " -map [video] -vsync 2 -async 1 -c:v mpeg4 -r 30 " + OutputMode.select(videoFilePath).getOptions() + videoFilePath;
     }
 
     static String generateEncodeVideoScript(final String image1Path, final String image2Path, final String image3Path, final String videoFilePath, final String videoCodec, final String customOptions) {
+        return generateEncodeVideoScript(image1Path, image2Path, image3Path, videoFilePath, videoCodec, customOptions, "");
+    }
+
+    /**
+     * <p>Generates the slideshow script with subtitles burned in by the same filter graph, so the
+     * video is encoded only once.
+     */
+    static String generateEncodeVideoWithSubtitlesScript(final String image1Path, final String image2Path, final String image3Path, final String subtitlePath, final String fontName, final String videoFilePath, final String videoCodec, final String customOptions) {
+        return generateEncodeVideoScript(image1Path, image2Path, image3Path, videoFilePath, videoCodec, customOptions, ",subtitles=" + subtitlePath + ":force_style='FontName=" + fontName + "'");
+    }
+
+    private static String generateEncodeVideoScript(final String image1Path, final String image2Path, final String image3Path, final String videoFilePath, final String videoCodec, final String customOptions, final String postFilters) {
         return
                 "-hide_banner -y -loop 1 -i \"" + image1Path + "\" " +
                         "-loop 1 -i '" + image2Path + "' " +
@@ -66,11 +80,37 @@ public class Video {
                         "[stream3out2]pad=width=640:height=427:x=(640-iw)/2:y=(427-ih)/2:color=#00000000,trim=duration=1,select=lte(n\\,30)[stream3starting];" +
                         "[stream2starting][stream1ending]blend=all_expr=\'if(gte(X,(W/2)*T/1)*lte(X,W-(W/2)*T/1),B,A)\':shortest=1[stream2blended];" +
                         "[stream3starting][stream2ending]blend=all_expr=\'if(gte(X,(W/2)*T/1)*lte(X,W-(W/2)*T/1),B,A)\':shortest=1[stream3blended];" +
-                        "[stream1overlaid][stream2blended][stream2overlaid][stream3blended][stream3overlaid]concat=n=5:v=1:a=0,scale=w=640:h=424,format=yuv420p[video]\"" +
-                        " -map [video] -vsync 2 -async 1 " + customOptions + "-c:v " + videoCodec.toLowerCase(Locale.ENGLISH) + " -r 30 " + videoFilePath;
+                        "[stream1overlaid][stream2blended][stream2overlaid][stream3blended][stream3overlaid]concat=n=5:v=1:a=0,scale=w=640:h=424,format=yuv420p" + postFilters + "[video]\"" +
+                        " -map [video] -vsync 2 -async 1 " + customOptions + "-c:v " + videoCodec.toLowerCase(Locale.ENGLISH) + " -r 30 " + OutputMode.select(videoFilePath).getOptions() + videoFilePath;
     }
 
     static String generateShakingVideoScript(final String image1Path, final String image2Path, final String image3Path, final String videoFilePath) {
+        return generateShakingVideoScript(image1Path, image2Path, image3Path, "", "", " -map [video] -vsync 2 -async 1 -c:v mpeg4 -r 30 " + videoFilePath);
+    }
+
+    /**
+     * <p>Generates the shaking video and runs <code>vidstabdetect</code> on a <code>split</code> branch
+     * of the same filter graph, so motion is detected without decoding the video again. The
+     * detection branch ends in a <code>nullsink</code>, so <code>[video]</code> is the only output
+     * of the graph.
+     */
+    static String generateShakingVideoWithMotionDetectionScript(final String image1Path, final String image2Path, final String image3Path, final String videoFilePath, final String shakeResultsPath) {
+        return generateShakingVideoScript(image1Path, image2Path, image3Path,
+                ",fps=30,split=2[detect]",
+                ";[detect]vidstabdetect=shakiness=10:accuracy=15:result=" + shakeResultsPath + ",nullsink",
+                " -map [video] -vsync 2 -async 1 -c:v mpeg4 -r 30 " + videoFilePath);
+    }
+
+    /**
+     * <p>Generates the shaking video once and writes it both to a file and, in <code>nut</code>
+     * format, to a pipe that the motion detection pass reads.
+     */
+    static String generateShakingVideoWithPipeScript(final String image1Path, final String image2Path, final String image3Path, final String videoFilePath, final String videoPipe) {
+        return generateShakingVideoScript(image1Path, image2Path, image3Path, "", "",
+                " -map [video] -vsync 2 -async 1 -c:v mpeg4 -r 30 -flags +global_header -f tee \"[f=mp4]" + videoFilePath + "|[f=nut]" + videoPipe + "\"");
+    }
+
+    private static String generateShakingVideoScript(final String image1Path, final String image2Path, final String image3Path, final String postFilters, final String branchFilters, final String outputOptions) {
         return
                 "-hide_banner -y -loop 1 -i \"" + image1Path + "\" " +
                         "-loop 1 -i '" + image2Path + "' " +
@@ -86,8 +126,8 @@ public class Video {
                         "[3:v][stream1overlaid]overlay=x=\'2*mod(n,4)\':y=\'2*mod(n,2)\',trim=duration=3[stream1shaking];" +
                         "[3:v][stream2overlaid]overlay=x=\'2*mod(n,4)\':y=\'2*mod(n,2)\',trim=duration=3[stream2shaking];" +
                         "[3:v][stream3overlaid]overlay=x=\'2*mod(n,4)\':y=\'2*mod(n,2)\',trim=duration=3[stream3shaking];" +
-                        "[stream1shaking][stream2shaking][stream3shaking]concat=n=3:v=1:a=0,scale=w=640:h=424,format=yuv420p[video]\"" +
-                        " -map [video] -vsync 2 -async 1 -c:v mpeg4 -r 30 " + videoFilePath;
+                        "[stream1shaking][stream2shaking][stream3shaking]concat=n=3:v=1:a=0,scale=w=640:h=424,format=yuv420p" + postFilters + "[video]" + branchFilters + "\"" +
+                        outputOptions;
     }
 
 }
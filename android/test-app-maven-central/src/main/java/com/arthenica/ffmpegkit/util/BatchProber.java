@@ -0,0 +1,384 @@
+/*
+ * Copyright (c) 2021 Taner Sener
+ *
+ * This file is part of FFmpegKitTest.
+ *
+ * FFmpegKitTest is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FFmpegKitTest is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with FFmpegKitTest.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.arthenica.ffmpegkit.util;
+
+import android.util.Log;
+
+import com.arthenica.ffmpegkit.AbstractSession;
+import com.arthenica.ffmpegkit.ExecuteCallback;
+import com.arthenica.ffmpegkit.FFprobeKit;
+import com.arthenica.ffmpegkit.MediaInformation;
+import com.arthenica.ffmpegkit.MediaInformationSession;
+import com.arthenica.ffmpegkit.Session;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static com.arthenica.ffmpegkit.test.MainActivity.TAG;
+
+/**
+ * <p>Probes many paths or URLs with a bounded number of probes in flight.
+ *
+ * <p>Identical inputs in a batch are probed once. Each probe has a timeout: remote inputs are
+ * given an I/O timeout through <code>-rw_timeout</code>, and a probe that has not completed when
+ * its timeout expires is reported as timed out. FFprobe sessions can not be cancelled, so a timed
+ * out probe keeps its slot until it ends on its own. Results are delivered in completion order,
+ * both to an optional listener and through the {@link Iterator} of the batch.
+ */
+public class BatchProber {
+
+    public enum Status {
+        SUCCESS,
+        FAILED,
+        TIMEOUT,
+        CANCELLED
+    }
+
+    public interface Listener {
+        void onResult(Batch batch, Result result);
+
+        void onCompleted(Batch batch);
+    }
+
+    public static class Result {
+        private final String input;
+        private final Status status;
+        private final MediaInformation mediaInformation;
+        private final MediaInformationSession session;
+        private final long duration;
+
+        Result(final String input, final Status status, final MediaInformation mediaInformation, final MediaInformationSession session, final long duration) {
+            this.input = input;
+            this.status = status;
+            this.mediaInformation = mediaInformation;
+            this.session = session;
+            this.duration = duration;
+        }
+
+        public String getInput() {
+            return input;
+        }
+
+        public Status getStatus() {
+            return status;
+        }
+
+        public MediaInformation getMediaInformation() {
+            return mediaInformation;
+        }
+
+        /**
+         * @return probe session, null if the probe was not started
+         */
+        public MediaInformationSession getSession() {
+            return session;
+        }
+
+        public long getDuration() {
+            return duration;
+        }
+    }
+
+    /**
+     * <p>A running batch. Iterating it blocks until the next result is available.
+     */
+    public class Batch implements Iterator<Result>, Iterable<Result> {
+        private final int submitted;
+        private final int unique;
+        private final Listener listener;
+        private final BlockingQueue<Result> results;
+        private final AtomicInteger completed;
+        private final AtomicInteger succeeded;
+        private final AtomicInteger failed;
+        private final AtomicInteger timedOut;
+        private final long startTime;
+        private volatile long endTime;
+        private volatile boolean cancelled;
+        private int consumed;
+
+        Batch(final int submitted, final int unique, final Listener listener) {
+            this.submitted = submitted;
+            this.unique = unique;
+            this.listener = listener;
+            this.results = new LinkedBlockingQueue<>();
+            this.completed = new AtomicInteger();
+            this.succeeded = new AtomicInteger();
+            this.failed = new AtomicInteger();
+            this.timedOut = new AtomicInteger();
+            this.startTime = System.currentTimeMillis();
+        }
+
+        /**
+         * <p>Stops starting new probes. Inputs that were not started are reported as cancelled.
+         */
+        public void cancel() {
+            cancelled = true;
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        public boolean isDone() {
+            return completed.get() == unique;
+        }
+
+        @Override
+        public Iterator<Result> iterator() {
+            return this;
+        }
+
+        @Override
+        public synchronized boolean hasNext() {
+            return consumed < unique;
+        }
+
+        @Override
+        public synchronized Result next() {
+            if (consumed >= unique) {
+                throw new NoSuchElementException();
+            }
+            try {
+                final Result result = results.take();
+                consumed++;
+                return result;
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new NoSuchElementException("Interrupted while waiting for the next result.");
+            }
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        public int getSubmittedCount() {
+            return submitted;
+        }
+
+        public int getDuplicateCount() {
+            return submitted - unique;
+        }
+
+        public int getCompletedCount() {
+            return completed.get();
+        }
+
+        public int getSucceededCount() {
+            return succeeded.get();
+        }
+
+        public int getFailedCount() {
+            return failed.get();
+        }
+
+        public int getTimedOutCount() {
+            return timedOut.get();
+        }
+
+        public long getElapsedTime() {
+            return ((endTime == 0) ? System.currentTimeMillis() : endTime) - startTime;
+        }
+
+        public double getProbesPerSecond() {
+            final long elapsed = getElapsedTime();
+            return (elapsed == 0) ? 0 : completed.get() * 1000.0 / elapsed;
+        }
+
+        public String getStats() {
+            return String.format(Locale.ENGLISH, "%d/%d probed in %d ms, %.2f probes/s, %d succeeded, %d failed, %d timed out, %d duplicates skipped",
+                    getCompletedCount(), unique, getElapsedTime(), getProbesPerSecond(), getSucceededCount(), getFailedCount(), getTimedOutCount(), getDuplicateCount());
+        }
+
+        protected void deliver(final Result result) {
+            switch (result.getStatus()) {
+                case SUCCESS:
+                    succeeded.incrementAndGet();
+                    break;
+                case TIMEOUT:
+                    timedOut.incrementAndGet();
+                    break;
+                default:
+                    failed.incrementAndGet();
+                    break;
+            }
+
+            results.add(result);
+
+            if (listener != null) {
+                listener.onResult(this, result);
+            }
+
+            if (completed.incrementAndGet() == unique) {
+                endTime = System.currentTimeMillis();
+
+                Log.d(TAG, String.format("Batch probe completed, %s.", getStats()));
+
+                if (listener != null) {
+                    listener.onCompleted(this);
+                }
+            }
+        }
+    }
+
+    public static final long DEFAULT_TIMEOUT = 30000;
+
+    private final ExecutorService executor;
+    private final long timeout;
+
+    public BatchProber(final int parallelism) {
+        this(parallelism, DEFAULT_TIMEOUT);
+    }
+
+    /**
+     * @param parallelism maximum number of probes in flight
+     * @param timeout     per item timeout in milliseconds
+     */
+    public BatchProber(final int parallelism, final long timeout) {
+        this.timeout = timeout;
+        this.executor = Executors.newFixedThreadPool(parallelism, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(runnable, "batch-prober-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * <p>Starts probing the given inputs.
+     *
+     * @param listener receives every result and the completion of the batch, may be null
+     * @return the batch, which can also be iterated to consume results as they complete
+     */
+    public Batch probe(final Collection<String> inputs, final Listener listener) {
+        final Set<String> uniqueInputs = new LinkedHashSet<>();
+        for (String input : inputs) {
+            if (input != null && !input.trim().isEmpty()) {
+                uniqueInputs.add(input.trim());
+            }
+        }
+
+        final Batch batch = new Batch(inputs.size(), uniqueInputs.size(), listener);
+
+        Log.d(TAG, String.format(Locale.ENGLISH, "Batch probe started for %d inputs, %d unique.", inputs.size(), uniqueInputs.size()));
+
+        if (uniqueInputs.isEmpty() && listener != null) {
+            listener.onCompleted(batch);
+        }
+
+        for (final String input : uniqueInputs) {
+            executor.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    if (batch.isCancelled()) {
+                        batch.deliver(new Result(input, Status.CANCELLED, null, null, 0));
+                    } else {
+                        probeOne(batch, input);
+                    }
+                }
+            });
+        }
+
+        return batch;
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    protected void probeOne(final Batch batch, final String input) {
+        final long startTime = System.currentTimeMillis();
+        final CountDownLatch latch = new CountDownLatch(1);
+        final AtomicReference<MediaInformationSession> completedSession = new AtomicReference<>();
+
+        final MediaInformationSession session = FFprobeKit.getMediaInformationFromCommandAsync(buildCommand(input), new ExecuteCallback() {
+
+            @Override
+            public void apply(final Session session) {
+                completedSession.set((MediaInformationSession) session);
+                latch.countDown();
+            }
+        }, null, AbstractSession.DEFAULT_TIMEOUT_FOR_ASYNCHRONOUS_MESSAGES_IN_TRANSMIT);
+
+        try {
+            if (!latch.await(timeout, TimeUnit.MILLISECONDS)) {
+                Log.d(TAG, String.format(Locale.ENGLISH, "Probing %s timed out after %d ms.", input, timeout));
+                batch.deliver(new Result(input, Status.TIMEOUT, null, session, System.currentTimeMillis() - startTime));
+                awaitTimedOut(input, latch, startTime);
+                return;
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            batch.deliver(new Result(input, Status.CANCELLED, null, session, System.currentTimeMillis() - startTime));
+            return;
+        }
+
+        final MediaInformation mediaInformation = completedSession.get().getMediaInformation();
+
+        batch.deliver(new Result(input, (mediaInformation == null) ? Status.FAILED : Status.SUCCESS, mediaInformation, completedSession.get(), System.currentTimeMillis() - startTime));
+    }
+
+    /**
+     * <p>FFprobe sessions can not be cancelled, so the slot of a timed out probe is held until the
+     * probe ends and the number of probes running never exceeds the parallelism.
+     */
+    protected void awaitTimedOut(final String input, final CountDownLatch latch, final long startTime) {
+        try {
+            latch.await();
+            Log.d(TAG, String.format(Locale.ENGLISH, "Timed out probe of %s ended after %d ms.", input, System.currentTimeMillis() - startTime));
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    protected String buildCommand(final String input) {
+        final StringBuilder command = new StringBuilder("-v error -hide_banner -print_format json -show_format -show_streams -show_chapters");
+
+        if (input.contains("://")) {
+
+            // STALLED CONNECTIONS FAIL ON THEIR OWN INSTEAD OF HOLDING A DECODER THREAD
+            command.append(String.format(Locale.ENGLISH, " -rw_timeout %d", timeout * 1000));
+        }
+
+        command.append(" -i \"").append(input).append("\"");
+
+        return command.toString();
+    }
+
+}
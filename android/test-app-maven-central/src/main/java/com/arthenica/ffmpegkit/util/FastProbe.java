@@ -0,0 +1,282 @@
+/*
+ * Copyright (c) 2021 Taner Sener
+ *
+ * This file is part of FFmpegKitTest.
+ *
+ * FFmpegKitTest is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FFmpegKitTest is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with FFmpegKitTest.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.arthenica.ffmpegkit.util;
+
+import android.os.Looper;
+import android.util.Log;
+
+import com.arthenica.ffmpegkit.MediaInformation;
+import com.arthenica.ffmpegkit.MediaInformationSession;
+import com.arthenica.ffmpegkit.ReturnCode;
+
+import java.util.Locale;
+import java.util.function.Supplier;
+
+import static com.arthenica.ffmpegkit.test.MainActivity.TAG;
+
+/**
+ * <p>Probes media with a small <code>-probesize</code> and <code>-analyzeduration</code> first and
+ * escalates to larger values only when the result is incomplete.
+ *
+ * <p>Only the fields of a {@link ProjectedMediaInformation.Projection} are requested through
+ * <code>-show_entries</code>. A tier is accepted when probing succeeds, at least one stream is
+ * found, and every projected codec name, video dimension and audio sample rate is known. The last
+ * tier uses FFmpeg's defaults and is accepted as it is.
+ *
+ * <p>Every tier is a synchronous ffprobe run, so probing is refused on the main thread.
+ */
+public class FastProbe {
+
+    public static class Tier {
+        private final long probeSize;
+        private final long analyzeDuration;
+
+        /**
+         * @param probeSize       probe size in bytes, 0 for the default
+         * @param analyzeDuration analyze duration in microseconds, 0 for the default
+         */
+        public Tier(final long probeSize, final long analyzeDuration) {
+            this.probeSize = probeSize;
+            this.analyzeDuration = analyzeDuration;
+        }
+
+        public long getProbeSize() {
+            return probeSize;
+        }
+
+        public long getAnalyzeDuration() {
+            return analyzeDuration;
+        }
+
+        @Override
+        public String toString() {
+            if (probeSize == 0 && analyzeDuration == 0) {
+                return "default";
+            }
+            return String.format(Locale.ENGLISH, "probesize=%d, analyzeduration=%d", probeSize, analyzeDuration);
+        }
+    }
+
+    public static class Result {
+        private final MediaInformationSession session;
+        private final int tierIndex;
+        private final Tier tier;
+        private final long duration;
+        private final boolean complete;
+
+        Result(final MediaInformationSession session, final int tierIndex, final Tier tier, final long duration, final boolean complete) {
+            this.session = session;
+            this.tierIndex = tierIndex;
+            this.tier = tier;
+            this.duration = duration;
+            this.complete = complete;
+        }
+
+        public MediaInformationSession getSession() {
+            return session;
+        }
+
+        /**
+         * @return media information parsed from the restricted output, null if probing failed
+         */
+        public MediaInformation getMediaInformation() {
+            return session.getMediaInformation();
+        }
+
+        /**
+         * @return index of the tier that produced this result
+         */
+        public int getTierIndex() {
+            return tierIndex;
+        }
+
+        public Tier getTier() {
+            return tier;
+        }
+
+        /**
+         * @return total time spent on all tiers tried, in milliseconds
+         */
+        public long getDuration() {
+            return duration;
+        }
+
+        /**
+         * @return true if the accepted tier produced every projected field
+         */
+        public boolean isComplete() {
+            return complete;
+        }
+    }
+
+    public static final Tier[] DEFAULT_TIERS = new Tier[]{
+            new Tier(64 * 1024, 500000),
+            new Tier(1024 * 1024, 2000000),
+            new Tier(0, 0)
+    };
+
+    private final ProjectedMediaInformation.Projection projection;
+    private final Tier[] tiers;
+    private final boolean includeTags;
+    private final String showEntries;
+
+    public FastProbe(final ProjectedMediaInformation.Projection projection) {
+        this(projection, DEFAULT_TIERS, false);
+    }
+
+    /**
+     * @param includeTags also request format and stream tags
+     */
+    public FastProbe(final ProjectedMediaInformation.Projection projection, final Tier[] tiers, final boolean includeTags) {
+        this.projection = projection;
+        this.tiers = tiers.clone();
+        this.includeTags = includeTags;
+        this.showEntries = buildShowEntries();
+    }
+
+    /**
+     * <p>Probes the given path or URL synchronously. Must not be called on the main thread.
+     */
+    public Result probe(final String input) {
+        return probe(new Supplier<String>() {
+
+            @Override
+            public String get() {
+                return input;
+            }
+        });
+    }
+
+    /**
+     * <p>Probes synchronously, asking the supplier for the input of every tier. Use this for inputs
+     * that can be opened only once, like SAF parameters. Must not be called on the main thread.
+     */
+    public Result probe(final Supplier<String> inputSupplier) {
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            throw new IllegalStateException("Fast probe runs ffprobe synchronously and can not be called on the main thread.");
+        }
+
+        final long startTime = System.currentTimeMillis();
+        Result result = null;
+
+        for (int i = 0; i < tiers.length; i++) {
+            final Tier tier = tiers[i];
+            final boolean last = (i == tiers.length - 1);
+
+            final MediaInformationSession session = SyncSessions.getMediaInformationFromCommand(buildCommand(tier, inputSupplier.get()));
+            final boolean complete = ReturnCode.isSuccess(session.getReturnCode()) && isComplete(ProjectedMediaInformation.from(session.getOutput(), projection));
+
+            result = new Result(session, i, tier, System.currentTimeMillis() - startTime, complete);
+
+            if (complete || last) {
+                break;
+            }
+
+            Log.d(TAG, String.format(Locale.ENGLISH, "Fast probe tier %d (%s) was not enough after %d ms, escalating.", i, tier, session.getDuration()));
+        }
+
+        Log.d(TAG, String.format(Locale.ENGLISH, "Fast probe %s at tier %d (%s) in %d ms.", result.isComplete() ? "completed" : "ended incomplete", result.getTierIndex(), result.getTier(), result.getDuration()));
+
+        return result;
+    }
+
+    protected String buildCommand(final Tier tier, final String input) {
+        final StringBuilder command = new StringBuilder("-v error -hide_banner");
+
+        if (tier.probeSize > 0) {
+            command.append(" -probesize ").append(tier.probeSize);
+        }
+        if (tier.analyzeDuration > 0) {
+            command.append(" -analyzeduration ").append(tier.analyzeDuration);
+        }
+
+        command.append(" -print_format json -show_entries ").append(showEntries);
+        command.append(" -i \"").append(input).append("\"");
+
+        return command.toString();
+    }
+
+    protected String buildShowEntries() {
+        final StringBuilder entries = new StringBuilder("format=");
+        appendFields(entries, projection.getFormatFields());
+
+        entries.append(":stream=");
+        appendFields(entries, projection.getStreamFields());
+
+        if (includeTags) {
+            entries.append(":format_tags:stream_tags");
+        }
+
+        return entries.toString();
+    }
+
+    protected boolean isComplete(final ProjectedMediaInformation mediaInformation) {
+        final int streamCount = mediaInformation.getStreamCount();
+        if (streamCount == 0) {
+            return false;
+        }
+
+        final String[] streamFields = projection.getStreamFields();
+        final boolean codecProjected = ProjectedMediaInformation.Projection.indexOf(streamFields, "codec_name") >= 0;
+        final boolean dimensionsProjected = ProjectedMediaInformation.Projection.indexOf(streamFields, "width") >= 0;
+        final boolean sampleRateProjected = ProjectedMediaInformation.Projection.indexOf(streamFields, "sample_rate") >= 0;
+
+        for (int i = 0; i < streamCount; i++) {
+            final String type = mediaInformation.getStreamString(i, "codec_type");
+
+            if (codecProjected && mediaInformation.getStreamString(i, "codec_name") == null) {
+                return false;
+            }
+
+            // UNKNOWN CODEC PARAMETERS ARE THE USUAL SIGN OF A TOO SMALL ANALYZE WINDOW
+            if ("video".equals(type) && dimensionsProjected) {
+                final Long width = mediaInformation.getStreamLong(i, "width");
+                if (width == null || width == 0) {
+                    return false;
+                }
+            }
+            if ("audio".equals(type) && sampleRateProjected) {
+                final Long sampleRate = mediaInformation.getStreamLong(i, "sample_rate");
+                if (sampleRate == null || sampleRate == 0) {
+                    return false;
+                }
+            }
+        }
+
+        return true;
+    }
+
+    protected static void appendFields(final StringBuilder entries, final String[] fields) {
+        boolean first = true;
+        for (String field : fields) {
+
+            // NESTED FIELDS ARE COVERED BY THE TAG SECTIONS
+            if (field.indexOf('.') >= 0) {
+                continue;
+            }
+            if (!first) {
+                entries.append(',');
+            }
+            entries.append(field);
+            first = false;
+        }
+    }
+
+}
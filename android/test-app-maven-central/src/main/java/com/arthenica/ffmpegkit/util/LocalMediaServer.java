@@ -0,0 +1,553 @@
+/*
+ * Copyright (c) 2021 Taner Sener
+ *
+ * This file is part of FFmpegKitTest.
+ *
+ * FFmpegKitTest is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FFmpegKitTest is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with FFmpegKitTest.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.arthenica.ffmpegkit.util;
+
+import android.util.Log;
+
+import com.arthenica.ffmpegkit.FFmpegSession;
+import com.arthenica.ffmpegkit.ReturnCode;
+import com.arthenica.smartexception.java.Exceptions;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.arthenica.ffmpegkit.test.MainActivity.TAG;
+
+/**
+ * <p>A small HTTP/1.1 server on the loopback interface that serves files from a directory, used
+ * as a reproducible stand-in for remote media servers.
+ *
+ * <p>It supports <code>GET</code> and <code>HEAD</code>, single byte ranges, keep-alive
+ * connections, <code>ETag</code> and <code>Last-Modified</code> validators. Latency is added
+ * before every response, bandwidth is limited per connection, and a share of the requests can be
+ * failed either with <code>503</code> or by dropping the connection in the middle of the body. A
+ * share of the responses can also be stalled, to produce a latency tail. The random source is
+ * seeded, so the same configuration injects the same errors on every run.
+ */
+public class LocalMediaServer {
+
+    public static class Configuration {
+        private long latency;
+        private long bandwidth;
+        private double errorRate;
+        private double dropRate;
+        private double stallRate;
+        private long stall;
+        private long seed = 1;
+
+        /**
+         * @param latency delay before every response, in milliseconds
+         */
+        public Configuration setLatency(final long latency) {
+            this.latency = latency;
+            return this;
+        }
+
+        /**
+         * @param bandwidth bytes per second per connection, 0 for unlimited
+         */
+        public Configuration setBandwidth(final long bandwidth) {
+            this.bandwidth = bandwidth;
+            return this;
+        }
+
+        /**
+         * @param errorRate share of requests answered with <code>503 Service Unavailable</code>
+         */
+        public Configuration setErrorRate(final double errorRate) {
+            this.errorRate = errorRate;
+            return this;
+        }
+
+        /**
+         * @param dropRate share of responses whose connection is closed halfway through the body
+         */
+        public Configuration setDropRate(final double dropRate) {
+            this.dropRate = dropRate;
+            return this;
+        }
+
+        /**
+         * @param stallRate share of responses delayed by an additional stall
+         * @param stall     length of a stall, in milliseconds
+         */
+        public Configuration setStall(final double stallRate, final long stall) {
+            this.stallRate = stallRate;
+            this.stall = stall;
+            return this;
+        }
+
+        public Configuration setSeed(final long seed) {
+            this.seed = seed;
+            return this;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ENGLISH, "latency=%d ms, bandwidth=%d B/s, errorRate=%.2f, dropRate=%.2f, stallRate=%.2f, stall=%d ms", latency, bandwidth, errorRate, dropRate, stallRate, stall);
+        }
+    }
+
+    private static final int BUFFER_SIZE = 16 * 1024;
+    private static final int KEEP_ALIVE_TIMEOUT = 15000;
+    private static final int MAX_HEADER_LINE = 8192;
+
+    private static final Map<String, String> CONTENT_TYPES = new HashMap<>();
+
+    static {
+        CONTENT_TYPES.put("mp4", "video/mp4");
+        CONTENT_TYPES.put("mkv", "video/x-matroska");
+        CONTENT_TYPES.put("webm", "video/webm");
+        CONTENT_TYPES.put("ts", "video/mp2t");
+        CONTENT_TYPES.put("mp3", "audio/mpeg");
+        CONTENT_TYPES.put("m4a", "audio/mp4");
+        CONTENT_TYPES.put("wav", "audio/wav");
+        CONTENT_TYPES.put("ogg", "audio/ogg");
+        CONTENT_TYPES.put("jpg", "image/jpeg");
+    }
+
+    private final File rootDirectory;
+    private final Configuration configuration;
+    private final Random random;
+    private final AtomicLong requestCount = new AtomicLong();
+    private final AtomicLong bytesSent = new AtomicLong();
+    private final AtomicLong injectedErrors = new AtomicLong();
+    private ServerSocket serverSocket;
+    private ExecutorService executor;
+
+    public LocalMediaServer(final File rootDirectory, final Configuration configuration) {
+        this.rootDirectory = rootDirectory;
+        this.configuration = configuration;
+        this.random = new Random(configuration.seed);
+    }
+
+    /**
+     * <p>Starts listening on an ephemeral loopback port. A stopped server can be started again.
+     */
+    public synchronized void start() throws IOException {
+        if (serverSocket != null) {
+            return;
+        }
+
+        serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+
+        // EVERY START HAS ITS OWN THREADS, STOP SHUTS THEM DOWN
+        executor = Executors.newCachedThreadPool(new ThreadFactory() {
+
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(runnable, "local-media-server");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        final ServerSocket acceptingSocket = serverSocket;
+        final ExecutorService acceptingExecutor = executor;
+        acceptingExecutor.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                accept(acceptingSocket, acceptingExecutor);
+            }
+        });
+
+        Log.d(TAG, String.format(Locale.ENGLISH, "Local media server started at %s serving %s with %s.", getBaseUrl(), rootDirectory.getAbsolutePath(), configuration));
+    }
+
+    public synchronized void stop() {
+        if (serverSocket != null) {
+            try {
+                serverSocket.close();
+            } catch (final IOException ignored) {
+            }
+            serverSocket = null;
+        }
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    public synchronized String getBaseUrl() {
+        return (serverSocket == null) ? null : String.format(Locale.ENGLISH, "http://127.0.0.1:%d", serverSocket.getLocalPort());
+    }
+
+    public String getUrl(final String fileName) {
+        return getBaseUrl() + "/" + fileName;
+    }
+
+    public String getStats() {
+        return String.format(Locale.ENGLISH, "%d requests, %d bytes sent, %d errors injected", requestCount.get(), bytesSent.get(), injectedErrors.get());
+    }
+
+    /**
+     * <p>Generates media fixtures into the given directory, skipping the ones that already exist.
+     * Fixtures are encoded with codecs available in every FFmpegKit package. The mp4 fixture keeps
+     * its index at the end of the file, so probing it needs a range request, as with most files
+     * found on the web. The faststart mp4 fixture has its index first and, like the others, can be
+     * read sequentially through a pipe.
+     *
+     * @return names of the fixtures available
+     */
+    public static List<String> createFixtures(final File directory) {
+        final String[][] fixtures = new String[][]{
+                {"fixture.mp4", "-f lavfi -i testsrc=duration=30:size=640x360:rate=30 -f lavfi -i sine=frequency=440:duration=30 -c:v mpeg4 -q:v 5 -c:a aac -shortest"},
+                {"fixture-faststart.mp4", "-f lavfi -i testsrc=duration=30:size=640x360:rate=30 -f lavfi -i sine=frequency=440:duration=30 -c:v mpeg4 -q:v 5 -c:a aac -shortest -movflags +faststart"},
+                {"fixture.mkv", "-f lavfi -i testsrc2=duration=30:size=640x360:rate=25 -f lavfi -i sine=frequency=880:duration=30 -c:v mpeg4 -q:v 5 -c:a aac -shortest"},
+                {"fixture.ts", "-f lavfi -i testsrc=duration=30:size=320x240:rate=30 -f lavfi -i sine=frequency=220:duration=30 -c:v mpeg2video -c:a mp2 -shortest"},
+                {"fixture.wav", "-f lavfi -i sine=frequency=1000:duration=30 -c:a pcm_s16le"}
+        };
+
+        final List<String> created = new ArrayList<>();
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            Log.w(TAG, String.format("Failed to create fixture directory: %s.", directory.getAbsolutePath()));
+            return created;
+        }
+
+        for (String[] fixture : fixtures) {
+            final File file = new File(directory, fixture[0]);
+            if (!file.exists()) {
+                final FFmpegSession session = SyncSessions.execute(String.format("-hide_banner -y %s %s", fixture[1], file.getAbsolutePath()));
+                if (!ReturnCode.isSuccess(session.getReturnCode())) {
+                    Log.w(TAG, String.format("Creating fixture %s failed with state %s and rc %s.", fixture[0], session.getState(), session.getReturnCode()));
+                    file.delete();
+                    continue;
+                }
+            }
+            created.add(fixture[0]);
+        }
+
+        return created;
+    }
+
+    /**
+     * @return whether the given fixture can be read without seeking, e.g. through a pipe
+     */
+    public static boolean isSequential(final String fixture) {
+        return !"fixture.mp4".equals(fixture);
+    }
+
+    protected void accept(final ServerSocket acceptingSocket, final ExecutorService acceptingExecutor) {
+        while (!acceptingSocket.isClosed()) {
+            try {
+                final Socket socket = acceptingSocket.accept();
+                try {
+                    acceptingExecutor.execute(new Runnable() {
+
+                        @Override
+                        public void run() {
+                            serve(socket);
+                        }
+                    });
+                } catch (final RejectedExecutionException e) {
+
+                    // SERVER STOPPED WHILE THE CONNECTION WAS BEING ACCEPTED
+                    IOUtil.closeQuietly(socket);
+                    return;
+                }
+            } catch (final SocketException e) {
+
+                // SERVER SOCKET CLOSED
+                return;
+            } catch (final IOException e) {
+                Log.w(TAG, String.format("Local media server accept failed.%s", Exceptions.getStackTraceString(e)));
+            }
+        }
+    }
+
+    protected void serve(final Socket socket) {
+        try {
+            socket.setSoTimeout(KEEP_ALIVE_TIMEOUT);
+            socket.setTcpNoDelay(true);
+
+            final InputStream inputStream = new BufferedInputStream(socket.getInputStream());
+            final OutputStream outputStream = new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE);
+
+            boolean keepAlive = true;
+            while (keepAlive) {
+                final String requestLine = readLine(inputStream);
+                if (requestLine == null || requestLine.isEmpty()) {
+                    break;
+                }
+
+                final Map<String, String> headers = new HashMap<>();
+                String line;
+                while ((line = readLine(inputStream)) != null && !line.isEmpty()) {
+                    final int separator = line.indexOf(':');
+                    if (separator > 0) {
+                        headers.put(line.substring(0, separator).trim().toLowerCase(Locale.ENGLISH), line.substring(separator + 1).trim());
+                    }
+                }
+
+                final String[] parts = requestLine.split(" ");
+                final boolean http10 = parts.length > 2 && "HTTP/1.0".equals(parts[2]);
+                keepAlive = !"close".equalsIgnoreCase(headers.get("connection")) && (!http10 || "keep-alive".equalsIgnoreCase(headers.get("connection")));
+
+                requestCount.incrementAndGet();
+
+                if (parts.length < 2) {
+                    writeStatus(outputStream, 400, "Bad Request", keepAlive);
+                    continue;
+                }
+
+                keepAlive = respond(parts[0], parts[1], headers, outputStream, keepAlive);
+                outputStream.flush();
+            }
+        } catch (final IOException e) {
+
+            // CLIENTS CLOSE CONNECTIONS AT ANY TIME, E.G. AFTER READING THE HEADER OF A FILE
+            Log.v(TAG, String.format("Local media server connection ended: %s.", e.getMessage()));
+        } finally {
+            try {
+                socket.close();
+            } catch (final IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * @return true if the connection can be kept open
+     */
+    protected boolean respond(final String method, final String target, final Map<String, String> headers, final OutputStream outputStream, final boolean keepAlive) throws IOException {
+        final boolean head = "HEAD".equals(method);
+        if (!head && !"GET".equals(method)) {
+            writeStatus(outputStream, 405, "Method Not Allowed", keepAlive);
+            return keepAlive;
+        }
+
+        final boolean fail;
+        final boolean drop;
+        final boolean stall;
+        synchronized (random) {
+            fail = random.nextDouble() < configuration.errorRate;
+            drop = random.nextDouble() < configuration.dropRate;
+            stall = random.nextDouble() < configuration.stallRate;
+        }
+
+        sleep(stall ? configuration.latency + configuration.stall : configuration.latency);
+
+        if (fail) {
+            injectedErrors.incrementAndGet();
+            writeStatus(outputStream, 503, "Service Unavailable", keepAlive);
+            return keepAlive;
+        }
+
+        String path = target;
+        final int query = path.indexOf('?');
+        if (query >= 0) {
+            path = path.substring(0, query);
+        }
+
+        final File file = new File(rootDirectory, path);
+        if (path.contains("..") || !file.isFile()) {
+            writeStatus(outputStream, 404, "Not Found", keepAlive);
+            return keepAlive;
+        }
+
+        final long length = file.length();
+        final String eTag = String.format(Locale.ENGLISH, "\"%x-%x\"", length, file.lastModified());
+        final String lastModified = formatDate(file.lastModified());
+
+        if (eTag.equals(headers.get("if-none-match"))) {
+            writeHeaders(outputStream, "304 Not Modified", eTag, lastModified, null, -1, null, keepAlive);
+            return keepAlive;
+        }
+
+        long start = 0;
+        long end = length - 1;
+        boolean partial = false;
+
+        final String range = headers.get("range");
+        if (range != null && range.startsWith("bytes=") && !range.contains(",")) {
+            final String spec = range.substring("bytes=".length()).trim();
+            final int dash = spec.indexOf('-');
+            try {
+                if (dash == 0) {
+                    start = Math.max(0, length - Long.parseLong(spec.substring(1)));
+                } else if (dash > 0) {
+                    start = Long.parseLong(spec.substring(0, dash));
+                    if (dash < spec.length() - 1) {
+                        end = Math.min(end, Long.parseLong(spec.substring(dash + 1)));
+                    }
+                }
+                partial = true;
+            } catch (final NumberFormatException e) {
+                partial = false;
+            }
+
+            if (partial && (start >= length || start > end)) {
+                writeHeaders(outputStream, "416 Range Not Satisfiable", eTag, lastModified, null, 0, "bytes */" + length, keepAlive);
+                return keepAlive;
+            }
+        }
+
+        final long contentLength = end - start + 1;
+        final String contentRange = partial ? String.format(Locale.ENGLISH, "bytes %d-%d/%d", start, end, length) : null;
+
+        writeHeaders(outputStream, partial ? "206 Partial Content" : "200 OK", eTag, lastModified, getContentType(file.getName()), contentLength, contentRange, keepAlive);
+
+        if (head) {
+            return keepAlive;
+        }
+
+        final long limit;
+        if (drop) {
+            injectedErrors.incrementAndGet();
+            limit = contentLength / 2;
+        } else {
+            limit = contentLength;
+        }
+
+        sendBody(file, start, limit, outputStream);
+
+        // A DROPPED RESPONSE CLOSES THE CONNECTION BEFORE THE BODY IS COMPLETE
+        return keepAlive && !drop;
+    }
+
+    protected void sendBody(final File file, final long start, final long count, final OutputStream outputStream) throws IOException {
+        final byte[] buffer = new byte[BUFFER_SIZE];
+        final long bandwidth = configuration.bandwidth;
+        final long startTime = System.nanoTime();
+
+        RandomAccessFile randomAccessFile = null;
+        try {
+            randomAccessFile = new RandomAccessFile(file, "r");
+            randomAccessFile.seek(start);
+
+            long sent = 0;
+            while (sent < count) {
+                final int read = randomAccessFile.read(buffer, 0, (int) Math.min(buffer.length, count - sent));
+                if (read == -1) {
+                    break;
+                }
+
+                outputStream.write(buffer, 0, read);
+                sent += read;
+                bytesSent.addAndGet(read);
+
+                if (bandwidth > 0) {
+
+                    // SLEEP UNTIL THE BYTES SENT SO FAR FIT INTO THE BANDWIDTH
+                    outputStream.flush();
+                    final long expectedNanos = sent * 1000000000L / bandwidth;
+                    final long elapsedNanos = System.nanoTime() - startTime;
+                    if (expectedNanos > elapsedNanos) {
+                        sleep((expectedNanos - elapsedNanos) / 1000000L);
+                    }
+                }
+            }
+        } finally {
+            IOUtil.closeQuietly(randomAccessFile);
+        }
+    }
+
+    protected static void writeStatus(final OutputStream outputStream, final int code, final String reason, final boolean keepAlive) throws IOException {
+        final byte[] body = String.format(Locale.ENGLISH, "%d %s\n", code, reason).getBytes(Charset.forName("US-ASCII"));
+        final String header = String.format(Locale.ENGLISH, "HTTP/1.1 %d %s\r\nContent-Type: text/plain\r\nContent-Length: %d\r\nConnection: %s\r\n\r\n", code, reason, body.length, keepAlive ? "keep-alive" : "close");
+        outputStream.write(header.getBytes(Charset.forName("US-ASCII")));
+        outputStream.write(body);
+    }
+
+    protected static void writeHeaders(final OutputStream outputStream, final String status, final String eTag, final String lastModified, final String contentType, final long contentLength, final String contentRange, final boolean keepAlive) throws IOException {
+        final StringBuilder header = new StringBuilder();
+        header.append("HTTP/1.1 ").append(status).append("\r\n");
+        header.append("Accept-Ranges: bytes\r\n");
+        header.append("ETag: ").append(eTag).append("\r\n");
+        header.append("Last-Modified: ").append(lastModified).append("\r\n");
+        if (contentType != null) {
+            header.append("Content-Type: ").append(contentType).append("\r\n");
+        }
+        if (contentLength >= 0) {
+            header.append("Content-Length: ").append(contentLength).append("\r\n");
+        }
+        if (contentRange != null) {
+            header.append("Content-Range: ").append(contentRange).append("\r\n");
+        }
+        header.append("Connection: ").append(keepAlive ? "keep-alive" : "close").append("\r\n\r\n");
+        outputStream.write(header.toString().getBytes(Charset.forName("US-ASCII")));
+    }
+
+    protected static String readLine(final InputStream inputStream) throws IOException {
+        final StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = inputStream.read()) != -1) {
+            if (c == '\n') {
+                break;
+            }
+            if (c != '\r') {
+                line.append((char) c);
+            }
+            if (line.length() > MAX_HEADER_LINE) {
+                throw new IOException("Header line too long.");
+            }
+        }
+        return (c == -1 && line.length() == 0) ? null : line.toString();
+    }
+
+    protected static String formatDate(final long time) {
+        final SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.ENGLISH);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return format.format(new Date(time));
+    }
+
+    protected static String getContentType(final String fileName) {
+        final int dot = fileName.lastIndexOf('.');
+        final String contentType = (dot < 0) ? null : CONTENT_TYPES.get(fileName.substring(dot + 1).toLowerCase(Locale.ENGLISH));
+        return (contentType == null) ? "application/octet-stream" : contentType;
+    }
+
+    protected static void sleep(final long millis) {
+        if (millis <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(millis);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+}
@@ -0,0 +1,468 @@
+/*
+ * Copyright (c) 2021 Taner Sener
+ *
+ * This file is part of FFmpegKitTest.
+ *
+ * FFmpegKitTest is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FFmpegKitTest is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with FFmpegKitTest.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.arthenica.ffmpegkit.util;
+
+import com.arthenica.ffmpegkit.Level;
+
+/**
+ * <p>Classifies FFmpeg log messages and extracts their values without allocating.
+ *
+ * <p>Messages are scanned in place as {@link CharSequence}s, without regular expressions,
+ * substrings or boxing. Results are written into a caller owned {@link Event}, which is meant to
+ * be reused for every message of a session. Text values are not copied either; an event keeps a
+ * reference to the message and the bounds of the value, see {@link Event#getText()}.
+ *
+ * <p>FFmpegKit delivers every <code>av_log</code> call as a separate message, and FFmpeg prints
+ * some lines in several calls. The codecs of a stream mapping, the details of a stream and the
+ * muxing overhead of the encoder statistics arrive as messages of their own. Fragments are not
+ * reassembled: a line is classified by its first fragment and only the values of that fragment
+ * are read.
+ */
+public class LogLineParser {
+
+    public enum Type {
+
+        /**
+         * <code>frame= ... fps= ... size= ... time= ... bitrate= ... speed= ...</code>
+         */
+        PROGRESS,
+
+        /**
+         * <code>Stream #0:0 -&gt; #0:0</code>, the codecs that follow are a separate message
+         */
+        STREAM_MAPPING,
+
+        /**
+         * <code>video:512kB audio:0kB subtitle:0kB ... muxing overhead: </code>, the value that
+         * follows is a separate message
+         */
+        ENCODER_STATS,
+
+        /**
+         * <code>Input #0, ... from '...':</code> and <code>Output #0, ... to '...':</code>
+         */
+        INPUT_OUTPUT,
+
+        /**
+         * <code>Stream #0:0</code>, the details that follow are separate messages
+         */
+        STREAM_INFO,
+
+        WARNING,
+
+        ERROR,
+
+        OTHER
+    }
+
+    /**
+     * <p>A parsed message. Fields that the message does not contain are set to -1.
+     */
+    public static class Event {
+        private Type type;
+        private CharSequence message;
+        private int textStart;
+        private int textEnd;
+        private long frame;
+        private double fps;
+        private long size;
+        private long time;
+        private double bitrate;
+        private double speed;
+        private int inputFile;
+        private int inputStream;
+        private int outputFile;
+        private int outputStream;
+        private long videoSize;
+        private long audioSize;
+
+        protected void reset(final CharSequence message) {
+            this.type = Type.OTHER;
+            this.message = message;
+            this.textStart = 0;
+            this.textEnd = message.length();
+            this.frame = -1;
+            this.fps = -1;
+            this.size = -1;
+            this.time = -1;
+            this.bitrate = -1;
+            this.speed = -1;
+            this.inputFile = -1;
+            this.inputStream = -1;
+            this.outputFile = -1;
+            this.outputStream = -1;
+            this.videoSize = -1;
+            this.audioSize = -1;
+        }
+
+        public Type getType() {
+            return type;
+        }
+
+        /**
+         * @return the message the event was parsed from
+         */
+        public CharSequence getMessage() {
+            return message;
+        }
+
+        /**
+         * @return the relevant part of the message, like the text of a warning or the file name of
+         * an input, as a view that is valid until the event is reused
+         */
+        public CharSequence getText() {
+            return message.subSequence(textStart, textEnd);
+        }
+
+        public int getTextStart() {
+            return textStart;
+        }
+
+        public int getTextEnd() {
+            return textEnd;
+        }
+
+        public long getFrame() {
+            return frame;
+        }
+
+        public double getFps() {
+            return fps;
+        }
+
+        /**
+         * @return output size in kB
+         */
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * @return output time in milliseconds
+         */
+        public long getTime() {
+            return time;
+        }
+
+        /**
+         * @return bitrate in kbits/s
+         */
+        public double getBitrate() {
+            return bitrate;
+        }
+
+        public double getSpeed() {
+            return speed;
+        }
+
+        public int getInputFile() {
+            return inputFile;
+        }
+
+        public int getInputStream() {
+            return inputStream;
+        }
+
+        public int getOutputFile() {
+            return outputFile;
+        }
+
+        public int getOutputStream() {
+            return outputStream;
+        }
+
+        /**
+         * @return video size in kB
+         */
+        public long getVideoSize() {
+            return videoSize;
+        }
+
+        /**
+         * @return audio size in kB
+         */
+        public long getAudioSize() {
+            return audioSize;
+        }
+    }
+
+    /**
+     * Position reached by the last number read, shared by the scanning helpers. A parser instance
+     * is therefore not thread safe.
+     */
+    private int position;
+
+    /**
+     * <p>Parses the given message into the given event.
+     *
+     * @param level level of the message, may be null
+     * @return the type of the message
+     */
+    public Type parse(final CharSequence message, final Level level, final Event event) {
+        event.reset(message);
+
+        final int length = message.length();
+        final int start = skipSpaces(message, 0);
+
+        if (startsWith(message, start, "frame=") || (startsWith(message, start, "size=") && indexOf(message, "time=", start) >= 0)) {
+            parseProgress(message, start, event);
+        } else if (startsWith(message, start, "Stream #") && indexOf(message, " -> #", start) >= 0) {
+            parseStreamMapping(message, start, event);
+        } else if (startsWith(message, start, "Stream #")) {
+            event.type = Type.STREAM_INFO;
+            event.inputFile = (int) readLong(message, start + "Stream #".length());
+            if (position < length && message.charAt(position) == ':') {
+                event.inputStream = (int) readLong(message, position + 1);
+            }
+            event.textStart = start;
+            event.textEnd = trimEnd(message, length);
+        } else if (startsWith(message, start, "video:") && indexOf(message, "muxing overhead", start) >= 0) {
+            parseEncoderStats(message, start, event);
+        } else if (startsWith(message, start, "Input #") || startsWith(message, start, "Output #")) {
+            event.type = Type.INPUT_OUTPUT;
+            if (message.charAt(start) == 'I') {
+                event.inputFile = (int) readLong(message, start + "Input #".length());
+            } else {
+                event.outputFile = (int) readLong(message, start + "Output #".length());
+            }
+            final int quote = indexOf(message, "'", start);
+            final int lastQuote = lastIndexOf(message, '\'');
+            if (quote >= 0 && lastQuote > quote) {
+                event.textStart = quote + 1;
+                event.textEnd = lastQuote;
+            }
+        } else if (level != null && isError(level)) {
+            event.type = Type.ERROR;
+            event.textStart = start;
+            event.textEnd = trimEnd(message, length);
+        } else if (level == Level.AV_LOG_WARNING) {
+            event.type = Type.WARNING;
+            event.textStart = start;
+            event.textEnd = trimEnd(message, length);
+        }
+
+        return event.type;
+    }
+
+    protected void parseProgress(final CharSequence message, final int start, final Event event) {
+        event.type = Type.PROGRESS;
+
+        int index = indexOf(message, "frame=", start);
+        if (index >= 0) {
+            event.frame = readLong(message, index + "frame=".length());
+        }
+        index = indexOf(message, "fps=", start);
+        if (index >= 0) {
+            event.fps = readDouble(message, index + "fps=".length());
+        }
+        index = indexOf(message, "size=", start);
+        if (index >= 0) {
+            event.size = readLong(message, index + "size=".length());
+        }
+        index = indexOf(message, "time=", start);
+        if (index >= 0) {
+            event.time = readTime(message, index + "time=".length());
+        }
+        index = indexOf(message, "bitrate=", start);
+        if (index >= 0) {
+            event.bitrate = readDouble(message, index + "bitrate=".length());
+        }
+        index = indexOf(message, "speed=", start);
+        if (index >= 0) {
+            event.speed = readDouble(message, index + "speed=".length());
+        }
+    }
+
+    protected void parseStreamMapping(final CharSequence message, final int start, final Event event) {
+        event.type = Type.STREAM_MAPPING;
+
+        event.inputFile = (int) readLong(message, start + "Stream #".length());
+        if (position < message.length() && message.charAt(position) == ':') {
+            event.inputStream = (int) readLong(message, position + 1);
+        }
+
+        final int arrow = indexOf(message, " -> #", start);
+        event.outputFile = (int) readLong(message, arrow + " -> #".length());
+        if (position < message.length() && message.charAt(position) == ':') {
+            event.outputStream = (int) readLong(message, position + 1);
+        }
+    }
+
+    protected void parseEncoderStats(final CharSequence message, final int start, final Event event) {
+        event.type = Type.ENCODER_STATS;
+
+        event.videoSize = readLong(message, start + "video:".length());
+
+        int index = indexOf(message, "audio:", start);
+        if (index >= 0) {
+            event.audioSize = readLong(message, index + "audio:".length());
+        }
+    }
+
+    /**
+     * @return the number at the given index, leading spaces skipped, -1 if there is none
+     */
+    protected long readLong(final CharSequence message, final int index) {
+        final int length = message.length();
+        int i = skipSpaces(message, index);
+        long value = 0;
+        boolean found = false;
+
+        while (i < length) {
+            final char c = message.charAt(i);
+            if (c < '0' || c > '9') {
+                break;
+            }
+            value = value * 10 + (c - '0');
+            found = true;
+            i++;
+        }
+
+        position = i;
+        return found ? value : -1;
+    }
+
+    /**
+     * @return the decimal number at the given index, leading spaces skipped, -1 if there is none
+     */
+    protected double readDouble(final CharSequence message, final int index) {
+        final int length = message.length();
+        int i = skipSpaces(message, index);
+        boolean negative = false;
+        if (i < length && message.charAt(i) == '-') {
+            negative = true;
+            i++;
+        }
+
+        long integer = 0;
+        long fraction = 0;
+        long divisor = 1;
+        boolean found = false;
+        boolean decimal = false;
+
+        while (i < length) {
+            final char c = message.charAt(i);
+            if (c == '.' && !decimal) {
+                decimal = true;
+            } else if (c >= '0' && c <= '9') {
+                if (decimal) {
+                    fraction = fraction * 10 + (c - '0');
+                    divisor *= 10;
+                } else {
+                    integer = integer * 10 + (c - '0');
+                }
+                found = true;
+            } else {
+                break;
+            }
+            i++;
+        }
+
+        position = i;
+        if (!found) {
+            return -1;
+        }
+
+        final double value = integer + (double) fraction / divisor;
+        return negative ? -value : value;
+    }
+
+    /**
+     * @return the <code>hh:mm:ss.xx</code> time at the given index in milliseconds, -1 if there is
+     * none, e.g. <code>N/A</code>
+     */
+    protected long readTime(final CharSequence message, final int index) {
+        final boolean negative = index < message.length() && message.charAt(index) == '-';
+        final long hours = readLong(message, negative ? index + 1 : index);
+        if (hours < 0 || position >= message.length() || message.charAt(position) != ':') {
+            return -1;
+        }
+        final long minutes = readLong(message, position + 1);
+        if (minutes < 0 || position >= message.length() || message.charAt(position) != ':') {
+            return -1;
+        }
+        final double seconds = readDouble(message, position + 1);
+        if (seconds < 0) {
+            return -1;
+        }
+
+        final long millis = (hours * 3600 + minutes * 60) * 1000 + Math.round(seconds * 1000);
+        return negative ? -millis : millis;
+    }
+
+    protected static boolean isError(final Level level) {
+        switch (level) {
+            case AV_LOG_PANIC:
+            case AV_LOG_FATAL:
+            case AV_LOG_ERROR:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    protected static int skipSpaces(final CharSequence message, final int index) {
+        int i = index;
+        while (i < message.length() && message.charAt(i) == ' ') {
+            i++;
+        }
+        return i;
+    }
+
+    protected static int trimEnd(final CharSequence message, final int end) {
+        int i = end;
+        while (i > 0 && Character.isWhitespace(message.charAt(i - 1))) {
+            i--;
+        }
+        return i;
+    }
+
+    protected static boolean startsWith(final CharSequence message, final int index, final String prefix) {
+        if (index + prefix.length() > message.length()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (message.charAt(index + i) != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    protected static int indexOf(final CharSequence message, final String target, final int from) {
+        final int last = message.length() - target.length();
+        for (int i = Math.max(0, from); i <= last; i++) {
+            if (startsWith(message, i, target)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    protected static int lastIndexOf(final CharSequence message, final char target) {
+        for (int i = message.length() - 1; i >= 0; i--) {
+            if (message.charAt(i) == target) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+}
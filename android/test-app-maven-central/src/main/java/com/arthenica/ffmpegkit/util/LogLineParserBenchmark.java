@@ -0,0 +1,201 @@
+/*
+ * Copyright (c) 2021 Taner Sener
+ *
+ * This file is part of FFmpegKitTest.
+ *
+ * FFmpegKitTest is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FFmpegKitTest is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with FFmpegKitTest.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.arthenica.ffmpegkit.util;
+
+import com.arthenica.ffmpegkit.Level;
+import com.arthenica.ffmpegkit.Log;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * <p>Compares {@link LogLineParser} with an equivalent parser built on regular expressions.
+ *
+ * <p>Both parsers classify the same messages and read the same values, which are summed into a
+ * checksum the same way. A run fails if the type counts or the checksums of the two parsers
+ * differ. Each parser is warmed up before it is measured. Heap growth is sampled without a
+ * garbage collection in between, so it only approximates the bytes allocated while parsing and
+ * reads zero if a collection ran meanwhile.
+ */
+public class LogLineParserBenchmark {
+
+    private static final int WARM_UP_ITERATIONS = 5;
+
+    private static final Pattern FRAME_PATTERN = Pattern.compile("frame=\\s*(\\d+)");
+    private static final Pattern TIME_PATTERN = Pattern.compile("time=(-?)\\s*(\\d+):(\\d+):([\\d.]+)");
+    private static final Pattern PROGRESS_PATTERN = Pattern.compile("^ *(?:frame=|size=.*time=)");
+    private static final Pattern MAPPING_PATTERN = Pattern.compile("^ *Stream #(\\d+):(\\d+).*? -> #(\\d+):(\\d+)");
+    private static final Pattern STREAM_PATTERN = Pattern.compile("^ *Stream #(\\d+):(\\d+)");
+    private static final Pattern STATS_PATTERN = Pattern.compile("^ *video:(\\d+)\\w*\\s+audio:(\\d+)\\w*.*muxing overhead");
+    private static final Pattern TEXT_PATTERN = Pattern.compile("^ *(.*?)\\s*$", Pattern.DOTALL);
+    private static final Pattern INPUT_OUTPUT_PATTERN = Pattern.compile("^ *(?:Input|Output) #(\\d+)(?:[^']*'(.*)')?");
+
+    private LogLineParserBenchmark() {
+    }
+
+    /**
+     * <p>Runs the benchmark on the calling thread.
+     *
+     * @return a human readable report
+     * @throws IllegalStateException if the two parsers do not agree
+     */
+    public static String run(final List<Log> logs, final int iterations) {
+        final StringBuilder report = new StringBuilder();
+        report.append(String.format(Locale.ENGLISH, "Parsing %d log messages %d times.\n", logs.size(), iterations));
+
+        final LogLineParser parser = new LogLineParser();
+        final LogLineParser.Event event = new LogLineParser.Event();
+        final int[] scannerCounts = new int[LogLineParser.Type.values().length];
+        final int[] regexCounts = new int[LogLineParser.Type.values().length];
+
+        // THE FIRST PASS OF EACH PARSER IS COUNTED AND COMPARED, THE REST WARM UP
+        final long scannerChecksum = parseAll(parser, event, logs, scannerCounts);
+        final long regexChecksum = parseAllWithRegex(logs, regexCounts);
+        if (!Arrays.equals(scannerCounts, regexCounts) || scannerChecksum != regexChecksum) {
+            throw new IllegalStateException(String.format(Locale.ENGLISH, "Parsers disagree: scanner counts %s checksum %d, regex counts %s checksum %d.", Arrays.toString(scannerCounts), scannerChecksum, Arrays.toString(regexCounts), regexChecksum));
+        }
+
+        final int[] counts = new int[LogLineParser.Type.values().length];
+        for (int i = 1; i < WARM_UP_ITERATIONS; i++) {
+            parseAll(parser, event, logs, counts);
+            parseAllWithRegex(logs, counts);
+        }
+
+        long heapBefore = usedHeap();
+        long startTime = System.nanoTime();
+        long checksum = 0;
+        for (int i = 0; i < iterations; i++) {
+            checksum += parseAll(parser, event, logs, counts);
+        }
+        long elapsed = System.nanoTime() - startTime;
+        appendResult(report, "scanner", elapsed, usedHeap() - heapBefore, (long) iterations * logs.size(), checksum);
+
+        heapBefore = usedHeap();
+        startTime = System.nanoTime();
+        checksum = 0;
+        for (int i = 0; i < iterations; i++) {
+            checksum += parseAllWithRegex(logs, counts);
+        }
+        elapsed = System.nanoTime() - startTime;
+        appendResult(report, "regex", elapsed, usedHeap() - heapBefore, (long) iterations * logs.size(), checksum);
+
+        for (LogLineParser.Type type : LogLineParser.Type.values()) {
+            report.append(String.format(Locale.ENGLISH, "%s: %d\n", type, scannerCounts[type.ordinal()]));
+        }
+
+        return report.toString();
+    }
+
+    protected static long parseAll(final LogLineParser parser, final LogLineParser.Event event, final List<Log> logs, final int[] counts) {
+        long checksum = 0;
+        for (int i = 0; i < logs.size(); i++) {
+            final Log log = logs.get(i);
+            final LogLineParser.Type type = parser.parse(log.getMessage(), log.getLevel(), event);
+            counts[type.ordinal()]++;
+
+            switch (type) {
+                case PROGRESS:
+                    checksum += event.getFrame() + event.getTime();
+                    break;
+                case STREAM_MAPPING:
+                    checksum += event.getInputFile() + event.getInputStream() + event.getOutputFile() + event.getOutputStream();
+                    break;
+                case STREAM_INFO:
+                    checksum += event.getInputFile() + event.getInputStream();
+                    break;
+                case ENCODER_STATS:
+                    checksum += event.getVideoSize() + event.getAudioSize();
+                    break;
+                case INPUT_OUTPUT:
+                    checksum += Math.max(event.getInputFile(), event.getOutputFile()) + event.getTextEnd() - event.getTextStart();
+                    break;
+                case ERROR:
+                case WARNING:
+                    checksum += event.getTextEnd() - event.getTextStart();
+                    break;
+                default:
+                    break;
+            }
+        }
+        return checksum;
+    }
+
+    /**
+     * <p>The baseline: the same classification and values, read through matcher groups.
+     */
+    protected static long parseAllWithRegex(final List<Log> logs, final int[] counts) {
+        long checksum = 0;
+        for (int i = 0; i < logs.size(); i++) {
+            final Log log = logs.get(i);
+            final String message = log.getMessage();
+            LogLineParser.Type type = LogLineParser.Type.OTHER;
+
+            Matcher matcher;
+            if (PROGRESS_PATTERN.matcher(message).find()) {
+                type = LogLineParser.Type.PROGRESS;
+                matcher = FRAME_PATTERN.matcher(message);
+                checksum += matcher.find() ? Long.parseLong(matcher.group(1)) : -1;
+                matcher = TIME_PATTERN.matcher(message);
+                if (matcher.find()) {
+                    final long millis = (Long.parseLong(matcher.group(2)) * 3600 + Long.parseLong(matcher.group(3)) * 60) * 1000 + Math.round(Double.parseDouble(matcher.group(4)) * 1000);
+                    checksum += matcher.group(1).isEmpty() ? millis : -millis;
+                } else {
+                    checksum += -1;
+                }
+            } else if ((matcher = MAPPING_PATTERN.matcher(message)).find()) {
+                type = LogLineParser.Type.STREAM_MAPPING;
+                checksum += Integer.parseInt(matcher.group(1)) + Integer.parseInt(matcher.group(2)) + Integer.parseInt(matcher.group(3)) + Integer.parseInt(matcher.group(4));
+            } else if ((matcher = STREAM_PATTERN.matcher(message)).find()) {
+                type = LogLineParser.Type.STREAM_INFO;
+                checksum += Integer.parseInt(matcher.group(1)) + Integer.parseInt(matcher.group(2));
+            } else if ((matcher = STATS_PATTERN.matcher(message)).find()) {
+                type = LogLineParser.Type.ENCODER_STATS;
+                checksum += Long.parseLong(matcher.group(1)) + Long.parseLong(matcher.group(2));
+            } else if ((matcher = INPUT_OUTPUT_PATTERN.matcher(message)).find()) {
+                type = LogLineParser.Type.INPUT_OUTPUT;
+                checksum += Integer.parseInt(matcher.group(1)) + ((matcher.group(2) == null) ? message.length() : matcher.group(2).length());
+            } else if (log.getLevel() == Level.AV_LOG_ERROR || log.getLevel() == Level.AV_LOG_FATAL || log.getLevel() == Level.AV_LOG_PANIC) {
+                type = LogLineParser.Type.ERROR;
+                matcher = TEXT_PATTERN.matcher(message);
+                checksum += matcher.find() ? matcher.group(1).length() : 0;
+            } else if (log.getLevel() == Level.AV_LOG_WARNING) {
+                type = LogLineParser.Type.WARNING;
+                matcher = TEXT_PATTERN.matcher(message);
+                checksum += matcher.find() ? matcher.group(1).length() : 0;
+            }
+
+            counts[type.ordinal()]++;
+        }
+        return checksum;
+    }
+
+    protected static void appendResult(final StringBuilder report, final String name, final long elapsedNanos, final long heapGrowth, final long messages, final long checksum) {
+        report.append(String.format(Locale.ENGLISH, "%s: %.1f ns per message, ~%d bytes allocated per message, checksum %d.\n", name, (double) elapsedNanos / messages, Math.max(0, heapGrowth) / messages, checksum));
+    }
+
+    protected static long usedHeap() {
+        final Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2021 Taner Sener
+ *
+ * This file is part of FFmpegKitTest.
+ *
+ * FFmpegKitTest is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FFmpegKitTest is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with FFmpegKitTest.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.arthenica.ffmpegkit.util;
+
+import java.util.Locale;
+
+/**
+ * <p>Muxer options for an output, chosen by its container and by whether the destination can be
+ * seeked.
+ *
+ * <p>The mp4 muxer writes the <code>moov</code> atom at the end of the file and seeks back to fix
+ * the size of <code>mdat</code>; with <code>+faststart</code> it also rewrites the whole file to
+ * move <code>moov</code> to the front. SAF documents, pipes and network destinations may not be
+ * seekable, so mp4 family outputs written there are fragmented instead, which needs neither.
+ * Faststart is used only for seekable local files that are going to be streamed later.
+ * Containers other than mp4 family are written as they are.
+ */
+public enum OutputMode {
+
+    /**
+     * Plain mp4, <code>moov</code> at the end.
+     */
+    SEEKABLE(""),
+
+    /**
+     * Mp4 with <code>moov</code> moved to the front in a second pass.
+     */
+    FASTSTART("-movflags +faststart "),
+
+    /**
+     * Fragmented mp4, written strictly sequentially.
+     */
+    FRAGMENTED("-movflags +frag_keyframe+empty_moov+default_base_moof "),
+
+    /**
+     * Containers like mkv, webm, ts and ogg that need no special options.
+     */
+    STREAMING("");
+
+    private static final String[] MP4_EXTENSIONS = new String[]{"mp4", "m4v", "m4a", "mov", "3gp", "3g2"};
+
+    private final String options;
+
+    OutputMode(final String options) {
+        this.options = options;
+    }
+
+    /**
+     * @return muxer options, empty or ending with a space so that they can be prepended to the
+     * output path
+     */
+    public String getOptions() {
+        return options;
+    }
+
+    public static OutputMode select(final String outputPath) {
+        return select(outputPath, false);
+    }
+
+    /**
+     * @param outputPath path, SAF parameter, pipe or URL of the output
+     * @param streamable true if a seekable local output is going to be streamed progressively
+     */
+    public static OutputMode select(final String outputPath, final boolean streamable) {
+        if (!isMp4Family(outputPath)) {
+            return STREAMING;
+        }
+        if (!isSeekable(outputPath)) {
+            return FRAGMENTED;
+        }
+        return streamable ? FASTSTART : SEEKABLE;
+    }
+
+    public static boolean isSeekable(final String outputPath) {
+        if (outputPath.startsWith("saf:") || outputPath.startsWith("pipe:") || outputPath.contains("://")) {
+            return false;
+        }
+
+        // PIPES REGISTERED WITH FFmpegKitConfig.registerNewFFmpegPipe
+        final String name = outputPath.substring(outputPath.lastIndexOf('/') + 1);
+        return !name.startsWith("fk_pipe_");
+    }
+
+    protected static boolean isMp4Family(final String outputPath) {
+        final int dot = outputPath.lastIndexOf('.');
+        if (dot < 0 || dot < outputPath.lastIndexOf('/')) {
+            return false;
+        }
+
+        final String extension = outputPath.substring(dot + 1).toLowerCase(Locale.ENGLISH);
+        for (String mp4Extension : MP4_EXTENSIONS) {
+            if (mp4Extension.equals(extension)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+}
@@ -0,0 +1,722 @@
+/*
+ * Copyright (c) 2021 Taner Sener
+ *
+ * This file is part of FFmpegKitTest.
+ *
+ * FFmpegKitTest is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FFmpegKitTest is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with FFmpegKitTest.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.arthenica.ffmpegkit.util;
+
+import android.util.Log;
+
+import com.arthenica.ffmpegkit.ExecuteCallback;
+import com.arthenica.ffmpegkit.FFmpegKit;
+import com.arthenica.ffmpegkit.FFmpegKitConfig;
+import com.arthenica.ffmpegkit.FFmpegSession;
+import com.arthenica.ffmpegkit.LogCallback;
+import com.arthenica.ffmpegkit.ReturnCode;
+import com.arthenica.ffmpegkit.Session;
+import com.arthenica.ffmpegkit.Statistics;
+import com.arthenica.ffmpegkit.StatisticsCallback;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import static com.arthenica.ffmpegkit.test.MainActivity.TAG;
+
+/**
+ * <p>Runs a set of FFmpeg commands declared as a dependency graph.
+ *
+ * <p>A stage depends on another stage when it reads a file the other stage writes, when it reads
+ * a pipe the other stage writes or when the dependency is declared explicitly. File and explicit
+ * dependencies wait for the upstream stage to complete. Pipe dependencies only wait for the upstream
+ * stage to start, so both ends of a pipe run at the same time. Stages that do not depend on each
+ * other run in parallel.
+ *
+ * <p>A failed stage is retried up to its retry count, unless it is connected to a pipe. When it
+ * finally fails or is cancelled, the stages depending on it are skipped while independent branches
+ * keep running. Cancelling the pipeline cancels every stage.
+ *
+ * <p>With a {@link Tracer} the pipeline is traced as a span under the caller's current span, with
+ * a span for every stage attempt. Listener methods run with the stage's span, or the pipeline's
+ * span for {@link Listener#onCompleted(Pipeline, Result)}, as the current span.
+ */
+public class Pipeline {
+
+    public enum StageState {
+        PENDING,
+        RUNNING,
+        COMPLETED,
+        FAILED,
+        CANCELLED,
+        SKIPPED
+    }
+
+    public enum Result {
+        SUCCESS,
+        FAILED,
+        CANCELLED
+    }
+
+    public interface Listener {
+
+        void onStageStarted(Pipeline pipeline, Stage stage);
+
+        void onStageCompleted(Pipeline pipeline, Stage stage, Session session);
+
+        void onProgress(Pipeline pipeline, Stage stage, double progress);
+
+        void onCompleted(Pipeline pipeline, Result result);
+    }
+
+    public static class Stage {
+        private final String name;
+        private final String command;
+        private final List<String> inputs;
+        private final List<String> outputs;
+        private final List<String> pipeInputs;
+        private final List<String> pipeOutputs;
+        private final Set<Stage> dependencies;
+        private final Set<Stage> pipeDependencies;
+        private int maxRetries;
+        private long expectedDuration;
+        private LogCallback logCallback;
+
+        private StageState state;
+        private int attempts;
+        private Session session;
+        private double progress;
+        private Tracer.Span span;
+
+        public Stage(final String name, final String command) {
+            this.name = name;
+            this.command = command;
+            this.inputs = new ArrayList<>();
+            this.outputs = new ArrayList<>();
+            this.pipeInputs = new ArrayList<>();
+            this.pipeOutputs = new ArrayList<>();
+            this.dependencies = new LinkedHashSet<>();
+            this.pipeDependencies = new LinkedHashSet<>();
+            this.state = StageState.PENDING;
+        }
+
+        public Stage reads(final String... paths) {
+            inputs.addAll(Arrays.asList(paths));
+            return this;
+        }
+
+        public Stage writes(final String... paths) {
+            outputs.addAll(Arrays.asList(paths));
+            return this;
+        }
+
+        public Stage readsPipe(final String... pipes) {
+            pipeInputs.addAll(Arrays.asList(pipes));
+            return this;
+        }
+
+        public Stage writesPipe(final String... pipes) {
+            pipeOutputs.addAll(Arrays.asList(pipes));
+            return this;
+        }
+
+        public Stage dependsOn(final Stage... stages) {
+            dependencies.addAll(Arrays.asList(stages));
+            return this;
+        }
+
+        public Stage setMaxRetries(final int maxRetries) {
+            this.maxRetries = maxRetries;
+            return this;
+        }
+
+        /**
+         * <p>Sets the expected output duration in milliseconds, used to turn statistics into progress.
+         */
+        public Stage setExpectedDuration(final long expectedDuration) {
+            this.expectedDuration = expectedDuration;
+            return this;
+        }
+
+        public Stage setLogCallback(final LogCallback logCallback) {
+            this.logCallback = logCallback;
+            return this;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getCommand() {
+            return command;
+        }
+
+        public synchronized StageState getState() {
+            return state;
+        }
+
+        public synchronized Session getSession() {
+            return session;
+        }
+
+        public synchronized int getAttempts() {
+            return attempts;
+        }
+
+        /**
+         * @return span of the current attempt, null when the pipeline is not traced
+         */
+        public synchronized Tracer.Span getSpan() {
+            return span;
+        }
+
+        boolean isPiped() {
+            return !pipeInputs.isEmpty() || !pipeOutputs.isEmpty();
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    public static class Builder {
+        private final String name;
+        private final List<Stage> stages;
+        private Listener listener;
+        private LogCallback logCallback;
+        private Tracer tracer;
+
+        public Builder(final String name) {
+            this.name = name;
+            this.stages = new ArrayList<>();
+        }
+
+        public Builder addStage(final Stage stage) {
+            stages.add(stage);
+            return this;
+        }
+
+        public Builder setListener(final Listener listener) {
+            this.listener = listener;
+            return this;
+        }
+
+        /**
+         * <p>Sets the log callback used by stages that do not define one.
+         */
+        public Builder setLogCallback(final LogCallback logCallback) {
+            this.logCallback = logCallback;
+            return this;
+        }
+
+        public Builder setTracer(final Tracer tracer) {
+            this.tracer = tracer;
+            return this;
+        }
+
+        public Pipeline build() {
+            final Map<String, Stage> fileProducers = new LinkedHashMap<>();
+            final Map<String, Stage> pipeProducers = new LinkedHashMap<>();
+
+            for (Stage stage : stages) {
+                for (String output : stage.outputs) {
+                    fileProducers.put(output, stage);
+                }
+                for (String pipe : stage.pipeOutputs) {
+                    pipeProducers.put(pipe, stage);
+                }
+            }
+
+            for (Stage stage : stages) {
+                for (String input : stage.inputs) {
+                    final Stage producer = fileProducers.get(input);
+                    if (producer != null && producer != stage) {
+                        stage.dependencies.add(producer);
+                    }
+                }
+                for (String pipe : stage.pipeInputs) {
+                    final Stage producer = pipeProducers.get(pipe);
+                    if (producer != null && producer != stage) {
+                        stage.pipeDependencies.add(producer);
+                    }
+                }
+            }
+
+            final Pipeline pipeline = new Pipeline(name, stages, listener, logCallback, tracer);
+            pipeline.verifyAcyclic();
+            return pipeline;
+        }
+    }
+
+    private final String name;
+    private final List<Stage> stages;
+    private final Listener listener;
+    private final LogCallback logCallback;
+    private final Tracer tracer;
+    private Tracer.Span span;
+    private boolean started;
+    private boolean cancelled;
+    private boolean completed;
+
+    protected Pipeline(final String name, final List<Stage> stages, final Listener listener, final LogCallback logCallback, final Tracer tracer) {
+        this.name = name;
+        this.stages = Collections.unmodifiableList(new ArrayList<>(stages));
+        this.listener = listener;
+        this.logCallback = logCallback;
+        this.tracer = tracer;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public List<Stage> getStages() {
+        return stages;
+    }
+
+    public Stage getStage(final String stageName) {
+        for (Stage stage : stages) {
+            if (stage.name.equals(stageName)) {
+                return stage;
+            }
+        }
+        return null;
+    }
+
+    public void start() {
+        synchronized (this) {
+            if (started) {
+                throw new IllegalStateException(String.format("Pipeline %s is already started.", name));
+            }
+            started = true;
+
+            if (tracer != null) {
+                span = tracer.startSpan("pipeline " + name).setArg("stages", stages.size());
+            }
+        }
+
+        Log.d(TAG, String.format(Locale.ENGLISH, "Pipeline %s started with %d stages.", name, stages.size()));
+
+        schedule();
+    }
+
+    /**
+     * <p>Cancels all running and pending stages.
+     */
+    public void cancel() {
+        final List<Long> sessionIds = new ArrayList<>();
+
+        synchronized (this) {
+            if (cancelled || completed) {
+                return;
+            }
+            cancelled = true;
+            for (Stage stage : stages) {
+                synchronized (stage) {
+                    if (stage.state == StageState.PENDING) {
+                        stage.state = StageState.CANCELLED;
+                    } else if (stage.state == StageState.RUNNING && stage.session != null) {
+                        sessionIds.add(stage.session.getSessionId());
+                    } else if (stage.state == StageState.RUNNING) {
+
+                        // BEING LAUNCHED OR RETRIED, LAUNCH SEES THE STATE AND DOES NOT START IT
+                        stage.state = StageState.CANCELLED;
+                    }
+                }
+            }
+        }
+
+        Log.d(TAG, String.format("Cancelling pipeline %s.", name));
+
+        for (Long sessionId : sessionIds) {
+            FFmpegKit.cancel(sessionId);
+        }
+
+        finishIfDone();
+    }
+
+    /**
+     * <p>Cancels a single stage. Stages depending on it are skipped, other stages keep running.
+     */
+    public void cancelStage(final String stageName) {
+        final Stage stage = getStage(stageName);
+        if (stage == null) {
+            return;
+        }
+
+        Long sessionId = null;
+        synchronized (this) {
+            synchronized (stage) {
+                if (stage.state == StageState.PENDING) {
+                    stage.state = StageState.CANCELLED;
+                } else if (stage.state == StageState.RUNNING && stage.session != null) {
+                    sessionId = stage.session.getSessionId();
+                } else if (stage.state == StageState.RUNNING) {
+                    stage.state = StageState.CANCELLED;
+                }
+            }
+        }
+
+        if (sessionId != null) {
+            FFmpegKit.cancel(sessionId);
+        } else {
+            skipDependents(stage);
+            schedule();
+        }
+    }
+
+    public synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * <p>Returns the weighted progress of all stages, between 0 and 1.
+     */
+    public double getProgress() {
+        double total = 0;
+        double done = 0;
+
+        for (Stage stage : stages) {
+            final double weight = (stage.expectedDuration > 0) ? stage.expectedDuration : 1;
+            total += weight;
+            synchronized (stage) {
+                if (stage.state == StageState.COMPLETED) {
+                    done += weight;
+                } else {
+                    done += weight * stage.progress;
+                }
+            }
+        }
+
+        return (total == 0) ? 0 : done / total;
+    }
+
+    protected void schedule() {
+        final List<Stage> ready = new ArrayList<>();
+
+        synchronized (this) {
+
+            // STARTING A PIPE PRODUCER CAN MAKE ITS CONSUMERS READY
+            boolean changed = !cancelled;
+            while (changed) {
+                changed = false;
+                for (Stage stage : stages) {
+                    if (stage.getState() == StageState.PENDING && !ready.contains(stage) && isReady(stage, ready)) {
+                        ready.add(stage);
+                        changed = true;
+                    }
+                }
+            }
+
+            for (Stage stage : ready) {
+                synchronized (stage) {
+                    stage.state = StageState.RUNNING;
+                    stage.progress = 0;
+                }
+            }
+        }
+
+        for (Stage stage : ready) {
+            launch(stage);
+        }
+
+        finishIfDone();
+    }
+
+    protected boolean isReady(final Stage stage, final List<Stage> startingNow) {
+        for (Stage dependency : stage.dependencies) {
+            if (dependency.getState() != StageState.COMPLETED) {
+                return false;
+            }
+        }
+        for (Stage dependency : stage.pipeDependencies) {
+            final StageState state = dependency.getState();
+            if (state != StageState.RUNNING && state != StageState.COMPLETED && !startingNow.contains(dependency)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    protected void launch(final Stage stage) {
+        final FFmpegSession session;
+
+        // CHECKED UNDER THE LOCK CANCEL TAKES, SO A STAGE IS EITHER CANCELLED HERE OR ITS SESSION IS VISIBLE TO CANCEL
+        synchronized (this) {
+            synchronized (stage) {
+                if (cancelled || stage.state != StageState.RUNNING) {
+                    if (stage.state == StageState.RUNNING) {
+                        stage.state = StageState.CANCELLED;
+                    }
+                    session = null;
+                } else {
+                    session = createSession(stage);
+                    stage.session = session;
+                    stage.attempts++;
+
+                    if (tracer != null) {
+
+                        // ENDED BY onStageCompleted, BEFORE THE PIPELINE SPAN CAN END
+                        stage.span = tracer.startSpan("stage " + stage.name, span).setArg("attempt", stage.attempts);
+                        tracer.bindSession(session.getSessionId(), stage.span);
+                    }
+                }
+            }
+        }
+
+        if (session == null) {
+            Log.d(TAG, String.format("Pipeline %s stage %s cancelled before it started.", name, stage.name));
+            skipDependents(stage);
+            finishIfDone();
+            return;
+        }
+
+        Log.d(TAG, String.format(Locale.ENGLISH, "Pipeline %s starting stage %s (attempt %d) with sessionId %d and arguments\n'%s'.", name, stage.name, stage.getAttempts(), session.getSessionId(), stage.command));
+
+        if (listener != null) {
+            final Tracer.Span previous = enterSpan(stage.getSpan());
+            try {
+                listener.onStageStarted(this, stage);
+            } finally {
+                exitSpan(previous);
+            }
+        }
+
+        FFmpegKitConfig.asyncFFmpegExecute(session);
+    }
+
+    protected FFmpegSession createSession(final Stage stage) {
+        return new FFmpegSession(FFmpegKit.parseArguments(stage.command), new ExecuteCallback() {
+
+            @Override
+            public void apply(final Session session) {
+                onStageCompleted(stage, session);
+            }
+        }, (stage.logCallback != null) ? stage.logCallback : logCallback, new StatisticsCallback() {
+
+            @Override
+            public void apply(final Statistics statistics) {
+                onStatistics(stage, statistics);
+            }
+        });
+    }
+
+    protected void onStatistics(final Stage stage, final Statistics statistics) {
+        if (stage.expectedDuration <= 0 || statistics.getTime() < 0) {
+            return;
+        }
+
+        synchronized (stage) {
+            stage.progress = Math.min(1.0, statistics.getTime() / (double) stage.expectedDuration);
+        }
+
+        if (listener != null) {
+            listener.onProgress(this, stage, getProgress());
+        }
+    }
+
+    protected void onStageCompleted(final Stage stage, final Session session) {
+        if (tracer != null) {
+
+            // THE GLOBAL EXECUTE CALLBACK RUNS AFTER THIS ONE, TOO LATE FOR THE LAST STAGE
+            tracer.completeSession(session);
+        }
+
+        final ReturnCode returnCode = session.getReturnCode();
+        boolean retry = false;
+
+        final String failStackTrace = session.getFailStackTrace();
+
+        Log.d(TAG, String.format("Pipeline %s stage %s exited with state %s and rc %s.%s", name, stage.name, session.getState(), returnCode, (failStackTrace == null) ? "" : "\n" + failStackTrace));
+
+        synchronized (this) {
+            synchronized (stage) {
+                if (ReturnCode.isSuccess(returnCode)) {
+                    stage.state = StageState.COMPLETED;
+                    stage.progress = 1;
+                } else if (ReturnCode.isCancel(returnCode) || cancelled) {
+                    stage.state = StageState.CANCELLED;
+                } else if (stage.attempts <= stage.maxRetries && !stage.isPiped()) {
+
+                    // STAYS RUNNING WITHOUT A SESSION UNTIL THE NEXT ATTEMPT IS LAUNCHED
+                    retry = true;
+                    stage.session = null;
+                    stage.progress = 0;
+                } else {
+                    stage.state = StageState.FAILED;
+                }
+            }
+        }
+
+        if (retry) {
+            Log.d(TAG, String.format(Locale.ENGLISH, "Pipeline %s retrying stage %s, %d of %d retries left.", name, stage.name, stage.maxRetries - stage.getAttempts() + 1, stage.maxRetries));
+            launch(stage);
+            return;
+        }
+
+        if (listener != null) {
+            final Tracer.Span previous = enterSpan(stage.getSpan());
+            try {
+                listener.onStageCompleted(this, stage, session);
+            } finally {
+                exitSpan(previous);
+            }
+        }
+
+        if (stage.getState() != StageState.COMPLETED) {
+            skipDependents(stage);
+        }
+
+        schedule();
+    }
+
+    /**
+     * <p>Marks stages waiting on the given stage as skipped and cancels the other end of its pipes.
+     */
+    protected void skipDependents(final Stage failed) {
+        final List<Long> pipePartners = new ArrayList<>();
+
+        synchronized (this) {
+            boolean changed = true;
+            while (changed) {
+                changed = false;
+                for (Stage stage : stages) {
+                    final boolean dependsOnFailed = dependsOnFinished(stage, failed);
+                    synchronized (stage) {
+                        if (stage.state == StageState.PENDING && dependsOnFailed) {
+                            stage.state = StageState.SKIPPED;
+                            changed = true;
+                        } else if (stage.state == StageState.RUNNING && stage.session != null && (stage.pipeDependencies.contains(failed) || failed.pipeDependencies.contains(stage))) {
+                            pipePartners.add(stage.session.getSessionId());
+                        }
+                    }
+                }
+            }
+        }
+
+        for (Long sessionId : pipePartners) {
+            FFmpegKit.cancel(sessionId);
+        }
+    }
+
+    protected boolean dependsOnFinished(final Stage stage, final Stage failed) {
+        for (Stage dependency : stage.dependencies) {
+            final StageState state = dependency.getState();
+            if (dependency == failed || state == StageState.SKIPPED || state == StageState.FAILED || state == StageState.CANCELLED) {
+                return true;
+            }
+        }
+        for (Stage dependency : stage.pipeDependencies) {
+            final StageState state = dependency.getState();
+            if (dependency == failed || state == StageState.SKIPPED || state == StageState.FAILED || state == StageState.CANCELLED) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    protected void finishIfDone() {
+        Result result = Result.SUCCESS;
+
+        synchronized (this) {
+            if (completed) {
+                return;
+            }
+            for (Stage stage : stages) {
+                final StageState state = stage.getState();
+                if (state == StageState.PENDING || state == StageState.RUNNING) {
+                    return;
+                }
+                if (state == StageState.FAILED) {
+                    result = Result.FAILED;
+                } else if (state != StageState.COMPLETED && result == Result.SUCCESS) {
+                    result = Result.CANCELLED;
+                }
+            }
+            completed = true;
+        }
+
+        for (Stage stage : stages) {
+            for (String pipe : stage.pipeOutputs) {
+                FFmpegKitConfig.closeFFmpegPipe(pipe);
+            }
+        }
+
+        Log.d(TAG, String.format("Pipeline %s completed with result %s.", name, result));
+
+        final Tracer.Span pipelineSpan = getSpan();
+        if (listener != null) {
+            final Tracer.Span previous = enterSpan(pipelineSpan);
+            try {
+                listener.onCompleted(this, result);
+            } finally {
+                exitSpan(previous);
+            }
+        }
+
+        if (pipelineSpan != null) {
+            pipelineSpan.setArg("result", result.name()).end();
+        }
+    }
+
+    protected synchronized Tracer.Span getSpan() {
+        return span;
+    }
+
+    protected Tracer.Span enterSpan(final Tracer.Span span) {
+        return (tracer == null) ? null : tracer.enter(span);
+    }
+
+    protected void exitSpan(final Tracer.Span previous) {
+        if (tracer != null) {
+            tracer.exit(previous);
+        }
+    }
+
+    protected void verifyAcyclic() {
+        final Set<Stage> visited = new LinkedHashSet<>();
+        final Set<Stage> visiting = new LinkedHashSet<>();
+
+        for (Stage stage : stages) {
+            visit(stage, visited, visiting);
+        }
+    }
+
+    private void visit(final Stage stage, final Set<Stage> visited, final Set<Stage> visiting) {
+        if (visited.contains(stage)) {
+            return;
+        }
+        if (!visiting.add(stage)) {
+            throw new IllegalArgumentException(String.format("Pipeline %s has a dependency cycle at stage %s.", name, stage.name));
+        }
+        for (Stage dependency : stage.dependencies) {
+            visit(dependency, visited, visiting);
+        }
+        for (Stage dependency : stage.pipeDependencies) {
+            visit(dependency, visited, visiting);
+        }
+        visiting.remove(stage);
+        visited.add(stage);
+    }
+
+}
@@ -0,0 +1,541 @@
+/*
+ * Copyright (c) 2021 Taner Sener
+ *
+ * This file is part of FFmpegKitTest.
+ *
+ * FFmpegKitTest is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FFmpegKitTest is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with FFmpegKitTest.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.arthenica.ffmpegkit.util;
+
+import android.os.Debug;
+import android.system.Os;
+import android.system.OsConstants;
+import android.util.Log;
+
+import com.arthenica.ffmpegkit.FFmpegKitConfig;
+import com.arthenica.ffmpegkit.FFmpegSession;
+import com.arthenica.ffmpegkit.LogCallback;
+import com.arthenica.ffmpegkit.Session;
+import com.arthenica.ffmpegkit.SessionState;
+import com.arthenica.smartexception.java.Exceptions;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import static com.arthenica.ffmpegkit.test.MainActivity.TAG;
+
+/**
+ * <p>Samples process resources while FFmpeg sessions run and accounts them to the sessions.
+ *
+ * <p>Running sessions are discovered on every sample, so sessions started through any API are
+ * covered. Process CPU time comes from <code>/proc/self/stat</code> and RSS from
+ * <code>/proc/self/statm</code>. The CPU time used between two samples is split evenly between
+ * the sessions running at that time. Threads that first appear while sessions run are codec and
+ * filter threads started by those sessions; their CPU time is accounted to them separately.
+ *
+ * <p>Memory can not be split between overlapping sessions, so for memory the process values seen
+ * during a session are recorded: the values when it started and the peaks while it ran. The
+ * maximum number of sessions that overlapped tells whether those values are shared.
+ *
+ * <p>Sampling runs only while FFmpeg sessions run. Added as a log callback, the sampler starts on
+ * the first message of an FFmpeg session and stops itself when a sample finds no session running.
+ *
+ * <p>Sessions shorter than the sample interval may not be seen at all, threads started before the
+ * first sample are not accounted as codec threads, and app threads started while a session runs
+ * are mistaken for its codec threads.
+ */
+public class ResourceSampler implements LogCallback {
+
+    /**
+     * <p>Resources used by a single session.
+     */
+    public static class Usage {
+        private final long sessionId;
+        private final String command;
+        private final long startTime;
+        private long endTime;
+        private double cpuTime;
+        private double codecThreadCpuTime;
+        private int codecThreads;
+        private final long startRss;
+        private long peakRss;
+        private final long startNativeHeap;
+        private long peakNativeHeap;
+        private final long startJavaHeap;
+        private long peakJavaHeap;
+        private int maxOverlap;
+        private int samples;
+
+        Usage(final long sessionId, final String command, final Snapshot snapshot) {
+            this.sessionId = sessionId;
+            this.command = command;
+            this.startTime = snapshot.time;
+            this.startRss = snapshot.rss;
+            this.peakRss = snapshot.rss;
+            this.startNativeHeap = snapshot.nativeHeap;
+            this.peakNativeHeap = snapshot.nativeHeap;
+            this.startJavaHeap = snapshot.javaHeap;
+            this.peakJavaHeap = snapshot.javaHeap;
+            this.maxOverlap = 1;
+        }
+
+        public long getSessionId() {
+            return sessionId;
+        }
+
+        public String getCommand() {
+            return command;
+        }
+
+        /**
+         * @return wall time the session was seen running, in milliseconds
+         */
+        public synchronized long getDuration() {
+            return endTime - startTime;
+        }
+
+        /**
+         * @return process CPU time accounted to the session, in milliseconds
+         */
+        public synchronized double getCpuTime() {
+            return cpuTime;
+        }
+
+        /**
+         * @return CPU time of threads started while the session ran, in milliseconds
+         */
+        public synchronized double getCodecThreadCpuTime() {
+            return codecThreadCpuTime;
+        }
+
+        public synchronized int getCodecThreads() {
+            return codecThreads;
+        }
+
+        public synchronized long getRssGrowth() {
+            return peakRss - startRss;
+        }
+
+        public synchronized long getPeakRss() {
+            return peakRss;
+        }
+
+        public synchronized long getNativeHeapGrowth() {
+            return peakNativeHeap - startNativeHeap;
+        }
+
+        public synchronized long getPeakNativeHeap() {
+            return peakNativeHeap;
+        }
+
+        public synchronized long getJavaHeapGrowth() {
+            return peakJavaHeap - startJavaHeap;
+        }
+
+        /**
+         * @return maximum number of sessions that ran at the same time as this one, itself included
+         */
+        public synchronized int getMaxOverlap() {
+            return maxOverlap;
+        }
+
+        synchronized void update(final Snapshot snapshot, final double cpuShare, final int overlap) {
+            endTime = snapshot.time;
+            cpuTime += cpuShare;
+            peakRss = Math.max(peakRss, snapshot.rss);
+            peakNativeHeap = Math.max(peakNativeHeap, snapshot.nativeHeap);
+            peakJavaHeap = Math.max(peakJavaHeap, snapshot.javaHeap);
+            maxOverlap = Math.max(maxOverlap, overlap);
+            samples++;
+        }
+
+        synchronized void addCodecThreadCpuTime(final double cpuShare) {
+            codecThreadCpuTime += cpuShare;
+        }
+
+        synchronized void addCodecThread() {
+            codecThreads++;
+        }
+
+        synchronized String toCsv() {
+            return String.format(Locale.ENGLISH, "%d,%d,%d,%.1f,%.1f,%d,%d,%d,%d,%d,%d,%d,%d,\"%s\"", sessionId, startTime, endTime - startTime, cpuTime, codecThreadCpuTime, codecThreads, peakRss, peakRss - startRss, peakNativeHeap, peakNativeHeap - startNativeHeap, peakJavaHeap - startJavaHeap, maxOverlap, samples, command.replace("\"", "\"\""));
+        }
+
+        @Override
+        public synchronized String toString() {
+            return String.format(Locale.ENGLISH, "session %d: %d ms, cpu %.0f ms, %d codec threads with cpu %.0f ms, rss +%d KiB (peak %d KiB), native heap +%d KiB, java heap +%d KiB, overlap %d", sessionId, endTime - startTime, cpuTime, codecThreads, codecThreadCpuTime, (peakRss - startRss) / 1024, peakRss / 1024, (peakNativeHeap - startNativeHeap) / 1024, (peakJavaHeap - startJavaHeap) / 1024, maxOverlap);
+        }
+    }
+
+    protected static class Snapshot {
+        long time;
+        long cpuTicks;
+        long rss;
+        long nativeHeap;
+        long javaHeap;
+    }
+
+    public static final long DEFAULT_SAMPLE_INTERVAL = 250;
+
+    private static final int MAX_COMPLETED = 256;
+    private static final String CSV_HEADER = "session_id,start_time,duration_ms,cpu_ms,codec_thread_cpu_ms,codec_threads,peak_rss,rss_growth,peak_native_heap,native_heap_growth,java_heap_growth,max_overlap,samples,command\n";
+
+    private final long sampleInterval;
+    private final long clockTicksPerSecond;
+    private final long pageSize;
+    private final ScheduledExecutorService scheduler;
+    private final Map<Long, Usage> running;
+    private final LinkedHashMap<Long, Usage> completed;
+
+    /**
+     * <p>Thread ids seen in the previous sample, mapped to their CPU ticks.
+     */
+    private Map<Integer, Long> threadTicks;
+
+    /**
+     * <p>Codec threads mapped to the sessions that were running when they appeared.
+     */
+    private final Map<Integer, List<Usage>> codecThreads;
+
+    private File exportFile;
+    private Snapshot previous;
+    private ScheduledFuture<?> samplingTask;
+    private volatile boolean active;
+
+    public ResourceSampler() {
+        this(DEFAULT_SAMPLE_INTERVAL);
+    }
+
+    public ResourceSampler(final long sampleInterval) {
+        this.sampleInterval = sampleInterval;
+        this.clockTicksPerSecond = Os.sysconf(OsConstants._SC_CLK_TCK);
+        this.pageSize = Os.sysconf(OsConstants._SC_PAGESIZE);
+        this.running = new HashMap<>();
+        this.completed = new LinkedHashMap<Long, Usage>(16, 0.75f, false) {
+
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<Long, Usage> eldest) {
+                return size() > MAX_COMPLETED;
+            }
+        };
+        this.threadTicks = new HashMap<>();
+        this.codecThreads = new HashMap<>();
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(runnable, "resource-sampler");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    public synchronized void start() {
+        if (samplingTask == null) {
+            active = true;
+            samplingTask = scheduler.scheduleAtFixedRate(new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        sample();
+                    } catch (final RuntimeException e) {
+                        Log.w(TAG, String.format("Resource sampling failed.%s", Exceptions.getStackTraceString(e)));
+                    }
+                }
+            }, 0, sampleInterval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * <p>Stops sampling. CPU time and threads are measured from a new baseline when sampling starts
+     * again.
+     */
+    public synchronized void stop() {
+        if (samplingTask != null) {
+            samplingTask.cancel(false);
+            samplingTask = null;
+        }
+        active = false;
+        previous = null;
+        threadTicks = new HashMap<>();
+        codecThreads.clear();
+    }
+
+    /**
+     * <p>Starts sampling on the first message of an FFmpeg session. Called for every log message,
+     * so it is a volatile read while sampling.
+     */
+    @Override
+    public void apply(final com.arthenica.ffmpegkit.Log log) {
+        if (active) {
+            return;
+        }
+
+        // TRAILING MESSAGES OF A COMPLETED SESSION DO NOT START IT AGAIN
+        final Session session = FFmpegKitConfig.getSession(log.getSessionId());
+        if (session instanceof FFmpegSession && session.getState() == SessionState.RUNNING) {
+            start();
+        }
+    }
+
+    /**
+     * <p>Appends the usage of every completed session to the given CSV file.
+     */
+    public synchronized void setExportFile(final File exportFile) {
+        this.exportFile = exportFile;
+    }
+
+    /**
+     * @return usage of the given session, still growing if the session is running, null if the
+     * session was never seen running
+     */
+    public synchronized Usage getUsage(final long sessionId) {
+        final Usage usage = running.get(sessionId);
+        return (usage != null) ? usage : completed.get(sessionId);
+    }
+
+    /**
+     * @return usage of recently completed sessions, oldest first
+     */
+    public synchronized List<Usage> getCompletedUsage() {
+        return new ArrayList<>(completed.values());
+    }
+
+    /**
+     * <p>Writes the usage of recently completed sessions as CSV.
+     */
+    public void exportCsv(final File file) throws IOException {
+        final List<Usage> usages = getCompletedUsage();
+
+        Writer writer = null;
+        try {
+            writer = new FileWriter(file);
+            writer.write(CSV_HEADER);
+            for (Usage usage : usages) {
+                writer.write(usage.toCsv());
+                writer.write('\n');
+            }
+        } finally {
+            IOUtil.closeQuietly(writer);
+        }
+    }
+
+    protected void append(final Usage usage) {
+        if (exportFile == null) {
+            return;
+        }
+
+        Writer writer = null;
+        try {
+            final boolean newFile = !exportFile.exists();
+            writer = new FileWriter(exportFile, true);
+            if (newFile) {
+                writer.write(CSV_HEADER);
+            }
+            writer.write(usage.toCsv());
+            writer.write('\n');
+        } catch (final IOException e) {
+            Log.w(TAG, String.format("Exporting resource usage failed.%s", Exceptions.getStackTraceString(e)));
+        } finally {
+            IOUtil.closeQuietly(writer);
+        }
+    }
+
+    protected synchronized void sample() {
+        final Snapshot snapshot = takeSnapshot();
+        final Set<Long> seen = new HashSet<>();
+
+        final List<Session> sessions = FFmpegKitConfig.getSessionsByState(SessionState.RUNNING);
+        for (Session session : sessions) {
+            if (session instanceof FFmpegSession) {
+                seen.add(session.getSessionId());
+                if (!running.containsKey(session.getSessionId())) {
+                    running.put(session.getSessionId(), new Usage(session.getSessionId(), session.getCommand(), snapshot));
+                }
+            }
+        }
+
+        // CPU USED SINCE THE PREVIOUS SAMPLE IS SPLIT BETWEEN THE SESSIONS RUNNING NOW
+        final int overlap = running.size();
+        final double cpuDelta = (previous == null) ? 0 : ticksToMillis(snapshot.cpuTicks - previous.cpuTicks);
+        for (Usage usage : running.values()) {
+            usage.update(snapshot, (overlap > 0) ? cpuDelta / overlap : 0, overlap);
+        }
+
+        sampleThreads(overlap > 0);
+
+        final Iterator<Map.Entry<Long, Usage>> iterator = running.entrySet().iterator();
+        while (iterator.hasNext()) {
+            final Map.Entry<Long, Usage> entry = iterator.next();
+            if (!seen.contains(entry.getKey())) {
+                iterator.remove();
+                completed.put(entry.getKey(), entry.getValue());
+                Log.d(TAG, String.format("Resource usage of %s.", entry.getValue()));
+                append(entry.getValue());
+            }
+        }
+
+        previous = snapshot;
+
+        if (running.isEmpty()) {
+            stop();
+        }
+    }
+
+    /**
+     * <p>Accounts the CPU time of codec threads and assigns new threads to the running sessions.
+     */
+    protected void sampleThreads(final boolean sessionsRunning) {
+        final Map<Integer, Long> currentTicks = readThreadTicks();
+        final boolean firstSample = threadTicks.isEmpty();
+
+        for (Map.Entry<Integer, Long> entry : currentTicks.entrySet()) {
+            final Integer tid = entry.getKey();
+            final Long previousTicks = threadTicks.get(tid);
+
+            if (previousTicks == null) {
+                if (!firstSample && sessionsRunning) {
+                    final List<Usage> owners = new ArrayList<>(running.values());
+                    codecThreads.put(tid, owners);
+                    for (Usage owner : owners) {
+                        owner.addCodecThread();
+                    }
+                    accountCodecThread(owners, entry.getValue());
+                }
+            } else {
+                final List<Usage> owners = codecThreads.get(tid);
+                if (owners != null) {
+                    accountCodecThread(owners, entry.getValue() - previousTicks);
+                }
+            }
+        }
+
+        codecThreads.keySet().retainAll(currentTicks.keySet());
+        threadTicks = currentTicks;
+    }
+
+    protected void accountCodecThread(final List<Usage> owners, final long ticks) {
+        final double share = ticksToMillis(ticks) / owners.size();
+        for (Usage owner : owners) {
+            owner.addCodecThreadCpuTime(share);
+        }
+    }
+
+    protected Snapshot takeSnapshot() {
+        final Snapshot snapshot = new Snapshot();
+        snapshot.time = System.currentTimeMillis();
+        snapshot.cpuTicks = readCpuTicks(new File("/proc/self/stat"));
+
+        final String statm = readFirstLine(new File("/proc/self/statm"));
+        if (statm != null) {
+            final String[] fields = statm.split(" ");
+            if (fields.length > 1) {
+                snapshot.rss = parseLong(fields[1]) * pageSize;
+            }
+        }
+
+        snapshot.nativeHeap = Debug.getNativeHeapAllocatedSize();
+        final Runtime runtime = Runtime.getRuntime();
+        snapshot.javaHeap = runtime.totalMemory() - runtime.freeMemory();
+        return snapshot;
+    }
+
+    protected Map<Integer, Long> readThreadTicks() {
+        final Map<Integer, Long> ticks = new HashMap<>();
+        final String[] tasks = new File("/proc/self/task").list();
+        if (tasks == null) {
+            return ticks;
+        }
+
+        for (String task : tasks) {
+            final long cpuTicks = readCpuTicks(new File("/proc/self/task/" + task + "/stat"));
+            if (cpuTicks >= 0) {
+                try {
+                    ticks.put(Integer.parseInt(task), cpuTicks);
+                } catch (final NumberFormatException e) {
+                    // NOT A THREAD DIRECTORY
+                }
+            }
+        }
+        return ticks;
+    }
+
+    /**
+     * @return utime + stime of the given stat file, -1 if it can not be read
+     */
+    protected static long readCpuTicks(final File statFile) {
+        final String stat = readFirstLine(statFile);
+        if (stat == null) {
+            return -1;
+        }
+
+        // THE COMMAND NAME MAY CONTAIN SPACES, FIELDS ARE COUNTED AFTER ITS CLOSING PARENTHESIS
+        final int nameEnd = stat.lastIndexOf(')');
+        final String[] fields = stat.substring(nameEnd + 2).split(" ");
+        if (fields.length < 13) {
+            return -1;
+        }
+
+        // FIELDS 14 AND 15 OF proc(5), STARTING FROM FIELD 3
+        return parseLong(fields[11]) + parseLong(fields[12]);
+    }
+
+    protected static String readFirstLine(final File file) {
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader(file));
+            return reader.readLine();
+        } catch (final IOException e) {
+
+            // THREADS MAY EXIT WHILE BEING SAMPLED
+            return null;
+        } finally {
+            IOUtil.closeQuietly(reader);
+        }
+    }
+
+    protected static long parseLong(final String value) {
+        try {
+            return Long.parseLong(value);
+        } catch (final NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    protected double ticksToMillis(final long ticks) {
+        return ticks * 1000.0 / clockTicksPerSecond;
+    }
+
+}
@@ -0,0 +1,655 @@
+/*
+ * Copyright (c) 2021 Taner Sener
+ *
+ * This file is part of FFmpegKitTest.
+ *
+ * FFmpegKitTest is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FFmpegKitTest is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with FFmpegKitTest.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.arthenica.ffmpegkit.util;
+
+import android.util.Log;
+
+import com.arthenica.ffmpegkit.ExecuteCallback;
+import com.arthenica.ffmpegkit.FFmpegKit;
+import com.arthenica.ffmpegkit.LogCallback;
+import com.arthenica.ffmpegkit.ReturnCode;
+import com.arthenica.ffmpegkit.Session;
+import com.arthenica.ffmpegkit.StatisticsCallback;
+import com.arthenica.smartexception.java.Exceptions;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.function.Supplier;
+
+import static com.arthenica.ffmpegkit.test.MainActivity.TAG;
+
+/**
+ * <p>Caches the output of FFmpeg commands so that running the same command on the same inputs
+ * again restores the previous output instead of encoding it again.
+ *
+ * <p>The cache key is the SHA-256 of the normalized argument vector: options that do not change
+ * the output are dropped, the output path is replaced with a placeholder and every argument that
+ * names an existing file is replaced with the SHA-256 of its content. Input hashes are memoized by
+ * path, size and modification time. Files referenced only inside filter graphs are not hashed.
+ *
+ * <p>Entries are evicted in least recently used order once their total size exceeds the byte
+ * budget. Each entry stores the hash of its content, which is verified while it is copied back to
+ * the requested output path; an entry that fails the check is dropped and the command is run.
+ *
+ * <p>Hashing inputs, copying entries and writing the index run on a background thread, so
+ * {@link #execute} and {@link #lookupAsync} can be called from the main thread.
+ */
+public class ResultCache {
+
+    public interface Callback {
+        void apply(Result result);
+    }
+
+    public static class Result {
+        private final String outputPath;
+        private final Session session;
+        private final ReturnCode returnCode;
+        private final long duration;
+
+        Result(final String outputPath, final Session session, final ReturnCode returnCode, final long duration) {
+            this.outputPath = outputPath;
+            this.session = session;
+            this.returnCode = returnCode;
+            this.duration = duration;
+        }
+
+        public String getOutputPath() {
+            return outputPath;
+        }
+
+        /**
+         * @return the session that created the output, null if the output was restored from cache
+         */
+        public Session getSession() {
+            return session;
+        }
+
+        public ReturnCode getReturnCode() {
+            return returnCode;
+        }
+
+        public long getDuration() {
+            return duration;
+        }
+
+        public boolean isCacheHit() {
+            return session == null;
+        }
+    }
+
+    protected static class Entry {
+        final String key;
+        final long size;
+        final String hash;
+        long lastAccessTime;
+
+        Entry(final String key, final long size, final String hash, final long lastAccessTime) {
+            this.key = key;
+            this.size = size;
+            this.hash = hash;
+            this.lastAccessTime = lastAccessTime;
+        }
+    }
+
+    protected static class InputHash {
+        final long size;
+        final long lastModified;
+        final String hash;
+
+        InputHash(final long size, final long lastModified, final String hash) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.hash = hash;
+        }
+    }
+
+    protected static class Waiter {
+        final String command;
+        final String outputPath;
+        final Callback callback;
+
+        Waiter(final String command, final String outputPath, final Callback callback) {
+            this.command = command;
+            this.outputPath = outputPath;
+            this.callback = callback;
+        }
+    }
+
+    private static final String OUTPUT_PLACEHOLDER = "<output>";
+    private static final String INDEX_FILE_NAME = "index.json";
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Options that change neither the output nor its content.
+     */
+    private static final Set<String> IGNORED_OPTIONS = new HashSet<>(Arrays.asList("-y", "-n", "-hide_banner", "-nostats", "-stats", "-report"));
+
+    /**
+     * Options that do not change the output and take a value.
+     */
+    private static final Set<String> IGNORED_OPTIONS_WITH_VALUE = new HashSet<>(Arrays.asList("-loglevel", "-v", "-stats_period"));
+
+    private final File directory;
+    private final long byteBudget;
+    private final LinkedHashMap<String, Entry> entries;
+    private final Map<String, InputHash> inputHashes;
+    private final Map<String, List<Waiter>> inFlight;
+    private final ExecutorService executor;
+    private long totalSize;
+    private long hitCount;
+    private long missCount;
+
+    public ResultCache(final File directory, final long byteBudget) {
+        this.directory = directory;
+        this.byteBudget = byteBudget;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true);
+        this.inputHashes = new HashMap<>();
+        this.inFlight = new HashMap<>();
+        this.executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(runnable, "result-cache");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        executor.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                if (!directory.isDirectory() && !directory.mkdirs()) {
+                    Log.w(TAG, String.format("Failed to create result cache directory: %s.", directory.getAbsolutePath()));
+                }
+
+                loadIndex();
+            }
+        });
+    }
+
+    /**
+     * <p>Restores the output of the given command from cache or runs it. Identical commands submitted
+     * while the first one is still running wait for it and receive its output.
+     *
+     * <p>Returns immediately; the callback is invoked on a background thread.
+     */
+    public void execute(final String command, final String outputPath, final Callback callback, final LogCallback logCallback, final StatisticsCallback statisticsCallback) {
+        final long startTime = System.currentTimeMillis();
+
+        executor.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                executeOrRestore(command, outputPath, callback, logCallback, statisticsCallback, startTime);
+            }
+        });
+    }
+
+    /**
+     * <p>Restores the output of the given command from cache on a background thread.
+     *
+     * @return a future that completes with true if the output was restored, false if the command
+     * must be run
+     */
+    public CompletableFuture<Boolean> lookupAsync(final String command, final String outputPath) {
+        return CompletableFuture.supplyAsync(new Supplier<Boolean>() {
+
+            @Override
+            public Boolean get() {
+                return lookup(command, outputPath);
+            }
+        }, executor);
+    }
+
+    protected void executeOrRestore(final String command, final String outputPath, final Callback callback, final LogCallback logCallback, final StatisticsCallback statisticsCallback, final long startTime) {
+        final String key;
+
+        try {
+            key = getKey(command, outputPath);
+        } catch (final IOException e) {
+            Log.w(TAG, String.format("Creating result cache key failed, running command without cache.%s", Exceptions.getStackTraceString(e)));
+            runUncached(command, outputPath, callback, logCallback, statisticsCallback);
+            return;
+        }
+
+        if (restore(key, outputPath)) {
+            callback.apply(new Result(outputPath, null, new ReturnCode(ReturnCode.SUCCESS), System.currentTimeMillis() - startTime));
+            return;
+        }
+
+        synchronized (this) {
+            final List<Waiter> waiters = inFlight.get(key);
+            if (waiters != null) {
+                Log.d(TAG, String.format("Result cache key %s is already running, waiting for it to complete.", key));
+                waiters.add(new Waiter(command, outputPath, callback));
+                return;
+            }
+            inFlight.put(key, new ArrayList<Waiter>());
+        }
+
+        FFmpegKit.executeAsync(command, new ExecuteCallback() {
+
+            @Override
+            public void apply(final Session session) {
+                final ReturnCode returnCode = session.getReturnCode();
+
+                if (ReturnCode.isSuccess(returnCode)) {
+                    store(key, outputPath);
+                }
+
+                final List<Waiter> waiters;
+                synchronized (ResultCache.this) {
+                    waiters = inFlight.remove(key);
+                }
+
+                callback.apply(new Result(outputPath, session, returnCode, session.getDuration()));
+
+                for (Waiter waiter : waiters) {
+                    if (ReturnCode.isSuccess(returnCode) && restore(key, waiter.outputPath)) {
+                        waiter.callback.apply(new Result(waiter.outputPath, null, returnCode, System.currentTimeMillis() - startTime));
+                    } else {
+                        runUncached(waiter.command, waiter.outputPath, waiter.callback, null, null);
+                    }
+                }
+            }
+        }, logCallback, statisticsCallback);
+    }
+
+    /**
+     * <p>Copies the cached output of the given command to the output path. Blocks while the entry
+     * is verified and copied, see {@link #lookupAsync(String, String)}.
+     *
+     * @return true if the output was restored, false if the command must be run
+     */
+    public boolean lookup(final String command, final String outputPath) {
+        try {
+            return restore(getKey(command, outputPath), outputPath);
+        } catch (final IOException e) {
+            Log.w(TAG, String.format("Creating result cache key failed.%s", Exceptions.getStackTraceString(e)));
+            return false;
+        }
+    }
+
+    /**
+     * <p>Adds the output created by a successful run of the given command to the cache, on a
+     * background thread.
+     */
+    public void put(final String command, final String outputPath) {
+        executor.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    store(getKey(command, outputPath), outputPath);
+                } catch (final IOException e) {
+                    Log.w(TAG, String.format("Creating result cache key failed.%s", Exceptions.getStackTraceString(e)));
+                }
+            }
+        });
+    }
+
+    public synchronized long getTotalSize() {
+        return totalSize;
+    }
+
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    public synchronized void clear() {
+        for (Entry entry : entries.values()) {
+            getEntryFile(entry.key).delete();
+        }
+        entries.clear();
+        totalSize = 0;
+        saveIndex();
+    }
+
+    /**
+     * <p>Builds the cache key of a command.
+     */
+    protected String getKey(final String command, final String outputPath) throws IOException {
+        final String[] arguments = FFmpegKit.parseArguments(command);
+        final StringBuilder normalized = new StringBuilder();
+
+        for (int i = 0; i < arguments.length; i++) {
+            final String argument = arguments[i];
+
+            if (IGNORED_OPTIONS.contains(argument)) {
+                continue;
+            }
+            if (IGNORED_OPTIONS_WITH_VALUE.contains(argument)) {
+                i++;
+                continue;
+            }
+
+            if (argument.equals(outputPath)) {
+                normalized.append(OUTPUT_PLACEHOLDER);
+            } else {
+                final File file = new File(argument);
+                if (file.isFile()) {
+                    normalized.append("sha256:").append(getInputHash(file));
+                } else {
+                    normalized.append(argument);
+                }
+            }
+            normalized.append('\0');
+        }
+
+        final MessageDigest digest = IOUtil.newDigest();
+        return IOUtil.toHex(digest.digest(normalized.toString().getBytes(Charset.forName("UTF-8"))));
+    }
+
+    protected String getInputHash(final File file) throws IOException {
+        final String path = file.getAbsolutePath();
+        final long size = file.length();
+        final long lastModified = file.lastModified();
+
+        synchronized (inputHashes) {
+            final InputHash inputHash = inputHashes.get(path);
+            if (inputHash != null && inputHash.size == size && inputHash.lastModified == lastModified) {
+                return inputHash.hash;
+            }
+        }
+
+        final String hash = hashFile(file);
+
+        synchronized (inputHashes) {
+            inputHashes.put(path, new InputHash(size, lastModified, hash));
+        }
+
+        return hash;
+    }
+
+    protected boolean restore(final String key, final String outputPath) {
+        final Entry entry;
+
+        synchronized (this) {
+            entry = entries.get(key);
+            if (entry == null) {
+                missCount++;
+                return false;
+            }
+        }
+
+        final File entryFile = getEntryFile(key);
+        final File outputFile = new File(outputPath);
+        final File temporaryFile = new File(outputPath + ".restore");
+
+        try {
+            if (entryFile.length() != entry.size) {
+                throw new IOException(String.format(Locale.ENGLISH, "Size mismatch, expected %d found %d.", entry.size, entryFile.length()));
+            }
+
+            final String hash = copy(entryFile, temporaryFile);
+            if (!hash.equals(entry.hash)) {
+                throw new IOException(String.format("Hash mismatch, expected %s found %s.", entry.hash, hash));
+            }
+
+            if (!temporaryFile.renameTo(outputFile)) {
+                throw new IOException(String.format("Failed to rename %s.", temporaryFile.getAbsolutePath()));
+            }
+        } catch (final IOException e) {
+            Log.w(TAG, String.format("Restoring result cache entry %s failed, dropping it.%s", key, Exceptions.getStackTraceString(e)));
+            temporaryFile.delete();
+            remove(key);
+            synchronized (this) {
+                missCount++;
+            }
+            return false;
+        }
+
+        synchronized (this) {
+            entry.lastAccessTime = System.currentTimeMillis();
+            hitCount++;
+            saveIndex();
+        }
+
+        Log.d(TAG, String.format(Locale.ENGLISH, "Restored %s from result cache entry %s.", outputPath, key));
+
+        return true;
+    }
+
+    protected void store(final String key, final String outputPath) {
+        final File outputFile = new File(outputPath);
+        final long size = outputFile.length();
+
+        if (!outputFile.isFile() || size > byteBudget) {
+            return;
+        }
+
+        final File entryFile = getEntryFile(key);
+        final File temporaryFile = new File(directory, key + ".tmp");
+
+        try {
+            final String hash = copy(outputFile, temporaryFile);
+
+            synchronized (this) {
+                if (!temporaryFile.renameTo(entryFile)) {
+                    throw new IOException(String.format("Failed to rename %s.", temporaryFile.getAbsolutePath()));
+                }
+
+                final Entry previous = entries.put(key, new Entry(key, size, hash, System.currentTimeMillis()));
+                if (previous != null) {
+                    totalSize -= previous.size;
+                }
+                totalSize += size;
+
+                evict();
+                saveIndex();
+            }
+
+            Log.d(TAG, String.format(Locale.ENGLISH, "Stored %s as result cache entry %s, cache size %d bytes.", outputPath, key, getTotalSize()));
+        } catch (final IOException e) {
+            Log.w(TAG, String.format("Storing result cache entry %s failed.%s", key, Exceptions.getStackTraceString(e)));
+            temporaryFile.delete();
+        }
+    }
+
+    protected synchronized void remove(final String key) {
+        final Entry entry = entries.remove(key);
+        if (entry != null) {
+            totalSize -= entry.size;
+            getEntryFile(key).delete();
+            saveIndex();
+        }
+    }
+
+    protected synchronized void evict() {
+        final Iterator<Entry> iterator = entries.values().iterator();
+        while (totalSize > byteBudget && iterator.hasNext()) {
+            final Entry entry = iterator.next();
+            iterator.remove();
+            totalSize -= entry.size;
+            getEntryFile(entry.key).delete();
+            Log.d(TAG, String.format(Locale.ENGLISH, "Evicted result cache entry %s with %d bytes.", entry.key, entry.size));
+        }
+    }
+
+    protected void runUncached(final String command, final String outputPath, final Callback callback, final LogCallback logCallback, final StatisticsCallback statisticsCallback) {
+        FFmpegKit.executeAsync(command, new ExecuteCallback() {
+
+            @Override
+            public void apply(final Session session) {
+                callback.apply(new Result(outputPath, session, session.getReturnCode(), session.getDuration()));
+            }
+        }, logCallback, statisticsCallback);
+    }
+
+    protected synchronized void loadIndex() {
+        final File indexFile = new File(directory, INDEX_FILE_NAME);
+        if (!indexFile.exists()) {
+            return;
+        }
+
+        final List<Entry> loaded = new ArrayList<>();
+
+        try {
+            final JSONObject index = new JSONObject(IOUtil.readFile(indexFile));
+            final Iterator<String> keys = index.keys();
+            while (keys.hasNext()) {
+                final String key = keys.next();
+                final JSONObject entry = index.getJSONObject(key);
+                final long size = entry.getLong("size");
+
+                // ENTRIES WHOSE FILE IS GONE ARE DROPPED HERE, CORRUPT ONES WHEN THEY ARE RESTORED
+                if (getEntryFile(key).length() == size) {
+                    loaded.add(new Entry(key, size, entry.getString("hash"), entry.getLong("lastAccessTime")));
+                }
+            }
+        } catch (final IOException | JSONException e) {
+            Log.w(TAG, String.format("Loading result cache index failed, starting with an empty cache.%s", Exceptions.getStackTraceString(e)));
+            loaded.clear();
+        }
+
+        Collections.sort(loaded, new Comparator<Entry>() {
+
+            @Override
+            public int compare(final Entry entry1, final Entry entry2) {
+                return Long.compare(entry1.lastAccessTime, entry2.lastAccessTime);
+            }
+        });
+
+        for (Entry entry : loaded) {
+            entries.put(entry.key, entry);
+            totalSize += entry.size;
+        }
+
+        evict();
+    }
+
+    protected synchronized void saveIndex() {
+        final File indexFile = new File(directory, INDEX_FILE_NAME);
+        final File temporaryFile = new File(directory, INDEX_FILE_NAME + ".tmp");
+
+        FileOutputStream outputStream = null;
+        try {
+            final JSONObject index = new JSONObject();
+            for (Entry entry : entries.values()) {
+                final JSONObject record = new JSONObject();
+                record.put("size", entry.size);
+                record.put("hash", entry.hash);
+                record.put("lastAccessTime", entry.lastAccessTime);
+                index.put(entry.key, record);
+            }
+
+            outputStream = new FileOutputStream(temporaryFile);
+            outputStream.write(index.toString().getBytes(Charset.forName("UTF-8")));
+            outputStream.getFD().sync();
+            outputStream.close();
+            outputStream = null;
+
+            if (!temporaryFile.renameTo(indexFile)) {
+                throw new IOException(String.format("Failed to rename %s.", temporaryFile.getAbsolutePath()));
+            }
+        } catch (final IOException | JSONException e) {
+            Log.w(TAG, String.format("Saving result cache index failed.%s", Exceptions.getStackTraceString(e)));
+        } finally {
+            if (outputStream != null) {
+                try {
+                    outputStream.close();
+                } catch (final IOException ignored) {
+                }
+            }
+        }
+    }
+
+    protected File getEntryFile(final String key) {
+        return new File(directory, key);
+    }
+
+    /**
+     * <p>Copies the source file to the destination file.
+     *
+     * @return SHA-256 of the bytes copied
+     */
+    protected static String copy(final File source, final File destination) throws IOException {
+        final MessageDigest digest = IOUtil.newDigest();
+        final byte[] buffer = new byte[BUFFER_SIZE];
+
+        InputStream inputStream = null;
+        FileOutputStream outputStream = null;
+        try {
+            inputStream = new FileInputStream(source);
+            outputStream = new FileOutputStream(destination);
+
+            int read;
+            while ((read = inputStream.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+                outputStream.write(buffer, 0, read);
+            }
+            outputStream.getFD().sync();
+        } finally {
+            IOUtil.closeQuietly(inputStream);
+            IOUtil.closeQuietly(outputStream);
+        }
+
+        return IOUtil.toHex(digest.digest());
+    }
+
+    protected static String hashFile(final File file) throws IOException {
+        final MessageDigest digest = IOUtil.newDigest();
+        final byte[] buffer = new byte[BUFFER_SIZE];
+
+        InputStream inputStream = null;
+        try {
+            inputStream = new FileInputStream(file);
+
+            int read;
+            while ((read = inputStream.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        } finally {
+            IOUtil.closeQuietly(inputStream);
+        }
+
+        return IOUtil.toHex(digest.digest());
+    }
+
+}
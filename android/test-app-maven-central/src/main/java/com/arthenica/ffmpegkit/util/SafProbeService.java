@@ -0,0 +1,377 @@
+/*
+ * Copyright (c) 2021 Taner Sener
+ *
+ * This file is part of FFmpegKitTest.
+ *
+ * FFmpegKitTest is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FFmpegKitTest is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with FFmpegKitTest.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.arthenica.ffmpegkit.util;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.provider.DocumentsContract;
+import android.provider.OpenableColumns;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.util.Log;
+
+import com.arthenica.ffmpegkit.FFmpegKitConfig;
+import com.arthenica.ffmpegkit.MediaInformation;
+import com.arthenica.ffmpegkit.MediaInformationSession;
+import com.arthenica.smartexception.java.Exceptions;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import static com.arthenica.ffmpegkit.test.MainActivity.TAG;
+
+/**
+ * <p>Probes Storage Access Framework documents on background threads.
+ *
+ * <p>Open {@link ParcelFileDescriptor}s are shared by concurrent probes of the same document and
+ * reference counted. A descriptor is closed when it has not been used for
+ * {@link #DESCRIPTOR_IDLE_TIMEOUT} milliseconds, so that a document probed again shortly after is
+ * not opened again. When the descriptor refers to a regular file that this process can reopen,
+ * FFprobe reads it through <code>/proc/self/fd</code>, which gives every probe tier its own file
+ * offset. Pipes, sockets and descriptors that can not be reopened are probed through a new SAF
+ * parameter for every tier instead. A probe reads only the head of a document, so documents
+ * are never staged for it.
+ *
+ * <p>Results are memoized by document URI, size and last modification time. Documents whose
+ * provider does not report a modification time are probed every time.
+ */
+public class SafProbeService {
+
+    public static class Result {
+        private final Uri uri;
+        private final MediaInformation mediaInformation;
+        private final MediaInformationSession session;
+        private final boolean memoized;
+        private final long timeToResult;
+
+        Result(final Uri uri, final MediaInformation mediaInformation, final MediaInformationSession session, final boolean memoized, final long timeToResult) {
+            this.uri = uri;
+            this.mediaInformation = mediaInformation;
+            this.session = session;
+            this.memoized = memoized;
+            this.timeToResult = timeToResult;
+        }
+
+        public Uri getUri() {
+            return uri;
+        }
+
+        /**
+         * @return media information, null if probing failed
+         */
+        public MediaInformation getMediaInformation() {
+            return mediaInformation;
+        }
+
+        /**
+         * @return probe session, null if the result was memoized or the document could not be
+         * opened
+         */
+        public MediaInformationSession getSession() {
+            return session;
+        }
+
+        public boolean isMemoized() {
+            return memoized;
+        }
+
+        /**
+         * @return time from the request to the result, in milliseconds
+         */
+        public long getTimeToResult() {
+            return timeToResult;
+        }
+    }
+
+    protected static class Descriptor {
+        final ParcelFileDescriptor parcelFileDescriptor;
+        final boolean reopenable;
+        int referenceCount;
+        long lastReleased;
+
+        Descriptor(final ParcelFileDescriptor parcelFileDescriptor, final boolean reopenable) {
+            this.parcelFileDescriptor = parcelFileDescriptor;
+            this.reopenable = reopenable;
+        }
+
+        String getPath() {
+            return "/proc/self/fd/" + parcelFileDescriptor.getFd();
+        }
+    }
+
+    public static final long DESCRIPTOR_IDLE_TIMEOUT = 30000;
+
+    private static final int MAX_MEMOIZED_RESULTS = 32;
+
+    private final Context context;
+    private final FastProbe fastProbe;
+    private final ScheduledExecutorService executor;
+    private final Map<String, Descriptor> descriptors;
+    private final Map<String, MediaInformation> memoizedResults;
+    private final AtomicLong probes = new AtomicLong();
+    private final AtomicLong memoizedHits = new AtomicLong();
+    private final AtomicLong descriptorOpens = new AtomicLong();
+    private final AtomicLong descriptorReuses = new AtomicLong();
+
+    public SafProbeService(final Context context, final FastProbe fastProbe) {
+        this.context = context.getApplicationContext();
+        this.fastProbe = fastProbe;
+        this.executor = Executors.newScheduledThreadPool(2, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(runnable, "saf-probe-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.descriptors = new HashMap<>();
+        this.memoizedResults = new LinkedHashMap<String, MediaInformation>(16, 0.75f, true) {
+
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<String, MediaInformation> eldest) {
+                return size() > MAX_MEMOIZED_RESULTS;
+            }
+        };
+    }
+
+    /**
+     * <p>Probes the given document on a background thread.
+     *
+     * @return future completed with the result, never on the calling thread
+     */
+    public CompletableFuture<Result> probeAsync(final Uri uri) {
+        final long startTime = System.currentTimeMillis();
+
+        return CompletableFuture.supplyAsync(new Supplier<Result>() {
+
+            @Override
+            public Result get() {
+                return probe(uri, startTime);
+            }
+        }, executor);
+    }
+
+    public String getStats() {
+        return String.format(Locale.ENGLISH, "%d probes, %d memoized, %d descriptors opened, %d reused", probes.get(), memoizedHits.get(), descriptorOpens.get(), descriptorReuses.get());
+    }
+
+    /**
+     * <p>Closes all descriptors and stops the background threads.
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+        synchronized (descriptors) {
+            for (Descriptor descriptor : descriptors.values()) {
+                IOUtil.closeQuietly(descriptor.parcelFileDescriptor);
+            }
+            descriptors.clear();
+        }
+    }
+
+    protected Result probe(final Uri uri, final long startTime) {
+        final String key = getMemoKey(uri);
+
+        if (key != null) {
+            final MediaInformation memoized;
+            synchronized (memoizedResults) {
+                memoized = memoizedResults.get(key);
+            }
+            if (memoized != null) {
+                memoizedHits.incrementAndGet();
+                return new Result(uri, memoized, null, true, System.currentTimeMillis() - startTime);
+            }
+        }
+
+        final Descriptor descriptor;
+        try {
+            descriptor = acquire(uri);
+        } catch (final IOException | SecurityException e) {
+            Log.w(TAG, String.format("Opening %s failed.%s", uri, Exceptions.getStackTraceString(e)));
+            return new Result(uri, null, null, false, System.currentTimeMillis() - startTime);
+        }
+
+        try {
+            probes.incrementAndGet();
+
+            final FastProbe.Result probeResult;
+            if (descriptor.reopenable) {
+                probeResult = fastProbe.probe(descriptor.getPath());
+            } else {
+
+                // A SAF PARAMETER CAN BE OPENED ONLY ONCE, EVERY TIER ASKS FOR A NEW ONE
+                probeResult = fastProbe.probe(new Supplier<String>() {
+
+                    @Override
+                    public String get() {
+                        return FFmpegKitConfig.getSafParameterForRead(context, uri);
+                    }
+                });
+            }
+            final MediaInformation mediaInformation = probeResult.getMediaInformation();
+
+            if (key != null && mediaInformation != null) {
+                synchronized (memoizedResults) {
+                    memoizedResults.put(key, mediaInformation);
+                }
+            }
+
+            final Result result = new Result(uri, mediaInformation, probeResult.getSession(), false, System.currentTimeMillis() - startTime);
+
+            Log.d(TAG, String.format(Locale.ENGLISH, "SAF probe of %s completed in %d ms at tier %d, %s.", uri, result.getTimeToResult(), probeResult.getTierIndex(), getStats()));
+
+            return result;
+        } finally {
+            release(uri);
+        }
+    }
+
+    protected Descriptor acquire(final Uri uri) throws IOException {
+        final String key = uri.toString();
+
+        synchronized (descriptors) {
+            Descriptor descriptor = descriptors.get(key);
+            if (descriptor == null) {
+                final ParcelFileDescriptor parcelFileDescriptor = context.getContentResolver().openFileDescriptor(uri, "r");
+                if (parcelFileDescriptor == null) {
+                    throw new IOException(String.format("No descriptor returned for %s.", uri));
+                }
+                descriptor = new Descriptor(parcelFileDescriptor, isReopenable(parcelFileDescriptor));
+                descriptors.put(key, descriptor);
+                descriptorOpens.incrementAndGet();
+            } else {
+                descriptorReuses.incrementAndGet();
+            }
+
+            descriptor.referenceCount++;
+            return descriptor;
+        }
+    }
+
+    /**
+     * <p>Reopening <code>/proc/self/fd</code> gives a new file offset only for regular files, and
+     * may still be denied by the provider's file permissions or by SELinux.
+     */
+    protected static boolean isReopenable(final ParcelFileDescriptor parcelFileDescriptor) {
+        try {
+            if (!OsConstants.S_ISREG(Os.fstat(parcelFileDescriptor.getFileDescriptor()).st_mode)) {
+                return false;
+            }
+        } catch (final ErrnoException e) {
+            return false;
+        }
+
+        FileInputStream inputStream = null;
+        try {
+            inputStream = new FileInputStream("/proc/self/fd/" + parcelFileDescriptor.getFd());
+            return true;
+        } catch (final IOException | SecurityException e) {
+            return false;
+        } finally {
+            IOUtil.closeQuietly(inputStream);
+        }
+    }
+
+    protected void release(final Uri uri) {
+        final String key = uri.toString();
+
+        synchronized (descriptors) {
+            final Descriptor descriptor = descriptors.get(key);
+            if (descriptor == null) {
+                return;
+            }
+
+            descriptor.referenceCount--;
+            descriptor.lastReleased = System.currentTimeMillis();
+        }
+
+        executor.schedule(new Runnable() {
+
+            @Override
+            public void run() {
+                closeIfIdle(key);
+            }
+        }, DESCRIPTOR_IDLE_TIMEOUT, TimeUnit.MILLISECONDS);
+    }
+
+    protected void closeIfIdle(final String key) {
+        synchronized (descriptors) {
+            final Descriptor descriptor = descriptors.get(key);
+
+            // A LATER RELEASE SCHEDULED ITS OWN CHECK
+            if (descriptor != null && descriptor.referenceCount == 0 && System.currentTimeMillis() - descriptor.lastReleased >= DESCRIPTOR_IDLE_TIMEOUT) {
+                descriptors.remove(key);
+                IOUtil.closeQuietly(descriptor.parcelFileDescriptor);
+            }
+        }
+    }
+
+    protected String getMemoKey(final Uri uri) {
+        return getDocumentKey(context, uri);
+    }
+
+    /**
+     * @return key built from the URI, size and last modification time of a document, null if its
+     * provider does not report them
+     */
+    protected static String getDocumentKey(final Context context, final Uri uri) {
+        Cursor cursor = null;
+        try {
+            cursor = context.getContentResolver().query(uri, new String[]{OpenableColumns.SIZE, DocumentsContract.Document.COLUMN_LAST_MODIFIED}, null, null, null);
+            if (cursor == null || !cursor.moveToFirst()) {
+                return null;
+            }
+
+            final int sizeIndex = cursor.getColumnIndex(OpenableColumns.SIZE);
+            final int lastModifiedIndex = cursor.getColumnIndex(DocumentsContract.Document.COLUMN_LAST_MODIFIED);
+            if (sizeIndex < 0 || lastModifiedIndex < 0 || cursor.isNull(sizeIndex) || cursor.isNull(lastModifiedIndex)) {
+                return null;
+            }
+
+            return String.format(Locale.ENGLISH, "%s|%d|%d", uri, cursor.getLong(sizeIndex), cursor.getLong(lastModifiedIndex));
+        } catch (final RuntimeException e) {
+
+            // PROVIDERS MAY REJECT UNKNOWN PROJECTION COLUMNS
+            Log.d(TAG, String.format("Querying %s failed: %s", uri, e.getMessage()));
+            return null;
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+
+}
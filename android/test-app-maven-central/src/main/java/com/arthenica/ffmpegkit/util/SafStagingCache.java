@@ -0,0 +1,327 @@
+/*
+ * Copyright (c) 2021 Taner Sener
+ *
+ * This file is part of FFmpegKitTest.
+ *
+ * FFmpegKitTest is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FFmpegKitTest is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with FFmpegKitTest.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.arthenica.ffmpegkit.util;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import static com.arthenica.ffmpegkit.test.MainActivity.TAG;
+
+/**
+ * <p>Copies Storage Access Framework documents to app storage, so that multi-pass jobs read and
+ * seek a local file instead of going through the content provider on every pass.
+ *
+ * <p>Staged copies are keyed by document URI, size and last modification time, and written with
+ * a single channel transfer. The least recently used copies are deleted when the total size
+ * exceeds the budget, except copies that are acquired and not yet released. Documents whose
+ * provider does not report a modification time are copied again on every acquisition.
+ *
+ * <p>Staging copies the whole document, so it pays off only for inputs read more than once, such
+ * as the detect and transform passes of a stabilization. Copies left by earlier runs are indexed
+ * on the first acquisition, not on construction.
+ */
+public class SafStagingCache {
+
+    private static final long TRANSFER_CHUNK_SIZE = 8 * 1024 * 1024;
+
+    private final Context context;
+    private final File directory;
+    private final long maxBytes;
+    private final LinkedHashMap<String, File> files;
+    private final Map<String, Integer> pins;
+    private final Map<String, Object> stagingLocks;
+    private long totalBytes;
+    private boolean restored;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong stagedBytes = new AtomicLong();
+    private final ExecutorService executor;
+
+    public SafStagingCache(final Context context, final File directory, final long maxBytes) {
+        this.context = context.getApplicationContext();
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        this.files = new LinkedHashMap<>(16, 0.75f, true);
+        this.pins = new HashMap<>();
+        this.stagingLocks = new HashMap<>();
+        this.executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(runnable, "saf-staging");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * <p>Returns a local copy of the given document, staging it first if needed. The copy is not
+     * evicted until it is released.
+     */
+    public File acquire(final Uri uri) throws IOException {
+        final String documentKey = SafProbeService.getDocumentKey(context, uri);
+        final String fileName = (documentKey == null) ? "uncached-" + System.nanoTime() : IOUtil.toHex(digest(documentKey));
+
+        final Object stagingLock;
+        synchronized (this) {
+            restore();
+
+            final File staged = files.get(fileName);
+            if (staged != null && staged.isFile()) {
+                pin(fileName);
+                hits.incrementAndGet();
+                staged.setLastModified(System.currentTimeMillis());
+                return staged;
+            }
+
+            Object lock = stagingLocks.get(fileName);
+            if (lock == null) {
+                lock = new Object();
+                stagingLocks.put(fileName, lock);
+            }
+            stagingLock = lock;
+        }
+
+        // CONCURRENT ACQUISITIONS OF THE SAME DOCUMENT WAIT FOR A SINGLE COPY
+        synchronized (stagingLock) {
+            synchronized (this) {
+                final File staged = files.get(fileName);
+                if (staged != null && staged.isFile()) {
+                    pin(fileName);
+                    hits.incrementAndGet();
+                    return staged;
+                }
+            }
+
+            misses.incrementAndGet();
+            final File file = new File(directory, fileName);
+            final long startTime = System.currentTimeMillis();
+            try {
+                final long size = transfer(uri, file);
+
+                Log.d(TAG, String.format(Locale.ENGLISH, "Staged %s, %d bytes in %d ms.", uri, size, System.currentTimeMillis() - startTime));
+
+                synchronized (this) {
+                    files.put(fileName, file);
+                    totalBytes += size;
+                    pin(fileName);
+                    evict();
+                }
+
+                return file;
+            } finally {
+                synchronized (this) {
+                    stagingLocks.remove(fileName);
+                }
+            }
+        }
+    }
+
+    /**
+     * <p>Runs {@link #acquire(Uri)} on a background thread.
+     *
+     * @return a future that completes with the local copy, or exceptionally if staging failed
+     */
+    public CompletableFuture<File> acquireAsync(final Uri uri) {
+        return CompletableFuture.supplyAsync(new Supplier<File>() {
+
+            @Override
+            public File get() {
+                try {
+                    return acquire(uri);
+                } catch (final IOException e) {
+                    throw new CompletionException(e);
+                }
+            }
+        }, executor);
+    }
+
+    /**
+     * <p>Releases a copy returned by {@link #acquire(Uri)}.
+     */
+    public synchronized void release(final File file) {
+        final String fileName = file.getName();
+        final Integer count = pins.get(fileName);
+        if (count == null) {
+            return;
+        }
+
+        if (count > 1) {
+            pins.put(fileName, count - 1);
+        } else {
+            pins.remove(fileName);
+
+            if (fileName.startsWith("uncached-")) {
+                files.remove(fileName);
+                totalBytes -= file.length();
+                file.delete();
+            }
+        }
+
+        evict();
+    }
+
+    public synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public String getStats() {
+        return String.format(Locale.ENGLISH, "%d hits, %d misses, %d bytes staged, %d bytes held", hits.get(), misses.get(), stagedBytes.get(), getTotalBytes());
+    }
+
+    protected long transfer(final Uri uri, final File file) throws IOException {
+        final File partFile = new File(file.getAbsolutePath() + ".part");
+
+        ParcelFileDescriptor parcelFileDescriptor = null;
+        FileChannel source = null;
+        FileChannel destination = null;
+        try {
+            parcelFileDescriptor = context.getContentResolver().openFileDescriptor(uri, "r");
+            if (parcelFileDescriptor == null) {
+                throw new IOException(String.format("No descriptor returned for %s.", uri));
+            }
+
+            source = new FileInputStream(parcelFileDescriptor.getFileDescriptor()).getChannel();
+            destination = new FileOutputStream(partFile).getChannel();
+
+            // transferFrom READS THE SOURCE SEQUENTIALLY, SO PIPE BACKED DOCUMENTS WORK TOO
+            long position = 0;
+            long transferred;
+            while ((transferred = destination.transferFrom(source, position, TRANSFER_CHUNK_SIZE)) > 0) {
+                position += transferred;
+            }
+
+            destination.force(false);
+            destination.close();
+            destination = null;
+
+            if (!partFile.renameTo(file)) {
+                throw new IOException(String.format("Failed to rename %s.", partFile.getAbsolutePath()));
+            }
+
+            stagedBytes.addAndGet(position);
+            return position;
+        } finally {
+            IOUtil.closeQuietly(source);
+            IOUtil.closeQuietly(destination);
+            IOUtil.closeQuietly(parcelFileDescriptor);
+            partFile.delete();
+        }
+    }
+
+    protected void pin(final String fileName) {
+        final Integer count = pins.get(fileName);
+        pins.put(fileName, (count == null) ? 1 : count + 1);
+    }
+
+    protected void evict() {
+        final Iterator<Map.Entry<String, File>> iterator = files.entrySet().iterator();
+        while (totalBytes > maxBytes && iterator.hasNext()) {
+            final Map.Entry<String, File> entry = iterator.next();
+            if (pins.containsKey(entry.getKey())) {
+                continue;
+            }
+
+            final File file = entry.getValue();
+            totalBytes -= file.length();
+            iterator.remove();
+            file.delete();
+
+            Log.d(TAG, String.format("Evicted staged copy %s.", entry.getKey()));
+        }
+    }
+
+    /**
+     * <p>Indexes copies staged by earlier runs, least recently used first. Runs once, on the
+     * thread of the first acquisition.
+     */
+    protected synchronized void restore() {
+        if (restored) {
+            return;
+        }
+        restored = true;
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            Log.w(TAG, String.format("Failed to create staging directory: %s.", directory.getAbsolutePath()));
+            return;
+        }
+
+        final File[] existing = directory.listFiles();
+        if (existing == null) {
+            return;
+        }
+
+        Arrays.sort(existing, new Comparator<File>() {
+
+            @Override
+            public int compare(final File first, final File second) {
+                return Long.compare(first.lastModified(), second.lastModified());
+            }
+        });
+
+        for (File file : existing) {
+            if (file.getName().endsWith(".part") || file.getName().startsWith("uncached-")) {
+                file.delete();
+            } else if (file.isFile()) {
+                files.put(file.getName(), file);
+                totalBytes += file.length();
+            }
+        }
+
+        evict();
+    }
+
+    protected static byte[] digest(final String value) throws IOException {
+        return IOUtil.newDigest().digest(value.getBytes(Charset.forName("UTF-8")));
+    }
+
+}
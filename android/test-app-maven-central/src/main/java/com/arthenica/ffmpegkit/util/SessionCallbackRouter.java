@@ -0,0 +1,351 @@
+/*
+ * Copyright (c) 2021 Taner Sener
+ *
+ * This file is part of FFmpegKitTest.
+ *
+ * FFmpegKitTest is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FFmpegKitTest is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with FFmpegKitTest.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.arthenica.ffmpegkit.util;
+
+import com.arthenica.ffmpegkit.ExecuteCallback;
+import com.arthenica.ffmpegkit.FFmpegKit;
+import com.arthenica.ffmpegkit.FFmpegKitConfig;
+import com.arthenica.ffmpegkit.FFmpegSession;
+import com.arthenica.ffmpegkit.Level;
+import com.arthenica.ffmpegkit.Log;
+import com.arthenica.ffmpegkit.LogCallback;
+import com.arthenica.ffmpegkit.Session;
+import com.arthenica.ffmpegkit.Statistics;
+import com.arthenica.ffmpegkit.StatisticsCallback;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * <p>Routes log and statistics messages to the sinks registered for their session.
+ *
+ * <p>The router is the only global log and statistics callback, so switching tabs no longer
+ * redirects the output of sessions still running elsewhere. Because a global log callback is
+ * always defined, FFmpegKit no longer prints any log to logcat itself; log messages of sessions
+ * without a sink are printed by the router instead, and counted.
+ *
+ * <p>Sinks are kept in an open addressing table keyed by the primitive session id. The table is
+ * copied on every change and swapped in with a compare-and-set, so message delivery is a single
+ * volatile read and a short probe without locks, while the rare registrations pay for the copy.
+ *
+ * <p>The router is also the global execute callback. A completed session's sinks are removed after
+ * a grace period, because its last messages may still be in transmit when it completes. Completed
+ * sessions are then passed on to the chained execute callbacks. FFmpegKit does not call the
+ * execute callback for synchronous sessions, so those are passed to {@link #apply(Session)} by
+ * {@link SyncSessions} when they return, and their sinks are removed the same way.
+ *
+ * <p>Log and statistics callbacks added with {@link #addLogCallback(LogCallback)} and
+ * {@link #addStatisticsCallback(StatisticsCallback)} observe the messages of every session,
+ * whether it has a sink or not.
+ */
+public class SessionCallbackRouter implements LogCallback, StatisticsCallback, ExecuteCallback {
+
+    protected static class Route {
+        final LogCallback logSink;
+        final StatisticsCallback statisticsSink;
+
+        Route(final LogCallback logSink, final StatisticsCallback statisticsSink) {
+            this.logSink = logSink;
+            this.statisticsSink = statisticsSink;
+        }
+    }
+
+    /**
+     * <p>An immutable open addressing table with linear probing. An empty slot has a null route.
+     */
+    protected static class Table {
+        final long[] keys;
+        final Route[] routes;
+        final int size;
+
+        Table(final int capacity) {
+            this.keys = new long[capacity];
+            this.routes = new Route[capacity];
+            this.size = 0;
+        }
+
+        Table(final long[] keys, final Route[] routes, final int size) {
+            this.keys = keys;
+            this.routes = routes;
+            this.size = size;
+        }
+
+        Route get(final long key) {
+            final int mask = keys.length - 1;
+            int index = hash(key) & mask;
+            Route route;
+            while ((route = routes[index]) != null) {
+                if (keys[index] == key) {
+                    return route;
+                }
+                index = (index + 1) & mask;
+            }
+            return null;
+        }
+
+        Table put(final long key, final Route route) {
+            final boolean replace = get(key) != null;
+
+            // LOAD FACTOR IS KEPT BELOW 0.5 SO PROBES STAY SHORT
+            int capacity = keys.length;
+            if (!replace && (size + 1) * 2 > capacity) {
+                capacity *= 2;
+            }
+
+            final Table table = copy(capacity, key);
+            table.insert(key, route);
+            return new Table(table.keys, table.routes, replace ? size : size + 1);
+        }
+
+        Table remove(final long key) {
+            if (get(key) == null) {
+                return this;
+            }
+
+            // REBUILT WITHOUT THE KEY, SO NO TOMBSTONES ARE NEEDED
+            final Table table = copy(keys.length, key);
+            return new Table(table.keys, table.routes, size - 1);
+        }
+
+        /**
+         * <p>Copies all entries except the given key into a new table.
+         */
+        Table copy(final int capacity, final long excludedKey) {
+            final Table table = new Table(capacity);
+            for (int i = 0; i < keys.length; i++) {
+                if (routes[i] != null && keys[i] != excludedKey) {
+                    table.insert(keys[i], routes[i]);
+                }
+            }
+            return table;
+        }
+
+        void insert(final long key, final Route route) {
+            final int mask = keys.length - 1;
+            int index = hash(key) & mask;
+            while (routes[index] != null) {
+                index = (index + 1) & mask;
+            }
+            keys[index] = key;
+            routes[index] = route;
+        }
+
+        static int hash(final long key) {
+
+            // SESSION IDS ARE SEQUENTIAL, MIX THEM TO SPREAD CLUSTERS
+            final long mixed = key * 0x9E3779B97F4A7C15L;
+            return (int) (mixed ^ (mixed >>> 32));
+        }
+    }
+
+    public static final long DEFAULT_GRACE_PERIOD = 5000;
+
+    /**
+     * <p>Tag unrouted log messages are printed with, the one FFmpegKit prints its own logs with.
+     */
+    public static final String UNROUTED_LOG_TAG = "ffmpeg-kit";
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private final AtomicReference<Table> table;
+    private final long gracePeriod;
+    private final ScheduledExecutorService scheduler;
+    private final List<ExecuteCallback> executeCallbacks;
+    private final List<LogCallback> logCallbacks;
+    private final List<StatisticsCallback> statisticsCallbacks;
+    private final AtomicLong routed = new AtomicLong();
+    private final AtomicLong unrouted = new AtomicLong();
+
+    public SessionCallbackRouter() {
+        this(DEFAULT_GRACE_PERIOD);
+    }
+
+    /**
+     * @param gracePeriod time sinks are kept after their session completes, in milliseconds
+     */
+    public SessionCallbackRouter(final long gracePeriod) {
+        this.table = new AtomicReference<>(new Table(INITIAL_CAPACITY));
+        this.gracePeriod = gracePeriod;
+        this.executeCallbacks = new CopyOnWriteArrayList<>();
+        this.logCallbacks = new CopyOnWriteArrayList<>();
+        this.statisticsCallbacks = new CopyOnWriteArrayList<>();
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(runnable, "session-callback-router");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * <p>Adds an execute callback that completed sessions are passed on to.
+     */
+    public void addExecuteCallback(final ExecuteCallback executeCallback) {
+        executeCallbacks.add(executeCallback);
+    }
+
+    /**
+     * <p>Adds a log callback that receives the log messages of all sessions. It is called on the
+     * thread delivering logs, so it must be quick.
+     */
+    public void addLogCallback(final LogCallback logCallback) {
+        logCallbacks.add(logCallback);
+    }
+
+    /**
+     * <p>Adds a statistics callback that receives the statistics of all sessions. It is called on
+     * the thread delivering statistics, so it must be quick.
+     */
+    public void addStatisticsCallback(final StatisticsCallback statisticsCallback) {
+        statisticsCallbacks.add(statisticsCallback);
+    }
+
+    /**
+     * <p>Registers sinks for the given session, replacing the ones already registered. Register
+     * before the session is started to receive all of its messages.
+     *
+     * @param logSink        log sink, may be null
+     * @param statisticsSink statistics sink, may be null
+     */
+    public void register(final long sessionId, final LogCallback logSink, final StatisticsCallback statisticsSink) {
+        final Route route = new Route(logSink, statisticsSink);
+
+        Table current;
+        do {
+            current = table.get();
+        } while (!table.compareAndSet(current, current.put(sessionId, route)));
+    }
+
+    public void unregister(final long sessionId) {
+        Table current;
+        Table updated;
+        do {
+            current = table.get();
+            updated = current.remove(sessionId);
+        } while (updated != current && !table.compareAndSet(current, updated));
+    }
+
+    /**
+     * <p>Starts the given command asynchronously with sinks registered before it starts.
+     */
+    public FFmpegSession executeAsync(final String command, final ExecuteCallback executeCallback, final LogCallback logSink, final StatisticsCallback statisticsSink) {
+        final FFmpegSession session = new FFmpegSession(FFmpegKit.parseArguments(command), executeCallback, null, null);
+        register(session.getSessionId(), logSink, statisticsSink);
+        FFmpegKitConfig.asyncFFmpegExecute(session);
+        return session;
+    }
+
+    public int getRouteCount() {
+        return table.get().size;
+    }
+
+    public String getStats() {
+        return String.format(Locale.ENGLISH, "%d messages routed, %d unrouted, %d sessions registered", routed.get(), unrouted.get(), getRouteCount());
+    }
+
+    @Override
+    public void apply(final Log log) {
+        for (LogCallback logCallback : logCallbacks) {
+            logCallback.apply(log);
+        }
+
+        final Route route = table.get().get(log.getSessionId());
+        if (route != null && route.logSink != null) {
+            routed.incrementAndGet();
+            route.logSink.apply(log);
+        } else {
+            unrouted.incrementAndGet();
+            print(log);
+        }
+    }
+
+    @Override
+    public void apply(final Statistics statistics) {
+        for (StatisticsCallback statisticsCallback : statisticsCallbacks) {
+            statisticsCallback.apply(statistics);
+        }
+
+        final Route route = table.get().get(statistics.getSessionId());
+        if (route != null && route.statisticsSink != null) {
+            routed.incrementAndGet();
+            route.statisticsSink.apply(statistics);
+        } else {
+            unrouted.incrementAndGet();
+        }
+    }
+
+    /**
+     * <p>Prints a log message to logcat with the priority FFmpegKit would use for its level.
+     */
+    protected static void print(final Log log) {
+        final Level level = log.getLevel();
+        if (level == null || level == Level.AV_LOG_QUIET) {
+            return;
+        }
+
+        switch (level) {
+            case AV_LOG_TRACE:
+            case AV_LOG_DEBUG:
+                android.util.Log.d(UNROUTED_LOG_TAG, log.getMessage());
+                break;
+            case AV_LOG_STDERR:
+            case AV_LOG_VERBOSE:
+                android.util.Log.v(UNROUTED_LOG_TAG, log.getMessage());
+                break;
+            case AV_LOG_INFO:
+                android.util.Log.i(UNROUTED_LOG_TAG, log.getMessage());
+                break;
+            case AV_LOG_WARNING:
+                android.util.Log.w(UNROUTED_LOG_TAG, log.getMessage());
+                break;
+            default:
+                android.util.Log.e(UNROUTED_LOG_TAG, log.getMessage());
+        }
+    }
+
+    @Override
+    public void apply(final Session session) {
+        final long sessionId = session.getSessionId();
+        if (table.get().get(sessionId) != null) {
+            scheduler.schedule(new Runnable() {
+
+                @Override
+                public void run() {
+                    unregister(sessionId);
+                }
+            }, gracePeriod, TimeUnit.MILLISECONDS);
+        }
+
+        for (ExecuteCallback chained : executeCallbacks) {
+            chained.apply(session);
+        }
+    }
+
+}
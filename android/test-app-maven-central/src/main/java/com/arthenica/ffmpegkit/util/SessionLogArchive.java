@@ -0,0 +1,534 @@
+/*
+ * Copyright (c) 2021 Taner Sener
+ *
+ * This file is part of FFmpegKitTest.
+ *
+ * FFmpegKitTest is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FFmpegKitTest is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with FFmpegKitTest.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.arthenica.ffmpegkit.util;
+
+import android.util.Log;
+
+import com.arthenica.ffmpegkit.ExecuteCallback;
+import com.arthenica.ffmpegkit.Session;
+import com.arthenica.smartexception.java.Exceptions;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static com.arthenica.ffmpegkit.test.MainActivity.TAG;
+
+/**
+ * <p>Archives the logs of completed sessions in rotating, gzip compressed segments.
+ *
+ * <p>Completed sessions are handed to a bounded queue and written by a single background thread,
+ * so the execute callback only pays for an <code>offer</code>. When the queue is full the session
+ * is dropped and counted instead of blocking. Logs are appended to the active segment, which is
+ * compressed once it reaches the segment size. The oldest segments are deleted when the archive
+ * exceeds its size budget or its maximum age.
+ *
+ * <p>An index maps every archived session to its segment, offset and length, so a session's logs
+ * can be read back without scanning the archive. Session ids restart at 1 in every process, so
+ * sessions are indexed by run and session id, where a run is identified by the time its archive
+ * was created. The index is an append-only file that is replayed by the writer thread before it
+ * archives the first session, so opening the archive does no disk I/O on the caller's thread.
+ */
+public class SessionLogArchive implements ExecuteCallback {
+
+    protected static class IndexEntry {
+        final long segment;
+        final long offset;
+        final int length;
+
+        IndexEntry(final long segment, final long offset, final int length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    public static final long DEFAULT_SEGMENT_SIZE = 1024 * 1024;
+
+    private static final int QUEUE_CAPACITY = 64;
+    private static final int LOG_WAIT_TIMEOUT = 5000;
+    private static final String INDEX_FILE_NAME = "index";
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String COMPRESSED_SUFFIX = ".log.gz";
+
+    private final File directory;
+    private final long segmentSize;
+    private final long maxBytes;
+    private final long maxAge;
+    private final BlockingQueue<Session> queue;
+    private final long run;
+    private final Map<String, IndexEntry> index;
+    private final AtomicLong archived = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private long activeSegment;
+    private long activeSize;
+    private OutputStream activeStream;
+    private Writer indexWriter;
+    private Thread writerThread;
+    private volatile ResourceSampler resourceSampler;
+
+    /**
+     * @param segmentSize uncompressed size after which a segment is compressed
+     * @param maxBytes    maximum size of the archive on disk
+     * @param maxAge      maximum age of a segment, in milliseconds
+     */
+    public SessionLogArchive(final File directory, final long segmentSize, final long maxBytes, final long maxAge) {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.maxBytes = maxBytes;
+        this.maxAge = maxAge;
+        this.run = System.currentTimeMillis();
+        this.queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        this.index = new HashMap<>();
+    }
+
+    /**
+     * <p>Starts the writer thread, which opens the archive before it takes the first session.
+     */
+    public synchronized void start() {
+        if (writerThread != null) {
+            return;
+        }
+
+        writerThread = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                write();
+            }
+        }, "session-log-archive");
+        writerThread.setDaemon(true);
+        writerThread.setPriority(Thread.MIN_PRIORITY);
+        writerThread.start();
+    }
+
+    /**
+     * <p>Adds the resource usage recorded by the given sampler to archived sessions.
+     */
+    public void setResourceSampler(final ResourceSampler resourceSampler) {
+        this.resourceSampler = resourceSampler;
+    }
+
+    public synchronized void stop() {
+        if (writerThread != null) {
+            writerThread.interrupt();
+            writerThread = null;
+        }
+    }
+
+    /**
+     * <p>Queues a completed session for archiving. Never blocks.
+     */
+    @Override
+    public void apply(final Session session) {
+        if (!queue.offer(session)) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    /**
+     * @return the run sessions of this process are archived under
+     */
+    public long getRun() {
+        return run;
+    }
+
+    /**
+     * @return the archived logs of the given session of this process, null if it is not in the
+     * archive
+     */
+    public String read(final long sessionId) throws IOException {
+        return read(run, sessionId);
+    }
+
+    /**
+     * @return the archived logs of the given session of the given run, null if it is not in the
+     * archive
+     */
+    public String read(final long run, final long sessionId) throws IOException {
+        final IndexEntry entry;
+        final boolean active;
+        synchronized (index) {
+            entry = index.get(getKey(run, sessionId));
+            active = entry != null && entry.segment == activeSegment;
+        }
+        if (entry == null) {
+            return null;
+        }
+
+        final File compressed = getSegmentFile(entry.segment, true);
+        final File plain = getSegmentFile(entry.segment, false);
+
+        InputStream inputStream = null;
+        try {
+            if (!active && compressed.isFile()) {
+                inputStream = new GZIPInputStream(new FileInputStream(compressed));
+            } else if (plain.isFile()) {
+                inputStream = new FileInputStream(plain);
+            } else {
+                return null;
+            }
+
+            long skipped = 0;
+            while (skipped < entry.offset) {
+                final long count = inputStream.skip(entry.offset - skipped);
+                if (count <= 0) {
+                    return null;
+                }
+                skipped += count;
+            }
+
+            final byte[] bytes = new byte[entry.length];
+            int offset = 0;
+            while (offset < bytes.length) {
+                final int read = inputStream.read(bytes, offset, bytes.length - offset);
+                if (read == -1) {
+                    return null;
+                }
+                offset += read;
+            }
+
+            return new String(bytes, Charset.forName("UTF-8"));
+        } finally {
+            IOUtil.closeQuietly(inputStream);
+        }
+    }
+
+    public String getStats() {
+        final int indexed;
+        synchronized (index) {
+            indexed = index.size();
+        }
+        return String.format(Locale.ENGLISH, "%d sessions archived, %d dropped, %d indexed, %d bytes on disk", archived.get(), dropped.get(), indexed, getArchiveSize());
+    }
+
+    protected void write() {
+        try {
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException(String.format("Failed to create log archive directory: %s.", directory.getAbsolutePath()));
+            }
+
+            restore();
+        } catch (final IOException e) {
+            Log.e(TAG, String.format("Opening session log archive failed.%s", Exceptions.getStackTraceString(e)));
+
+            synchronized (this) {
+                IOUtil.closeQuietly(indexWriter);
+                indexWriter = null;
+            }
+
+            // NOTHING IS TAKEN FROM THE QUEUE ANY MORE, LATER SESSIONS ARE DROPPED AND COUNTED
+            return;
+        }
+
+        while (!Thread.currentThread().isInterrupted()) {
+            final Session session;
+            try {
+                session = queue.take();
+            } catch (final InterruptedException e) {
+                break;
+            }
+
+            try {
+                append(session);
+                archived.incrementAndGet();
+            } catch (final IOException e) {
+                Log.w(TAG, String.format("Archiving logs of session %d failed.%s", session.getSessionId(), Exceptions.getStackTraceString(e)));
+            }
+        }
+
+        synchronized (this) {
+            IOUtil.closeQuietly(activeStream);
+            IOUtil.closeQuietly(indexWriter);
+            activeStream = null;
+            indexWriter = null;
+        }
+    }
+
+    protected synchronized void append(final Session session) throws IOException {
+        final StringBuilder record = new StringBuilder();
+        record.append(String.format(Locale.ENGLISH, "=== run %d, session %d, %s, rc %s, %d ms ===\n", run, session.getSessionId(), session.getState(), session.getReturnCode(), session.getDuration()));
+        record.append(session.getCommand()).append('\n');
+
+        final ResourceSampler sampler = resourceSampler;
+        final ResourceSampler.Usage usage = (sampler == null) ? null : sampler.getUsage(session.getSessionId());
+        if (usage != null) {
+            record.append(String.format("=== resources: %s ===\n", usage));
+        }
+
+        // LOGS MAY STILL BE ARRIVING WHEN THE EXECUTE CALLBACK RUNS
+        record.append(session.getAllLogsAsString(LOG_WAIT_TIMEOUT)).append('\n');
+
+        final byte[] bytes = record.toString().getBytes(Charset.forName("UTF-8"));
+
+        if (activeStream == null) {
+            activeStream = new FileOutputStream(getSegmentFile(activeSegment, false), true);
+        }
+        activeStream.write(bytes);
+        activeStream.flush();
+
+        final String key = getKey(run, session.getSessionId());
+        indexWriter.write(String.format(Locale.ENGLISH, "%s %d %d %d\n", key, activeSegment, activeSize, bytes.length));
+        indexWriter.flush();
+
+        synchronized (index) {
+            index.put(key, new IndexEntry(activeSegment, activeSize, bytes.length));
+        }
+        activeSize += bytes.length;
+
+        if (activeSize >= segmentSize) {
+            rotate();
+        }
+    }
+
+    protected synchronized void rotate() throws IOException {
+        IOUtil.closeQuietly(activeStream);
+        activeStream = null;
+
+        final long segment = activeSegment;
+        synchronized (index) {
+            activeSegment = segment + 1;
+        }
+        activeSize = 0;
+
+        compress(segment);
+        enforceLimits();
+    }
+
+    protected void compress(final long segment) throws IOException {
+        final File plain = getSegmentFile(segment, false);
+        final File compressed = getSegmentFile(segment, true);
+        final File partFile = new File(compressed.getAbsolutePath() + ".part");
+
+        InputStream inputStream = null;
+        OutputStream outputStream = null;
+        try {
+            inputStream = new FileInputStream(plain);
+            outputStream = new GZIPOutputStream(new FileOutputStream(partFile));
+
+            final byte[] buffer = new byte[16 * 1024];
+            int read;
+            while ((read = inputStream.read(buffer)) != -1) {
+                outputStream.write(buffer, 0, read);
+            }
+            outputStream.close();
+            outputStream = null;
+
+            if (partFile.renameTo(compressed)) {
+                plain.delete();
+            }
+        } finally {
+            IOUtil.closeQuietly(inputStream);
+            IOUtil.closeQuietly(outputStream);
+            partFile.delete();
+        }
+    }
+
+    /**
+     * <p>Deletes the oldest closed segments until the archive fits its size and age limits.
+     */
+    protected void enforceLimits() throws IOException {
+        final File[] segments = listSegments();
+        long totalSize = 0;
+        for (File segment : segments) {
+            totalSize += segment.length();
+        }
+
+        final long now = System.currentTimeMillis();
+        boolean removed = false;
+
+        for (File segment : segments) {
+            final long number = getSegmentNumber(segment);
+            if (number == activeSegment || (totalSize <= maxBytes && now - segment.lastModified() <= maxAge)) {
+                continue;
+            }
+
+            totalSize -= segment.length();
+            segment.delete();
+            removed = true;
+
+            synchronized (index) {
+                final Iterator<IndexEntry> iterator = index.values().iterator();
+                while (iterator.hasNext()) {
+                    if (iterator.next().segment == number) {
+                        iterator.remove();
+                    }
+                }
+            }
+        }
+
+        if (removed) {
+            rewriteIndex();
+        }
+    }
+
+    protected void rewriteIndex() throws IOException {
+        IOUtil.closeQuietly(indexWriter);
+
+        final File indexFile = new File(directory, INDEX_FILE_NAME);
+        final File partFile = new File(directory, INDEX_FILE_NAME + ".part");
+
+        Writer writer = null;
+        try {
+            writer = new FileWriter(partFile);
+            synchronized (index) {
+                for (Map.Entry<String, IndexEntry> entry : index.entrySet()) {
+                    writer.write(String.format(Locale.ENGLISH, "%s %d %d %d\n", entry.getKey(), entry.getValue().segment, entry.getValue().offset, entry.getValue().length));
+                }
+            }
+            writer.close();
+            writer = null;
+
+            if (!partFile.renameTo(indexFile)) {
+                throw new IOException("Failed to replace the log archive index.");
+            }
+        } finally {
+            IOUtil.closeQuietly(writer);
+            indexWriter = new FileWriter(indexFile, true);
+        }
+    }
+
+    /**
+     * <p>Replays the index and resumes the last segment, compressing an uncompressed segment left
+     * behind by an earlier run if it is full.
+     */
+    protected synchronized void restore() throws IOException {
+        final File indexFile = new File(directory, INDEX_FILE_NAME);
+
+        if (indexFile.isFile()) {
+            BufferedReader reader = null;
+            try {
+                reader = new BufferedReader(new FileReader(indexFile));
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    final String[] fields = line.split(" ");
+
+                    // ENTRIES WRITTEN BEFORE SESSIONS WERE KEYED BY RUN CANNOT BE TOLD APART, THEY ARE SKIPPED
+                    if (fields.length == 4 && fields[0].indexOf(':') > 0) {
+                        try {
+                            index.put(fields[0], new IndexEntry(Long.parseLong(fields[1]), Long.parseLong(fields[2]), Integer.parseInt(fields[3])));
+                        } catch (final NumberFormatException e) {
+
+                            // A TRUNCATED LAST LINE AFTER A CRASH
+                        }
+                    }
+                }
+            } finally {
+                IOUtil.closeQuietly(reader);
+            }
+        }
+
+        for (File segment : listSegments()) {
+            activeSegment = Math.max(activeSegment, getSegmentNumber(segment));
+        }
+
+        final File activeFile = getSegmentFile(activeSegment, false);
+        activeSize = activeFile.isFile() ? activeFile.length() : 0;
+        if (getSegmentFile(activeSegment, true).isFile()) {
+            activeSegment++;
+            activeSize = 0;
+        }
+
+        indexWriter = new FileWriter(indexFile, true);
+
+        if (activeSize >= segmentSize) {
+            rotate();
+        } else {
+            enforceLimits();
+        }
+    }
+
+    protected static String getKey(final long run, final long sessionId) {
+        return String.format(Locale.ENGLISH, "%d:%d", run, sessionId);
+    }
+
+    protected File[] listSegments() {
+        final File[] segments = directory.listFiles(new FileFilter() {
+
+            @Override
+            public boolean accept(final File file) {
+                return getSegmentNumber(file) >= 0;
+            }
+        });
+        if (segments == null) {
+            return new File[0];
+        }
+
+        Arrays.sort(segments, new Comparator<File>() {
+
+            @Override
+            public int compare(final File first, final File second) {
+                return Long.compare(getSegmentNumber(first), getSegmentNumber(second));
+            }
+        });
+        return segments;
+    }
+
+    protected long getArchiveSize() {
+        long size = 0;
+        for (File segment : listSegments()) {
+            size += segment.length();
+        }
+        return size;
+    }
+
+    protected File getSegmentFile(final long segment, final boolean compressed) {
+        return new File(directory, String.format(Locale.ENGLISH, "%s%08d%s", SEGMENT_PREFIX, segment, compressed ? COMPRESSED_SUFFIX : SEGMENT_SUFFIX));
+    }
+
+    /**
+     * @return number of the given segment file, -1 if it is not a segment
+     */
+    protected static long getSegmentNumber(final File file) {
+        final String name = file.getName();
+        if (!name.startsWith(SEGMENT_PREFIX) || !(name.endsWith(SEGMENT_SUFFIX) || name.endsWith(COMPRESSED_SUFFIX))) {
+            return -1;
+        }
+
+        final int end = name.indexOf('.', SEGMENT_PREFIX.length());
+        try {
+            return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), end));
+        } catch (final NumberFormatException | IndexOutOfBoundsException e) {
+            return -1;
+        }
+    }
+
+}
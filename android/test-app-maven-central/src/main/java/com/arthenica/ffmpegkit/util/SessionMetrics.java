@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2021 Taner Sener
+ *
+ * This file is part of FFmpegKitTest.
+ *
+ * FFmpegKitTest is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FFmpegKitTest is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with FFmpegKitTest.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.arthenica.ffmpegkit.util;
+
+import com.arthenica.ffmpegkit.ExecuteCallback;
+import com.arthenica.ffmpegkit.FFmpegKitConfig;
+import com.arthenica.ffmpegkit.ReturnCode;
+import com.arthenica.ffmpegkit.Session;
+import com.arthenica.ffmpegkit.SessionState;
+import com.arthenica.ffmpegkit.Statistics;
+import com.arthenica.ffmpegkit.StatisticsCallback;
+
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.DoubleSupplier;
+
+/**
+ * <p>Records session metrics in a {@link MetricsRegistry}.
+ *
+ * <p>It observes the global statistics and execute callbacks, so every session is measured
+ * regardless of how it was started. Synchronous sessions, which FFmpegKit does not pass to the
+ * execute callback, are measured when they are reported through {@link SyncSessions}.
+ * Statistics give the speed and frame rate distributions and the bytes written; completed
+ * sessions give their outcome, run time and time spent waiting for an executor thread.
+ * Sessions in each state are read from FFmpegKit when metrics are written.
+ *
+ * <p>Statistics are delivered on the FFmpeg thread, so recording one is a map lookup and a few
+ * striped counter updates.
+ */
+public class SessionMetrics implements StatisticsCallback, ExecuteCallback {
+
+    private final MetricsRegistry.Counter completedSessions;
+    private final MetricsRegistry.Counter failedSessions;
+    private final MetricsRegistry.Counter cancelledSessions;
+    private final MetricsRegistry.Histogram sessionDuration;
+    private final MetricsRegistry.Histogram queueWait;
+    private final MetricsRegistry.Histogram speed;
+    private final MetricsRegistry.Histogram fps;
+    private final MetricsRegistry.Counter bytesWritten;
+    private final ConcurrentHashMap<Long, Long> lastSizes;
+
+    public SessionMetrics(final MetricsRegistry registry) {
+        final String sessionsHelp = "Sessions completed, by outcome.";
+        this.completedSessions = registry.counter("ffmpegkit_sessions_total", sessionsHelp, "state", "completed");
+        this.failedSessions = registry.counter("ffmpegkit_sessions_total", sessionsHelp, "state", "failed");
+        this.cancelledSessions = registry.counter("ffmpegkit_sessions_total", sessionsHelp, "state", "cancelled");
+        this.sessionDuration = registry.histogram("ffmpegkit_session_duration_seconds", "Time from session start to completion.", MetricsRegistry.DURATION_BUCKETS);
+        this.queueWait = registry.histogram("ffmpegkit_session_queue_wait_seconds", "Time from session creation to start.", MetricsRegistry.LATENCY_BUCKETS);
+        this.speed = registry.histogram("ffmpegkit_encode_speed_ratio", "Encoding speed reported in statistics, relative to real time.", MetricsRegistry.SPEED_BUCKETS);
+        this.fps = registry.histogram("ffmpegkit_encode_fps", "Video frames per second reported in statistics.", MetricsRegistry.FPS_BUCKETS);
+        this.bytesWritten = registry.counter("ffmpegkit_output_bytes_total", "Bytes written to session outputs.");
+        this.lastSizes = new ConcurrentHashMap<>();
+
+        for (final SessionState state : SessionState.values()) {
+            registry.gauge("ffmpegkit_sessions", "Sessions held by FFmpegKit, by state.", new DoubleSupplier() {
+
+                @Override
+                public double getAsDouble() {
+                    final List<Session> sessions = FFmpegKitConfig.getSessionsByState(state);
+                    return (sessions == null) ? 0 : sessions.size();
+                }
+            }, "state", state.name().toLowerCase(Locale.ENGLISH));
+        }
+    }
+
+    @Override
+    public void apply(final Statistics statistics) {
+        if (statistics.getSpeed() > 0) {
+            speed.observe(statistics.getSpeed());
+        }
+        if (statistics.getVideoFps() > 0) {
+            fps.observe(statistics.getVideoFps());
+        }
+
+        // SIZE IS CUMULATIVE, ONLY THE INCREASE SINCE THE LAST STATISTICS IS COUNTED
+        final long size = statistics.getSize();
+        final Long lastSize = lastSizes.put(statistics.getSessionId(), size);
+        final long written = size - ((lastSize == null) ? 0 : lastSize);
+        if (written > 0) {
+            bytesWritten.add(written);
+        }
+    }
+
+    @Override
+    public void apply(final Session session) {
+        lastSizes.remove(session.getSessionId());
+
+        final ReturnCode returnCode = session.getReturnCode();
+        if (ReturnCode.isSuccess(returnCode)) {
+            completedSessions.increment();
+        } else if (ReturnCode.isCancel(returnCode)) {
+            cancelledSessions.increment();
+        } else {
+            failedSessions.increment();
+        }
+
+        final Date createTime = session.getCreateTime();
+        final Date startTime = session.getStartTime();
+        if (createTime != null && startTime != null) {
+            queueWait.observe(Math.max(0, startTime.getTime() - createTime.getTime()) / 1000.0);
+        }
+        if (startTime != null) {
+            sessionDuration.observe(session.getDuration() / 1000.0);
+        }
+    }
+
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright (c) 2021 Taner Sener
+ *
+ * This file is part of FFmpegKitTest.
+ *
+ * FFmpegKitTest is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FFmpegKitTest is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with FFmpegKitTest.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.arthenica.ffmpegkit.util;
+
+import com.arthenica.ffmpegkit.ExecuteCallback;
+import com.arthenica.ffmpegkit.FFmpegKit;
+import com.arthenica.ffmpegkit.FFmpegSession;
+import com.arthenica.ffmpegkit.FFprobeKit;
+import com.arthenica.ffmpegkit.MediaInformationSession;
+import com.arthenica.ffmpegkit.Session;
+
+/**
+ * <p>Synchronous FFmpeg and FFprobe executions that are reported like asynchronous ones.
+ *
+ * <p>FFmpegKit does not call the global execute callback for sessions executed synchronously, so
+ * observers of completed sessions, such as the log archive and the session metrics, never see
+ * them. The methods here execute the session on the calling thread and pass it to the callback
+ * enabled with {@link #enableExecuteCallback(ExecuteCallback)} when the call returns.
+ */
+public class SyncSessions {
+
+    private static volatile ExecuteCallback executeCallback;
+
+    private SyncSessions() {
+    }
+
+    /**
+     * <p>Sets the callback synchronously completed sessions are passed to, null to disable it.
+     */
+    public static void enableExecuteCallback(final ExecuteCallback executeCallback) {
+        SyncSessions.executeCallback = executeCallback;
+    }
+
+    public static FFmpegSession execute(final String command) {
+        return completed(FFmpegKit.execute(command));
+    }
+
+    public static MediaInformationSession getMediaInformation(final String path) {
+        return completed(FFprobeKit.getMediaInformation(path));
+    }
+
+    public static MediaInformationSession getMediaInformationFromCommand(final String command) {
+        return completed(FFprobeKit.getMediaInformationFromCommand(command));
+    }
+
+    /**
+     * <p>Reports a session that was executed synchronously by other means.
+     *
+     * @return the given session
+     */
+    public static <T extends Session> T completed(final T session) {
+        final ExecuteCallback callback = executeCallback;
+        if (callback != null) {
+            callback.apply(session);
+        }
+        return session;
+    }
+
+}